@@ -0,0 +1,105 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * WritableByteChannel that AES-128-CBC encrypts (PKCS#7 padded) everything written to it on
+ * the way to another channel: HLS METHOD=AES-128 applied while the segment is being written,
+ * instead of as a second pass over the finished file.
+ * <p/>
+ * One instance is reused for every segment; start() re-keys the same Cipher and the
+ * ciphertext goes through a single direct buffer.
+ */
+class AesCbcChannel implements WritableByteChannel {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final Cipher mCipher;
+    private final ByteBuffer mOut = ByteBuffer.allocateDirect(CHUNK_SIZE + 16);
+    private WritableByteChannel mTarget;
+    private byte[] mKeyBytes;
+    private SecretKeySpec mKey;
+
+    AesCbcChannel() throws GeneralSecurityException {
+        mCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");   // PKCS5 is PKCS7 for 16 byte blocks
+    }
+
+    /**
+     * Begins a new encrypted stream to target.
+     */
+    void start(WritableByteChannel target, byte[] key, byte[] iv) throws IOException {
+        if (key != mKeyBytes) {
+            mKeyBytes = key;
+            mKey = new SecretKeySpec(key, "AES");
+        }
+        try {
+            mCipher.init(Cipher.ENCRYPT_MODE, mKey, new IvParameterSpec(iv));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Couldn't initialize AES: " + e);
+        }
+        mTarget = target;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int written = src.remaining();
+        int limit = src.limit();
+        try {
+            while (src.hasRemaining()) {
+                src.limit(src.position() + Math.min(CHUNK_SIZE, src.remaining()));
+                mOut.clear();
+                mCipher.update(src, mOut);
+                src.limit(limit);
+                drain();
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException("AES update failed: " + e);
+        } finally {
+            src.limit(limit);
+        }
+        return written;
+    }
+
+    /**
+     * Writes the final padded block.  The target channel is left open.
+     */
+    void finish() throws IOException {
+        if (mTarget == null) return;
+        try {
+            mOut.clear();
+            mCipher.doFinal(EMPTY.duplicate(), mOut);
+            drain();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("AES doFinal failed: " + e);
+        } finally {
+            mTarget = null;
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mTarget != null;
+    }
+
+    /**
+     * Finishes the stream and closes the target.
+     */
+    @Override
+    public void close() throws IOException {
+        WritableByteChannel target = mTarget;
+        finish();
+        if (target != null) target.close();
+    }
+
+    private void drain() throws IOException {
+        mOut.flip();
+        while (mOut.hasRemaining()) mTarget.write(mOut);
+    }
+}
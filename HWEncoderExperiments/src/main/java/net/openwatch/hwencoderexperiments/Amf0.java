@@ -0,0 +1,132 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough AMF0 to speak RTMP's NetConnection / NetStream commands.
+ */
+class Amf0 {
+    private static final int NUMBER = 0x00;
+    private static final int BOOLEAN = 0x01;
+    private static final int STRING = 0x02;
+    private static final int OBJECT = 0x03;
+    private static final int NULL = 0x05;
+    private static final int UNDEFINED = 0x06;
+    private static final int ECMA_ARRAY = 0x08;
+    private static final int OBJECT_END = 0x09;
+    private static final int STRICT_ARRAY = 0x0A;
+    private static final int LONG_STRING = 0x0C;
+
+    static void writeNumber(ByteBuffer out, double value) {
+        out.put((byte) NUMBER).putDouble(value);
+    }
+
+    static void writeBoolean(ByteBuffer out, boolean value) {
+        out.put((byte) BOOLEAN).put((byte) (value ? 1 : 0));
+    }
+
+    static void writeString(ByteBuffer out, String value) {
+        out.put((byte) STRING);
+        writeUtf8(out, value);
+    }
+
+    static void writeNull(ByteBuffer out) {
+        out.put((byte) NULL);
+    }
+
+    static void writeObjectStart(ByteBuffer out) {
+        out.put((byte) OBJECT);
+    }
+
+    static void writeEcmaArrayStart(ByteBuffer out, int count) {
+        out.put((byte) ECMA_ARRAY).putInt(count);
+    }
+
+    static void writeKey(ByteBuffer out, String key) {
+        writeUtf8(out, key);
+    }
+
+    static void writeObjectEnd(ByteBuffer out) {
+        out.put((byte) 0).put((byte) 0).put((byte) OBJECT_END);
+    }
+
+    private static void writeUtf8(ByteBuffer out, String value) {
+        byte[] bytes = utf8(value);
+        out.putShort((short) bytes.length).put(bytes);
+    }
+
+    /**
+     * Decodes every value in in[position, limit).  Objects and ECMA arrays become Maps,
+     * numbers Doubles, null / undefined null.
+     */
+    static List<Object> readAll(ByteBuffer in) {
+        List<Object> values = new ArrayList<Object>();
+        while (in.hasRemaining()) values.add(read(in));
+        return values;
+    }
+
+    static Object read(ByteBuffer in) {
+        int type = in.get() & 0xFF;
+        switch (type) {
+            case NUMBER:
+                return in.getDouble();
+            case BOOLEAN:
+                return in.get() != 0;
+            case STRING:
+                return readUtf8(in, in.getShort() & 0xFFFF);
+            case LONG_STRING:
+                return readUtf8(in, in.getInt());
+            case OBJECT:
+                return readProperties(in);
+            case ECMA_ARRAY:
+                in.getInt();    // approximate count; the end marker is authoritative
+                return readProperties(in);
+            case STRICT_ARRAY: {
+                int count = in.getInt();
+                List<Object> list = new ArrayList<Object>(count);
+                for (int i = 0; i < count; i++) list.add(read(in));
+                return list;
+            }
+            case NULL:
+            case UNDEFINED:
+                return null;
+            default:
+                throw new IllegalArgumentException("Unsupported AMF0 type 0x" + Integer.toHexString(type));
+        }
+    }
+
+    private static Map<String, Object> readProperties(ByteBuffer in) {
+        Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        while (true) {
+            String key = readUtf8(in, in.getShort() & 0xFFFF);
+            if (key.length() == 0 && (in.get(in.position()) & 0xFF) == OBJECT_END) {
+                in.get();
+                return properties;
+            }
+            properties.put(key, read(in));
+        }
+    }
+
+    private static String readUtf8(ByteBuffer in, int length) {
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] utf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package net.openwatch.hwencoderexperiments;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaRecorder;
+import android.os.Debug;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+
+/**
+ * Chunked recording of the microphone alone, for long sessions on battery: no camera, no
+ * EGL and no video encoder.
+ * <p/>
+ * One worker thread does everything, in bursts: it sleeps in AudioRecord.read() until a
+ * whole wakeup interval (default one second) of PCM has been captured, converts it, hands
+ * it all to the AAC encoder, collects whatever the encoder has finished and goes back to
+ * sleep.  Timestamps come from the count of samples captured.  AudioChunkWriter cuts the AAC
+ * into fMP4 or MPEG-TS chunks and writes them to disk once per write interval (default ten
+ * seconds).
+ * <p/>
+ * CPU time of the worker thread and of the whole process, and the number of times the
+ * worker woke up, are logged when recording stops and available from getStats().
+ */
+public class AudioChunkRecorder {
+    private static final String TAG = "AudioChunkRecorder";
+
+    private static final String AUDIO_MIME_TYPE = "audio/mp4a-latm";
+    private static final int AUDIO_FORMAT = AudioFormat.ENCODING_PCM_16BIT;
+    private static final int[] CAPTURE_RATES = {48000, ChunkedHWRecorder.SAMPLE_RATE};
+    private static final int[] CAPTURE_CHANNEL_CONFIGS = {AudioFormat.CHANNEL_IN_MONO, AudioFormat.CHANNEL_IN_STEREO};
+    private static final int MAX_INPUT_SIZE = 64 * 1024;
+    // Waits for an encoder buffer while a burst is handed over; the encoder is seldom behind
+    private static final long CODEC_TIMEOUT_US = 10000;
+
+    private int mContainer = AudioChunkWriter.FORMAT_FMP4;
+    private int mChunkDurationSec = 30;
+    private int mWriteIntervalSec = 10;
+    private int mWakeupIntervalMs = 1000;
+    private int mBitRate = 64000;
+    private int mRequestedRate = 0;
+    private float mGain = 1f;
+    private final SegmentEventDispatcher mSegmentEvents = new SegmentEventDispatcher();
+
+    private AudioRecord mAudioRecord;
+    private PcmProcessor mPcmProcessor;
+    private MediaCodec mEncoder;
+    private AudioChunkWriter mWriter;
+    private Thread mThread;
+    private volatile boolean mStopRequested = false;
+    private int mCaptureRate;
+    private int mCaptureChannels;
+    private int mSampleRate;
+    private long mFramesQueued = 0;
+
+    // Stats, written by the worker
+    private volatile long mWakeups = 0;
+    private volatile long mCodecWaits = 0;
+    private volatile long mThreadCpuNs = 0;
+    private volatile long mProcessCpuMs = 0;
+    private volatile long mElapsedMs = 0;
+
+    /**
+     * AudioChunkWriter.FORMAT_FMP4 (default) or FORMAT_TS.
+     */
+    public void setContainer(int format) {
+        mContainer = format;
+    }
+
+    public void setChunkDuration(int seconds) {
+        mChunkDurationSec = seconds;
+    }
+
+    /**
+     * How much audio is held in memory between writes to disk.
+     */
+    public void setWriteInterval(int seconds) {
+        mWriteIntervalSec = seconds;
+    }
+
+    /**
+     * How much audio is captured per wakeup of the worker thread.
+     */
+    public void setWakeupInterval(int ms) {
+        mWakeupIntervalMs = ms;
+    }
+
+    public void setAudioBitRate(int bps) {
+        mBitRate = bps;
+    }
+
+    /**
+     * Encoded sample rate.  By default audio is encoded at the rate it is captured at.
+     */
+    public void setAudioSampleRate(int hz) {
+        mRequestedRate = hz;
+    }
+
+    public void setAudioGain(float gain) {
+        mGain = gain;
+    }
+
+    public SegmentEventDispatcher.Subscription addSegmentListener(SegmentListener listener) {
+        return mSegmentEvents.subscribe(listener);
+    }
+
+    /**
+     * Opens the microphone and the encoder and starts recording chunks into dir.
+     */
+    public void start(File dir) {
+        if (mThread != null) throw new IllegalStateException("already started");
+        int blockFrames = openMicrophone();
+        mSampleRate = (mRequestedRate > 0) ? mRequestedRate : mCaptureRate;
+        mPcmProcessor = new PcmProcessor(mCaptureRate, mCaptureChannels, mSampleRate, 1, blockFrames);
+        mPcmProcessor.setGain(mGain);
+
+        MediaFormat format = new MediaFormat();
+        format.setString(MediaFormat.KEY_MIME, AUDIO_MIME_TYPE);
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        format.setInteger(MediaFormat.KEY_SAMPLE_RATE, mSampleRate);
+        format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, 1);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, mBitRate);
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, MAX_INPUT_SIZE);
+        mEncoder = MediaCodec.createEncoderByType(AUDIO_MIME_TYPE);
+        mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mEncoder.start();
+
+        mWriter = new AudioChunkWriter(dir, "audio_", mContainer, mChunkDurationSec * 1000000L, mWriteIntervalSec * 1000000L, 1);
+        mWriter.setEventDispatcher(mSegmentEvents);
+        Log.i(TAG, "Capturing " + mCaptureRate + " Hz x" + mCaptureChannels + ", encoding " + mSampleRate + " Hz mono at "
+                + mBitRate + " bps, " + mChunkDurationSec + " s chunks");
+
+        final int frames = blockFrames;
+        mStopRequested = false;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                record(frames);
+            }
+        }, "audio only");
+        mThread.start();
+    }
+
+    /**
+     * Ends recording and waits for the last chunk to be written, which takes up to one
+     * wakeup interval.
+     */
+    public void stop() {
+        mStopRequested = true;
+        if (mThread == null) return;
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+        mSegmentEvents.close(1000);
+    }
+
+    /**
+     * Opens the microphone at the first rate and channel count it accepts, with room for two
+     * wakeup intervals.
+     *
+     * @return frames per read
+     */
+    private int openMicrophone() {
+        for (int rate : CAPTURE_RATES) {
+            int blockFrames = rate * mWakeupIntervalMs / 1000;
+            for (int channelConfig : CAPTURE_CHANNEL_CONFIGS) {
+                int minBufferSize = AudioRecord.getMinBufferSize(rate, channelConfig, AUDIO_FORMAT);
+                if (minBufferSize <= 0) continue;
+                int channels = (channelConfig == AudioFormat.CHANNEL_IN_STEREO) ? 2 : 1;
+                AudioRecord record = new AudioRecord(MediaRecorder.AudioSource.MIC, rate, channelConfig, AUDIO_FORMAT,
+                        Math.max(minBufferSize, 2 * blockFrames * channels * 2));
+                if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+                    record.release();
+                    continue;
+                }
+                mAudioRecord = record;
+                mCaptureRate = rate;
+                mCaptureChannels = channels;
+                return blockFrames;
+            }
+        }
+        throw new RuntimeException("No supported microphone configuration");
+    }
+
+    private void record(int blockFrames) {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+        long cpuStartNs = Debug.threadCpuTimeNanos();
+        long processCpuStartMs = Process.getElapsedCpuTime();
+        long startMs = SystemClock.elapsedRealtime();
+        short[] block = new short[blockFrames * mCaptureChannels];
+        boolean passthrough = mPcmProcessor.isPassthrough();
+        short[] converted = passthrough ? block : new short[mPcmProcessor.maxOutputShorts(blockFrames)];
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        try {
+            mAudioRecord.startRecording();
+            while (!mStopRequested) {
+                // The one planned wakeup per interval: read() returns once the block is full
+                int read = mAudioRecord.read(block, 0, block.length);
+                mWakeups++;
+                if (read < 0) {
+                    Log.e(TAG, "Audio read error " + read);
+                    break;
+                }
+                int length = passthrough ? read : mPcmProcessor.process(block, 0, read, converted);
+                queuePcm(converted, length, info);
+                drain(info, false);
+            }
+            mAudioRecord.stop();
+            queueEndOfStream(info);
+            drain(info, true);
+            mWriter.finish();
+        } catch (IOException e) {
+            Log.e(TAG, "Writing chunks failed", e);
+        } finally {
+            mAudioRecord.release();
+            mEncoder.stop();
+            mEncoder.release();
+            mThreadCpuNs = Debug.threadCpuTimeNanos() - cpuStartNs;
+            mProcessCpuMs = Process.getElapsedCpuTime() - processCpuStartMs;
+            mElapsedMs = SystemClock.elapsedRealtime() - startMs;
+            Log.i(TAG, getStats());
+        }
+    }
+
+    /**
+     * Hands length shorts of mono PCM to the encoder, in as few input buffers as fit.
+     * Collects output whenever it has to wait for an input buffer.
+     */
+    private void queuePcm(short[] pcm, int length, MediaCodec.BufferInfo info) throws IOException {
+        ByteBuffer[] inputBuffers = mEncoder.getInputBuffers();
+        int offset = 0;
+        while (offset < length) {
+            int index = mEncoder.dequeueInputBuffer(CODEC_TIMEOUT_US);
+            if (index < 0) {
+                mCodecWaits++;
+                drain(info, false);
+                continue;
+            }
+            ByteBuffer input = inputBuffers[index];
+            input.clear();
+            int count = Math.min(length - offset, input.remaining() / 2);
+            input.order(ByteOrder.nativeOrder()).asShortBuffer().put(pcm, offset, count);
+            long ptsUs = mFramesQueued * 1000000L / mSampleRate;
+            mEncoder.queueInputBuffer(index, 0, count * 2, ptsUs, 0);
+            mFramesQueued += count;
+            offset += count;
+        }
+    }
+
+    private void queueEndOfStream(MediaCodec.BufferInfo info) throws IOException {
+        int index;
+        while ((index = mEncoder.dequeueInputBuffer(CODEC_TIMEOUT_US)) < 0) drain(info, false);
+        mEncoder.queueInputBuffer(index, 0, 0, mFramesQueued * 1000000L / mSampleRate, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+    }
+
+    /**
+     * Passes finished AAC frames to the writer.  Without endOfStream, returns as soon as the
+     * encoder has nothing ready; with it, waits for the end of stream.
+     */
+    private void drain(MediaCodec.BufferInfo info, boolean endOfStream) throws IOException {
+        ByteBuffer[] outputBuffers = mEncoder.getOutputBuffers();
+        while (true) {
+            int index = mEncoder.dequeueOutputBuffer(info, endOfStream ? CODEC_TIMEOUT_US : 0);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!endOfStream) return;
+            } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                outputBuffers = mEncoder.getOutputBuffers();
+            } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                mWriter.setTrackFormat(ChunkedHWRecorder.toTrackFormat(mEncoder.getOutputFormat()));
+            } else if (index >= 0) {
+                if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0) {
+                    ByteBuffer frame = outputBuffers[index];
+                    frame.position(info.offset);
+                    frame.limit(info.offset + info.size);
+                    mWriter.writeFrame(frame, info.presentationTimeUs);
+                }
+                mEncoder.releaseOutputBuffer(index, false);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) return;
+            }
+        }
+    }
+
+    /**
+     * Wakeups of the worker: one per captured block, plus each wait for an encoder buffer.
+     */
+    public long getWakeups() {
+        return mWakeups + mCodecWaits;
+    }
+
+    /**
+     * CPU time of the worker thread over the whole recording, once stopped.
+     */
+    public long getThreadCpuMs() {
+        return mThreadCpuNs / 1000000;
+    }
+
+    public String getStats() {
+        double minutes = Math.max(1, mElapsedMs) / 60000.0;
+        return String.format(Locale.US, "%.1f s recorded, %d chunks in %d writes; worker CPU %d ms (%.2f%%), process CPU %d ms; "
+                        + "%d wakeups (%.1f/min), %d of them waiting on the encoder",
+                mElapsedMs / 1000.0, mWriter == null ? 0 : mWriter.getChunkCount(), mWriter == null ? 0 : mWriter.getWrites(),
+                getThreadCpuMs(), mThreadCpuNs / 1e4 / Math.max(1, mElapsedMs), mProcessCpuMs,
+                getWakeups(), getWakeups() / minutes, mCodecWaits);
+    }
+}
@@ -0,0 +1,164 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Cuts a stream of AAC frames into chunk files for audio-only recording: fMP4 (an
+ * initialization segment followed by moof + mdat fragments) or MPEG-TS with ADTS audio.
+ * <p/>
+ * Every AAC frame is a sync sample, so chunks are cut on the first frame at or after each
+ * chunk duration, by PTS.  Frames are assembled in memory and reach the file as one write
+ * per writeInterval, which is also the fragment duration for fMP4, so a long session costs
+ * a handful of writes a minute.  A process death loses at most one interval.
+ * <p/>
+ * Not thread-safe; the recorder calls it from its one worker thread.
+ */
+public class AudioChunkWriter {
+    public static final int FORMAT_FMP4 = 0;
+    public static final int FORMAT_TS = 1;
+
+    private final File mDir;
+    private final String mPrefix;
+    private final int mFormat;
+    private final long mChunkDurationUs;
+    private final long mWriteIntervalUs;
+    private final MemoryChannel mBuffer = new MemoryChannel(256 * 1024);
+    private final SegmentWriter mWriter;
+    private SegmentEventDispatcher mEvents;
+    private TrackFormat mTrackFormat;
+    private ByteBuffer mInitSegment;
+
+    // Current chunk
+    private File mFile;
+    private FileOutputStream mStream;
+    private FileChannel mOut;
+    private int mSequence;
+    private long mChunkStartUs;
+    private long mFragmentStartUs;
+    private int mFragmentFrames;
+    private long mChunkBytes;
+    private long mLastPtsUs = -1;
+    private long mFrameDurationUs;
+
+    private int mChunks = 0;
+    private long mWrites = 0;
+    private long mBytesWritten = 0;
+
+    /**
+     * @param prefix          chunk files are prefix + sequence + ".mp4" or ".ts"
+     * @param writeIntervalUs media time buffered between writes; at most chunkDurationUs
+     */
+    public AudioChunkWriter(File dir, String prefix, int format, long chunkDurationUs, long writeIntervalUs, int firstSequence) {
+        mDir = dir;
+        mPrefix = prefix;
+        mFormat = format;
+        mChunkDurationUs = chunkDurationUs;
+        mWriteIntervalUs = Math.min(writeIntervalUs, chunkDurationUs);
+        mSequence = firstSequence;
+        mWriter = (format == FORMAT_TS) ? new TsWriter(mBuffer) : new FragmentedMp4Writer();
+    }
+
+    public void setEventDispatcher(SegmentEventDispatcher events) {
+        mEvents = events;
+    }
+
+    /**
+     * Before the first frame.
+     */
+    public void setTrackFormat(TrackFormat format) throws IOException {
+        mTrackFormat = format;
+        mFrameDurationUs = 1024 * 1000000L / format.sampleRate;
+        mWriter.setTrackFormat(EncodedSampleSink.TRACK_AUDIO, format);
+        if (mFormat == FORMAT_FMP4) {
+            MemoryChannel init = new MemoryChannel(1024);
+            ((FragmentedMp4Writer) mWriter).writeInitSegment(init);
+            mInitSegment = init.copy();
+        }
+    }
+
+    /**
+     * Adds one raw AAC frame from data[position, limit).  data is not modified.
+     */
+    public void writeFrame(ByteBuffer data, long ptsUs) throws IOException {
+        if (mTrackFormat == null) throw new IllegalStateException("setTrackFormat first");
+        if (mOut == null) {
+            startChunk(ptsUs);
+        } else if (ptsUs - mChunkStartUs >= mChunkDurationUs) {
+            finishChunk(ptsUs);
+            startChunk(ptsUs);
+        } else if (ptsUs - mFragmentStartUs >= mWriteIntervalUs) {
+            writeFragment(ptsUs, true);
+        }
+        mWriter.writeSampleData(EncodedSampleSink.TRACK_AUDIO, data, ptsUs, Mp4Writer.FLAG_SYNC);
+        mFragmentFrames++;
+        mLastPtsUs = ptsUs;
+    }
+
+    /**
+     * Writes and closes the current chunk.
+     */
+    public void finish() throws IOException {
+        if (mOut != null) finishChunk(mLastPtsUs + mFrameDurationUs);
+    }
+
+    public int getChunkCount() {
+        return mChunks;
+    }
+
+    /**
+     * File writes so far, one per write interval and chunk end.
+     */
+    public long getWrites() {
+        return mWrites;
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    private void startChunk(long ptsUs) throws IOException {
+        mFile = new File(mDir, mPrefix + mSequence + (mFormat == FORMAT_TS ? ".ts" : ".mp4"));
+        mStream = new FileOutputStream(mFile);
+        mOut = mStream.getChannel();
+        mChunkStartUs = ptsUs;
+        mFragmentStartUs = ptsUs;
+        mFragmentFrames = 0;
+        mChunkBytes = 0;
+        if (mInitSegment != null) mBuffer.write(mInitSegment.duplicate());
+        mWriter.startSegment(mBuffer);
+        if (mEvents != null) mEvents.publish(SegmentEvent.started(SegmentEvent.KIND_CHUNK, mFile, mSequence));
+    }
+
+    /**
+     * Completes the fragment built since the last write and writes it out in one go.
+     */
+    private void writeFragment(long endPtsUs, boolean more) throws IOException {
+        if (mFragmentFrames > 0) mWriter.finishSegment(endPtsUs);
+        long n = mBuffer.drainTo(mOut);
+        mChunkBytes += n;
+        mBytesWritten += n;
+        mWrites++;
+        mFragmentStartUs = endPtsUs;
+        mFragmentFrames = 0;
+        if (more) mWriter.startSegment(mBuffer);
+    }
+
+    private void finishChunk(long endPtsUs) throws IOException {
+        try {
+            writeFragment(endPtsUs, false);
+        } finally {
+            mStream.close();
+            mOut = null;
+        }
+        mChunks++;
+        if (mEvents != null) {
+            mEvents.publish(new SegmentEvent(SegmentEvent.FINISHED, SegmentEvent.KIND_CHUNK, mFile, mSequence,
+                    mChunkStartUs, endPtsUs, mChunkBytes, 0, true));
+        }
+        mSequence++;
+    }
+}
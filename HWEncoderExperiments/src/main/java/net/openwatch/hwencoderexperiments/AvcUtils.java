@@ -0,0 +1,243 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers for walking the H.264 / AAC elementary streams MediaCodec hands us.
+ * <p/>
+ * MediaCodec's AVC encoder emits Annex-B access units (NAL units separated by
+ * 00 00 01 / 00 00 00 01 start codes).  MP4 and FLV want each NAL prefixed with its length
+ * instead, which is what MediaMuxer does for us internally.  Everything here works on absolute
+ * ByteBuffer indices so callers' buffer positions are left untouched and nothing is allocated.
+ */
+public class AvcUtils {
+
+    public static final int NAL_TYPE_NON_IDR_SLICE = 1;
+    public static final int NAL_TYPE_IDR_SLICE = 5;
+    public static final int NAL_TYPE_SEI = 6;
+    public static final int NAL_TYPE_SPS = 7;
+    public static final int NAL_TYPE_PPS = 8;
+    public static final int NAL_TYPE_AUD = 9;
+    public static final int NAL_TYPE_PREFIX = 14;
+
+    private static final int[] AAC_SAMPLE_RATES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+    };
+
+    /**
+     * Returns the index of the first byte of the next 00 00 01 start code pattern in
+     * [from, limit), or -1.  A four byte start code is reported at its second zero.
+     */
+    public static int findStartCode(ByteBuffer buf, int from, int limit) {
+        int i = from;
+        while (i + 2 < limit) {
+            int c = buf.get(i + 2) & 0xFF;
+            if (c > 1) {
+                i += 3;
+            } else if (c == 1 && buf.get(i + 1) == 0 && buf.get(i) == 0) {
+                return i;
+            } else {
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index of the first payload byte of the NAL unit starting at or after from,
+     * or -1 if there are no more start codes.
+     */
+    public static int nextNalStart(ByteBuffer buf, int from, int limit) {
+        int sc = findStartCode(buf, from, limit);
+        return (sc < 0) ? -1 : sc + 3;
+    }
+
+    /**
+     * Returns the exclusive end index of the NAL unit whose payload begins at nalStart.
+     */
+    public static int nalEnd(ByteBuffer buf, int nalStart, int limit) {
+        int sc = findStartCode(buf, nalStart, limit);
+        if (sc < 0) return limit;
+        // Leading zero of a four byte start code belongs to the next NAL, not this one
+        while (sc > nalStart && buf.get(sc - 1) == 0) sc--;
+        return sc;
+    }
+
+    public static int nalType(byte header) {
+        return header & 0x1F;
+    }
+
+    public static int nalRefIdc(byte header) {
+        return (header >> 5) & 0x03;
+    }
+
+    /**
+     * Returns true if buf[position, limit) begins with an Annex-B start code.
+     */
+    public static boolean isAnnexB(ByteBuffer buf) {
+        int p = buf.position();
+        int l = buf.limit();
+        if (l - p >= 3 && buf.get(p) == 0 && buf.get(p + 1) == 0 && buf.get(p + 2) == 1) return true;
+        return l - p >= 4 && buf.get(p) == 0 && buf.get(p + 1) == 0 && buf.get(p + 2) == 0 && buf.get(p + 3) == 1;
+    }
+
+    /**
+     * Returns the number of bytes annexBToAvcc would produce for buf[position, limit).
+     */
+    public static int avccSize(ByteBuffer buf) {
+        int limit = buf.limit();
+        if (!isAnnexB(buf)) return 4 + buf.remaining();
+        int size = 0;
+        int nal = nextNalStart(buf, buf.position(), limit);
+        while (nal >= 0 && nal < limit) {
+            int end = nalEnd(buf, nal, limit);
+            size += 4 + (end - nal);
+            nal = nextNalStart(buf, end, limit);
+        }
+        return size;
+    }
+
+    /**
+     * Copies the access unit in src[position, limit) into dst at its position, replacing each
+     * start code with a four byte big-endian length.  A buffer without start codes is treated
+     * as a single NAL unit.  Advances dst.position; src is untouched.
+     *
+     * @return the number of bytes written to dst
+     */
+    public static int annexBToAvcc(ByteBuffer src, ByteBuffer dst) {
+        int start = dst.position();
+        int limit = src.limit();
+        if (!isAnnexB(src)) {
+            dst.putInt(src.remaining());
+            copy(src, src.position(), limit, dst);
+            return dst.position() - start;
+        }
+        int nal = nextNalStart(src, src.position(), limit);
+        while (nal >= 0 && nal < limit) {
+            int end = nalEnd(src, nal, limit);
+            dst.putInt(end - nal);
+            copy(src, nal, end, dst);
+            nal = nextNalStart(src, end, limit);
+        }
+        return dst.position() - start;
+    }
+
+    /**
+     * The inverse of annexBToAvcc, for samples read back out of an MP4: copies the access
+     * unit in src[position, limit), whose NAL units carry lengthSize byte length prefixes, into
+     * dst with four byte start codes.  A length running past the end of the sample is cut
+     * short and empty NAL units are dropped.  Advances dst.position; src is untouched.  dst
+     * needs up to remaining * 5 / (lengthSize + 1) bytes, or exactly remaining with
+     * lengthSize 4.
+     *
+     * @return the number of bytes written to dst
+     */
+    public static int avccToAnnexB(ByteBuffer src, int lengthSize, ByteBuffer dst) {
+        int start = dst.position();
+        int limit = src.limit();
+        int p = src.position();
+        while (p + lengthSize <= limit) {
+            int length = 0;
+            for (int i = 0; i < lengthSize; i++) length = (length << 8) | (src.get(p + i) & 0xFF);
+            p += lengthSize;
+            int end = (length < 0 || length > limit - p) ? limit : p + length;
+            if (end == p) continue;
+            dst.putInt(1);
+            copy(src, p, end, dst);
+            p = end;
+        }
+        return dst.position() - start;
+    }
+
+    /**
+     * Returns the index of the header byte of the first VCL (slice) NAL unit in the Annex-B
+     * access unit, or -1.
+     */
+    public static int firstSlice(ByteBuffer buf) {
+        int limit = buf.limit();
+        int nal = nextNalStart(buf, buf.position(), limit);
+        while (nal >= 0 && nal < limit) {
+            int type = nalType(buf.get(nal));
+            if (type >= NAL_TYPE_NON_IDR_SLICE && type <= NAL_TYPE_IDR_SLICE) return nal;
+            nal = nextNalStart(buf, nal + 1, limit);
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the type of the first VCL (slice) NAL unit in the Annex-B access unit, or -1.
+     */
+    public static int firstSliceType(ByteBuffer buf) {
+        int slice = firstSlice(buf);
+        return (slice < 0) ? -1 : nalType(buf.get(slice));
+    }
+
+    /**
+     * Returns false only if the access unit's slices have nal_ref_idc 0, i.e. no other
+     * picture is predicted from it and it can be dropped without breaking decoding.
+     */
+    public static boolean isReferencePicture(ByteBuffer buf) {
+        int slice = firstSlice(buf);
+        return slice < 0 || nalRefIdc(buf.get(slice)) != 0;
+    }
+
+    /**
+     * Returns the temporal_id of the access unit from the SVC prefix NAL unit that encoders
+     * configured for temporal layers put ahead of its slices, or -1 if there is none.
+     */
+    public static int temporalId(ByteBuffer buf) {
+        int limit = buf.limit();
+        int nal = nextNalStart(buf, buf.position(), limit);
+        while (nal >= 0 && nal < limit) {
+            int type = nalType(buf.get(nal));
+            if (type == NAL_TYPE_PREFIX) {
+                // svc_extension_flag, then temporal_id in the top bits of the third extension byte
+                if (nal + 3 < limit && (buf.get(nal + 1) & 0x80) != 0) return (buf.get(nal + 3) >> 5) & 0x07;
+                return -1;
+            }
+            if (type >= NAL_TYPE_NON_IDR_SLICE && type <= NAL_TYPE_IDR_SLICE) return -1;
+            nal = nextNalStart(buf, nal + 1, limit);
+        }
+        return -1;
+    }
+
+    /**
+     * Returns true if the Annex-B access unit carries an IDR slice.
+     */
+    public static boolean isIdr(ByteBuffer buf) {
+        return firstSliceType(buf) == NAL_TYPE_IDR_SLICE;
+    }
+
+    /**
+     * Returns a copy of the given parameter set without any leading start code.
+     */
+    public static byte[] stripStartCode(byte[] nal) {
+        if (nal == null) return null;
+        int skip = 0;
+        if (nal.length >= 4 && nal[0] == 0 && nal[1] == 0 && nal[2] == 0 && nal[3] == 1) skip = 4;
+        else if (nal.length >= 3 && nal[0] == 0 && nal[1] == 0 && nal[2] == 1) skip = 3;
+        if (skip == 0) return nal;
+        byte[] result = new byte[nal.length - skip];
+        System.arraycopy(nal, skip, result, 0, result.length);
+        return result;
+    }
+
+    public static int aacSampleRateIndex(int sampleRate) {
+        for (int i = 0; i < AAC_SAMPLE_RATES.length; i++) {
+            if (AAC_SAMPLE_RATES[i] == sampleRate) return i;
+        }
+        throw new IllegalArgumentException("Unsupported AAC sample rate " + sampleRate);
+    }
+
+    private static void copy(ByteBuffer src, int from, int to, ByteBuffer dst) {
+        if (src.hasArray() && dst.hasArray()) {
+            System.arraycopy(src.array(), src.arrayOffset() + from,
+                    dst.array(), dst.arrayOffset() + dst.position(), to - from);
+            dst.position(dst.position() + (to - from));
+            return;
+        }
+        ByteBuffer view = src.duplicate();
+        view.limit(to).position(from);
+        dst.put(view);
+    }
+}
@@ -0,0 +1,139 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Growable big-endian buffer for assembling ISO BMFF boxes.  start() / end() nest boxes and
+ * patch each box's size on the way out, so callers never have to precompute lengths.
+ * <p/>
+ * A BoxBuilder is meant to be kept and reset() between uses; it only allocates when a box
+ * tree outgrows every tree built before it.
+ */
+public class BoxBuilder {
+    private static final int MAX_DEPTH = 16;
+
+    private ByteBuffer mBuffer;
+    private final int[] mBoxStarts = new int[MAX_DEPTH];
+    private int mDepth = 0;
+
+    public BoxBuilder(int initialCapacity) {
+        mBuffer = ByteBuffer.allocate(initialCapacity);
+    }
+
+    public BoxBuilder reset() {
+        mBuffer.clear();
+        mDepth = 0;
+        return this;
+    }
+
+    public BoxBuilder start(String type) {
+        if (mDepth == MAX_DEPTH) throw new IllegalStateException("Boxes nested too deeply");
+        mBoxStarts[mDepth++] = mBuffer.position();
+        putInt(0);
+        putFourCC(type);
+        return this;
+    }
+
+    public BoxBuilder startFull(String type, int version, int flags) {
+        start(type);
+        putInt((version << 24) | (flags & 0xFFFFFF));
+        return this;
+    }
+
+    public BoxBuilder end() {
+        if (mDepth == 0) throw new IllegalStateException("end() without start()");
+        int boxStart = mBoxStarts[--mDepth];
+        mBuffer.putInt(boxStart, mBuffer.position() - boxStart);
+        return this;
+    }
+
+    public BoxBuilder putByte(int b) {
+        ensure(1);
+        mBuffer.put((byte) b);
+        return this;
+    }
+
+    public BoxBuilder putShort(int s) {
+        ensure(2);
+        mBuffer.putShort((short) s);
+        return this;
+    }
+
+    public BoxBuilder putInt24(int i) {
+        ensure(3);
+        mBuffer.put((byte) (i >> 16)).put((byte) (i >> 8)).put((byte) i);
+        return this;
+    }
+
+    public BoxBuilder putInt(int i) {
+        ensure(4);
+        mBuffer.putInt(i);
+        return this;
+    }
+
+    public BoxBuilder putLong(long l) {
+        ensure(8);
+        mBuffer.putLong(l);
+        return this;
+    }
+
+    public BoxBuilder putFourCC(String fourCC) {
+        ensure(4);
+        for (int i = 0; i < 4; i++) mBuffer.put((byte) fourCC.charAt(i));
+        return this;
+    }
+
+    public BoxBuilder put(byte[] bytes) {
+        return put(bytes, 0, bytes.length);
+    }
+
+    public BoxBuilder put(byte[] bytes, int offset, int length) {
+        ensure(length);
+        mBuffer.put(bytes, offset, length);
+        return this;
+    }
+
+    public BoxBuilder put(ByteBuffer bytes) {
+        ensure(bytes.remaining());
+        mBuffer.put(bytes);
+        return this;
+    }
+
+    public BoxBuilder putZeros(int count) {
+        ensure(count);
+        for (int i = 0; i < count; i++) mBuffer.put((byte) 0);
+        return this;
+    }
+
+    /**
+     * Overwrites a previously written 32-bit value, e.g. a data offset only known later.
+     */
+    public BoxBuilder patchInt(int position, int value) {
+        mBuffer.putInt(position, value);
+        return this;
+    }
+
+    public int position() {
+        return mBuffer.position();
+    }
+
+    /**
+     * Returns a view of everything written since the last reset().  The view is only valid
+     * until the next write.
+     */
+    public ByteBuffer buffer() {
+        ByteBuffer view = mBuffer.duplicate();
+        view.flip();
+        return view;
+    }
+
+    private void ensure(int bytes) {
+        if (mBuffer.remaining() >= bytes) return;
+        int capacity = mBuffer.capacity();
+        while (capacity - mBuffer.position() < bytes) capacity *= 2;
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        mBuffer.flip();
+        grown.put(mBuffer);
+        mBuffer = grown;
+    }
+}
@@ -0,0 +1,404 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sidecar sample index for an MP4 or an MPEG-TS segment ("&lt;file&gt;.idx"), so seeks,
+ * byte-range requests and clip extraction can go from a time to a file offset with a binary
+ * search instead of parsing boxes or packets.
+ * <p/>
+ * The index is a flat big-endian file, memory-mapped when opened (or read in, for one-off
+ * lookups) and searched in place:
+ * <pre>
+ *   header   'CIDX', version, 3 reserved, media file length (8), sample count (4),
+ *            sync sample count (4), duration in us (8)                        32 bytes
+ *   samples  file offset (8), size | SYNC | AUDIO flag bits (4), pts in us (8)  20 bytes each
+ *   sync     sample number of each video sync sample (4)                      4 bytes each
+ * </pre>
+ * Samples of both tracks are merged in presentation order.  The media file length in the
+ * header catches an index that no longer matches its file.
+ * <p/>
+ * Mp4Writer emits the index as it finishes a file, and HlsSegmenter as it finishes a TS
+ * segment; files written by MediaMuxer or MediaRecorder are indexed from their moov with
+ * build(), or in bulk with rebuild().
+ */
+public class ChunkIndex {
+    private static final Logger LOG = Logger.getLogger("ChunkIndex");
+
+    public static final String SUFFIX = ".idx";
+
+    private static final int MAGIC = 0x43494458;    // 'CIDX'
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int ENTRY_SIZE = 20;
+    private static final int FLAG_SYNC = 0x80000000;
+    private static final int FLAG_AUDIO = 0x40000000;
+    private static final int SIZE_MASK = 0x3FFFFFFF;
+
+    private final ByteBuffer mIndex;
+    private final int mCount;
+    private final int mSyncCount;
+    private final int mSyncTable;
+
+    private ChunkIndex(ByteBuffer index) {
+        mIndex = index;
+        mCount = index.getInt(16);
+        mSyncCount = index.getInt(20);
+        mSyncTable = HEADER_SIZE + mCount * ENTRY_SIZE;
+    }
+
+    public static File indexFileFor(File media) {
+        return new File(media.getPath() + SUFFIX);
+    }
+
+    /**
+     * Maps the index of media.  Fails if there is none or it is stale.
+     */
+    public static ChunkIndex open(File media) throws IOException {
+        File file = indexFileFor(media);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        ByteBuffer index;
+        try {
+            index = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        check(index, file, media);
+        return new ChunkIndex(index);
+    }
+
+    /**
+     * Maps the index of media, first building it if it is missing or stale.
+     */
+    public static ChunkIndex openOrBuild(File media) throws IOException {
+        try {
+            return open(media);
+        } catch (IOException e) {
+            build(media);
+            return open(media);
+        }
+    }
+
+    /**
+     * Reads the index of media into memory, first building it if it is missing or stale.  For
+     * one-off lookups: a mapping can't be released before it is garbage collected, and a
+     * heap copy of a chunk's index is a few KB.
+     */
+    public static ChunkIndex readOrBuild(File media) throws IOException {
+        try {
+            return read(media);
+        } catch (IOException e) {
+            build(media);
+            return read(media);
+        }
+    }
+
+    private static ChunkIndex read(File media) throws IOException {
+        File file = indexFileFor(media);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        ByteBuffer index;
+        try {
+            if (raf.length() > Integer.MAX_VALUE) throw new IOException(file + ": not a chunk index");
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            index = ByteBuffer.wrap(bytes);
+        } finally {
+            raf.close();
+        }
+        check(index, file, media);
+        return new ChunkIndex(index);
+    }
+
+    /**
+     * Reads only the duration from the header of media's index, first building the index if
+     * it is missing or stale.
+     */
+    public static long readDurationUs(File media) throws IOException {
+        try {
+            return readHeader(media).getLong(24);
+        } catch (IOException e) {
+            build(media);
+            return readHeader(media).getLong(24);
+        }
+    }
+
+    private static ByteBuffer readHeader(File media) throws IOException {
+        File file = indexFileFor(media);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            FileChannel channel = raf.getChannel();
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) throw new IOException(file + ": not a chunk index");
+            }
+            checkHeader(header, file, media);
+            if (channel.size() != indexLength(header)) throw new IOException(file + ": truncated");
+            return header;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void check(ByteBuffer index, File file, File media) throws IOException {
+        if (index.capacity() < HEADER_SIZE) throw new IOException(file + ": not a chunk index");
+        checkHeader(index, file, media);
+        if (index.capacity() != indexLength(index)) throw new IOException(file + ": truncated");
+    }
+
+    private static void checkHeader(ByteBuffer index, File file, File media) throws IOException {
+        if (index.getInt(0) != MAGIC || index.get(4) != VERSION) throw new IOException(file + ": not a chunk index");
+        if (index.getLong(8) != media.length()) throw new IOException(file + ": stale, media file has changed");
+    }
+
+    private static long indexLength(ByteBuffer header) {
+        return HEADER_SIZE + (long) header.getInt(16) * ENTRY_SIZE + (long) header.getInt(20) * 4;
+    }
+
+    /**
+     * Writes the index of an existing MP4 from its moov.
+     */
+    public static void build(File media) throws IOException {
+        Builder builder = new Builder();
+        Mp4Reader reader = new Mp4Reader(media);
+        try {
+            reader.addSamplesTo(builder);
+            builder.setDurationUs(reader.getDurationUs());
+        } finally {
+            reader.close();
+        }
+        builder.write(indexFileFor(media), media.length());
+    }
+
+    /**
+     * Builds the indexes of files in parallel.  Files that fail are logged and skipped.
+     *
+     * @return the number of indexes written
+     */
+    public static int rebuild(List<File> files, int threads) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Void>> jobs = new ArrayList<Future<Void>>();
+        for (final File file : files) {
+            jobs.add(pool.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    build(file);
+                    return null;
+                }
+            }));
+        }
+        pool.shutdown();
+        int built = 0;
+        for (int i = 0; i < jobs.size(); i++) {
+            try {
+                jobs.get(i).get();
+                built++;
+            } catch (ExecutionException e) {
+                LOG.log(Level.WARNING, "Couldn't index " + files.get(i), e.getCause());
+            }
+        }
+        return built;
+    }
+
+    public int getSampleCount() {
+        return mCount;
+    }
+
+    public int getSyncSampleCount() {
+        return mSyncCount;
+    }
+
+    public long getDurationUs() {
+        return mIndex.getLong(24);
+    }
+
+    public long getOffset(int sample) {
+        return mIndex.getLong(HEADER_SIZE + sample * ENTRY_SIZE);
+    }
+
+    public int getSize(int sample) {
+        return mIndex.getInt(HEADER_SIZE + sample * ENTRY_SIZE + 8) & SIZE_MASK;
+    }
+
+    public long getPtsUs(int sample) {
+        return mIndex.getLong(HEADER_SIZE + sample * ENTRY_SIZE + 12);
+    }
+
+    /**
+     * EncodedSampleSink.TRACK_VIDEO or TRACK_AUDIO.
+     */
+    public int getTrack(int sample) {
+        return ((mIndex.getInt(HEADER_SIZE + sample * ENTRY_SIZE + 8) & FLAG_AUDIO) != 0)
+                ? EncodedSampleSink.TRACK_AUDIO : EncodedSampleSink.TRACK_VIDEO;
+    }
+
+    public boolean isSync(int sample) {
+        return (mIndex.getInt(HEADER_SIZE + sample * ENTRY_SIZE + 8) & FLAG_SYNC) != 0;
+    }
+
+    /**
+     * Sample number of the n-th video sync sample, e.g. for trick play.
+     */
+    public int getSyncSample(int n) {
+        return mIndex.getInt(mSyncTable + 4 * n);
+    }
+
+    /**
+     * Returns the last sample presented at or before ptsUs, or -1 if ptsUs is before the
+     * first sample.
+     */
+    public int findSample(long ptsUs) {
+        int low = 0;
+        int high = mCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (getPtsUs(mid) <= ptsUs) low = mid + 1;
+            else high = mid - 1;
+        }
+        return high;
+    }
+
+    /**
+     * Returns the video sync sample to start decoding from to show ptsUs: the last one at or
+     * before it, or the first one if ptsUs is earlier.  -1 if there are no sync samples.
+     */
+    public int findSyncSample(long ptsUs) {
+        if (mSyncCount == 0) return -1;
+        int low = 0;
+        int high = mSyncCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (getPtsUs(getSyncSample(mid)) <= ptsUs) low = mid + 1;
+            else high = mid - 1;
+        }
+        return getSyncSample(Math.max(high, 0));
+    }
+
+    /**
+     * Collects samples as a file is written or parsed, and writes them out as an index.
+     * Each track's samples must be added in presentation order.
+     */
+    public static class Builder {
+        private final long[][] mOffsets = new long[2][256];
+        private final int[][] mSizes = new int[2][256];
+        private final long[][] mPtsUs = new long[2][256];
+        private final int[] mCounts = new int[2];
+        private long mDurationUs = 0;
+
+        /**
+         * @param track EncodedSampleSink.TRACK_VIDEO or TRACK_AUDIO
+         */
+        public void add(int track, long offset, int size, long ptsUs, boolean sync) {
+            int count = mCounts[track];
+            if (count == mOffsets[track].length) {
+                mOffsets[track] = grow(mOffsets[track]);
+                mSizes[track] = grow(mSizes[track]);
+                mPtsUs[track] = grow(mPtsUs[track]);
+            }
+            if (count > 0 && ptsUs < mPtsUs[track][count - 1]) ptsUs = mPtsUs[track][count - 1];
+            int flags = (sync && track == EncodedSampleSink.TRACK_VIDEO) ? FLAG_SYNC : 0;
+            if (track == EncodedSampleSink.TRACK_AUDIO) flags |= FLAG_AUDIO | FLAG_SYNC;
+            mOffsets[track][count] = offset;
+            mSizes[track][count] = (size & SIZE_MASK) | flags;
+            mPtsUs[track][count] = ptsUs;
+            mCounts[track] = count + 1;
+        }
+
+        public void setDurationUs(long durationUs) {
+            mDurationUs = durationUs;
+        }
+
+        /**
+         * Writes the index via a temporary file, so readers never map a partial one.
+         *
+         * @param mediaLength length of the finished media file
+         */
+        public void write(File file, long mediaLength) throws IOException {
+            int video = mCounts[EncodedSampleSink.TRACK_VIDEO];
+            int audio = mCounts[EncodedSampleSink.TRACK_AUDIO];
+            int syncCount = 0;
+            for (int i = 0; i < video; i++) {
+                if ((mSizes[EncodedSampleSink.TRACK_VIDEO][i] & FLAG_SYNC) != 0) syncCount++;
+            }
+            ByteBuffer index = ByteBuffer.allocate(HEADER_SIZE + (video + audio) * ENTRY_SIZE + syncCount * 4);
+            index.putInt(MAGIC).put((byte) VERSION).put((byte) 0).putShort((short) 0);
+            index.putLong(mediaLength).putInt(video + audio).putInt(syncCount).putLong(mDurationUs);
+
+            // Merge the two tracks by presentation time, noting where the sync samples land
+            int[] syncSamples = new int[syncCount];
+            int v = 0;
+            int a = 0;
+            int s = 0;
+            for (int n = 0; n < video + audio; n++) {
+                boolean takeVideo = a == audio || (v < video
+                        && mPtsUs[EncodedSampleSink.TRACK_VIDEO][v] <= mPtsUs[EncodedSampleSink.TRACK_AUDIO][a]);
+                int track = takeVideo ? EncodedSampleSink.TRACK_VIDEO : EncodedSampleSink.TRACK_AUDIO;
+                int i = takeVideo ? v++ : a++;
+                index.putLong(mOffsets[track][i]).putInt(mSizes[track][i]).putLong(mPtsUs[track][i]);
+                if (takeVideo && (mSizes[track][i] & FLAG_SYNC) != 0) syncSamples[s++] = n;
+            }
+            for (int sample : syncSamples) index.putInt(sample);
+            index.flip();
+
+            File temp = new File(file.getPath() + ".tmp");
+            FileChannel out = new FileOutputStream(temp).getChannel();
+            try {
+                while (index.hasRemaining()) out.write(index);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) throw new IOException("Couldn't replace " + file);
+        }
+
+        private static long[] grow(long[] a) {
+            long[] g = new long[a.length * 2];
+            System.arraycopy(a, 0, g, 0, a.length);
+            return g;
+        }
+
+        private static int[] grow(int[] a) {
+            int[] g = new int[a.length * 2];
+            System.arraycopy(a, 0, g, 0, a.length);
+            return g;
+        }
+    }
+
+    /**
+     * Rebuilds indexes from the command line:
+     * <pre>
+     *     ChunkIndex [-threads n] file-or-dir...
+     * </pre>
+     * Directories contribute their .mp4 files.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else {
+                File file = new File(args[i]);
+                if (file.isDirectory()) files.addAll(Transmuxer.chunkFiles(file));
+                else files.add(file);
+            }
+        }
+        long start = System.nanoTime();
+        int built = rebuild(files, threads);
+        System.out.println("Indexed " + built + " of " + files.size() + " files in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+        System.exit(built == files.size() ? 0 : 1);
+    }
+}
@@ -29,15 +29,21 @@ import android.util.Log;
 import android.view.Surface;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * Record video from the camera preview and encode it as an MP4 file.  Demonstrates the use
- * of MediaMuxer and MediaCodec with Camera input.  Does not record audio.
+ * Record video from the camera preview and audio from the microphone, and encode them into
+ * a series of MP4 chunk files.  Demonstrates the use of MediaMuxer and MediaCodec with Camera
+ * and AudioRecord input.
  * <p/>
  * Generally speaking, it's better to use MediaRecorder for this sort of thing.  This example
  * demonstrates one possible advantage: editing of video as it's being encoded.  A GLES 2.0
@@ -50,13 +56,35 @@ import java.util.List;
  * <p/>
  * (This was derived from bits and pieces of CTS tests, and is packaged as such, but is not
  * currently part of CTS.)
+ * <p/>
+ * All recording state is per instance, so a process can run several recorders at once, e.g.
+ * one per camera, as long as each gets its own output directory.
  */
 public class ChunkedHWRecorder {
     private static final String TAG = "CameraToMpegTest";
     private static final boolean VERBOSE = false;           // lots of logging
     private static final boolean TRACE = true; // systrace
+    // Traced sections and events, by index into TRACE_NAMES
+    private static final int T_PREPARE = 0;
+    private static final int T_START_OUTPUTS = 1;
+    private static final int T_DRAIN_VIDEO = 2;
+    private static final int T_AWAIT_IMAGE = 3;
+    private static final int T_DRAW_IMAGE = 4;
+    private static final int T_SWAP_BUFFERS = 5;
+    private static final int T_SEND_AUDIO = 6;
+    private static final int T_DRAIN_AUDIO = 7;
+    private static final int T_CHUNK_VIDEO_ENCODER = 8;
+    private static final int T_FINALIZE_MUXER = 9;
+    private static final int T_VIDEO_CHUNK = 10;
+    private static final int T_AUDIO_CHUNK = 11;
+    private static final int T_STALL = 12;
+    private static final int T_RECOVER = 13;
+    private static final int T_DISCONTINUITY = 14;
+    private static final String[] TRACE_NAMES = {"prepare", "startMediaRecorder", "drainVideo", "awaitImage", "drawImage",
+            "swapBuffers", "sendAudio", "drainAudio", "chunkVideoEncoder", "finalizeMuxer", "videoChunk", "audioChunk",
+            "stall", "recover", "discontinuity"};
     // where to put the output file (note: /sdcard requires WRITE_EXTERNAL_STORAGE permission)
-    private static String OUTPUT_DIR = "/sdcard/HWEncodingExperiments/";
+    private static final String DEFAULT_OUTPUT_DIR = "/sdcard/HWEncodingExperiments/";
     // parameters for the encoder
     private static final String VIDEO_MIME_TYPE = "video/avc";    // H.264 Advanced Video Coding
     private static final String AUDIO_MIME_TYPE = "audio/mp4a-latm";    // H.264 Advanced Video Coding
@@ -65,10 +93,16 @@ public class ChunkedHWRecorder {
     private static final int VIDEO_HEIGHT = 480;
     private static final int FRAME_RATE = 30;               // 30fps
     private static final int IFRAME_INTERVAL = 5;           // 5 seconds between I-frames
+    private static final int VIDEO_BIT_RATE = 1000000;      // bps, without a load governor
+    private static final int AUDIO_BIT_RATE = 128000;
     private static final long CHUNK_DURATION_SEC = 5;       // Duration of video chunks
+    private static final long GOVERNOR_INTERVAL_NS = 1000000000L;
 
+    // Everything below is per recording session: a process can run several recorders
+    private String mOutputDir = DEFAULT_OUTPUT_DIR;
     // Display Surface
     private GLSurfaceView displaySurface;
+    private EGLContext mDisplayEGLContext = EGL14.EGL_NO_CONTEXT;
     // encoder / muxer state
     private MediaCodec mVideoEncoder;
     private MediaCodec mAudioEncoder;
@@ -80,78 +114,260 @@ public class ChunkedHWRecorder {
     // camera state
     private Camera mCamera;
     private SurfaceTextureManager mStManager;
+    private FrameScheduler mFrameScheduler;
+    private int mFrameRate = FRAME_RATE;
+    private int mFramesPerChunk;
+    // Optional: steps encode settings down under load, applied when a chunk starts
+    private LoadGovernor mLoadGovernor;
+    private LoadGovernor.Rung mAppliedRung;
+    private long mLastGovernorSampleNs;
     // allocate one of these up front so we don't need to do it every time
     private MediaCodec.BufferInfo mVideoBufferInfo;
     private MediaCodec.BufferInfo mAudioBufferInfo;
-    // The following formats are fed to MediaCodec.configure
-    private MediaFormat mVideoFormat;
+    // The following formats are fed to MediaCodec.configure (video's size also names chunk files,
+    // which the audio thread opens)
+    private volatile MediaFormat mVideoFormat;
     private MediaFormat mAudioFormat;
     // The following are returned when encoder OUTPUT_FORMAT_CHANGED signaled
-    private MediaFormat mVideoOutputFormat;
-    private MediaFormat mAudioOutputFormat;
-
-    // recording state
-    private int leadingChunk = 1;
-    long startWhen;
-    int frameCount = 0;
-    boolean eosSentToAudioEncoder = false;
-    boolean audioEosRequested = false;
-    boolean eosSentToVideoEncoder = false;
-    boolean fullStopReceived = false;
+    // (each drain thread sets its own; both read them when switching muxers)
+    private volatile MediaFormat mVideoOutputFormat;
+    private volatile MediaFormat mAudioOutputFormat;
+
+    // recording state.  The render and audio threads each switch their track to the other
+    // muxer at chunk boundaries; mMuxerSwitch serializes those switches.
+    private final Object mMuxerSwitch = new Object();
+    private int leadingChunk = 1;                       // guarded by mMuxerSwitch once recording
+    volatile long startWhen;
+    int frameCount = 0;                                 // render thread
+    boolean eosSentToAudioEncoder = false;              // audio thread
+    boolean eosSentToVideoEncoder = false;              // render thread
+    volatile boolean fullStopReceived = false;
     boolean fullStopPerformed = false;
 
     // debug state
-    int totalFrameCount = 0;
-    long startTime;
+    volatile int totalFrameCount = 0;
+    volatile long startTime;
 
 
     // Audio
-    public static final int SAMPLE_RATE = 44100;
+    public static final int SAMPLE_RATE = 44100;    // fallback when the microphone doesn't do 48 kHz
     public static final int SAMPLES_PER_FRAME = 1024; // AAC
     public static final int CHANNEL_CONFIG = AudioFormat.CHANNEL_IN_MONO;
     public static final int AUDIO_FORMAT = AudioFormat.ENCODING_PCM_16BIT;
+    // Encoded channels; capture may be stereo and is downmixed
+    private static final int AUDIO_CHANNELS = (CHANNEL_CONFIG == AudioFormat.CHANNEL_IN_STEREO) ? 2 : 1;
+    // Tried in order until AudioRecord accepts one: the native rate of most devices first
+    private static final int[] CAPTURE_RATES = {48000, SAMPLE_RATE};
+    private static final int[] CAPTURE_CHANNEL_CONFIGS = {AudioFormat.CHANNEL_IN_MONO, AudioFormat.CHANNEL_IN_STEREO};
+    // Frames per AudioRecord.read(): large blocks, so capture makes few calls
+    private static final int CAPTURE_BLOCK_FRAMES = 4 * SAMPLES_PER_FRAME;
+    private static final long AUDIO_WAIT_NS = 200000000L;
+    private static final long AUDIO_INPUT_TIMEOUT_US = 10000;
     private AudioRecord audioRecord;
+    private PcmRing mPcmRing;
+    private PcmProcessor mPcmProcessor;
+    private int mCaptureRate = SAMPLE_RATE;
+    private int mCaptureChannels = 1;
+    private int mAudioSampleRate = SAMPLE_RATE;    // encoded
+    private int mRequestedAudioRate = 0;
+    private float mAudioGain = 1f;
+    private long mNextAudioPtsUs = 0;
+    // Audio follows video from chunk to chunk by PTS: the render thread publishes where each
+    // video chunk starts, the audio drain moves over once its frames get there
+    private static final long AUDIO_ROUTE_WAIT_NS = 250000000L;
+    private boolean mChunkStartPending = false;         // render thread
+    private volatile long mChunkStartUs = 0;
+    private volatile int mVideoChunk = 0;
+    private volatile long mVideoSubmittedUs = -1;
+    private volatile Thread mAudioWaiter;
+    private int mAudioChunk = 0;                        // audio thread
+    private int mAudioRouteTimeouts = 0;
     private long lastEncodedAudioTimeStamp = 0;
 
     // MediaRecorder
     boolean useMediaRecorder = false;
     MediaRecorderWrapper mMediaRecorderWrapper;
 
+    // Everything besides the muxers that wants encoded output: pre-roll ring, network outputs
+    private final List<EncodedSampleSink> mSampleSinks = new CopyOnWriteArrayList<EncodedSampleSink>();
+    private final SegmentEventDispatcher mSegmentEvents = new SegmentEventDispatcher();
+    private final TraceRecorder mTracer = new TraceRecorder(TRACE_NAMES, TraceRecorder.DEFAULT_EVENTS_PER_THREAD);
+    private boolean mUseJournal = false;
+    private SegmentJournal mJournal;
+    private PrerollRing mPrerollRing;
+    private RtmpPublisher mRtmpPublisher;
+    private RtspServer mRtspServer;
+    private HlsSegmenter mHlsSegmenter;
+    private int mHlsTargetDurationSec;
+    private int mHlsEncryption;
+    private int mHlsKeyRotationSegments;
+    // Optional reduced frame rate HLS rendition, thinned from the same encoder output
+    private static final String THINNED_RENDITION_DIR = "low";
+    private HlsSegmenter mThinnedSegmenter;
+    private TemporalThinner mThinner;
+    private HlsMasterPlaylist mMasterPlaylist;
+    private SegmentCache mSegmentCache;
+    private SegmentServer mSegmentServer;
+    private int mSegmentServerPort;
+    private SegmentRelay mSegmentRelay;
+    private String mRelayNodeId;
+    private int mRelayPort;
+    private String[] mRelayPeers;
+    private boolean mDiskless = false;
+    private boolean mDisklessArchive = false;
+
+    // Muxer interleaving
+    private static final int INTERLEAVER_SLOTS = 256;
+    private long mMaxInterleaveUs = 500000;
+
+    // Watchdog: heartbeat stages, by index into WATCHDOG_STAGES.  A stalled camera or video
+    // encoder is rebuilt by the render thread, the audio encoder by the audio thread; a muxer
+    // that throws is dropped where it fails.  Either way recording goes on in a new chunk.
+    private static final int W_CAMERA = 0;
+    private static final int W_VIDEO_ENCODER = 1;
+    private static final int W_AUDIO_ENCODER = 2;
+    private static final int W_MUXER = 3;
+    private static final String[] WATCHDOG_STAGES = {"camera", "video encoder", "audio encoder", "muxer"};
+    private static final int RENDER_STAGES = (1 << W_CAMERA) | (1 << W_VIDEO_ENCODER);
+    private static final int MAX_RECOVERIES_WITHOUT_PROGRESS = 3;
+    private long mWatchdogDeadlineNs = 2000000000L;
+    private PipelineWatchdog mWatchdog;
+    private final AtomicInteger mRecoveryRequests = new AtomicInteger();  // a bit per stage
+    private volatile boolean mDiscontinuityRequested = false;
+    private boolean mForceChunk = false;                // render thread
+    private boolean mDiscontinuityPending = false;      // render thread
+    private int mRecoveriesWithoutProgress = 0;         // render thread
+    private volatile int mDiscontinuities = 0;
+
     Context c;
 
 
     class TrackInfo {
         int index = 0;
-        MediaMuxerWrapper muxerWrapper;
+        volatile MediaMuxerWrapper muxerWrapper;
     }
 
-    class MediaMuxerWrapper {
+    /**
+     * Samples reach the muxer through a SampleInterleaver, which merges the two drain
+     * threads' output in timestamp order.  Guard all calls with sync.
+     */
+    class MediaMuxerWrapper implements EncodedSampleSink {
         MediaMuxer muxer;
         final int TOTAL_NUM_TRACKS = 2;
         boolean started = false;
         int chunk;
+        int outputFormat;
+        String path;
         int numTracksAdded = 0;
         int numTracksFinished = 0;
+        final int[] trackIndices = {-1, -1};    // muxer track index by TRACK_VIDEO / TRACK_AUDIO
+        final SampleInterleaver interleaver = new SampleInterleaver(this, mMaxInterleaveUs, INTERLEAVER_SLOTS);
+        private final MediaCodec.BufferInfo writeInfo = new MediaCodec.BufferInfo();
+        // What went into the current file, for its SegmentEvent
+        private long firstPtsUs = -1;
+        private long lastPtsUs = -1;
+        private int keyframes = 0;
+        private boolean sawVideo = false;
+        private boolean leadingKeyframe = false;
+        // Set while the chunk waits for its video encoder's format; audio is held meanwhile
+        boolean awaitingVideoFormat = false;
+        private final List<HeldSample> heldSamples = new ArrayList<HeldSample>();
 
         Object sync = new Object();
 
         public MediaMuxerWrapper(int format, int chunk){
-            this.chunk = chunk;
             restart(format, chunk);
         }
 
-        public int addTrack(MediaFormat format){
+        public int addTrack(int track, MediaFormat format){
             numTracksAdded++;
-            int trackIndex = muxer.addTrack(format);
+            // Without a muxer (diskless) only the chunk bookkeeping runs
+            int trackIndex = (muxer != null) ? muxer.addTrack(format) : track;
+            trackIndices[track] = trackIndex;
             if(numTracksAdded == TOTAL_NUM_TRACKS){
                 if (VERBOSE) Log.i(TAG, "All tracks added, starting " + ((this == mMuxerWrapper) ? "muxer1" : "muxer2") +"!");
-                muxer.start();
+                if (muxer != null) muxer.start();
                 started = true;
+                awaitingVideoFormat = false;
+                for (HeldSample held : heldSamples) writeSample(held.track, held.data, held.info);
+                heldSamples.clear();
             }
             return trackIndex;
         }
 
-        public void finishTrack(){
+        /**
+         * Video moves in with a new encoder, whose track is added when it reports its format
+         * (a new rung has a new size and SPS).  A file opened ahead of time under another
+         * encode size is re-created under the current one first.
+         */
+        public void awaitVideoFormat(){
+            awaitingVideoFormat = true;
+            if (muxer == null || numTracksAdded > 0 || path.equals(outputPathForChunk(chunk))) return;
+            try {
+                muxer.release();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Muxer release failed", e);
+            }
+            muxer = null;
+            new File(path).delete();
+            mSegmentEvents.publish(new SegmentEvent(SegmentEvent.FAILED, SegmentEvent.KIND_CHUNK, new File(path), chunk,
+                    -1, -1, -1, -1, false));
+            open();
+        }
+
+        /**
+         * Keeps a copy of a sample that arrives before the muxer has started, for writing once
+         * it does.
+         */
+        public void holdSample(int track, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo){
+            if (muxer == null) return;
+            ByteBuffer copy = ByteBuffer.allocate(encodedData.remaining());
+            copy.put(encodedData.duplicate()).flip();
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            info.set(0, copy.remaining(), bufferInfo.presentationTimeUs, bufferInfo.flags);
+            heldSamples.add(new HeldSample(track, copy, info));
+        }
+
+        /**
+         * Queues an encoded sample, positioned at its data, for interleaved writing.
+         */
+        public void writeSample(int track, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo){
+            if (muxer == null) return;
+            interleaver.writeSampleData(track, encodedData, bufferInfo.presentationTimeUs, bufferInfo.flags);
+        }
+
+        @Override
+        public void setTrackFormat(int track, TrackFormat format){
+            // Formats reach the muxer through addTrack
+        }
+
+        /**
+         * Called by the interleaver in timestamp order.
+         */
+        @Override
+        public void writeSampleData(int track, ByteBuffer data, long ptsUs, int flags){
+            if (muxer == null) return;      // abandoned
+            boolean keyframe = (flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+            if (firstPtsUs < 0) firstPtsUs = ptsUs;
+            lastPtsUs = Math.max(lastPtsUs, ptsUs);
+            if (track == TRACK_VIDEO) {
+                if (!sawVideo) leadingKeyframe = keyframe;
+                sawVideo = true;
+                if (keyframe) keyframes++;
+            }
+            writeInfo.set(data.position(), data.remaining(), ptsUs, flags);
+            try {
+                muxer.writeSampleData(trackIndices[track], data, writeInfo);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Muxer for chunk " + chunk + " failed", e);
+                abandon(true);
+                return;
+            }
+            beat(W_MUXER);
+        }
+
+        public void finishTrack(int track){
+            interleaver.finishTrack(track);
             numTracksFinished++;
             if(numTracksFinished == TOTAL_NUM_TRACKS){
                 if (VERBOSE) Log.i(TAG, "All tracks finished, stopping " + ((this == mMuxerWrapper) ? "muxer1" : "muxer2") + "!");
@@ -170,30 +386,150 @@ public class ChunkedHWRecorder {
 
 
         public void stop(){
-            if(muxer != null){
+            if(muxer != null || numTracksAdded > 0){
                 if(!allTracksFinished()) Log.e(TAG, "Stopping Muxer before all tracks added!");
                 if(!started) Log.e(TAG, "Stopping Muxer before it was started");
-                muxer.stop();
-                muxer.release();
-                muxer = null;
+                if (muxer != null) {
+                    beginSection(T_FINALIZE_MUXER);
+                    interleaver.reset();    // writes whatever is still held back
+                    if (interleaver.getForcedWrites() > 0) Log.w(TAG, "Interleaver ran out of slots " + interleaver.getForcedWrites() + " times");
+                    try {
+                        muxer.stop();
+                        muxer.release();
+                        muxer = null;
+                        if (mSegmentCache != null) cacheChunk(path);
+                        boolean indexed = writeChunkIndex(path);
+                        publishChunkFinished(path, indexed);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Couldn't finalize chunk " + chunk, e);
+                        abandon(false);
+                    }
+                    endSection(T_FINALIZE_MUXER);
+                }
                 started = false;
+                awaitingVideoFormat = false;
+                heldSamples.clear();
                 chunk = 0;
                 numTracksAdded = 0;
                 numTracksFinished = 0;
             }
         }
 
+        /**
+         * Drops a muxer that failed (storage full, a rejected sample) along with its file's
+         * chunk.  When it failed mid-chunk, the recording carries on in a new chunk after a
+         * discontinuity.
+         */
+        private void abandon(boolean midChunk){
+            try {
+                muxer.release();
+            } catch (RuntimeException e) {
+                // Already broken
+            }
+            muxer = null;
+            if (mJournal != null) mJournal.failed(chunk);
+            mSegmentEvents.publish(new SegmentEvent(SegmentEvent.FAILED, SegmentEvent.KIND_CHUNK, new File(path), chunk,
+                    firstPtsUs, lastPtsUs, -1, keyframes, leadingKeyframe));
+            if (midChunk) mDiscontinuityRequested = true;
+        }
+
+        /**
+         * Named for the size video is encoded at, which the load governor may lower.
+         */
         private String outputPathForChunk(int chunk){
-            return OUTPUT_DIR + VIDEO_WIDTH + "x" + VIDEO_HEIGHT + "_" + chunk + ".mp4";
+            MediaFormat format = mVideoFormat;
+            return mOutputDir + format.getInteger(MediaFormat.KEY_WIDTH) + "x" + format.getInteger(MediaFormat.KEY_HEIGHT)
+                    + "_" + chunk + ".mp4";
+        }
+
+        private void cacheChunk(String path){
+            File file = new File(path);
+            try {
+                mSegmentCache.putFile(file.getName(), file);
+            } catch (IOException e) {
+                Log.w(TAG, "Couldn't cache " + path, e);
+            }
+        }
+
+        /**
+         * MediaMuxer doesn't tell us where it put the samples, so the chunk's index is built
+         * from its moov once it is closed.
+         */
+        private boolean writeChunkIndex(String path){
+            long start = System.nanoTime();
+            try {
+                ChunkIndex.build(new File(path));
+                if (VERBOSE) Log.i(TAG, "Indexed " + path + " in " + (System.nanoTime() - start) / 1000 + " us");
+                return true;
+            } catch (IOException e) {
+                Log.w(TAG, "Couldn't index " + path, e);
+                return false;
+            }
+        }
+
+        /**
+         * The PTS range is in session time, as the samples were written; the index only has
+         * file time.  Its duration gives the end of the last sample.
+         */
+        private void publishChunkFinished(String path, boolean indexed){
+            File file = new File(path);
+            long endUs = lastPtsUs;
+            try {
+                if (firstPtsUs >= 0 && indexed) endUs = firstPtsUs + ChunkIndex.readDurationUs(file);
+            } catch (IOException e) {
+                // Unindexed: the last sample's start is the best we know
+            }
+            if (mJournal != null) {
+                if (firstPtsUs < 0) {
+                    // Opened for the next chunk and never needed
+                    mJournal.failed(chunk);
+                } else {
+                    mJournal.closed(chunk, file.length(), firstPtsUs, endUs, keyframes, leadingKeyframe);
+                    if (indexed) mJournal.indexed(chunk);
+                }
+            }
+            mSegmentEvents.publish(new SegmentEvent(SegmentEvent.FINISHED, SegmentEvent.KIND_CHUNK, file, chunk,
+                    firstPtsUs, endUs, file.length(), keyframes, leadingKeyframe));
         }
 
         private void restart(int format, int chunk){
             stop();
+            this.chunk = chunk;
+            outputFormat = format;
+            firstPtsUs = -1;
+            lastPtsUs = -1;
+            keyframes = 0;
+            sawVideo = false;
+            leadingKeyframe = false;
+            if (mDiskless) return;
+            open();
+        }
+
+        private void open(){
+            path = outputPathForChunk(chunk);
+            if (mJournal != null) mJournal.opened(chunk, new File(path).getName());
             try {
-                muxer = new MediaMuxer(outputPathForChunk(chunk), format);
+                muxer = new MediaMuxer(path, outputFormat);
             } catch (IOException e) {
+                if (mJournal != null) mJournal.failed(chunk);
+                mSegmentEvents.publish(SegmentEvent.started(SegmentEvent.KIND_CHUNK, new File(path), chunk));
+                mSegmentEvents.publish(new SegmentEvent(SegmentEvent.FAILED, SegmentEvent.KIND_CHUNK, new File(path), chunk,
+                        -1, -1, -1, -1, false));
                 throw new RuntimeException("MediaMuxer creation failed", e);
             }
+            mSegmentEvents.publish(SegmentEvent.started(SegmentEvent.KIND_CHUNK, new File(path), chunk));
+        }
+    }
+
+    private static class HeldSample {
+        final int track;
+        final ByteBuffer data;
+        final MediaCodec.BufferInfo info;
+
+        HeldSample(int track, ByteBuffer data, MediaCodec.BufferInfo info) {
+            this.track = track;
+            this.data = data;
+            this.info = info;
         }
     }
 
@@ -205,92 +541,465 @@ public class ChunkedHWRecorder {
         this.displaySurface = displaySurface;
     }
 
+    /**
+     * Context the encoder's EGL context shares textures with.  Must be called before
+     * startRecording.
+     */
     public void setDisplayEGLContext(EGLContext context){
-        mInputSurface.mEGLDisplayContext = context;
+        mDisplayEGLContext = context;
+    }
+
+    /**
+     * Keep the most recent encoded audio and video in memory so it can be saved with
+     * dumpPreroll() after the fact.  Must be called before startRecording.
+     *
+     * @param budgetBytes off-heap memory reserved for encoded samples
+     * @param retainSec seconds of history to keep, if the budget allows
+     */
+    public void enablePreroll(int budgetBytes, int retainSec){
+        mPrerollRing = new PrerollRing(budgetBytes, retainSec * 1000000L);
+        addSampleSink(mPrerollRing);
+    }
+
+    /**
+     * Also publish the live encoder output to an RTMP ingest server.  Must be called before
+     * startRecording.
+     *
+     * @param url rtmp://host[:port]/app/streamName
+     * @param maxQueueBytes encoded bytes allowed to wait on a slow uplink before frames are dropped
+     */
+    public void setRtmpOutput(String url, int maxQueueBytes){
+        mRtmpPublisher = new RtmpPublisher(url, maxQueueBytes);
+        addSampleSink(mRtmpPublisher);
+    }
+
+    /**
+     * Also serve the live encoder output over RTSP for viewing on the local network, e.g.
+     * rtsp://device:8554/live.  Must be called before startRecording.
+     *
+     * @param port RTSP port, usually RtspServer.DEFAULT_PORT
+     */
+    public void setRtspServer(int port){
+        mRtspServer = new RtspServer(port);
+        addSampleSink(mRtspServer);
+    }
+
+    /**
+     * Also write the live encoder output as an HLS stream (MPEG-TS segments and index.m3u8),
+     * optionally encrypted as it is written.  Must be called before startRecording.
+     *
+     * @param encryption one of HlsSegmenter.ENCRYPTION_NONE, _AES_128 or _SAMPLE_AES
+     * @param keyRotationSegments segments per content key, or 0 for a single key
+     */
+    public void setHlsOutput(File dir, int targetDurationSec, int encryption, int keyRotationSegments){
+        mHlsSegmenter = new HlsSegmenter(dir, targetDurationSec, encryption, keyRotationSegments, null, 0);
+        mHlsSegmenter.setEventDispatcher(mSegmentEvents);
+        mHlsTargetDurationSec = targetDurationSec;
+        mHlsEncryption = encryption;
+        mHlsKeyRotationSegments = keyRotationSegments;
+        addSampleSink(mHlsSegmenter);
+    }
+
+    /**
+     * Adds a reduced frame rate variant to the HLS output, in its own subdirectory, and a
+     * master.m3u8 next to index.m3u8 that lists both.  The variant is the same encoder
+     * output minus the pictures nothing refers to (see TemporalThinner), so it costs no
+     * second encode.  The encoder is asked for two temporal layers so that every other frame
+     * can be dropped.  An encoder that ignores this and makes every frame a reference leaves
+     * the variant at the full frame rate.  Must be called after setHlsOutput and before
+     * startRecording.
+     */
+    public void setThinnedHlsRendition(){
+        if (mHlsSegmenter == null) throw new IllegalStateException("Thinned rendition needs setHlsOutput first");
+        File dir = mHlsSegmenter.getDir();
+        mThinnedSegmenter = new HlsSegmenter(new File(dir, THINNED_RENDITION_DIR), mHlsTargetDurationSec, mHlsEncryption,
+                mHlsKeyRotationSegments, null, 0);
+        mThinnedSegmenter.setEventDispatcher(mSegmentEvents);
+        mThinner = new TemporalThinner(mThinnedSegmenter, 0);
+        mMasterPlaylist = new HlsMasterPlaylist(new File(dir, HlsMasterPlaylist.NAME));
+        addSampleSink(mThinner);
+    }
+
+    /**
+     * Serve the output directory (chunks, and the HLS stream if it is written there) over
+     * HTTP, keeping the most recently finished files in memory.  Must be called before
+     * startRecording.
+     *
+     * @param port HTTP port, usually SegmentServer.DEFAULT_PORT
+     * @param cacheBudgetBytes memory for recently finished segments, chunks and playlists
+     */
+    public void setSegmentServer(int port, long cacheBudgetBytes){
+        mSegmentCache = new SegmentCache(cacheBudgetBytes);
+        mSegmentServerPort = port;
+    }
+
+    /**
+     * Relay finished HLS segments to other nodes serving the same stream and send viewers
+     * to the least loaded of them; see SegmentRelay.  Needs setSegmentServer.  Must be called
+     * before startRecording.
+     *
+     * @param nodeId this node's name; its segments appear under /nodeId/ on the peers
+     * @param relayPort port peers connect to, usually SegmentRelay.DEFAULT_PORT
+     * @param peers host:port of each other node's relay port
+     */
+    public void setSegmentRelay(String nodeId, int relayPort, String... peers){
+        if (mSegmentCache == null) throw new IllegalStateException("Segment relay needs setSegmentServer first");
+        mRelayNodeId = nodeId;
+        mRelayPort = relayPort;
+        mRelayPeers = peers.clone();
+    }
+
+    /**
+     * Live streaming without storage I/O: no chunk files are written, and HLS segments are
+     * assembled in memory and served from the segment server's cache.  The playlists become a
+     * sliding window of as many segments as the cache budget holds.  Needs setHlsOutput
+     * (into a directory under the output directory) and setSegmentServer.  Must be called
+     * before startRecording.
+     *
+     * @param archive also save the HLS segments to disk, off the live path
+     */
+    public void setDisklessLive(boolean archive){
+        if (mHlsSegmenter == null || mSegmentCache == null) {
+            throw new IllegalStateException("Diskless live needs setHlsOutput and setSegmentServer first");
+        }
+        mDiskless = true;
+        mDisklessArchive = archive;
+    }
+
+    /**
+     * Output frame rate.  Camera frames beyond it are skipped, whatever rate the camera
+     * delivers.  Must be called before startRecording.
+     */
+    public void setFrameRate(int fps){
+        mFrameRate = fps;
+    }
+
+    /**
+     * Lets governor step resolution, frame rate and bitrate down its ladder while the device
+     * is overloaded, and back up when it recovers.  Recording starts on the governor's current
+     * rung, which overrides setFrameRate, and changes take effect at the next chunk.  Must be
+     * called before startRecording.
+     */
+    public void setLoadGovernor(LoadGovernor governor){
+        mLoadGovernor = governor;
+    }
+
+    /**
+     * Sample rate to encode audio at.  By default it is whatever the microphone captures at
+     * natively (48 kHz on most devices), so nothing is resampled.  Must be called before
+     * startRecording.
+     */
+    public void setAudioSampleRate(int hz){
+        mRequestedAudioRate = hz;
+    }
+
+    /**
+     * Linear gain applied to captured audio before encoding; clips rather than wraps.  Must
+     * be called before startRecording.
+     */
+    public void setAudioGain(float gain){
+        mAudioGain = gain;
+    }
+
+    /**
+     * How far apart in time audio and video may be written to the chunk files.  Smaller
+     * values interleave more finely at the cost of holding more samples back.  Must be called
+     * before startRecording.
+     */
+    public void setMaxInterleaveMs(int maxInterleaveMs){
+        mMaxInterleaveUs = maxInterleaveMs * 1000L;
+    }
+
+    /**
+     * How long the camera, either encoder or the muxer may go without making progress before
+     * the watchdog has it rebuilt.  0 turns the watchdog off.  Must be called before
+     * startRecording.
+     */
+    public void setWatchdogDeadline(int deadlineMs){
+        mWatchdogDeadlineNs = deadlineMs * 1000000L;
+    }
+
+    /**
+     * Registers a consumer of every encoded audio and video sample, e.g. a network output.
+     * Must be called before startRecording so the sink sees the track formats.
+     */
+    public void addSampleSink(EncodedSampleSink sink){
+        mSampleSinks.add(sink);
+    }
+
+    /**
+     * Tells listener whenever a chunk file or HLS segment is started, finished or abandoned,
+     * so uploaders and indexers don't have to poll the output directory.  Events arrive on a
+     * thread of the subscription's own; a listener that can't keep up loses the oldest ones
+     * rather than holding up encoding.  Cancel the returned subscription to stop them.
+     */
+    public SegmentEventDispatcher.Subscription addSegmentListener(SegmentListener listener){
+        return mSegmentEvents.subscribe(listener);
+    }
+
+    /**
+     * The in-process trace of recording stages, chunk switches, encoder restarts and muxer
+     * finalizes.  On by default; see TraceRecorder.setEnabled.
+     */
+    public TraceRecorder getTraceRecorder(){
+        return mTracer;
+    }
+
+    /**
+     * Writes the last few thousand events of every recording thread to file as Chrome trace
+     * JSON.  Safe to call while recording.
+     */
+    public void dumpTrace(File file) throws IOException {
+        mTracer.dump(file);
+        Log.i(TAG, "Trace written to " + file + (mTracer.getOverwritten() > 0 ? ", older events overwritten" : ""));
+    }
+
+    /**
+     * Chunks that began after a rebuilt camera, encoder or muxer, i.e. with a gap before them.
+     */
+    public int getDiscontinuityCount(){
+        return mDiscontinuities;
+    }
+
+    /**
+     * Keeps a SegmentJournal in the output directory, so a recording started after a crash
+     * continues the chunk numbering instead of overwriting old chunks.  Chunks the previous
+     * session never uploaded (see markUploaded) are announced again as FINISHED events, and
+     * ones it left half-written as FAILED, to the listeners added before startRecording.
+     * Must be called before startRecording.
+     */
+    public void enableJournal(){
+        mUseJournal = true;
+    }
+
+    /**
+     * Records that chunk sequence has been uploaded, so the next session doesn't offer it
+     * again.  Uploads finishing after stopRecording aren't recorded and will be offered again.
+     */
+    public void markUploaded(int sequence){
+        SegmentJournal journal = mJournal;
+        if (journal != null) journal.uploaded(sequence);
+    }
+
+    /**
+     * Replays the journal and picks up where the last session left off.
+     */
+    private void openJournal(){
+        try {
+            mJournal = SegmentJournal.open(new File(mOutputDir));
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't open the segment journal, recording without one", e);
+            return;
+        }
+        SegmentJournal.Replay replay = mJournal.getReplay();
+        Log.i(TAG, "Segment journal: " + replay);
+        leadingChunk = Math.max(leadingChunk, replay.nextSequence);
+        for (SegmentJournal.Entry entry : replay.pendingUploads) {
+            mSegmentEvents.publish(new SegmentEvent(SegmentEvent.FINISHED, SegmentEvent.KIND_CHUNK, new File(mOutputDir, entry.name),
+                    entry.sequence, entry.startPtsUs, entry.endPtsUs, entry.bytes, entry.keyframes, entry.startsWithKeyframe));
+        }
+        for (SegmentJournal.Entry entry : replay.partial) {
+            File file = new File(mOutputDir, entry.name);
+            Log.w(TAG, "Chunk " + entry.sequence + " was left partial: " + file);
+            mSegmentEvents.publish(new SegmentEvent(SegmentEvent.FAILED, SegmentEvent.KIND_CHUNK, file, entry.sequence,
+                    -1, -1, file.length(), -1, false));
+        }
+    }
+
+    /**
+     * Writes the pre-roll history to a standalone MP4 beginning on an IDR frame.  The file is
+     * written on a background thread; recording continues undisturbed.
+     */
+    public void dumpPreroll(final File output){
+        if (mPrerollRing == null){
+            Log.e(TAG, "dumpPreroll called without enablePreroll");
+            return;
+        }
+        new Thread(new Runnable(){
+            @Override
+            public void run() {
+                long startNs = System.nanoTime();
+                FileOutputStream out = null;
+                try {
+                    out = new FileOutputStream(output);
+                    int samples = mPrerollRing.writeMp4(out.getChannel());
+                    Log.i(TAG, "Wrote " + samples + " pre-roll samples to " + output.getAbsolutePath() + " in " + (System.nanoTime() - startNs) / 1000000 + " ms");
+                } catch (IOException e) {
+                    Log.e(TAG, "Pre-roll dump failed", e);
+                } finally {
+                    if (out != null) {
+                        try {
+                            out.close();
+                        } catch (IOException ignored) {}
+                    }
+                }
+            }
+        }, "preroll dump").start();
     }
 
-    boolean firstFrameReady = false;
+    volatile boolean firstFrameReady = false;
     boolean eosReceived = false;
     public void startRecording(String outputDir){
         if(outputDir != null)
-            OUTPUT_DIR = outputDir;
-
-        int encBitRate = 1000000;      // bps
-        int framesPerChunk = (int) CHUNK_DURATION_SEC * FRAME_RATE;
-        Log.d(TAG, VIDEO_MIME_TYPE + " output " + VIDEO_WIDTH + "x" + VIDEO_HEIGHT + " @" + encBitRate);
+            mOutputDir = outputDir;
+        new File(mOutputDir).mkdirs();
+
+        int encBitRate = VIDEO_BIT_RATE;
+        int encWidth = VIDEO_WIDTH;
+        int encHeight = VIDEO_HEIGHT;
+        if (mLoadGovernor != null) {
+            mAppliedRung = mLoadGovernor.getRung();
+            encWidth = mAppliedRung.width;
+            encHeight = mAppliedRung.height;
+            encBitRate = mAppliedRung.bitRate;
+            mFrameRate = mAppliedRung.frameRate;
+        }
+        mFramesPerChunk = (int) CHUNK_DURATION_SEC * mFrameRate;
+        if (mUseJournal) openJournal();
+        if (mMasterPlaylist != null) {
+            mHlsSegmenter.setMasterPlaylist(mMasterPlaylist, mMasterPlaylist.addVariant(HlsSegmenter.PLAYLIST_NAME, encWidth, encHeight));
+            mThinnedSegmenter.setMasterPlaylist(mMasterPlaylist,
+                    mMasterPlaylist.addVariant(THINNED_RENDITION_DIR + "/" + HlsSegmenter.PLAYLIST_NAME, encWidth, encHeight));
+        }
+        Log.d(TAG, VIDEO_MIME_TYPE + " output " + encWidth + "x" + encHeight + " @" + encBitRate);
 
         try {
-            if (TRACE) Trace.beginSection("prepare");
+            beginSection(T_PREPARE);
+            // The camera stays at full size; the encode surface is scaled to the rung
             prepareCamera(VIDEO_WIDTH, VIDEO_HEIGHT, Camera.CameraInfo.CAMERA_FACING_BACK);
-            prepareEncoder(VIDEO_WIDTH, VIDEO_HEIGHT, encBitRate);
+            // Before the encoders: the capture rate decides the audio encoder's
+            setupAudioRecord();
+            prepareEncoder(encWidth, encHeight, encBitRate);
             mInputSurface.makeEncodeContextCurrent();
+            // Frames more than a few intervals old when latched mean encoding has fallen behind
+            mFrameScheduler = new FrameScheduler(mFrameRate, 4 * 1000000000L / mFrameRate, FrameClock.SYSTEM);
             prepareSurfaceTexture();
-            setupAudioRecord();
-            if (TRACE) Trace.endSection();
+            endSection(T_PREPARE);
 
 
-            File outputHq = FileUtils.createTempFileInRootAppStorage(c, "hq.mp4");
-            if (TRACE) Trace.beginSection("startMediaRecorder");
+            File outputHq = FileUtils.createTempFile(c, new File(mOutputDir), "hq", "mp4");
+            beginSection(T_START_OUTPUTS);
             if (useMediaRecorder) mMediaRecorderWrapper = new MediaRecorderWrapper(c, outputHq.getAbsolutePath(), mCamera);
             startAudioRecord();
             if (useMediaRecorder) mMediaRecorderWrapper.startRecording();
-            if (TRACE) Trace.endSection();
+            if (mRtmpPublisher != null) mRtmpPublisher.start();
+            if (mRtspServer != null) {
+                try {
+                    mRtspServer.start();
+                } catch (IOException e) {
+                    Log.e(TAG, "Couldn't start RTSP server, recording without it", e);
+                }
+            }
+            if (mSegmentCache != null) startSegmentServer();
+            endSection(T_START_OUTPUTS);
             startWhen = System.nanoTime();
+            mLastGovernorSampleNs = startWhen;
 
             mCamera.startPreview();
             SurfaceTexture st = mStManager.getSurfaceTexture();
             eosReceived = false;
+            startWatchdog();
 
             while (!(fullStopReceived && eosSentToVideoEncoder)) {
                 // Feed any pending encoder output into the muxer.
                 // Chunk encoding
-                eosReceived = ((frameCount % framesPerChunk) == 0 && frameCount != 0);
-                if (eosReceived) Log.i(TAG, "Chunkpoint on frame " + frameCount);
-                audioEosRequested = eosReceived;  // test
-                synchronized (mVideoTrackInfo.muxerWrapper.sync){
-                    if (TRACE) Trace.beginSection("drainVideo");
-                    drainEncoder(mVideoEncoder, mVideoBufferInfo, mVideoTrackInfo, eosReceived || fullStopReceived);
-                    if (TRACE) Trace.endSection();
+                long frameStartNs = System.nanoTime();
+                if (mLoadGovernor != null && frameStartNs - mLastGovernorSampleNs >= GOVERNOR_INTERVAL_NS) {
+                    mLoadGovernor.sample();
+                    mLastGovernorSampleNs = frameStartNs;
+                }
+                if ((mRecoveryRequests.get() & RENDER_STAGES) != 0) {
+                    if (!recoverRenderStages()) break;
+                    st = mStManager.getSurfaceTexture();
+                }
+                if (mDiscontinuityRequested) {
+                    // Another thread rebuilt its part; the chunk it broke ends here
+                    mDiscontinuityRequested = false;
+                    mForceChunk = true;
+                    mDiscontinuityPending = true;
                 }
-                if (fullStopReceived){
-                    break;
+                int stage = W_VIDEO_ENCODER;
+                try {
+                    eosReceived = ((frameCount % mFramesPerChunk) == 0 && frameCount != 0) || mForceChunk;
+                    if (eosReceived) {
+                        Log.i(TAG, "Chunkpoint on frame " + frameCount);
+                        mChunkStartPending = true;
+                        mForceChunk = false;
+                    }
+                    synchronized (mVideoTrackInfo.muxerWrapper.sync){
+                        beginSection(T_DRAIN_VIDEO);
+                        drainEncoder(mVideoEncoder, mVideoBufferInfo, mVideoTrackInfo, eosReceived || fullStopReceived);
+                        endSection(T_DRAIN_VIDEO);
+                    }
+                    if (fullStopReceived){
+                        // An encoder that never sent its EOS is replaced by nothing
+                        if (takeRecovery(W_VIDEO_ENCODER)) rebuildVideoEncoder();
+                        break;
+                    }
+                    if ((mRecoveryRequests.get() & RENDER_STAGES) != 0) continue;
+
+                    // Acquire a new frame of input, and render it to the Surface.  If we had a
+                    // GLSurfaceView we could switch EGL contexts and call drawImage() a second
+                    // time to render it on screen; the texture is shared with the display
+                    // context given to setDisplayEGLContext().
+                    //
+                    // Frames the scheduler doesn't want (too soon for the frame rate, or too old
+                    // because encoding fell behind) are latched and discarded without drawing.
+                    stage = W_CAMERA;
+                    beginSection(T_AWAIT_IMAGE);
+                    long awaitStartNs = System.nanoTime();
+                    boolean haveFrame = false;
+                    while (!haveFrame && !fullStopReceived && (mRecoveryRequests.get() & RENDER_STAGES) == 0) {
+                        haveFrame = mStManager.awaitNewImage();
+                        if (haveFrame) beat(W_CAMERA);
+                        haveFrame = haveFrame && mFrameScheduler.decide(st.getTimestamp()) == FrameScheduler.ENCODE;
+                    }
+                    long awaitNs = System.nanoTime() - awaitStartNs;
+                    endSection(T_AWAIT_IMAGE);
+                    if (!haveFrame) continue;   // stopping: the next pass drains the encoder with EOS
+                    // A failed draw or swap leaves the encoder's input surface unusable
+                    stage = W_VIDEO_ENCODER;
+                    beginSection(T_DRAW_IMAGE);
+                    mStManager.drawImage();
+                    endSection(T_DRAW_IMAGE);
+
+
+                    // Set the presentation time stamp from the SurfaceTexture's time stamp.  This
+                    // will be used by MediaMuxer to set the PTS in the video.
+                    long ptsNs = st.getTimestamp() - startWhen;
+                    mInputSurface.setPresentationTime(ptsNs);
+                    publishVideoSubmitted(ptsNs / 1000);
+
+                    // Submit it to the encoder.  The eglSwapBuffers call will block if the input
+                    // is full, which would be bad if it stayed full until we dequeued an output
+                    // buffer (which we can't do, since we're stuck here).  So long as we fully drain
+                    // the encoder before supplying additional input, the system guarantees that we
+                    // can supply another frame without blocking.
+                    if (VERBOSE) Log.d(TAG, "sending frame to encoder");
+                    beginSection(T_SWAP_BUFFERS);
+                    mInputSurface.swapBuffers();
+                    endSection(T_SWAP_BUFFERS);
+                    // Only frames that reach the encoder count toward the chunk length
+                    frameCount++;
+                    totalFrameCount++;
+                    mRecoveriesWithoutProgress = 0;
+                    // Drain, draw and submit; waiting for the camera isn't load
+                    if (mLoadGovernor != null) mLoadGovernor.reportStageLatency(System.nanoTime() - frameStartNs - awaitNs);
+                    if (!firstFrameReady) {
+                        startTime = System.nanoTime();
+                        arm(W_VIDEO_ENCODER);
+                    }
+                    firstFrameReady = true;
+                } catch (RuntimeException e) {
+                    // Rebuilt at the top of the next pass
+                    Log.e(TAG, WATCHDOG_STAGES[stage] + " failed", e);
+                    requestRecovery(stage);
                 }
-                frameCount++;
-                totalFrameCount++;
-
-                // Acquire a new frame of input, and render it to the Surface.  If we had a
-                // GLSurfaceView we could switch EGL contexts and call drawImage() a second
-                // time to render it on screen.  The texture can be shared between contexts by
-                // passing the GLSurfaceView's EGLContext as eglCreateContext()'s share_context
-                // argument.
-                if (TRACE) Trace.beginSection("awaitImage");
-                mStManager.awaitNewImage();
-                if (TRACE) Trace.endSection();
-                if (TRACE) Trace.beginSection("drawImage");
-                mStManager.drawImage();
-                if (TRACE) Trace.endSection();
-
-
-                // Set the presentation time stamp from the SurfaceTexture's time stamp.  This
-                // will be used by MediaMuxer to set the PTS in the video.
-                mInputSurface.setPresentationTime(st.getTimestamp() - startWhen);
-
-                // Submit it to the encoder.  The eglSwapBuffers call will block if the input
-                // is full, which would be bad if it stayed full until we dequeued an output
-                // buffer (which we can't do, since we're stuck here).  So long as we fully drain
-                // the encoder before supplying additional input, the system guarantees that we
-                // can supply another frame without blocking.
-                if (VERBOSE) Log.d(TAG, "sending frame to encoder");
-                if (TRACE) Trace.beginSection("swapBuffers");
-                mInputSurface.swapBuffers();
-                if (TRACE) Trace.endSection();
-                if (!firstFrameReady) startTime = System.nanoTime();
-                firstFrameReady = true;
 
                 /*
-                if (TRACE) Trace.beginSection("sendAudio");
+                beginSection(T_SEND_AUDIO);
                 sendAudioToEncoder(false);
-                if (TRACE) Trace.endSection();
+                endSection(T_SEND_AUDIO);
                 */
             }
             Log.i(TAG, "Exiting video encode loop");
@@ -306,8 +1015,83 @@ public class ChunkedHWRecorder {
         Log.i(TAG, "stopRecording");
         fullStopReceived = true;
         if (useMediaRecorder) mMediaRecorderWrapper.stopRecording();
+        if (mRtmpPublisher != null) {
+            Log.i(TAG, "RTMP sent " + mRtmpPublisher.getBytesSent() + " bytes, dropped " + mRtmpPublisher.getDroppedFrames() + " frames, reconnected " + mRtmpPublisher.getReconnectCount() + " times");
+            mRtmpPublisher.stop();
+        }
+        if (mRtspServer != null) {
+            for (RtspServer.ClientStats client : mRtspServer.getClientStats()) Log.i(TAG, "RTSP " + client);
+            mRtspServer.stop();
+        }
         double recordingDurationSec = (System.nanoTime() - startTime) / 1000000000.0;
-        Log.i(TAG, "Recorded " + recordingDurationSec + " s. Expected " + (FRAME_RATE * recordingDurationSec) + " frames. Got " + totalFrameCount + " for " + (totalFrameCount / recordingDurationSec) + " fps");
+        Log.i(TAG, "Recorded " + recordingDurationSec + " s. Expected " + (mFrameRate * recordingDurationSec) + " frames. Got " + totalFrameCount + " for " + (totalFrameCount / recordingDurationSec) + " fps");
+        if (mFrameScheduler != null) Log.i(TAG, "Frame pacing: " + mFrameScheduler.getStats());
+        if (mLoadGovernor != null) Log.i(TAG, "Load governor: " + mLoadGovernor.getSteps() + " steps, ended at " + mLoadGovernor.getRung() + ", last " + mLoadGovernor.getLastSample());
+        SurfaceTextureManager stManager = mStManager;
+        if (stManager != null) Log.i(TAG, "Rendering: " + stManager.getRenderStats());
+    }
+
+    /**
+     * Diskless segments live only in the segment cache, so the playlists may only list as
+     * many as it holds.  Segments are cut on keyframes, so they last whole I-frame intervals;
+     * they are sized at the highest bitrate the recorder can run at, and half the budget is
+     * left for bitrate overshoot and playlists.
+     */
+    private int disklessWindowSegments(){
+        long videoBitRate = (mLoadGovernor != null) ? mLoadGovernor.getTopRung().bitRate : VIDEO_BIT_RATE;
+        int segmentSec = (mHlsTargetDurationSec + IFRAME_INTERVAL - 1) / IFRAME_INTERVAL * IFRAME_INTERVAL;
+        long segmentBytes = (videoBitRate + AUDIO_BIT_RATE) / 8 * segmentSec;
+        int renditions = (mThinnedSegmenter != null) ? 2 : 1;
+        long windowBytes = mSegmentCache.getStats().budgetBytes / 2;
+        return (int) Math.max(1, windowBytes / (segmentBytes * renditions));
+    }
+
+    private void startSegmentServer(){
+        mSegmentServer = new SegmentServer(mSegmentServerPort, new File(mOutputDir), mSegmentCache);
+        try {
+            mSegmentServer.start();
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't start segment server, recording without it", e);
+            mSegmentServer = null;
+            mSegmentCache = null;
+            return;
+        }
+        if (mHlsSegmenter != null) {
+            // Cache keys are request paths, i.e. relative to the server root
+            String root = mSegmentServer.getRoot().getAbsolutePath() + File.separator;
+            String dir = mHlsSegmenter.getDir().getAbsolutePath() + File.separator;
+            if (dir.startsWith(root)) {
+                String keyPrefix = dir.substring(root.length());
+                int window = disklessWindowSegments();
+                mHlsSegmenter.setCache(mSegmentCache, keyPrefix);
+                if (mDiskless) {
+                    mHlsSegmenter.setWindowSegments(window);
+                    mHlsSegmenter.setDiskless(mDisklessArchive);
+                }
+                if (mThinnedSegmenter != null) {
+                    mThinnedSegmenter.setCache(mSegmentCache, keyPrefix + THINNED_RENDITION_DIR + "/");
+                    if (mDiskless) {
+                        mThinnedSegmenter.setWindowSegments(window);
+                        mThinnedSegmenter.setDiskless(mDisklessArchive);
+                    }
+                    mMasterPlaylist.setCache(mSegmentCache, keyPrefix + HlsMasterPlaylist.NAME);
+                    if (mDiskless) mMasterPlaylist.setWriteToDisk(false);
+                }
+            } else {
+                Log.w(TAG, "HLS output " + dir + " is outside " + root + ", not serving it");
+            }
+        }
+        if (mRelayNodeId != null) {
+            mSegmentRelay = new SegmentRelay(mRelayNodeId, mRelayPort, mSegmentServer);
+            for (String peer : mRelayPeers) mSegmentRelay.addPeer(peer);
+            try {
+                mSegmentRelay.start();
+                addSegmentListener(mSegmentRelay);
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't start segment relay, serving without it", e);
+                mSegmentRelay = null;
+            }
+        }
     }
 
     /**
@@ -325,84 +1109,180 @@ public class ChunkedHWRecorder {
         }
     }
 
+    /**
+     * Opens the microphone at the first rate and channel count it accepts, and sets up the
+     * conversion from that to the encoded format.
+     */
     private void setupAudioRecord(){
-        int min_buffer_size = AudioRecord.getMinBufferSize(SAMPLE_RATE, CHANNEL_CONFIG, AUDIO_FORMAT);
-        int buffer_size = SAMPLES_PER_FRAME * 10;
-        if (buffer_size < min_buffer_size)
-            buffer_size = ((min_buffer_size / SAMPLES_PER_FRAME) + 1) * SAMPLES_PER_FRAME * 2;
-
-        audioRecord = new AudioRecord(
-                MediaRecorder.AudioSource.MIC,       // source
-                SAMPLE_RATE,                         // sample rate, hz
-                CHANNEL_CONFIG,                      // channels
-                AUDIO_FORMAT,                        // audio format
-                buffer_size);                        // buffer size (bytes)
+        audioRecord = null;
+        for (int rate : CAPTURE_RATES) {
+            for (int channelConfig : CAPTURE_CHANNEL_CONFIGS) {
+                int min_buffer_size = AudioRecord.getMinBufferSize(rate, channelConfig, AUDIO_FORMAT);
+                if (min_buffer_size <= 0) continue;
+                int channels = (channelConfig == AudioFormat.CHANNEL_IN_STEREO) ? 2 : 1;
+                // Room for two capture blocks, so one can be copied out while the next fills
+                int buffer_size = Math.max(min_buffer_size, 2 * CAPTURE_BLOCK_FRAMES * channels * 2);
+                AudioRecord record = new AudioRecord(
+                        MediaRecorder.AudioSource.MIC,       // source
+                        rate,                                // sample rate, hz
+                        channelConfig,                       // channels
+                        AUDIO_FORMAT,                        // audio format
+                        buffer_size);                        // buffer size (bytes)
+                if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+                    record.release();
+                    continue;
+                }
+                audioRecord = record;
+                mCaptureRate = rate;
+                mCaptureChannels = channels;
+                break;
+            }
+            if (audioRecord != null) break;
+        }
+        if (audioRecord == null) throw new RuntimeException("No supported microphone configuration");
+
+        mAudioSampleRate = (mRequestedAudioRate > 0) ? mRequestedAudioRate : mCaptureRate;
+        mPcmProcessor = new PcmProcessor(mCaptureRate, mCaptureChannels, mAudioSampleRate, AUDIO_CHANNELS, CAPTURE_BLOCK_FRAMES);
+        mPcmProcessor.setGain(mAudioGain);
+        Log.i(TAG, "Capturing audio at " + mCaptureRate + " Hz x" + mCaptureChannels + ", encoding " + mAudioSampleRate
+                + " Hz x" + AUDIO_CHANNELS + (mPcmProcessor.isPassthrough() ? "" : " (converted)"));
+        // A second of audio between capture and the encoder
+        mPcmRing = new PcmRing(mAudioSampleRate, AUDIO_CHANNELS, mAudioSampleRate);
+        mNextAudioPtsUs = 0;
     }
 
     private void startAudioRecord(){
         if(audioRecord != null){
+            startAudioCapture();
 
             new Thread(new Runnable(){
 
                 @Override
                 public void run() {
-                    audioRecord.startRecording();
-                    boolean audioEosRequestedCopy = false;
+                    boolean armed = false;
+                    int recoveries = 0;
+                    long progressUs = -1;
                     while(true){
 
-                        if(!firstFrameReady)
+                        if(!firstFrameReady){
+                            // Capture is already running; keep only what is inside the recording
+                            if (startWhen != 0) mPcmRing.skipBefore(startWhen);
+                            LockSupport.parkNanos(5000000);
                             continue;
-                        audioEosRequestedCopy = audioEosRequested; // make sure audioEosRequested doesn't change value mid loop
-                        if (audioEosRequestedCopy || fullStopReceived){ // TODO post eosReceived message with Handler?
-                            Log.i(TAG, "Audio loop caught audioEosRequested / fullStopReceived " + audioEosRequestedCopy + " " + fullStopReceived);
-                            if (TRACE) Trace.beginSection("sendAudio");
-                            sendAudioToEncoder(true);
-                            if (TRACE) Trace.endSection();
                         }
-                        if (fullStopReceived){
-                            Log.i(TAG, "Stopping AudioRecord");
-                            audioRecord.stop();
+                        if (!armed) {
+                            arm(W_AUDIO_ENCODER);
+                            armed = true;
                         }
-
-                        synchronized (mAudioTrackInfo.muxerWrapper.sync){
-                            if (TRACE) Trace.beginSection("drainAudio");
-                            drainEncoder(mAudioEncoder, mAudioBufferInfo, mAudioTrackInfo, audioEosRequestedCopy || fullStopReceived);
-                            if (TRACE) Trace.endSection();
+                        // The encoder runs for the whole recording; only the final stop ends it
+                        boolean stopping = fullStopReceived;
+                        boolean draining;
+                        try {
+                            if (takeRecovery(W_AUDIO_ENCODER)) {
+                                if (stopping) {
+                                    // No EOS is coming; close the track without it
+                                    Log.w(TAG, "Audio encoder stalled while stopping");
+                                    synchronized (mAudioTrackInfo.muxerWrapper.sync) {
+                                        mAudioTrackInfo.muxerWrapper.finishTrack(EncodedSampleSink.TRACK_AUDIO);
+                                    }
+                                    stopAndReleaseAudioEncoder();
+                                    break;
+                                }
+                                if (lastEncodedAudioTimeStamp != progressUs) recoveries = 0;
+                                progressUs = lastEncodedAudioTimeStamp;
+                                if (++recoveries > MAX_RECOVERIES_WITHOUT_PROGRESS) {
+                                    Log.e(TAG, "Giving up on audio after " + MAX_RECOVERIES_WITHOUT_PROGRESS + " rebuilds without output");
+                                    break;
+                                }
+                                rebuildAudioEncoder();
+                            }
+                            if (stopping && !eosSentToAudioEncoder){
+                                Log.i(TAG, "Audio loop caught fullStopReceived");
+                                beginSection(T_SEND_AUDIO);
+                                sendAudioToEncoder(true);
+                                endSection(T_SEND_AUDIO);
+                            }
+                            // Without an input buffer for the EOS, drain and try again
+                            draining = stopping && eosSentToAudioEncoder;
+
+                            // Takes the muxer lock per frame: routing may wait on the render thread
+                            beginSection(T_DRAIN_AUDIO);
+                            drainEncoder(mAudioEncoder, mAudioBufferInfo, mAudioTrackInfo, draining);
+                            endSection(T_DRAIN_AUDIO);
+                        } catch (RuntimeException e) {
+                            Log.e(TAG, "audio encoder failed", e);
+                            requestRecovery(W_AUDIO_ENCODER);
+                            continue;
                         }
+                        if (recoveryRequested(W_AUDIO_ENCODER)) continue;
 
-                        if (audioEosRequestedCopy) audioEosRequested = false;
-
-                        if (!fullStopReceived){
-                            if (TRACE) Trace.beginSection("sendAudio");
+                        if (!stopping){
+                            beginSection(T_SEND_AUDIO);
                             sendAudioToEncoder(false);
-                            if (TRACE) Trace.endSection();
-                        }else{
+                            endSection(T_SEND_AUDIO);
+                        }else if (draining){
+                            Log.i(TAG, "Audio capture: " + mPcmRing.getStats() + "; chunk routing timed out " + mAudioRouteTimeouts + " times");
                             break;
                         }
                     } // end while
                 }
-            }).start();
+            }, "audio encode").start();
 
         }
 
     }
 
+    /**
+     * Reads the microphone in CAPTURE_BLOCK_FRAMES blocks into the PCM ring until the
+     * recording stops.  Nothing here waits on the encoder, so an encoder stall costs ring
+     * space rather than an AudioRecord overrun.
+     */
+    private void startAudioCapture(){
+        new Thread(new Runnable(){
+            @Override
+            public void run() {
+                short[] block = new short[CAPTURE_BLOCK_FRAMES * mCaptureChannels];
+                boolean passthrough = mPcmProcessor.isPassthrough();
+                short[] converted = passthrough ? block : new short[mPcmProcessor.maxOutputShorts(CAPTURE_BLOCK_FRAMES)];
+                audioRecord.startRecording();
+                while (!fullStopReceived) {
+                    int read = audioRecord.read(block, 0, block.length);
+                    if (read < 0) {
+                        Log.e(TAG, "Audio read error " + read);
+                        break;
+                    }
+                    // read() returns once the block is full: its first frame is a block old
+                    long firstFrameNs = System.nanoTime() - (read / mCaptureChannels) * 1000000000L / mCaptureRate;
+                    int length = passthrough ? read : mPcmProcessor.process(block, 0, read, converted);
+                    if (!mPcmRing.write(converted, 0, length, firstFrameNs) && VERBOSE) Log.w(TAG, "PCM ring full, dropped " + length + " samples");
+                }
+                Log.i(TAG, "Stopping AudioRecord");
+                audioRecord.stop();
+                audioRecord.release();
+                mPcmRing.close();
+            }
+        }, "audio capture").start();
+    }
+
+    /**
+     * Fills one encoder input buffer with as many whole AAC frames as the ring holds, or with
+     * everything left at end of stream, and queues it with the capture time of its first
+     * frame.
+     */
     public void sendAudioToEncoder(boolean endOfStream) {
-        // send current frame data to encoder
         try {
+            // Wait for data before taking an input buffer, so the encoder isn't held up
+            if (!endOfStream && !mPcmRing.awaitFrames(SAMPLES_PER_FRAME, AUDIO_WAIT_NS)) return;
             ByteBuffer[] inputBuffers = mAudioEncoder.getInputBuffers();
-            int inputBufferIndex = mAudioEncoder.dequeueInputBuffer(-1);
+            // Bounded, so a stalled encoder leaves this thread free to rebuild it
+            int inputBufferIndex = mAudioEncoder.dequeueInputBuffer(AUDIO_INPUT_TIMEOUT_US);
             if (inputBufferIndex >= 0) {
                 ByteBuffer inputBuffer = inputBuffers[inputBufferIndex];
                 inputBuffer.clear();
-                long presentationTimeNs = System.nanoTime();
-                int inputLength =  audioRecord.read(inputBuffer, SAMPLES_PER_FRAME );
-                presentationTimeNs -= (inputLength / SAMPLE_RATE ) / 1000000000;
-                if(inputLength == AudioRecord.ERROR_INVALID_OPERATION)
-                    Log.e(TAG, "Audio read error");
-
-                //long presentationTimeUs = (presentationTimeNs - startWhen) / 1000;
-                long presentationTimeUs = (presentationTimeNs - startWhen) / 1000;
+                long captureNs = mPcmRing.read(inputBuffer, endOfStream ? 1 : SAMPLES_PER_FRAME);
+                int inputLength = inputBuffer.position();
+                long presentationTimeUs = (captureNs >= 0) ? (captureNs - startWhen) / 1000 : mNextAudioPtsUs;
+                mNextAudioPtsUs = presentationTimeUs + (inputLength / 2 / AUDIO_CHANNELS) * 1000000L / mAudioSampleRate;
                 if (VERBOSE) Log.i(TAG, "queueing " + inputLength + " audio bytes with pts " + presentationTimeUs);
                 if (endOfStream) {
                     Log.i(TAG, "EOS received in sendAudioToEncoder");
@@ -509,7 +1389,7 @@ public class ChunkedHWRecorder {
      * Configure the EGL surface that will be used for output before calling here.
      */
     private void prepareSurfaceTexture() {
-        mStManager = new SurfaceTextureManager();
+        mStManager = new SurfaceTextureManager(mFrameScheduler, mInputSurface.getGlesVersion());
         SurfaceTexture st = mStManager.getSurfaceTexture();
         try {
             mCamera.setPreviewTexture(st);
@@ -539,27 +1419,17 @@ public class ChunkedHWRecorder {
         mVideoBufferInfo = new MediaCodec.BufferInfo();
         mVideoTrackInfo = new TrackInfo();
 
-        mVideoFormat = MediaFormat.createVideoFormat(VIDEO_MIME_TYPE, width, height);
-
-        // Set some properties.  Failing to specify some of these can cause the MediaCodec
-        // configure() call to throw an unhelpful exception.
-        mVideoFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT,
-                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        mVideoFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
-        mVideoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
-        mVideoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
-        if (VERBOSE) Log.d(TAG, "format: " + mVideoFormat);
+        mVideoFormat = createVideoFormat(width, height, bitRate);
 
         // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
         // we can use for input and wrap it with a class that handles the EGL work.
         //
-        // If you want to have two EGL contexts -- one for display, one for recording --
-        // you will likely want to defer instantiation of CodecInputSurface until after the
-        // "display" EGL context is created, then modify the eglCreateContext call to
-        // take eglGetCurrentContext() as the share_context argument.
+        // The encoder's EGL context is created with the display context from
+        // setDisplayEGLContext() as its share_context, so the two can use the same textures,
+        // whatever context happens to be current on the thread that creates it.
         mVideoEncoder = MediaCodec.createEncoderByType(VIDEO_MIME_TYPE);
         mVideoEncoder.configure(mVideoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        mInputSurface = new CodecInputSurface(mVideoEncoder.createInputSurface());
+        mInputSurface = new CodecInputSurface(mVideoEncoder.createInputSurface(), mDisplayEGLContext);
         mVideoEncoder.start();
 
         mAudioBufferInfo = new MediaCodec.BufferInfo();
@@ -568,9 +1438,9 @@ public class ChunkedHWRecorder {
         mAudioFormat = new MediaFormat();
         mAudioFormat.setString(MediaFormat.KEY_MIME, AUDIO_MIME_TYPE);
         mAudioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
-        mAudioFormat.setInteger(MediaFormat.KEY_SAMPLE_RATE, 44100);
-        mAudioFormat.setInteger(MediaFormat.KEY_CHANNEL_COUNT, 1);
-        mAudioFormat.setInteger(MediaFormat.KEY_BIT_RATE, 128000);
+        mAudioFormat.setInteger(MediaFormat.KEY_SAMPLE_RATE, mAudioSampleRate);
+        mAudioFormat.setInteger(MediaFormat.KEY_CHANNEL_COUNT, AUDIO_CHANNELS);
+        mAudioFormat.setInteger(MediaFormat.KEY_BIT_RATE, AUDIO_BIT_RATE);
         mAudioFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 16384);
 
         mAudioEncoder = MediaCodec.createEncoderByType(AUDIO_MIME_TYPE);
@@ -579,7 +1449,7 @@ public class ChunkedHWRecorder {
 
         // Output filename.  Ideally this would use Context.getFilesDir() rather than a
         // hard-coded output directory.
-        String outputPath = OUTPUT_DIR + "chunktest." + width + "x" + height + String.valueOf(leadingChunk) + ".mp4";
+        String outputPath = mOutputDir + "chunktest." + width + "x" + height + String.valueOf(leadingChunk) + ".mp4";
         Log.i(TAG, "Output file is " + outputPath);
 
 
@@ -600,12 +1470,45 @@ public class ChunkedHWRecorder {
         mAudioTrackInfo.muxerWrapper = mMuxerWrapper;
     }
 
+    private MediaFormat createVideoFormat(int width, int height, int bitRate) {
+        MediaFormat format = MediaFormat.createVideoFormat(VIDEO_MIME_TYPE, width, height);
+
+        // Set some properties.  Failing to specify some of these can cause the MediaCodec
+        // configure() call to throw an unhelpful exception.
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, mFrameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
+        // Two temporal layers, the upper one unreferenced, for the thinned rendition.  Encoders
+        // that don't know the key ignore it.
+        if (mThinner != null) format.setString("ts-schema", "android.generic.2");
+        if (VERBOSE) Log.d(TAG, "format: " + format);
+        return format;
+    }
+
+    /**
+     * Switches to the governor's rung if it has moved.  Called between encoders, before video
+     * moves to the next chunk's muxer, so the new settings start with the next chunk's first
+     * IDR frame and the chunk is named for its size.
+     */
+    private void applyLoadGovernor(){
+        if (mLoadGovernor == null) return;
+        LoadGovernor.Rung rung = mLoadGovernor.getRung();
+        if (rung == mAppliedRung) return;
+        Log.i(TAG, "Encoding at " + rung + ", was " + mAppliedRung);
+        mAppliedRung = rung;
+        mFrameRate = rung.frameRate;
+        mFramesPerChunk = (int) CHUNK_DURATION_SEC * mFrameRate;
+        mFrameScheduler.setTargetFps(mFrameRate);
+        mVideoFormat = createVideoFormat(rung.width, rung.height, rung.bitRate);
+    }
+
     private void stopAndReleaseVideoEncoder(){
         eosSentToVideoEncoder = false;
         frameCount = 0;
         if (mVideoEncoder != null) {
-            mVideoEncoder.stop();
-            mVideoEncoder.release();
+            stopAndRelease(mVideoEncoder);
             mVideoEncoder = null;
         }
     }
@@ -616,12 +1519,24 @@ public class ChunkedHWRecorder {
         eosSentToAudioEncoder = false;
 
         if (mAudioEncoder != null) {
-            mAudioEncoder.stop();
-            mAudioEncoder.release();
+            stopAndRelease(mAudioEncoder);
             mAudioEncoder = null;
         }
     }
 
+    /**
+     * A codec being replaced after a failure may throw from stop(); it is released anyway.
+     */
+    private static void stopAndRelease(MediaCodec codec){
+        try {
+            codec.stop();
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Codec stop failed", e);
+        } finally {
+            codec.release();
+        }
+    }
+
     private void stopAndReleaseEncoders(){
         stopAndReleaseVideoEncoder();
         stopAndReleaseAudioEncoder();
@@ -635,84 +1550,128 @@ public class ChunkedHWRecorder {
         // Start Encoder
         mVideoBufferInfo = new MediaCodec.BufferInfo();
         //mVideoTrackInfo = new TrackInfo();
+        applyLoadGovernor();
         advanceVideoMediaMuxer();
         mVideoEncoder = MediaCodec.createEncoderByType(VIDEO_MIME_TYPE);
         mVideoEncoder.configure(mVideoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mInputSurface.updateSurface(mVideoEncoder.createInputSurface());
         mVideoEncoder.start();
         mInputSurface.makeEncodeContextCurrent();
+        // The viewport stays at the first surface's size unless told otherwise
+        GLES20.glViewport(0, 0, mVideoFormat.getInteger(MediaFormat.KEY_WIDTH),
+                mVideoFormat.getInteger(MediaFormat.KEY_HEIGHT));
     }
 
     private void advanceVideoMediaMuxer(){
-        MediaMuxerWrapper videoMuxer = (mVideoTrackInfo.muxerWrapper == mMuxerWrapper) ? mMuxerWrapper : mMuxerWrapper2;
-        MediaMuxerWrapper audioMuxer = (mAudioTrackInfo.muxerWrapper == mMuxerWrapper) ? mMuxerWrapper : mMuxerWrapper2;
-        Log.i("advanceVideo", "video on " + ((mVideoTrackInfo.muxerWrapper == mMuxerWrapper) ? "muxer1" : "muxer2"));
-        if(videoMuxer == audioMuxer){
-            // if both encoders are on same muxer, switch to other muxer
-            leadingChunk++;
-            if(videoMuxer == mMuxerWrapper){
-                Log.i("advanceVideo", "encoders on same muxer. swapping.");
-                mVideoTrackInfo.muxerWrapper = mMuxerWrapper2;
-                // testing: can we start next muxer immediately given MediaCodec.getOutputFormat() values?
-
-            }else if(videoMuxer == mMuxerWrapper2){
-                Log.i("advanceVideo", "encoders on same muxer. swapping.");
-                mVideoTrackInfo.muxerWrapper = mMuxerWrapper;
-                // testing: can we start next muxer immediately given MediaCodec.getOutputFormat() values?
-            }
-            if(mVideoOutputFormat != null && mAudioOutputFormat != null){
-                mVideoTrackInfo.muxerWrapper.addTrack(mVideoOutputFormat);
-                mVideoTrackInfo.muxerWrapper.addTrack(mAudioOutputFormat);
+        synchronized (mMuxerSwitch){
+            MediaMuxerWrapper videoMuxer = (mVideoTrackInfo.muxerWrapper == mMuxerWrapper) ? mMuxerWrapper : mMuxerWrapper2;
+            MediaMuxerWrapper audioMuxer = (mAudioTrackInfo.muxerWrapper == mMuxerWrapper) ? mMuxerWrapper : mMuxerWrapper2;
+            Log.i("advanceVideo", "video on " + ((mVideoTrackInfo.muxerWrapper == mMuxerWrapper) ? "muxer1" : "muxer2"));
+            if(videoMuxer == audioMuxer){
+                // if both encoders are on same muxer, switch to other muxer
+                leadingChunk++;
+                if(videoMuxer == mMuxerWrapper){
+                    Log.i("advanceVideo", "encoders on same muxer. swapping.");
+                    mVideoTrackInfo.muxerWrapper = mMuxerWrapper2;
+                    // testing: can we start next muxer immediately given MediaCodec.getOutputFormat() values?
+
+                }else if(videoMuxer == mMuxerWrapper2){
+                    Log.i("advanceVideo", "encoders on same muxer. swapping.");
+                    mVideoTrackInfo.muxerWrapper = mMuxerWrapper;
+                    // testing: can we start next muxer immediately given MediaCodec.getOutputFormat() values?
+                }
+                // Not started until the new encoder's format is known: the old one's SPS and size
+                // may not be the new one's
+                MediaMuxerWrapper next = mVideoTrackInfo.muxerWrapper;
+                synchronized (next.sync){
+                    next.awaitVideoFormat();
+                }
             }else{
-                Log.e(TAG, "mVideoOutputFormat or mAudioOutputFormat is null!");
+                // if encoders are separate, finalize this muxer, and switch to others
+                Log.i("advanceVideo", "encoders on diff muxers. restarting");
+                mVideoTrackInfo.muxerWrapper.restart(OUTPUT_FORMAT, leadingChunk + 1); // prepare muxer for next chunk, but don't alter leadingChunk
+                mVideoTrackInfo.muxerWrapper = mAudioTrackInfo.muxerWrapper;
             }
-        }else{
-            // if encoders are separate, finalize this muxer, and switch to others
-            Log.i("advanceVideo", "encoders on diff muxers. restarting");
-            mVideoTrackInfo.muxerWrapper.restart(OUTPUT_FORMAT, leadingChunk + 1); // prepare muxer for next chunk, but don't alter leadingChunk
-            mVideoTrackInfo.muxerWrapper = mAudioTrackInfo.muxerWrapper;
         }
     }
 
     /**
-     * This can be called within drainEncoder, when the end of stream is reached
+     * Render thread, as each frame goes to the encoder.  The first frame after a chunkpoint
+     * starts the next chunk, and audio from its PTS on follows it there.
      */
-    private void chunkAudioEncoder(){
-        stopAndReleaseAudioEncoder();
+    private void publishVideoSubmitted(long ptsUs){
+        if (mChunkStartPending) {
+            mChunkStartUs = ptsUs;
+            mVideoChunk++;      // after mChunkStartUs, which readers of mVideoChunk then see
+            mChunkStartPending = false;
+            mTracer.instant(T_VIDEO_CHUNK, mVideoChunk);
+        }
+        mVideoSubmittedUs = ptsUs;
+        Thread waiter = mAudioWaiter;
+        if (waiter != null) LockSupport.unpark(waiter);
+    }
 
-        // Start Encoder
-        mAudioBufferInfo = new MediaCodec.BufferInfo();
-        //mVideoTrackInfo = new TrackInfo();
-        advanceAudioMediaMuxer();
-        mAudioEncoder = MediaCodec.createEncoderByType(AUDIO_MIME_TYPE);
-        mAudioEncoder.configure(mAudioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        mAudioEncoder.start();
+    /**
+     * Audio thread, before writing the frame at ptsUs: moves audio to the video's new chunk
+     * once the frame is at or after the chunk's first video frame, so chunks split within
+     * one AAC frame of the IDR without restarting the audio encoder.  Whether a chunk starts
+     * before ptsUs is only known once video has been submitted up to ptsUs, so this waits for
+     * that, up to AUDIO_ROUTE_WAIT_NS.
+     */
+    private void routeAudioFrame(long ptsUs){
+        if (mVideoSubmittedUs < ptsUs && !fullStopReceived) {
+            long deadline = System.nanoTime() + AUDIO_ROUTE_WAIT_NS;
+            mAudioWaiter = Thread.currentThread();
+            try {
+                while (mVideoSubmittedUs < ptsUs && !fullStopReceived) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        mAudioRouteTimeouts++;
+                        break;
+                    }
+                    LockSupport.parkNanos(this, left);
+                }
+            } finally {
+                mAudioWaiter = null;
+            }
+        }
+        if (mAudioChunk < mVideoChunk && ptsUs >= mChunkStartUs) {
+            MediaMuxerWrapper previous = mAudioTrackInfo.muxerWrapper;
+            synchronized (previous.sync){
+                previous.finishTrack(EncodedSampleSink.TRACK_AUDIO);
+                advanceAudioMediaMuxer();
+            }
+            mAudioChunk++;
+            mTracer.instant(T_AUDIO_CHUNK, mAudioChunk);
+        }
     }
 
     private void advanceAudioMediaMuxer(){
-        MediaMuxerWrapper videoMuxer = (mVideoTrackInfo.muxerWrapper == mMuxerWrapper) ? mMuxerWrapper : mMuxerWrapper2;
-        MediaMuxerWrapper audioMuxer = (mAudioTrackInfo.muxerWrapper == mMuxerWrapper) ? mMuxerWrapper : mMuxerWrapper2;
-        Log.i("advanceAudio", "audio on " + ((mAudioTrackInfo.muxerWrapper == mMuxerWrapper) ? "muxer1" : "muxer2"));
-        if(videoMuxer == audioMuxer){
-            // If both encoders are on same muxer, switch to other muxer
-            Log.i("advanceAudio", "encoders on same muxer. swapping.");
-            leadingChunk++;
-            if(videoMuxer == mMuxerWrapper){
-                mAudioTrackInfo.muxerWrapper = mMuxerWrapper2;
-            }else if(videoMuxer == mMuxerWrapper2){
-                mAudioTrackInfo.muxerWrapper = mMuxerWrapper;
-            }
-            if(mVideoOutputFormat != null && mAudioOutputFormat != null){
-                mAudioTrackInfo.muxerWrapper.addTrack(mVideoOutputFormat);
-                mAudioTrackInfo.muxerWrapper.addTrack(mAudioOutputFormat);
+        synchronized (mMuxerSwitch){
+            MediaMuxerWrapper videoMuxer = (mVideoTrackInfo.muxerWrapper == mMuxerWrapper) ? mMuxerWrapper : mMuxerWrapper2;
+            MediaMuxerWrapper audioMuxer = (mAudioTrackInfo.muxerWrapper == mMuxerWrapper) ? mMuxerWrapper : mMuxerWrapper2;
+            Log.i("advanceAudio", "audio on " + ((mAudioTrackInfo.muxerWrapper == mMuxerWrapper) ? "muxer1" : "muxer2"));
+            if(videoMuxer == audioMuxer){
+                // If both encoders are on same muxer, switch to other muxer
+                Log.i("advanceAudio", "encoders on same muxer. swapping.");
+                leadingChunk++;
+                if(videoMuxer == mMuxerWrapper){
+                    mAudioTrackInfo.muxerWrapper = mMuxerWrapper2;
+                }else if(videoMuxer == mMuxerWrapper2){
+                    mAudioTrackInfo.muxerWrapper = mMuxerWrapper;
+                }
+                if(mVideoOutputFormat != null && mAudioOutputFormat != null){
+                    mAudioTrackInfo.muxerWrapper.addTrack(EncodedSampleSink.TRACK_VIDEO, mVideoOutputFormat);
+                    mAudioTrackInfo.muxerWrapper.addTrack(EncodedSampleSink.TRACK_AUDIO, mAudioOutputFormat);
+                }else{
+                    Log.e(TAG, "mVideoOutputFormat or mAudioOutputFormat is null!");
+                }
             }else{
-                Log.e(TAG, "mVideoOutputFormat or mAudioOutputFormat is null!");
+                // if encoders are separate, finalize this muxer, and switch to others
+                Log.i("advanceAudio", "encoders on diff muxers. restarting");
+                mAudioTrackInfo.muxerWrapper.restart(OUTPUT_FORMAT, leadingChunk + 1); // prepare muxer for next chunk, but don't alter leadingChunk
+                mAudioTrackInfo.muxerWrapper = mVideoTrackInfo.muxerWrapper;
             }
-        }else{
-            // if encoders are separate, finalize this muxer, and switch to others
-            Log.i("advanceAudio", "encoders on diff muxers. restarting");
-            mAudioTrackInfo.muxerWrapper.restart(OUTPUT_FORMAT, leadingChunk + 1); // prepare muxer for next chunk, but don't alter leadingChunk
-            mAudioTrackInfo.muxerWrapper = mVideoTrackInfo.muxerWrapper;
         }
     }
 
@@ -721,7 +1680,32 @@ public class ChunkedHWRecorder {
      */
     private void releaseEncodersAndMuxer() {
         if (VERBOSE) Log.d(TAG, "releasing encoder objects");
+        stopWatchdog();
         stopAndReleaseEncoders();
+        if (mHlsSegmenter != null) {
+            mHlsSegmenter.finish();
+            Log.i(TAG, "HLS wrote " + mHlsSegmenter.getSegmentCount() + " segments");
+        }
+        if (mThinnedSegmenter != null) {
+            mThinnedSegmenter.finish();
+            Log.i(TAG, "Thinned HLS wrote " + mThinnedSegmenter.getSegmentCount() + " segments, kept " + mThinner.getPassedFrames()
+                    + " frames, dropped " + mThinner.getDroppedFrames() + " (" + mThinner.getDroppedBytes() + " bytes)");
+            try {
+                if (mDisklessArchive) mMasterPlaylist.setWriteToDisk(true);
+                mMasterPlaylist.finish();
+            } catch (IOException e) {
+                Log.w(TAG, "Couldn't write " + HlsMasterPlaylist.NAME, e);
+            }
+        }
+        if (mSegmentRelay != null) {
+            Log.i(TAG, "Relay " + mSegmentRelay.getStats());
+            mSegmentRelay.stop();
+            mSegmentRelay = null;
+        }
+        if (mSegmentServer != null) {
+            Log.i(TAG, "HTTP " + mSegmentServer.getStats() + "; cache " + mSegmentCache.getStats());
+            mSegmentServer.stop();
+        }
         if (mMuxerWrapper != null) {
             synchronized (mMuxerWrapper.sync){
                 mMuxerWrapper.stop();
@@ -734,6 +1718,12 @@ public class ChunkedHWRecorder {
                 mMuxerWrapper2 = null;
             }
         }
+        if (mJournal != null) {
+            mJournal.close();
+            mJournal = null;
+        }
+        // Listeners get the last chunk's FINISHED before their threads end
+        mSegmentEvents.close(1000);
     }
 
     /**
@@ -758,6 +1748,7 @@ public class ChunkedHWRecorder {
             encoder.signalEndOfInputStream();
             eosSentToVideoEncoder = true;
         }
+        int stage = (encoder == mVideoEncoder) ? W_VIDEO_ENCODER : W_AUDIO_ENCODER;
         //testing
         ByteBuffer[] encoderOutputBuffers = encoder.getOutputBuffers();
 
@@ -770,6 +1761,8 @@ public class ChunkedHWRecorder {
                     break;      // out of while
                 } else {
                     if (VERBOSE) Log.d(TAG, "no output available, spinning to await EOS");
+                    // An EOS that never comes: the watchdog has the encoder rebuilt instead
+                    if (recoveryRequested(stage)) break;
                 }
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
                 // not expected for an encoder
@@ -777,21 +1770,33 @@ public class ChunkedHWRecorder {
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                 // should happen before receiving buffers, and should only happen once
 
+                // Once per encoder, and every chunk has a new video encoder
+                MediaFormat newFormat = encoder.getOutputFormat();
+                if(encoder == mVideoEncoder)
+                    mVideoOutputFormat = newFormat;
+                else if(encoder == mAudioEncoder)
+                    mAudioOutputFormat = newFormat;
+
+                synchronized (muxerWrapper.sync) {
+                // The sinks outlive encoders, so they hear about every format
+                if (!mSampleSinks.isEmpty()) {
+                    TrackFormat trackFormat = toTrackFormat(newFormat);
+                    for (EncodedSampleSink sink : mSampleSinks)
+                        sink.setTrackFormat(trackForEncoder(encoder), trackFormat);
+                }
                 if (muxerWrapper.started) {
-                    //Log.e(TAG, "format changed after muxer start! Can we ignore?");
-                    //throw new RuntimeException("format changed after muxer start");
+                    Log.w(TAG, "Format changed after muxer start, ignoring it for chunk " + muxerWrapper.chunk);
                 }else{
-                    MediaFormat newFormat = encoder.getOutputFormat();
-                    if(encoder == mVideoEncoder)
-                        mVideoOutputFormat = newFormat;
-                    else if(encoder == mAudioEncoder)
-                        mAudioOutputFormat = newFormat;
-
                     // now that we have the Magic Goodies, start the muxer
-                    trackInfo.index = muxerWrapper.addTrack(newFormat);
+                    boolean awaited = muxerWrapper.awaitingVideoFormat && encoder == mVideoEncoder;
+                    trackInfo.index = muxerWrapper.addTrack(trackForEncoder(encoder), newFormat);
+                    // A chunk after the first: audio's format hasn't changed, and starts the muxer
+                    if (awaited && mAudioOutputFormat != null)
+                        muxerWrapper.addTrack(EncodedSampleSink.TRACK_AUDIO, mAudioOutputFormat);
                     if(!muxerWrapper.allTracksAdded())
                         break;  // Allow both encoders to send output format changed before attempting to write samples
                 }
+                }
 
             } else if (encoderStatus < 0) {
                 Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
@@ -813,50 +1818,62 @@ public class ChunkedHWRecorder {
 
 
                 if (bufferInfo.size != 0) {
-                    if (!trackInfo.muxerWrapper.started) {
+                    if(encoder == mAudioEncoder){
+                        if(bufferInfo.presentationTimeUs < lastEncodedAudioTimeStamp)
+                            bufferInfo.presentationTimeUs = lastEncodedAudioTimeStamp += SAMPLES_PER_FRAME * 1000000L / mAudioSampleRate; // one AAC frame
+                        lastEncodedAudioTimeStamp = bufferInfo.presentationTimeUs;
+                        routeAudioFrame(bufferInfo.presentationTimeUs);
+                        muxerWrapper = trackInfo.muxerWrapper;
+                    }
+                    synchronized (muxerWrapper.sync) {
+                    if (!muxerWrapper.started && !muxerWrapper.awaitingVideoFormat) {
                         Log.e(TAG, "Muxer not started. dropping " + ((encoder == mVideoEncoder) ? " video" : " audio") + " frames");
                         //throw new RuntimeException("muxer hasn't started");
                     } else{
                         // adjust the ByteBuffer values to match BufferInfo (not needed?)
                         encodedData.position(bufferInfo.offset);
                         encodedData.limit(bufferInfo.offset + bufferInfo.size);
-                        if(encoder == mAudioEncoder){
-                            if(bufferInfo.presentationTimeUs < lastEncodedAudioTimeStamp)
-                                bufferInfo.presentationTimeUs = lastEncodedAudioTimeStamp += 23219; // Magical AAC encoded frame time
-                            lastEncodedAudioTimeStamp = bufferInfo.presentationTimeUs;
-                        }
                         if(bufferInfo.presentationTimeUs < 0){
                             bufferInfo.presentationTimeUs = 0;
                         }
-                        muxerWrapper.muxer.writeSampleData(trackInfo.index, encodedData, bufferInfo);
+                        for (EncodedSampleSink sink : mSampleSinks)
+                            sink.writeSampleData(trackForEncoder(encoder), encodedData, bufferInfo.presentationTimeUs, bufferInfo.flags);
+                        // Audio can get to the next chunk before the new video encoder's format
+                        if (muxerWrapper.started)
+                            muxerWrapper.writeSample(trackForEncoder(encoder), encodedData, bufferInfo);
+                        else
+                            muxerWrapper.holdSample(trackForEncoder(encoder), encodedData, bufferInfo);
 
                         if (VERBOSE)
                             Log.d(TAG, "sent " + bufferInfo.size + ((encoder == mVideoEncoder) ? " video" : " audio") + " bytes to muxer with pts " + bufferInfo.presentationTimeUs);
 
                     }
+                    }
                 }
 
                 encoder.releaseOutputBuffer(encoderStatus, false);
+                beat(stage);
 
                 if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                     if (!endOfStream) {
                         Log.w(TAG, "reached end of stream unexpectedly");
                     } else {
-                        muxerWrapper.finishTrack();
+                        synchronized (muxerWrapper.sync) {
+                            muxerWrapper.finishTrack(trackForEncoder(encoder));
+                        }
                         if (VERBOSE) Log.d(TAG, "end of " + ((encoder == mVideoEncoder) ? " video" : " audio") + " stream reached. ");
                         if(!fullStopReceived){
                             if(encoder == mVideoEncoder){
                                 Log.i(TAG, "Chunking video encoder");
-                                if (TRACE) Trace.beginSection("chunkVideoEncoder");
+                                beginSection(T_CHUNK_VIDEO_ENCODER);
                                 chunkVideoEncoder();
-                                if (TRACE) Trace.endSection();
-                            }else if(encoder == mAudioEncoder){
-                                Log.i(TAG, "Chunking audio encoder");
-                                if (TRACE) Trace.beginSection("chunkAudioEncoder");
-                                chunkAudioEncoder();
-                                if (TRACE) Trace.endSection();
+                                endSection(T_CHUNK_VIDEO_ENCODER);
+                                if (mDiscontinuityPending) {
+                                    mDiscontinuityPending = false;
+                                    recordDiscontinuity();
+                                }
                             }else
-                                Log.e(TAG, "Unknown encoder passed to drainEncoder!");
+                                Log.e(TAG, "Only the video encoder is restarted per chunk");
                         }else{
 
                             if(encoder == mVideoEncoder){
@@ -877,6 +1894,212 @@ public class ChunkedHWRecorder {
     }
 
 
+    private void startWatchdog(){
+        if (mWatchdogDeadlineNs <= 0) return;
+        mWatchdog = new PipelineWatchdog(WATCHDOG_STAGES, mWatchdogDeadlineNs, FrameClock.SYSTEM, new PipelineWatchdog.Listener() {
+            @Override
+            public void onStall(int stage, long silentNs) {
+                mTracer.instant(T_STALL, stage);
+                if (stage == W_MUXER) {
+                    // Stuck in a write: nothing to rebuild until it returns or throws
+                    Log.w(TAG, "Muxer silent for " + silentNs / 1000000 + " ms");
+                    return;
+                }
+                Log.w(TAG, WATCHDOG_STAGES[stage] + " silent for " + silentNs / 1000000 + " ms, rebuilding it");
+                requestRecovery(stage);
+            }
+        });
+        mWatchdog.arm(W_CAMERA);
+        if (!mDiskless) mWatchdog.arm(W_MUXER);
+        mWatchdog.start();
+    }
+
+    private void stopWatchdog(){
+        if (mWatchdog == null) return;
+        mWatchdog.stop();
+        Log.i(TAG, "Watchdog " + mWatchdog.getStats() + ", " + mDiscontinuities + " discontinuities");
+        mWatchdog = null;
+    }
+
+    private void beat(int stage){
+        PipelineWatchdog watchdog = mWatchdog;
+        if (watchdog != null) watchdog.beat(stage);
+    }
+
+    private void arm(int stage){
+        PipelineWatchdog watchdog = mWatchdog;
+        if (watchdog != null) watchdog.arm(stage);
+    }
+
+    private void disarm(int stage){
+        PipelineWatchdog watchdog = mWatchdog;
+        if (watchdog != null) watchdog.disarm(stage);
+    }
+
+    private void requestRecovery(int stage){
+        int requests;
+        do {
+            requests = mRecoveryRequests.get();
+        } while (!mRecoveryRequests.compareAndSet(requests, requests | (1 << stage)));
+    }
+
+    private boolean recoveryRequested(int stage){
+        return (mRecoveryRequests.get() & (1 << stage)) != 0;
+    }
+
+    /**
+     * Clears stage's request, for the thread that owns it.  True if there was one.
+     */
+    private boolean takeRecovery(int stage){
+        int requests;
+        do {
+            requests = mRecoveryRequests.get();
+            if ((requests & (1 << stage)) == 0) return false;
+        } while (!mRecoveryRequests.compareAndSet(requests, requests & ~(1 << stage)));
+        return true;
+    }
+
+    /**
+     * Render thread: rebuilds the camera and video encoder if asked to.  False once
+     * rebuilding keeps failing to get a frame through, and recording should end.
+     */
+    private boolean recoverRenderStages(){
+        if (++mRecoveriesWithoutProgress > MAX_RECOVERIES_WITHOUT_PROGRESS) {
+            Log.e(TAG, "Giving up after " + MAX_RECOVERIES_WITHOUT_PROGRESS + " rebuilds without a frame");
+            return false;
+        }
+        beginSection(T_RECOVER);
+        try {
+            if (takeRecovery(W_CAMERA)) {
+                rebuildCamera();
+                mForceChunk = true;
+                mDiscontinuityPending = true;
+            }
+            if (takeRecovery(W_VIDEO_ENCODER)) rebuildVideoEncoder();
+        } catch (RuntimeException e) {
+            // Another try when the watchdog next fires
+            Log.e(TAG, "Rebuild failed", e);
+        } finally {
+            endSection(T_RECOVER);
+        }
+        return true;
+    }
+
+    /**
+     * Reopens the camera onto a new SurfaceTexture.  The encoder and its input surface are
+     * left alone.
+     */
+    private void rebuildCamera(){
+        Log.w(TAG, "Rebuilding camera");
+        disarm(W_CAMERA);
+        try {
+            releaseCamera();
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Camera release failed", e);
+            mCamera = null;
+        }
+        releaseSurfaceTexture();
+        prepareCamera(VIDEO_WIDTH, VIDEO_HEIGHT, Camera.CameraInfo.CAMERA_FACING_BACK);
+        prepareSurfaceTexture();
+        mCamera.startPreview();
+        arm(W_CAMERA);
+    }
+
+    /**
+     * Replaces a video encoder that stopped producing output, or whose input surface failed,
+     * without waiting for its EOS: video is closed in its current chunk and goes on in the
+     * next one.
+     */
+    private void rebuildVideoEncoder(){
+        Log.w(TAG, "Rebuilding video encoder");
+        disarm(W_VIDEO_ENCODER);
+        synchronized (mVideoTrackInfo.muxerWrapper.sync){
+            mVideoTrackInfo.muxerWrapper.finishTrack(EncodedSampleSink.TRACK_VIDEO);
+            if (fullStopReceived) {
+                stopAndReleaseVideoEncoder();
+                eosSentToVideoEncoder = true;
+                return;
+            }
+            mChunkStartPending = true;
+            beginSection(T_CHUNK_VIDEO_ENCODER);
+            chunkVideoEncoder();
+            endSection(T_CHUNK_VIDEO_ENCODER);
+        }
+        recordDiscontinuity();
+        arm(W_VIDEO_ENCODER);
+    }
+
+    /**
+     * Audio thread: replaces the audio encoder with one of the same format.  The render
+     * thread ends the chunk the old one was writing to.
+     */
+    private void rebuildAudioEncoder(){
+        Log.w(TAG, "Rebuilding audio encoder");
+        disarm(W_AUDIO_ENCODER);
+        beginSection(T_RECOVER);
+        try {
+            if (mAudioEncoder != null) stopAndRelease(mAudioEncoder);
+            mAudioEncoder = null;
+            mAudioBufferInfo = new MediaCodec.BufferInfo();
+            mAudioEncoder = MediaCodec.createEncoderByType(AUDIO_MIME_TYPE);
+            mAudioEncoder.configure(mAudioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mAudioEncoder.start();
+        } finally {
+            endSection(T_RECOVER);
+        }
+        arm(W_AUDIO_ENCODER);
+        mDiscontinuityRequested = true;
+    }
+
+    /**
+     * The chunk video has just moved to follows a gap: says so in the journal and the HLS
+     * playlist.
+     */
+    private void recordDiscontinuity(){
+        int chunk = mVideoTrackInfo.muxerWrapper.chunk;
+        mDiscontinuities++;
+        Log.w(TAG, "Discontinuity before chunk " + chunk);
+        mTracer.instant(T_DISCONTINUITY, chunk);
+        if (mJournal != null) mJournal.discontinuity(chunk);
+        if (mHlsSegmenter != null) mHlsSegmenter.markDiscontinuity(mVideoSubmittedUs + 1);
+        if (mThinnedSegmenter != null) mThinnedSegmenter.markDiscontinuity(mVideoSubmittedUs + 1);
+    }
+
+    private void beginSection(int section){
+        if (TRACE) Trace.beginSection(TRACE_NAMES[section]);
+        mTracer.begin(section);
+    }
+
+    private void endSection(int section){
+        mTracer.end(section);
+        if (TRACE) Trace.endSection();
+    }
+
+    private int trackForEncoder(MediaCodec encoder){
+        return (encoder == mVideoEncoder) ? EncodedSampleSink.TRACK_VIDEO : EncodedSampleSink.TRACK_AUDIO;
+    }
+
+    /**
+     * Copies what our own container writers need out of an encoder's output MediaFormat.
+     */
+    static TrackFormat toTrackFormat(MediaFormat format){
+        if (format.getString(MediaFormat.KEY_MIME).startsWith("video/")) {
+            return TrackFormat.createVideoFormat(format.getInteger(MediaFormat.KEY_WIDTH),
+                    format.getInteger(MediaFormat.KEY_HEIGHT),
+                    toByteArray(format.getByteBuffer("csd-0")), toByteArray(format.getByteBuffer("csd-1")));
+        }
+        return TrackFormat.createAudioFormat(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), toByteArray(format.getByteBuffer("csd-0")));
+    }
+
+    private static byte[] toByteArray(ByteBuffer buffer){
+        ByteBuffer view = buffer.duplicate();
+        view.position(0);
+        byte[] bytes = new byte[view.remaining()];
+        view.get(bytes);
+        return bytes;
+    }
+
     /**
      * Holds state associated with a Surface used for MediaCodec encoder input.
      * <p/>
@@ -890,9 +2113,10 @@ public class ChunkedHWRecorder {
         private static final int EGL_RECORDABLE_ANDROID = 0x3142;
         private EGLDisplay mEGLDisplay = EGL14.EGL_NO_DISPLAY;
         private EGLContext mEGLEncodeContext = EGL14.EGL_NO_CONTEXT;
-        public static EGLContext mEGLDisplayContext = EGL14.EGL_NO_CONTEXT;
+        private final EGLContext mEGLDisplayContext;
         private EGLSurface mEGLSurface = EGL14.EGL_NO_SURFACE;
         private Surface mSurface;
+        private int mGlesVersion;
 
         EGLConfig[] configs;
         int[] surfaceAttribs = {
@@ -902,11 +2126,12 @@ public class ChunkedHWRecorder {
         /**
          * Creates a CodecInputSurface from a Surface.
          */
-        public CodecInputSurface(Surface surface) {
+        public CodecInputSurface(Surface surface, EGLContext displayContext) {
             if (surface == null) {
                 throw new NullPointerException();
             }
             mSurface = surface;
+            mEGLDisplayContext = displayContext;
 
             eglSetup();
         }
@@ -923,7 +2148,7 @@ public class ChunkedHWRecorder {
         }
 
         /**
-         * Prepares EGL.  We want a GLES 2.0 context and a surface that supports recording.
+         * Prepares EGL.  We want a GLES 3.0 or 2.0 context and a surface that supports recording.
          */
         private void eglSetup() {
             if(VERBOSE) Log.i(TAG, "Creating EGL14 Surface");
@@ -936,35 +2161,55 @@ public class ChunkedHWRecorder {
                 throw new RuntimeException("unable to initialize EGL14");
             }
 
-            // Configure EGL for recording and OpenGL ES 2.0.
+            // Prefer an ES 3 context, whose fences let the renderer pace itself without
+            // glFinish(), and fall back to ES 2.
+            if (mEGLDisplayContext == EGL14.EGL_NO_CONTEXT) Log.e(TAG, "mEGLDisplayContext not set properly");
+            if (!createContext(3)) {
+                EGL14.eglGetError();    // clear the failure
+                if (!createContext(2)) throw new RuntimeException("unable to create an ES 2 context");
+            }
+            if (VERBOSE) Log.d(TAG, "Created an ES " + mGlesVersion + " context");
+
+            // Create a window surface, and attach it to the Surface we received.
+            mEGLSurface = EGL14.eglCreateWindowSurface(mEGLDisplay, configs[0], mSurface,
+                    surfaceAttribs, 0);
+            checkEglError("eglCreateWindowSurface");
+        }
+
+        /**
+         * Chooses a recordable config and creates the encode context for the given GLES major
+         * version.  Returns false if the driver can't.
+         */
+        private boolean createContext(int glesVersion) {
             int[] attribList = {
                     EGL14.EGL_RED_SIZE, 8,
                     EGL14.EGL_GREEN_SIZE, 8,
                     EGL14.EGL_BLUE_SIZE, 8,
-                    EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                    EGL14.EGL_RENDERABLE_TYPE, glesVersion >= 3 ? EGLExt.EGL_OPENGL_ES3_BIT_KHR : EGL14.EGL_OPENGL_ES2_BIT,
                     EGL_RECORDABLE_ANDROID, 1,
                     EGL14.EGL_NONE
             };
             configs = new EGLConfig[1];
             int[] numConfigs = new int[1];
-            EGL14.eglChooseConfig(mEGLDisplay, attribList, 0, configs, 0, configs.length,
-                    numConfigs, 0);
-            checkEglError("eglCreateContext RGB888+recordable ES2");
+            if (!EGL14.eglChooseConfig(mEGLDisplay, attribList, 0, configs, 0, configs.length,
+                    numConfigs, 0) || numConfigs[0] == 0) {
+                Log.w(TAG, "No RGB888+recordable ES" + glesVersion + " config");
+                return false;
+            }
 
-            // Configure context for OpenGL ES 2.0.
-            int[] attrib_list = {
-                    EGL14.EGL_CONTEXT_CLIENT_VERSION, 2,
+            int[] contextAttribs = {
+                    EGL14.EGL_CONTEXT_CLIENT_VERSION, glesVersion,
                     EGL14.EGL_NONE
             };
-            if(mEGLDisplayContext == EGL14.EGL_NO_CONTEXT) Log.e(TAG, "mEGLDisplayContext not set properly");
-            mEGLEncodeContext = EGL14.eglCreateContext(mEGLDisplay, configs[0], EGL14.eglGetCurrentContext(),
-                    attrib_list, 0);
-            checkEglError("eglCreateContext");
-
-            // Create a window surface, and attach it to the Surface we received.
-            mEGLSurface = EGL14.eglCreateWindowSurface(mEGLDisplay, configs[0], mSurface,
-                    surfaceAttribs, 0);
-            checkEglError("eglCreateWindowSurface");
+            mEGLEncodeContext = EGL14.eglCreateContext(mEGLDisplay, configs[0], mEGLDisplayContext,
+                    contextAttribs, 0);
+            if (mEGLEncodeContext == null || mEGLEncodeContext == EGL14.EGL_NO_CONTEXT) {
+                Log.w(TAG, "Couldn't create an ES" + glesVersion + " context");
+                mEGLEncodeContext = EGL14.EGL_NO_CONTEXT;
+                return false;
+            }
+            mGlesVersion = glesVersion;
+            return true;
         }
 
         /**
@@ -989,6 +2234,13 @@ public class ChunkedHWRecorder {
             mSurface = null;
         }
 
+        /**
+         * GLES major version of the encode context: 3, or 2 if the driver had no ES 3.
+         */
+        public int getGlesVersion() {
+            return mGlesVersion;
+        }
+
         public void makeDisplayContextCurrent(){
             makeCurrent(mEGLDisplayContext);
         }
@@ -1042,15 +2294,17 @@ public class ChunkedHWRecorder {
             implements SurfaceTexture.OnFrameAvailableListener {
         private SurfaceTexture mSurfaceTexture;
         private ChunkedHWRecorder.STextureRender mTextureRender;
-        private Object mFrameSyncObject = new Object();     // guards mFrameAvailable
-        private boolean mFrameAvailable;
+        private final FrameScheduler mScheduler;
 
         /**
          * Creates instances of TextureRender and SurfaceTexture.
+         *
+         * @param glesVersion major version of the current (encode) context
          */
-        public SurfaceTextureManager() {
+        public SurfaceTextureManager(FrameScheduler scheduler, int glesVersion) {
+            mScheduler = scheduler;
             mTextureRender = new ChunkedHWRecorder.STextureRender();
-            mTextureRender.surfaceCreated();
+            mTextureRender.surfaceCreated(glesVersion);
 
             if (VERBOSE) Log.d(TAG, String.format("textureID=%d", mTextureRender.getTextureId()) );
             mSurfaceTexture = new SurfaceTexture(mTextureRender.getTextureId());
@@ -1074,6 +2328,8 @@ public class ChunkedHWRecorder {
             //  W BufferQueue: [unnamed-3997-2] cancelBuffer: BufferQueue has been abandoned!
             //mSurfaceTexture.release();
 
+            // Program, texture, vertex buffer and fences would otherwise leak with every camera rebuild
+            mTextureRender.release();
             mTextureRender = null;
             mSurfaceTexture = null;
         }
@@ -1093,34 +2349,27 @@ public class ChunkedHWRecorder {
         }
 
         /**
-         * Latches the next buffer into the texture.  Must be called from the thread that created
-         * the OutputSurface object.
+         * Latches the newest buffer into the texture.  Must be called from the thread that
+         * created the OutputSurface object.
+         *
+         * @return false if no frame arrived within the timeout; the caller just tries again
          */
-        public void awaitNewImage() {
-            final int TIMEOUT_MS = 4500;
-            synchronized (mFrameSyncObject) {
-                while (!mFrameAvailable) {
-                    try {
-                        // Wait for onFrameAvailable() to signal us.  Use a timeout to avoid
-                        // stalling the test if it doesn't arrive.
-                        if(VERBOSE) Log.i(TAG, "Waiting for Frame in Thread");
-                        mFrameSyncObject.wait(TIMEOUT_MS);
-                        if (!mFrameAvailable) {
-                            // TODO: if "spurious wakeup", continue while loop
-                            throw new RuntimeException("Camera frame wait timed out");
-                        }
-                    } catch (InterruptedException ie) {
-                        // shouldn't happen
-                        throw new RuntimeException(ie);
-                    }
+        public boolean awaitNewImage() {
+            final int TIMEOUT_MS = 500;
+            try {
+                if (!mScheduler.awaitFrame(TIMEOUT_MS)) {
+                    Log.w(TAG, "No camera frame for " + TIMEOUT_MS + " ms");
+                    return false;
                 }
-                mFrameAvailable = false;
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return false;
             }
 
             // Latch the data.
-            mTextureRender.checkGlError("before updateTexImage");
+            if (STextureRender.GL_DEBUG) mTextureRender.checkGlError("before updateTexImage");
             mSurfaceTexture.updateTexImage();
-
+            return true;
         }
 
         /**
@@ -1130,23 +2379,33 @@ public class ChunkedHWRecorder {
             mTextureRender.drawFrame(mSurfaceTexture);
         }
 
+        public String getRenderStats() {
+            ChunkedHWRecorder.STextureRender render = mTextureRender;
+            return render != null ? render.getStats() : "released";
+        }
+
         @Override
         public void onFrameAvailable(SurfaceTexture st) {
             if (VERBOSE) Log.d(TAG, "new frame available");
-            synchronized (mFrameSyncObject) {
-                if (mFrameAvailable) {
-                    throw new RuntimeException("mFrameAvailable already set, frame could be dropped");
-                }
-                mFrameAvailable = true;
-                mFrameSyncObject.notifyAll();
-            }
+            // Back-to-back arrivals are coalesced by the scheduler instead of being an error
+            mScheduler.onFrameAvailable();
         }
     }
 
     /**
      * Code for rendering a texture onto a surface using OpenGL ES 2.0.
+     * <p/>
+     * GL state is set up once and only re-applied after the program changes, so a frame is a
+     * transform update and one draw call.  The quad covers the whole surface, so there's no
+     * clear.  Instead of a glFinish() per frame, on ES 3 contexts a fence per frame keeps the
+     * CPU at most FRAMES_IN_FLIGHT frames ahead of the GPU; on ES 2 eglSwapBuffers() blocking
+     * on the encoder's BufferQueue does that job.
      */
-    private static class STextureRender {
+    static class STextureRender {
+        // Hot-path glGetError() calls stall the pipeline; turn this on to find a failing call
+        private static final boolean GL_DEBUG = false;
+        private static final int FRAMES_IN_FLIGHT = 2;
+        private static final long FENCE_TIMEOUT_NS = 100000000L;
         private static final int FLOAT_SIZE_BYTES = 4;
         private static final int TRIANGLE_VERTICES_DATA_STRIDE_BYTES = 5 * FLOAT_SIZE_BYTES;
         private static final int TRIANGLE_VERTICES_DATA_POS_OFFSET = 0;
@@ -1185,6 +2444,20 @@ public class ChunkedHWRecorder {
         private int muSTMatrixHandle;
         private int maPositionHandle;
         private int maTextureHandle;
+        private int mVertexBuffer;
+        private boolean mStateDirty = true;
+        private boolean mLegacy = false;
+
+        // Fence ring, used when the context is ES 3
+        private boolean mUseFences;
+        private final long[] mFences = new long[FRAMES_IN_FLIGHT];
+        private int mFenceIndex = 0;
+
+        // Written by the render thread only
+        private volatile long mFrames = 0;
+        private volatile long mDrawNs = 0;
+        private volatile long mFenceWaitNs = 0;
+        private volatile long mFenceTimeouts = 0;
 
         public STextureRender() {
             mTriangleVertices = ByteBuffer.allocateDirect(
@@ -1199,7 +2472,85 @@ public class ChunkedHWRecorder {
             return mTextureID;
         }
 
+        /**
+         * Renders the way this class used to: clear, client-side vertex arrays, all state
+         * re-specified, glGetError() after each call and glFinish().  For comparing against.
+         */
+        void setLegacy(boolean legacy) {
+            mLegacy = legacy;
+            mStateDirty = true;
+        }
+
+        /**
+         * Forces GL state to be re-applied on the next frame, for when something else has used
+         * the context.
+         */
+        public void invalidateState() {
+            mStateDirty = true;
+        }
+
         public void drawFrame(SurfaceTexture st) {
+            long start = System.nanoTime();
+            if (mLegacy) {
+                drawFrameLegacy(st);
+            } else {
+                if (mUseFences) waitForFence();
+                if (mStateDirty) applyState();
+                st.getTransformMatrix(mSTMatrix);
+                GLES20.glUniformMatrix4fv(muSTMatrixHandle, 1, false, mSTMatrix, 0);
+                GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+                if (mUseFences) {
+                    mFences[mFenceIndex] = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+                    mFenceIndex = (mFenceIndex + 1) % FRAMES_IN_FLIGHT;
+                }
+                if (GL_DEBUG) checkGlError("drawFrame");
+            }
+            mDrawNs += System.nanoTime() - start;
+            mFrames++;
+        }
+
+        /**
+         * Waits for the frame FRAMES_IN_FLIGHT back to finish on the GPU before queueing
+         * another, reusing its slot in the ring.
+         */
+        private void waitForFence() {
+            long fence = mFences[mFenceIndex];
+            if (fence == 0) return;
+            long start = System.nanoTime();
+            int result = GLES30.glClientWaitSync(fence, GLES30.GL_SYNC_FLUSH_COMMANDS_BIT, FENCE_TIMEOUT_NS);
+            mFenceWaitNs += System.nanoTime() - start;
+            if (result == GLES30.GL_TIMEOUT_EXPIRED || result == GLES30.GL_WAIT_FAILED) mFenceTimeouts++;
+            GLES30.glDeleteSync(fence);
+            mFences[mFenceIndex] = 0;
+        }
+
+        /**
+         * Everything that stays the same from frame to frame.  The vertex buffer binding and
+         * attribute arrays are per-context state, as is the program in use.
+         */
+        private void applyState() {
+            GLES20.glUseProgram(mProgram);
+            checkGlError("glUseProgram");
+
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+            GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTextureID);
+
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBuffer);
+            GLES20.glVertexAttribPointer(maPositionHandle, 3, GLES20.GL_FLOAT, false,
+                    TRIANGLE_VERTICES_DATA_STRIDE_BYTES, TRIANGLE_VERTICES_DATA_POS_OFFSET * FLOAT_SIZE_BYTES);
+            GLES20.glEnableVertexAttribArray(maPositionHandle);
+            GLES20.glVertexAttribPointer(maTextureHandle, 2, GLES20.GL_FLOAT, false,
+                    TRIANGLE_VERTICES_DATA_STRIDE_BYTES, TRIANGLE_VERTICES_DATA_UV_OFFSET * FLOAT_SIZE_BYTES);
+            GLES20.glEnableVertexAttribArray(maTextureHandle);
+            checkGlError("vertex attributes");
+
+            Matrix.setIdentityM(mMVPMatrix, 0);
+            GLES20.glUniformMatrix4fv(muMVPMatrixHandle, 1, false, mMVPMatrix, 0);
+            checkGlError("glUniformMatrix4fv uMVPMatrix");
+            mStateDirty = false;
+        }
+
+        private void drawFrameLegacy(SurfaceTexture st) {
             checkGlError("onDrawFrame start");
             st.getTransformMatrix(mSTMatrix);
 
@@ -1212,6 +2563,7 @@ public class ChunkedHWRecorder {
             GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
             GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTextureID);
 
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
             mTriangleVertices.position(TRIANGLE_VERTICES_DATA_POS_OFFSET);
             GLES20.glVertexAttribPointer(maPositionHandle, 3, GLES20.GL_FLOAT, false,
                     TRIANGLE_VERTICES_DATA_STRIDE_BYTES, mTriangleVertices);
@@ -1235,10 +2587,20 @@ public class ChunkedHWRecorder {
             GLES20.glFinish();
         }
 
+        public String getStats() {
+            long frames = mFrames;
+            if (frames == 0) return "no frames drawn";
+            return frames + " frames, " + (mDrawNs / frames / 1000) + " us CPU per draw, "
+                    + (mFenceWaitNs / frames / 1000) + " us per fence wait, " + mFenceTimeouts + " fence timeouts"
+                    + (mUseFences ? "" : " (no fences, ES 2)");
+        }
+
         /**
          * Initializes GL state.  Call this after the EGL surface has been created and made current.
+         *
+         * @param glesVersion major version the current context was created with; fences need 3
          */
-        public void surfaceCreated() {
+        public void surfaceCreated(int glesVersion) {
             mProgram = createProgram(VERTEX_SHADER, FRAGMENT_SHADER);
             if (mProgram == 0) {
                 throw new RuntimeException("failed creating program");
@@ -1282,6 +2644,39 @@ public class ChunkedHWRecorder {
             GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T,
                     GLES20.GL_CLAMP_TO_EDGE);
             checkGlError("glTexParameter");
+
+            int[] buffers = new int[1];
+            GLES20.glGenBuffers(1, buffers, 0);
+            mVertexBuffer = buffers[0];
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBuffer);
+            mTriangleVertices.position(0);
+            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, mTriangleVerticesData.length * FLOAT_SIZE_BYTES,
+                    mTriangleVertices, GLES20.GL_STATIC_DRAW);
+            checkGlError("glBufferData");
+
+            // Not GL_VERSION: an ES 3 capable driver reports 3.x even in an ES 2 context, where
+            // glFenceSync isn't available
+            mUseFences = glesVersion >= 3;
+            if (VERBOSE) Log.d(TAG, "ES " + glesVersion + " context" + (mUseFences ? ", pacing with fences" : ""));
+            mStateDirty = true;
+        }
+
+        /**
+         * Frees the program, texture, vertex buffer and any fences still pending.  Needs the
+         * context current.
+         */
+        public void release() {
+            for (int i = 0; i < FRAMES_IN_FLIGHT; i++) {
+                if (mFences[i] != 0) GLES30.glDeleteSync(mFences[i]);
+                mFences[i] = 0;
+            }
+            if (mVertexBuffer != 0) GLES20.glDeleteBuffers(1, new int[] { mVertexBuffer }, 0);
+            mVertexBuffer = 0;
+            if (mProgram != 0) GLES20.glDeleteProgram(mProgram);
+            mProgram = 0;
+            if (mTextureID > 0) GLES20.glDeleteTextures(1, new int[] { mTextureID }, 0);
+            mTextureID = -12345;
+            mStateDirty = true;
         }
 
         /**
@@ -1296,6 +2691,7 @@ public class ChunkedHWRecorder {
             if (mProgram == 0) {
                 throw new RuntimeException("failed creating program");
             }
+            mStateDirty = true;
         }
 
         private int loadShader(int shaderType, String source) {
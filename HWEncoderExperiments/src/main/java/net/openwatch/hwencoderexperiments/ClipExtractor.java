@@ -0,0 +1,330 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+/**
+ * Cuts a time range out of a recording's chunk files into a single MP4 without re-encoding.
+ * <p/>
+ * Chunks play back to back, so session time is the sum of the chunk durations before it;
+ * those come from the headers of the chunks' indexes.  The clip starts at the last video
+ * keyframe at or before the requested start and runs to the requested end.  Samples are located
+ * with the ChunkIndex of each chunk the clip covers (built first if missing) and copied file to
+ * file with Mp4Writer.writeSampleFrom, so the work is proportional to the clip, not the session.
+ * <p/>
+ * Wall-clock ranges are mapped through the chunks' modification times: a chunk is taken to
+ * have started its duration before it was last written, i.e. when its muxer was stopped.
+ * <p/>
+ * From the command line (see the benchmarks module's clip task):
+ * <pre>
+ *     ClipExtractor [-wall] -from t -to t -out clip.mp4 dir-or-chunks...
+ * </pre>
+ * where t is a session offset, [[h:]m:]s[.fff], or with -wall a local time of day, h:m:s,
+ * on the day the recording started.
+ */
+public class ClipExtractor {
+    private static final Logger LOG = Logger.getLogger("ClipExtractor");
+
+    private static final long DAY_MS = 24 * 3600 * 1000L;
+
+    public static class Result {
+        public final File output;
+        /** Session time of the first frame, the keyframe the clip was cut at */
+        public final long startUs;
+        public final long durationUs;
+        public final long bytes;
+        public final long elapsedMs;
+
+        Result(File output, long startUs, long durationUs, long bytes, long elapsedMs) {
+            this.output = output;
+            this.startUs = startUs;
+            this.durationUs = durationUs;
+            this.bytes = bytes;
+            this.elapsedMs = elapsedMs;
+        }
+    }
+
+    private static class Chunk {
+        final File file;
+        final long startUs;         // session time
+        final long durationUs;
+        final long wallStartMs;
+
+        Chunk(File file, long startUs, long durationUs) {
+            this.file = file;
+            this.startUs = startUs;
+            this.durationUs = durationUs;
+            this.wallStartMs = file.lastModified() - durationUs / 1000;
+        }
+    }
+
+    private final List<Chunk> mChunks = new ArrayList<Chunk>();
+    private final long mDurationUs;
+
+    /**
+     * @param chunks the session's chunk files in recording order
+     */
+    public ClipExtractor(List<File> chunks) throws IOException {
+        if (chunks.isEmpty()) throw new IllegalArgumentException("No chunks");
+        long startUs = 0;
+        for (File file : chunks) {
+            long durationUs = ChunkIndex.readDurationUs(file);
+            mChunks.add(new Chunk(file, startUs, durationUs));
+            startUs += durationUs;
+        }
+        mDurationUs = startUs;
+    }
+
+    /**
+     * A session recorded into dir, with its .mp4 chunks in chunk number order.
+     */
+    public static ClipExtractor forDirectory(File dir) throws IOException {
+        return new ClipExtractor(Transmuxer.chunkFiles(dir));
+    }
+
+    public long getDurationUs() {
+        return mDurationUs;
+    }
+
+    /**
+     * Wall-clock time the recording started, in ms since the epoch.
+     */
+    public long getWallClockStartMs() {
+        return mChunks.get(0).wallStartMs;
+    }
+
+    /**
+     * Converts a wall-clock time into session time, clamped to the recording.  Times that fall
+     * in a gap between chunks map to the start of the next chunk.
+     */
+    public long toSessionUs(long wallClockMs) {
+        for (int i = mChunks.size() - 1; i >= 0; i--) {
+            Chunk chunk = mChunks.get(i);
+            if (chunk.wallStartMs <= wallClockMs) {
+                return chunk.startUs + Math.min((wallClockMs - chunk.wallStartMs) * 1000, chunk.durationUs);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Converts session time into wall-clock ms since the epoch.
+     */
+    public long toWallClockMs(long sessionUs) {
+        Chunk chunk = mChunks.get(chunkAt(sessionUs));
+        return chunk.wallStartMs + (sessionUs - chunk.startUs) / 1000;
+    }
+
+    public Result extractWallClock(long startMs, long endMs, File output) throws IOException {
+        return extract(toSessionUs(startMs), toSessionUs(endMs), output);
+    }
+
+    /**
+     * Writes session time [startUs, endUs) to output, starting at the keyframe at or before
+     * startUs, along with output's ChunkIndex.
+     */
+    public Result extract(long startUs, long endUs, File output) throws IOException {
+        if (startUs < 0 || startUs >= mDurationUs) {
+            throw new IllegalArgumentException("Clip starts outside the recording (0 - " + mDurationUs + " us)");
+        }
+        if (endUs <= startUs) throw new IllegalArgumentException("Clip ends before it starts");
+        long start = System.nanoTime();
+        int first = chunkAt(startUs);
+        Chunk firstChunk = mChunks.get(first);
+        ChunkIndex firstIndex = ChunkIndex.readOrBuild(firstChunk.file);
+        int firstSample = firstIndex.findSyncSample(startUs - firstChunk.startUs);
+        if (firstSample < 0) throw new IOException(firstChunk.file + ": no keyframes");
+        long clipStartUs = firstChunk.startUs + firstIndex.getPtsUs(firstSample);
+
+        boolean done = false;
+        FileChannel out = new FileOutputStream(output).getChannel();
+        try {
+            Mp4Writer writer = new Mp4Writer(out);
+            writer.setIndexFile(ChunkIndex.indexFileFor(output));
+            writer.setBaseTimeUs(clipStartUs);
+            int[] tracks = {-1, -1};
+            TrackFormat video = null;
+            for (int c = first; c < mChunks.size() && mChunks.get(c).startUs < endUs; c++) {
+                Chunk chunk = mChunks.get(c);
+                ChunkIndex index = (c == first) ? firstIndex : ChunkIndex.readOrBuild(chunk.file);
+                // The reader is only needed for the formats; samples are found with the index
+                Mp4Reader reader = new Mp4Reader(chunk.file);
+                int lengthSize;
+                try {
+                    lengthSize = reader.getNalLengthSize();
+                    if (c == first) {
+                        video = reader.getTrackFormat(EncodedSampleSink.TRACK_VIDEO);
+                        for (int type = 0; type < 2; type++) {
+                            TrackFormat format = reader.getTrackFormat(type);
+                            if (format != null) tracks[type] = writer.addTrack(format);
+                        }
+                        writer.start();
+                    } else {
+                        TrackFormat chunkVideo = reader.getTrackFormat(EncodedSampleSink.TRACK_VIDEO);
+                        if (video != null && chunkVideo != null && (!Arrays.equals(video.sps, chunkVideo.sps)
+                                || !Arrays.equals(video.pps, chunkVideo.pps))) {
+                            LOG.warning(chunk.file + ": parameter sets differ from " + firstChunk.file);
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+                copySamples(chunk, index, (c == first) ? firstSample : 0, endUs, lengthSize, tracks, writer);
+            }
+            writer.finish();
+            done = true;
+        } finally {
+            out.close();
+            if (!done) {
+                output.delete();
+                ChunkIndex.indexFileFor(output).delete();
+            }
+        }
+        long durationUs = ChunkIndex.readDurationUs(output);
+        return new Result(output, clipStartUs, durationUs, output.length(), (System.nanoTime() - start) / 1000000);
+    }
+
+    private void copySamples(Chunk chunk, ChunkIndex index, int firstSample, long endUs, int lengthSize,
+                             int[] tracks, Mp4Writer writer) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(chunk.file, "r");
+        try {
+            FileChannel src = raf.getChannel();
+            ByteBuffer sample = null;
+            ByteBuffer annexB = null;
+            for (int n = firstSample; n < index.getSampleCount(); n++) {
+                long ptsUs = chunk.startUs + index.getPtsUs(n);
+                if (ptsUs >= endUs) break;
+                int type = index.getTrack(n);
+                if (tracks[type] < 0) continue;
+                int flags = index.isSync(n) ? Mp4Writer.FLAG_SYNC : 0;
+                int size = index.getSize(n);
+                if (type == EncodedSampleSink.TRACK_AUDIO || lengthSize == 4) {
+                    writer.writeSampleFrom(tracks[type], src, index.getOffset(n), size, ptsUs, flags);
+                    continue;
+                }
+                // Other NAL length sizes have to be rewritten; MediaMuxer always uses 4
+                if (sample == null || sample.capacity() < size) {
+                    sample = ByteBuffer.allocateDirect(size * 2);
+                    annexB = ByteBuffer.allocateDirect(size * 2 * 5 / (lengthSize + 1) + 1);
+                }
+                sample.clear().limit(size);
+                while (sample.hasRemaining()) {
+                    if (src.read(sample, index.getOffset(n) + sample.position()) < 0) {
+                        throw new IOException(chunk.file + ": truncated sample " + n);
+                    }
+                }
+                sample.flip();
+                annexB.clear();
+                AvcUtils.avccToAnnexB(sample, lengthSize, annexB);
+                annexB.flip();
+                writer.writeSampleData(tracks[type], annexB, ptsUs, flags);
+            }
+            writer.flush();     // the last run still reads from src
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * The chunk that plays at session time us.
+     */
+    private int chunkAt(long us) {
+        int low = 0;
+        int high = mChunks.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (mChunks.get(mid).startUs <= us) low = mid + 1;
+            else high = mid - 1;
+        }
+        return Math.max(high, 0);
+    }
+
+    /**
+     * Parses [[h:]m:]s[.fff] into microseconds.
+     */
+    static long parseOffsetUs(String time) {
+        String[] parts = time.split(":");
+        double seconds = 0;
+        for (String part : parts) seconds = seconds * 60 + Double.parseDouble(part);
+        return (long) (seconds * 1000000);
+    }
+
+    /**
+     * Parses h:m:s[.fff] as a local time of day on the day of dayMs, moved a day later if
+     * that puts it before notBeforeMs (a session running past midnight).
+     */
+    static long parseTimeOfDayMs(String time, long dayMs, long notBeforeMs) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(dayMs);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        long ms = calendar.getTimeInMillis() + parseOffsetUs(time) / 1000;
+        return (ms < notBeforeMs) ? ms + DAY_MS : ms;
+    }
+
+    public static void main(String[] args) {
+        boolean wall = false;
+        String from = null;
+        String to = null;
+        File out = null;
+        List<File> chunks = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-wall")) {
+                wall = true;
+            } else if (arg.equals("-from") && i + 1 < args.length) {
+                from = args[++i];
+            } else if (arg.equals("-to") && i + 1 < args.length) {
+                to = args[++i];
+            } else if (arg.equals("-out") && i + 1 < args.length) {
+                out = new File(args[++i]);
+            } else {
+                File file = new File(arg);
+                if (file.isDirectory()) chunks.addAll(Transmuxer.chunkFiles(file));
+                else chunks.add(file);
+            }
+        }
+        if (from == null || to == null || out == null || chunks.isEmpty()) {
+            System.err.println("usage: ClipExtractor [-wall] -from t -to t -out clip.mp4 dir-or-chunks...");
+            System.exit(2);
+        }
+
+        try {
+            ClipExtractor extractor = new ClipExtractor(chunks);
+            Result result;
+            if (wall) {
+                long sessionStartMs = extractor.getWallClockStartMs();
+                long startMs = parseTimeOfDayMs(from, sessionStartMs, sessionStartMs - DAY_MS / 2);
+                long endMs = parseTimeOfDayMs(to, sessionStartMs, startMs + 1);
+                result = extractor.extractWallClock(startMs, endMs, out);
+            } else {
+                result = extractor.extract(parseOffsetUs(from), parseOffsetUs(to), out);
+            }
+            SimpleDateFormat clock = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+            System.out.println(String.format(Locale.US, "%s: %.3f s from session time %.3f s (%s), %d bytes in %d ms",
+                    result.output, result.durationUs / 1000000.0, result.startUs / 1000000.0,
+                    clock.format(new Date(extractor.toWallClockMs(result.startUs))),
+                    result.bytes, result.elapsedMs));
+        } catch (IOException e) {
+            System.err.println(e);
+            System.exit(1);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * MPEG-DASH manifest (ISO live profile) for the fMP4 segments HlsSegmenter writes, so the
+ * same files serve both HLS and DASH players.
+ * <p/>
+ * Audio and video share each segment, so there is one AdaptationSet with one muxed
+ * Representation.  Segments are cut on keyframes and vary in length, so they are listed in a
+ * SegmentTimeline (millisecond timescale) addressed by $Number$.  While live the manifest is
+ * "dynamic"; finish() rewrites it as a "static" on-demand presentation.
+ */
+class DashManifest {
+    private static final int TIMESCALE = 1000;
+
+    private final File mFile;
+    private final int mWindowSegments;
+    private final String mInitUri;
+    private final String mMediaTemplate;
+    private final long mTargetDurationUs;
+    private final List<long[]> mSegments = new ArrayList<long[]>();     // number, start, duration (ms)
+    private final TrackFormat[] mFormats = new TrackFormat[2];
+    private SegmentCache mCache;
+    private String mCacheKey;
+    private boolean mWriteToDisk = true;
+    private long mAvailabilityStartMs = -1;
+    private long mMaxBitRate = 0;
+    private long mEndMs = 0;
+    private boolean mLive = true;
+    private boolean mEnded = false;
+
+    /**
+     * @param mediaTemplate segment URI with $Number$ standing for the segment number
+     * @param windowSegments segments kept while live, or 0 for all
+     */
+    DashManifest(File file, String initUri, String mediaTemplate, long targetDurationUs, int windowSegments) {
+        mFile = file;
+        mInitUri = initUri;
+        mMediaTemplate = mediaTemplate;
+        mTargetDurationUs = targetDurationUs;
+        mWindowSegments = windowSegments;
+    }
+
+    void setTrackFormat(int track, TrackFormat format) {
+        mFormats[track] = format;
+    }
+
+    /**
+     * Also keeps each version of the manifest in cache, under key.
+     */
+    void setCache(SegmentCache cache, String key) {
+        mCache = cache;
+        mCacheKey = key;
+    }
+
+    /**
+     * When false the manifest is only published to the cache.
+     */
+    void setWriteToDisk(boolean writeToDisk) {
+        mWriteToDisk = writeToDisk;
+    }
+
+    /**
+     * When not live, the manifest is only written by finish() instead of after every segment.
+     */
+    void setLive(boolean live) {
+        mLive = live;
+    }
+
+    /**
+     * @param startUs segment start relative to the first segment
+     * @param bytes size of the segment file, for the advertised bandwidth
+     */
+    void addSegment(int number, long startUs, long durationUs, long bytes) throws IOException {
+        if (mAvailabilityStartMs < 0) mAvailabilityStartMs = System.currentTimeMillis();
+        long startMs = startUs / 1000;
+        long endMs = (startUs + durationUs) / 1000;
+        mSegments.add(new long[]{number, startMs, endMs - startMs});
+        mEndMs = endMs;
+        // Segments shorter than the buffer (the last one) don't need their own burst rate
+        mMaxBitRate = Math.max(mMaxBitRate, bytes * 8 * 1000000 / Math.max(durationUs, mTargetDurationUs));
+        if (mWindowSegments > 0 && mSegments.size() > mWindowSegments) mSegments.remove(0);
+        if (mLive) write();
+    }
+
+    void finish() throws IOException {
+        mEnded = true;
+        write();
+    }
+
+    private void write() throws IOException {
+        TrackFormat video = mFormats[EncodedSampleSink.TRACK_VIDEO];
+        TrackFormat audio = mFormats[EncodedSampleSink.TRACK_AUDIO];
+        StringBuilder mpd = new StringBuilder();
+        mpd.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        mpd.append("<MPD xmlns=\"urn:mpeg:dash:schema:mpd:2011\" profiles=\"urn:mpeg:dash:profile:isoff-live:2011\"");
+        mpd.append(" minBufferTime=\"").append(duration(mTargetDurationUs / 1000)).append('"');
+        if (mEnded) {
+            mpd.append(" type=\"static\" mediaPresentationDuration=\"").append(duration(mEndMs)).append("\">\n");
+        } else {
+            SimpleDateFormat utc = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+            utc.setTimeZone(TimeZone.getTimeZone("UTC"));
+            mpd.append(" type=\"dynamic\" availabilityStartTime=\"").append(utc.format(new Date(mAvailabilityStartMs))).append('"');
+            mpd.append(" publishTime=\"").append(utc.format(new Date())).append('"');
+            mpd.append(" minimumUpdatePeriod=\"").append(duration(mTargetDurationUs / 1000)).append('"');
+            if (mWindowSegments > 0) {
+                mpd.append(" timeShiftBufferDepth=\"").append(duration(mWindowSegments * mTargetDurationUs / 1000)).append('"');
+            }
+            mpd.append(">\n");
+        }
+        mpd.append("  <Period id=\"0\" start=\"PT0S\">\n");
+        mpd.append("    <AdaptationSet id=\"0\" mimeType=\"").append(video != null ? "video/mp4" : "audio/mp4").append('"');
+        mpd.append(" segmentAlignment=\"true\" startWithSAP=\"1\">\n");
+        mpd.append("      <SegmentTemplate timescale=\"").append(TIMESCALE).append('"');
+        mpd.append(" initialization=\"").append(mInitUri).append('"');
+        mpd.append(" media=\"").append(mMediaTemplate).append('"');
+        mpd.append(" startNumber=\"").append(mSegments.isEmpty() ? 0 : mSegments.get(0)[0]).append("\">\n");
+        mpd.append("        <SegmentTimeline>\n");
+        int i = 0;
+        while (i < mSegments.size()) {
+            long[] segment = mSegments.get(i);
+            int repeat = 0;
+            while (i + repeat + 1 < mSegments.size() && mSegments.get(i + repeat + 1)[2] == segment[2]) repeat++;
+            mpd.append("          <S");
+            if (i == 0) mpd.append(" t=\"").append(segment[1]).append('"');
+            mpd.append(" d=\"").append(segment[2]).append('"');
+            if (repeat > 0) mpd.append(" r=\"").append(repeat).append('"');
+            mpd.append("/>\n");
+            i += repeat + 1;
+        }
+        mpd.append("        </SegmentTimeline>\n");
+        mpd.append("      </SegmentTemplate>\n");
+        mpd.append("      <Representation id=\"0\" bandwidth=\"").append(mMaxBitRate).append('"');
+        mpd.append(" codecs=\"");
+        if (video != null) mpd.append(video.codecs());
+        if (video != null && audio != null) mpd.append(',');
+        if (audio != null) mpd.append(audio.codecs());
+        mpd.append('"');
+        if (video != null) mpd.append(" width=\"").append(video.width).append("\" height=\"").append(video.height).append('"');
+        if (audio != null) mpd.append(" audioSamplingRate=\"").append(audio.sampleRate).append('"');
+        mpd.append("/>\n");
+        mpd.append("    </AdaptationSet>\n");
+        mpd.append("  </Period>\n");
+        mpd.append("</MPD>\n");
+        String text = mpd.toString();
+        if (mWriteToDisk) HlsPlaylist.writeAtomically(mFile, text);
+        if (mCache != null) mCache.put(mCacheKey, text.getBytes("UTF-8"));
+    }
+
+    private static String duration(long ms) {
+        return String.format(Locale.US, "PT%.3fS", ms / 1000.0);
+    }
+}
@@ -0,0 +1,25 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives a copy of every encoded sample drainEncoder hands the muxer.  Implementations are
+ * called from the encoder drain threads and must copy what they need before returning;
+ * the buffer belongs to MediaCodec and is released right after.
+ */
+public interface EncodedSampleSink {
+    int TRACK_VIDEO = 0;
+    int TRACK_AUDIO = 1;
+
+    /**
+     * Called once per track, before that track's first sample.
+     */
+    void setTrackFormat(int track, TrackFormat format);
+
+    /**
+     * @param data  the sample in data[position, limit).  Video is Annex-B.  Implementations
+     *              must leave position and limit as they found them.
+     * @param flags MediaCodec buffer flags
+     */
+    void writeSampleData(int track, ByteBuffer data, long ptsUs, int flags);
+}
@@ -0,0 +1,238 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Fragmented MP4 (ISO BMFF) segment writer for HLS and DASH: an initialization segment with
+ * the track setup (moov + mvex, no samples), then one moof + mdat per media segment.
+ * <p/>
+ * A segment's samples are held in memory until finishSegment(), because the moof in front
+ * of them needs every sample's size and duration.  Within the mdat all video comes first,
+ * then all audio, one trun per track.  Buffers are reused from segment to segment.
+ * <p/>
+ * Like Mp4Writer, video may be passed in Annex-B form and timestamps are rebased so the first
+ * sample lands at zero.  Tracks must be set up before writeInitSegment(); samples for a track
+ * that isn't in the initialization segment are dropped.
+ */
+public class FragmentedMp4Writer implements SegmentWriter {
+    // trun sample_flags
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;        // depends on nothing
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;    // depends on others, non-sync
+
+    private final TrackFormat[] mFormats = new TrackFormat[2];
+    private final Fragment[] mFragments = new Fragment[2];
+    private final BoxBuilder mBoxes = new BoxBuilder(64 * 1024);
+    private WritableByteChannel mOut;
+    private int mSequenceNumber = 0;
+    private long mBaseTimeUs = -1;
+    private long mBytesWritten = 0;
+
+    @Override
+    public void setTrackFormat(int track, TrackFormat format) {
+        mFormats[track] = format;
+    }
+
+    /**
+     * Writes ftyp + moov describing the tracks set so far.  Assigns track IDs, so call it
+     * once, before the first segment.
+     */
+    public void writeInitSegment(WritableByteChannel out) throws IOException {
+        mBoxes.reset();
+        Mp4Boxes.ftyp(mBoxes, "iso6", new String[]{"iso6", "iso5", "dash", "mp41"});
+        mBoxes.start("moov");
+        int trackId = 0;
+        for (int track = 0; track < 2; track++) {
+            if (mFormats[track] != null) mFragments[track] = new Fragment(mFormats[track], ++trackId);
+        }
+        Mp4Boxes.mvhd(mBoxes, 0, trackId + 1);
+        for (Fragment fragment : mFragments) {
+            if (fragment != null) fragment.writeTrak(mBoxes);
+        }
+        mBoxes.start("mvex");
+        for (Fragment fragment : mFragments) {
+            if (fragment == null) continue;
+            mBoxes.startFull("trex", 0, 0).putInt(fragment.trackId);
+            mBoxes.putInt(1).putInt(0).putInt(0).putInt(0);     // sample description 1, no defaults
+            mBoxes.end();
+        }
+        mBoxes.end();   // mvex
+        mBoxes.end();   // moov
+        writeFully(out, mBoxes.buffer());
+    }
+
+    @Override
+    public void startSegment(WritableByteChannel out) throws IOException {
+        if (mFragments[EncodedSampleSink.TRACK_VIDEO] == null && mFragments[EncodedSampleSink.TRACK_AUDIO] == null) {
+            throw new IllegalStateException("writeInitSegment first");
+        }
+        mOut = out;
+    }
+
+    @Override
+    public void writeSampleData(int track, ByteBuffer data, long ptsUs, int flags) throws IOException {
+        Fragment fragment = mFragments[track];
+        if (fragment == null) return;
+        if (mBaseTimeUs < 0) mBaseTimeUs = ptsUs;
+        fragment.add(data, Math.max(0, ptsUs - mBaseTimeUs), (flags & Mp4Writer.FLAG_SYNC) != 0);
+    }
+
+    /**
+     * Writes styp, moof and mdat for the samples added since startSegment.
+     */
+    @Override
+    public void finishSegment(long endPtsUs) throws IOException {
+        mBoxes.reset();
+        Mp4Boxes.styp(mBoxes, "msdh", new String[]{"msdh", "dash"});
+        int moofStart = mBoxes.position();
+        mBoxes.start("moof");
+        mBoxes.startFull("mfhd", 0, 0).putInt(++mSequenceNumber).end();
+        long endUs = Math.max(0, endPtsUs - mBaseTimeUs);
+        int[] dataOffsetPositions = new int[2];
+        for (int track = 0; track < 2; track++) {
+            Fragment fragment = mFragments[track];
+            if (fragment == null || fragment.count == 0) continue;
+            dataOffsetPositions[track] = fragment.writeTraf(mBoxes, endUs);
+        }
+        mBoxes.end();
+        int moofSize = mBoxes.position() - moofStart;
+
+        int dataOffset = moofSize + 8;
+        for (int track = 0; track < 2; track++) {
+            Fragment fragment = mFragments[track];
+            if (fragment == null || fragment.count == 0) continue;
+            mBoxes.patchInt(dataOffsetPositions[track], dataOffset);
+            dataOffset += fragment.data.position();
+        }
+        mBoxes.putInt(dataOffset - moofSize).putFourCC("mdat");
+        writeFully(mOut, mBoxes.buffer());
+        for (Fragment fragment : mFragments) {
+            if (fragment == null || fragment.count == 0) continue;
+            fragment.data.flip();
+            writeFully(mOut, fragment.data);
+            fragment.clear();
+        }
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    private void writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) mBytesWritten += out.write(buffer);
+    }
+
+    /**
+     * One track's samples for the segment being built.
+     */
+    private static class Fragment {
+        final TrackFormat format;
+        final int trackId;
+        final int timescale;
+        ByteBuffer data = ByteBuffer.allocateDirect(256 * 1024);
+        int count = 0;
+        int[] sizes = new int[256];
+        long[] times = new long[256];       // in track timescale
+        boolean[] sync = new boolean[256];
+        long lastTime = -1;
+
+        Fragment(TrackFormat format, int trackId) {
+            this.format = format;
+            this.trackId = trackId;
+            this.timescale = Mp4Boxes.timescaleFor(format);
+        }
+
+        void add(ByteBuffer sample, long ptsUs, boolean keyframe) {
+            if (count == sizes.length) grow();
+            int needed = format.isVideo() ? AvcUtils.avccSize(sample) : sample.remaining();
+            if (data.remaining() < needed) {
+                ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(data.capacity() * 2, data.position() + needed));
+                data.flip();
+                bigger.put(data);
+                data = bigger;
+            }
+            if (format.isVideo()) {
+                sizes[count] = AvcUtils.annexBToAvcc(sample, data);
+            } else {
+                int position = sample.position();
+                sizes[count] = sample.remaining();
+                data.put(sample);
+                sample.position(position);
+            }
+            long time = Mp4Boxes.usToTimescale(ptsUs, timescale);
+            if (time < lastTime) time = lastTime;
+            times[count] = lastTime = time;
+            sync[count] = keyframe || format.isAudio();
+            count++;
+        }
+
+        void clear() {
+            data.clear();
+            count = 0;
+        }
+
+        long sampleDuration(int i, long end) {
+            if (i + 1 < count) return times[i + 1] - times[i];
+            if (format.isVideo() && end > times[i]) return end - times[i];
+            if (i > 0) return times[i] - times[i - 1];
+            return format.isVideo() ? timescale / 30 : 1024;
+        }
+
+        /**
+         * Appends the traf and returns the position of its trun data_offset, to be patched
+         * once the size of the moof is known.
+         */
+        int writeTraf(BoxBuilder b, long endUs) {
+            long end = Mp4Boxes.usToTimescale(endUs, timescale);
+            b.start("traf");
+            b.startFull("tfhd", 0, 0x020000).putInt(trackId).end();     // default-base-is-moof
+            b.startFull("tfdt", 1, 0).putLong(times[0]).end();
+            b.startFull("trun", 0, 0x000701);   // data offset, duration, size, flags per sample
+            b.putInt(count);
+            int dataOffsetPosition = b.position();
+            b.putInt(0);
+            for (int i = 0; i < count; i++) {
+                b.putInt((int) sampleDuration(i, end));
+                b.putInt(sizes[i]);
+                b.putInt(sync[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+            }
+            b.end();    // trun
+            b.end();    // traf
+            return dataOffsetPosition;
+        }
+
+        void writeTrak(BoxBuilder b) {
+            b.start("trak");
+            Mp4Boxes.tkhd(b, trackId, 0, format);
+            b.start("mdia");
+            Mp4Boxes.mdhd(b, timescale, 0);
+            Mp4Boxes.hdlr(b, format);
+            b.start("minf");
+            Mp4Boxes.mediaHeader(b, format);
+            Mp4Boxes.dinf(b);
+            b.start("stbl");
+            Mp4Boxes.stsd(b, format);
+            b.startFull("stts", 0, 0).putInt(0).end();
+            b.startFull("stsc", 0, 0).putInt(0).end();
+            b.startFull("stsz", 0, 0).putInt(0).putInt(0).end();
+            b.startFull("stco", 0, 0).putInt(0).end();
+            b.end();    // stbl
+            b.end();    // minf
+            b.end();    // mdia
+            b.end();    // trak
+        }
+
+        private void grow() {
+            int[] s = new int[sizes.length * 2];
+            System.arraycopy(sizes, 0, s, 0, count);
+            sizes = s;
+            long[] t = new long[times.length * 2];
+            System.arraycopy(times, 0, t, 0, count);
+            times = t;
+            boolean[] k = new boolean[sync.length * 2];
+            System.arraycopy(sync, 0, k, 0, count);
+            sync = k;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package net.openwatch.hwencoderexperiments;
+
+/**
+ * Time source for FrameScheduler, in the timebase of camera frame timestamps.  Simulations
+ * supply their own to drive the scheduler without a camera.
+ */
+public interface FrameClock {
+    /**
+     * SurfaceTexture timestamps come from CLOCK_MONOTONIC, which is what System.nanoTime()
+     * reads on Android.
+     */
+    FrameClock SYSTEM = new FrameClock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    long nanoTime();
+}
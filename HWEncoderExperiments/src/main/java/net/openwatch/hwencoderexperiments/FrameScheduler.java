@@ -0,0 +1,155 @@
+package net.openwatch.hwencoderexperiments;
+
+/**
+ * Decides which camera frames get encoded, so the render loop survives bursts, stalls and a
+ * camera running faster than the output frame rate instead of throwing.
+ * <p/>
+ * The camera thread reports arrivals with onFrameAvailable().  The render thread waits for
+ * them with awaitFrame(), latches the newest frame and asks decide() what to do with it:
+ * <ul>
+ * <li>Arrivals that pile up while the render thread is busy are coalesced: SurfaceTexture
+ * only hands over the latest buffer, so the rest are counted and forgotten.</li>
+ * <li>Frames that come sooner than the target frame rate allows are skipped (PACED), so the
+ * output rate doesn't depend on which fps range the camera picked.</li>
+ * <li>Frames older than maxLatency when latched are dropped (LATE): the encoder has fallen
+ * behind, and catching up beats encoding a backlog.</li>
+ * </ul>
+ * Pacing and lateness only use frame timestamps and the FrameClock, so the policy can be
+ * driven by a simulated clock.  Waiting in awaitFrame() is real time.
+ */
+public class FrameScheduler {
+    public static final int ENCODE = 0;
+    public static final int PACED = 1;
+    public static final int LATE = 2;
+
+    // Latencies beyond this mean the timestamps aren't on the clock's timebase after all
+    private static final long IMPLAUSIBLE_LATENCY_NS = 1000000000L;
+
+    private final FrameClock mClock;
+    private long mIntervalNs;
+    private final long mMaxLatencyNs;
+    private final Object mLock = new Object();
+
+    // Guarded by mLock
+    private int mPending = 0;
+    private long mArrived = 0;
+    private long mCoalesced = 0;
+    private long mTimeouts = 0;
+
+    // Written by the render thread only
+    private long mNextDueNs = Long.MIN_VALUE;
+    private long mLastTimestampNs = Long.MIN_VALUE;
+    private volatile long mEncoded = 0;
+    private volatile long mPaced = 0;
+    private volatile long mLate = 0;
+
+    public static class Stats {
+        public final long arrived;
+        public final long coalesced;
+        public final long encoded;
+        public final long paced;
+        public final long late;
+        public final long timeouts;
+
+        Stats(long arrived, long coalesced, long encoded, long paced, long late, long timeouts) {
+            this.arrived = arrived;
+            this.coalesced = coalesced;
+            this.encoded = encoded;
+            this.paced = paced;
+            this.late = late;
+            this.timeouts = timeouts;
+        }
+
+        @Override
+        public String toString() {
+            return arrived + " frames arrived: " + encoded + " encoded, " + coalesced + " coalesced, " + paced
+                    + " paced out, " + late + " dropped late; " + timeouts + " waits timed out";
+        }
+    }
+
+    /**
+     * @param targetFps highest output frame rate
+     * @param maxLatencyNs age at which a latched frame is dropped instead of encoded, or 0 to
+     *                     encode frames however late they are
+     */
+    public FrameScheduler(int targetFps, long maxLatencyNs, FrameClock clock) {
+        mIntervalNs = 1000000000L / targetFps;
+        mMaxLatencyNs = maxLatencyNs;
+        mClock = clock;
+    }
+
+    /**
+     * Render thread: changes the output frame rate from the next frame on.
+     */
+    public void setTargetFps(int targetFps) {
+        mIntervalNs = 1000000000L / targetFps;
+    }
+
+    /**
+     * Camera thread: a frame is ready to be latched.
+     */
+    public void onFrameAvailable() {
+        synchronized (mLock) {
+            mArrived++;
+            if (mPending++ > 0) mCoalesced++;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Render thread: waits up to timeoutMs for a frame.  Returns true if there is one to latch,
+     * false on timeout, which is counted but otherwise harmless.
+     */
+    public boolean awaitFrame(long timeoutMs) throws InterruptedException {
+        synchronized (mLock) {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (mPending == 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    mTimeouts++;
+                    return false;
+                }
+                mLock.wait(remaining);
+            }
+            mPending = 0;
+            return true;
+        }
+    }
+
+    /**
+     * Render thread: what to do with the frame just latched.
+     *
+     * @return ENCODE, PACED or LATE
+     */
+    public int decide(long timestampNs) {
+        if (timestampNs <= 0) {
+            // No timestamp to pace by
+            mEncoded++;
+            return ENCODE;
+        }
+        long latency = mClock.nanoTime() - timestampNs;
+        if (mMaxLatencyNs > 0 && latency > mMaxLatencyNs && latency < IMPLAUSIBLE_LATENCY_NS) {
+            mLate++;
+            return LATE;
+        }
+        // Start over on the first frame, after a gap, or if the camera's clock jumped back
+        if (mNextDueNs == Long.MIN_VALUE || timestampNs - mNextDueNs > mIntervalNs || timestampNs < mLastTimestampNs) {
+            mNextDueNs = timestampNs;
+        }
+        mLastTimestampNs = timestampNs;
+        // A quarter interval of slack absorbs jitter without letting a 60 fps camera through
+        if (timestampNs < mNextDueNs - mIntervalNs / 4) {
+            mPaced++;
+            return PACED;
+        }
+        mNextDueNs += mIntervalNs;
+        mEncoded++;
+        return ENCODE;
+    }
+
+    public Stats getStats() {
+        synchronized (mLock) {
+            return new Stats(mArrived, mCoalesced, mEncoded, mPaced, mLate, mTimeouts);
+        }
+    }
+}
@@ -9,6 +9,7 @@ public class HWRecorderActivity extends Activity {
     private static final String TAG = "CameraToMpegTest";
     boolean recording = false;
     ChunkedHWRecorder chunkedHWRecorder;
+    AudioChunkRecorder audioChunkRecorder;
 
     //GLSurfaceView glSurfaceView;
     //GlSurfaceViewRenderer glSurfaceViewRenderer = new GlSurfaceViewRenderer();
@@ -16,6 +17,14 @@ public class HWRecorderActivity extends Activity {
     protected void onCreate (Bundle savedInstanceState){
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_hwrecorder);
+        if (getIntent().getBooleanExtra("renderBenchmark", false)) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    RenderBenchmark.run(640, 480, 600);
+                }
+            }, "render benchmark").start();
+        }
         //glSurfaceView = (GLSurfaceView) findViewById(R.id.glSurfaceView);
         //glSurfaceView.setRenderer(glSurfaceViewRenderer);
     }
@@ -35,14 +44,24 @@ public class HWRecorderActivity extends Activity {
     public void onRunTestButtonClicked(View v){
         if(!recording){
             try {
-                startChunkedHWRecorder();
+                if (getIntent().getBooleanExtra("audioOnly", false)) {
+                    audioChunkRecorder = new AudioChunkRecorder();
+                    audioChunkRecorder.start(FileUtils.getRootStorageDirectory(getApplicationContext(), FileUtils.OUTPUT_DIR));
+                } else {
+                    startChunkedHWRecorder();
+                }
                 recording = true;
                 ((Button) v).setText("Stop Recording");
             } catch (Throwable throwable) {
                 throwable.printStackTrace();
             }
         }else{
-            chunkedHWRecorder.stopRecording();
+            if (audioChunkRecorder != null) {
+                audioChunkRecorder.stop();
+                audioChunkRecorder = null;
+            } else {
+                chunkedHWRecorder.stopRecording();
+            }
             recording = false;
             ((Button) v).setText("Start Recording");
         }
@@ -0,0 +1,82 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+
+/**
+ * Content keys for an encrypted HLS stream, rotated every N segments.
+ * <p/>
+ * Each key is written as a 16 byte file ("key-<n>.key") into the output directory, so it can
+ * be served (with whatever access control the deployment needs) from the URI the playlist
+ * points at.  Every segment gets a fresh random IV, given explicitly in its EXT-X-KEY tag
+ * rather than derived from the media sequence number, so segments sharing a key (and all
+ * starting with the same PAT / PMT) don't share ciphertext.
+ */
+class HlsKeys {
+    private final File mDir;
+    private final int mRotationSegments;
+    private final String mUriPrefix;
+    private final SecureRandom mRandom = new SecureRandom();
+
+    private int mKeyIndex = -1;
+    private byte[] mKey;
+    private byte[] mIv;
+    private String mUri;
+
+    /**
+     * @param rotationSegments segments encrypted with each key, or 0 to never rotate
+     * @param uriPrefix prepended to key file names in the playlist, e.g. an https:// key
+     *                  server.  Empty for keys next to the playlist.
+     */
+    HlsKeys(File dir, int rotationSegments, String uriPrefix) {
+        mDir = dir;
+        mRotationSegments = rotationSegments;
+        mUriPrefix = (uriPrefix == null) ? "" : uriPrefix;
+    }
+
+    /**
+     * Picks the IV for segmentIndex and, if it starts a new key period, generates and writes
+     * out a new key.  Returns true if the key changed.
+     */
+    boolean advance(int segmentIndex) throws IOException {
+        mIv = new byte[16];
+        mRandom.nextBytes(mIv);
+        boolean rotate = mKey == null || (mRotationSegments > 0 && segmentIndex % mRotationSegments == 0);
+        if (!rotate) return false;
+        mKeyIndex++;
+        mKey = new byte[16];
+        mRandom.nextBytes(mKey);
+        String name = "key-" + mKeyIndex + ".key";
+        FileOutputStream out = new FileOutputStream(new File(mDir, name));
+        try {
+            out.write(mKey);
+        } finally {
+            out.close();
+        }
+        mUri = mUriPrefix + name;
+        return true;
+    }
+
+    byte[] key() {
+        return mKey;
+    }
+
+    byte[] iv() {
+        return mIv;
+    }
+
+    /**
+     * The EXT-X-KEY tag describing the current key for the given METHOD.
+     */
+    String keyTag(String method) {
+        StringBuilder tag = new StringBuilder("#EXT-X-KEY:METHOD=").append(method);
+        tag.append(",URI=\"").append(mUri).append("\",IV=0x");
+        for (byte b : mIv) {
+            tag.append(Character.forDigit((b >> 4) & 0xF, 16));
+            tag.append(Character.forDigit(b & 0xF, 16));
+        }
+        return tag.toString();
+    }
+}
@@ -0,0 +1,116 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * HLS master playlist listing renditions of one recording as variants.
+ * <p/>
+ * Each rendition's segmenter reports its finished segments here.  The playlist is written
+ * once every variant has a segment, then again whenever a variant's peak segment bitrate
+ * goes up, so BANDWIDTH always covers what has been seen.  AVERAGE-BANDWIDTH and
+ * FRAME-RATE are measured over the whole recording and updated along with it.
+ * <p/>
+ * Segmenters report from their own threads; every method locks this playlist and nothing
+ * else.
+ */
+class HlsMasterPlaylist {
+    static final String NAME = "master.m3u8";
+
+    private static class Variant {
+        final String uri;
+        final int width;
+        final int height;
+        long bytes;
+        long durationUs;
+        long frames;
+        long peakBitRate;
+        int segments;
+
+        Variant(String uri, int width, int height) {
+            this.uri = uri;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private final File mFile;
+    private final List<Variant> mVariants = new ArrayList<Variant>();
+    private SegmentCache mCache;
+    private String mCacheKey;
+    private boolean mWriteToDisk = true;
+
+    HlsMasterPlaylist(File file) {
+        mFile = file;
+    }
+
+    /**
+     * @param uri the variant's media playlist, relative to this one
+     * @return the variant's index, for segmentFinished
+     */
+    synchronized int addVariant(String uri, int width, int height) {
+        mVariants.add(new Variant(uri, width, height));
+        return mVariants.size() - 1;
+    }
+
+    /**
+     * Also keeps each version of the playlist in cache, under key.
+     */
+    synchronized void setCache(SegmentCache cache, String key) {
+        mCache = cache;
+        mCacheKey = key;
+    }
+
+    /**
+     * When false the playlist is only published to the cache.
+     */
+    synchronized void setWriteToDisk(boolean writeToDisk) {
+        mWriteToDisk = writeToDisk;
+    }
+
+    synchronized void segmentFinished(int variant, long bytes, long durationUs, int frames) throws IOException {
+        if (durationUs <= 0) return;
+        Variant v = mVariants.get(variant);
+        boolean first = v.segments == 0;
+        v.segments++;
+        v.bytes += bytes;
+        v.durationUs += durationUs;
+        v.frames += frames;
+        long bitRate = bytes * 8 * 1000000L / durationUs;
+        boolean peak = bitRate > v.peakBitRate;
+        if (peak) v.peakBitRate = bitRate;
+        if ((first || peak) && complete()) write();
+    }
+
+    /**
+     * Writes the final numbers.
+     */
+    synchronized void finish() throws IOException {
+        if (complete()) write();
+    }
+
+    private boolean complete() {
+        for (Variant v : mVariants) {
+            if (v.segments == 0) return false;
+        }
+        return !mVariants.isEmpty();
+    }
+
+    private void write() throws IOException {
+        StringBuilder m3u8 = new StringBuilder();
+        m3u8.append("#EXTM3U\n");
+        for (Variant v : mVariants) {
+            m3u8.append("#EXT-X-STREAM-INF:BANDWIDTH=").append(v.peakBitRate)
+                    .append(",AVERAGE-BANDWIDTH=").append(v.bytes * 8 * 1000000L / v.durationUs);
+            if (v.width > 0) m3u8.append(",RESOLUTION=").append(v.width).append('x').append(v.height);
+            if (v.frames > 0) m3u8.append(String.format(Locale.US, ",FRAME-RATE=%.3f", v.frames * 1000000.0 / v.durationUs));
+            m3u8.append('\n').append(v.uri).append('\n');
+        }
+        String text = m3u8.toString();
+        if (mWriteToDisk) HlsPlaylist.writeAtomically(mFile, text);
+        if (mCache != null) mCache.put(mCacheKey, text.getBytes("UTF-8"));
+    }
+}
@@ -0,0 +1,180 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * HLS media playlist, rewritten (to a temporary file, then renamed over the old one) each
+ * time a segment is added so readers never see a partial playlist.
+ * <p/>
+ * Segments carry the EXT-X-KEY tag in force when they were written; the tag is repeated
+ * wherever it changes and at the top of a sliding window.  fMP4 streams name their
+ * initialization segment with setMap(); it is listed ahead of any key so it stays in the clear.
+ * A segment after an interruption is preceded by EXT-X-DISCONTINUITY, and the ones that
+ * slide out of the window are counted in EXT-X-DISCONTINUITY-SEQUENCE.  An archive playlist
+ * keeps every segment on disk while the cached copy slides.
+ */
+class HlsPlaylist {
+    private static class Segment {
+        final String uri;
+        final long durationUs;
+        final String keyTag;
+        final boolean discontinuity;
+
+        Segment(String uri, long durationUs, String keyTag, boolean discontinuity) {
+            this.uri = uri;
+            this.durationUs = durationUs;
+            this.keyTag = keyTag;
+            this.discontinuity = discontinuity;
+        }
+    }
+
+    private final File mFile;
+    private int mWindowSegments;
+    private final List<Segment> mSegments = new ArrayList<Segment>();
+    private String mMapUri;
+    private SegmentCache mCache;
+    private String mCacheKey;
+    private boolean mWriteToDisk = true;
+    private boolean mLive = true;
+    private boolean mArchive = false;
+    private int mDroppedSegments = 0;
+    private int mDroppedDiscontinuities = 0;
+    private long mMaxDurationUs = 0;
+    private boolean mEnded = false;
+
+    /**
+     * @param windowSegments segments kept in the playlist for live sliding-window playback,
+     *                       or 0 to keep them all (EVENT playlist)
+     */
+    HlsPlaylist(File file, int windowSegments) {
+        mFile = file;
+        mWindowSegments = windowSegments;
+    }
+
+    /**
+     * Changes the sliding window from the next write; 0 lists every segment.
+     */
+    void setWindowSegments(int windowSegments) {
+        mWindowSegments = windowSegments;
+    }
+
+    /**
+     * Announces the fMP4 initialization segment (EXT-X-MAP).
+     */
+    void setMap(String uri) {
+        mMapUri = uri;
+    }
+
+    /**
+     * Also keeps each version of the playlist in cache, under key.
+     */
+    void setCache(SegmentCache cache, String key) {
+        mCache = cache;
+        mCacheKey = key;
+    }
+
+    /**
+     * When false the playlist is only published to the cache.
+     */
+    void setWriteToDisk(boolean writeToDisk) {
+        mWriteToDisk = writeToDisk;
+    }
+
+    /**
+     * Lists every segment in the version written to disk, whatever the window; the cached
+     * version still slides.
+     */
+    void setArchive(boolean archive) {
+        mArchive = archive;
+    }
+
+    /**
+     * When not live, the playlist is only written by finish() instead of after every segment.
+     */
+    void setLive(boolean live) {
+        mLive = live;
+    }
+
+    /**
+     * @param keyTag EXT-X-KEY line for the segment, or null if it is not encrypted
+     */
+    void addSegment(String uri, long durationUs, String keyTag) throws IOException {
+        addSegment(uri, durationUs, keyTag, false);
+    }
+
+    /**
+     * @param discontinuity whether the segment follows an interruption of the stream
+     */
+    void addSegment(String uri, long durationUs, String keyTag, boolean discontinuity) throws IOException {
+        mSegments.add(new Segment(uri, durationUs, keyTag, discontinuity));
+        mMaxDurationUs = Math.max(mMaxDurationUs, durationUs);
+        if (!mArchive && mWindowSegments > 0 && mSegments.size() > mWindowSegments) {
+            if (mSegments.remove(0).discontinuity) mDroppedDiscontinuities++;
+            mDroppedSegments++;
+        }
+        if (mLive) write();
+    }
+
+    void finish() throws IOException {
+        mEnded = true;
+        write();
+    }
+
+    private void write() throws IOException {
+        String text = render(mWindowSegments);
+        if (mWriteToDisk) writeAtomically(mFile, mArchive ? render(0) : text);
+        if (mCache != null) mCache.put(mCacheKey, text.getBytes("UTF-8"));
+    }
+
+    /**
+     * @param windowSegments the number of most recent segments to list, or 0 for all of them
+     */
+    private String render(int windowSegments) {
+        int first = (windowSegments > 0) ? Math.max(0, mSegments.size() - windowSegments) : 0;
+        int mediaSequence = mDroppedSegments + first;
+        int discontinuitySequence = mDroppedDiscontinuities;
+        for (int i = 0; i < first; i++) if (mSegments.get(i).discontinuity) discontinuitySequence++;
+        StringBuilder m3u8 = new StringBuilder();
+        m3u8.append("#EXTM3U\n");
+        m3u8.append("#EXT-X-VERSION:").append((mMapUri != null) ? 7 : 3).append('\n');
+        m3u8.append("#EXT-X-TARGETDURATION:").append((mMaxDurationUs + 999999) / 1000000).append('\n');
+        m3u8.append("#EXT-X-MEDIA-SEQUENCE:").append(mediaSequence).append('\n');
+        if (discontinuitySequence > 0) m3u8.append("#EXT-X-DISCONTINUITY-SEQUENCE:").append(discontinuitySequence).append('\n');
+        if (windowSegments == 0) m3u8.append("#EXT-X-PLAYLIST-TYPE:").append(mEnded ? "VOD" : "EVENT").append('\n');
+        if (mMapUri != null) m3u8.append("#EXT-X-MAP:URI=\"").append(mMapUri).append("\"\n");
+        String keyTag = null;
+        for (Segment segment : mSegments.subList(first, mSegments.size())) {
+            if (segment.keyTag != null && !segment.keyTag.equals(keyTag)) {
+                m3u8.append(segment.keyTag).append('\n');
+            } else if (segment.keyTag == null && keyTag != null) {
+                m3u8.append("#EXT-X-KEY:METHOD=NONE\n");
+            }
+            keyTag = segment.keyTag;
+            if (segment.discontinuity) m3u8.append("#EXT-X-DISCONTINUITY\n");
+            m3u8.append(String.format(Locale.US, "#EXTINF:%.3f,\n", segment.durationUs / 1000000.0));
+            m3u8.append(segment.uri).append('\n');
+        }
+        if (mEnded) m3u8.append("#EXT-X-ENDLIST\n");
+        return m3u8.toString();
+    }
+
+    /**
+     * Replaces file with text via a temporary file, so readers see the old or the new
+     * version but never a partial one.
+     */
+    static void writeAtomically(File file, String text) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(text.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) throw new IOException("Couldn't replace " + file);
+    }
+}
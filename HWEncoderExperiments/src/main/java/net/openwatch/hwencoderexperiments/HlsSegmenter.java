@@ -0,0 +1,469 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes the live encoder output as an HLS stream: segments cut on the first keyframe after
+ * each target duration, plus an index.m3u8 updated as segments complete.  Samples are put
+ * in PTS order first (the two drain threads deliver them in bursts), so each audio frame
+ * lands in the segment its timestamp falls in, whichever thread got there first.  Segments are
+ * MPEG-TS (FORMAT_TS) or fragmented MP4 (FORMAT_FMP4); fMP4 output also gets a DASH
+ * manifest.mpd over the same files when it isn't encrypted.
+ * <p/>
+ * The same class packages existing recordings offline (see Transmuxer): with setLive(false)
+ * the playlists are written once, by finish().
+ * <p/>
+ * With setDiskless() segments never touch storage on the way out: they are assembled in
+ * memory and published to a SegmentCache, optionally spilled to disk in the background.
+ * <p/>
+ * Encryption happens as the segment is written, never as a second pass over finished files:
+ * <ul>
+ * <li>ENCRYPTION_AES_128 runs the transport stream through an AesCbcChannel on its way to
+ * disk (whole-segment AES-128-CBC, METHOD=AES-128).</li>
+ * <li>ENCRYPTION_SAMPLE_AES encrypts the H.264 slices and AAC frames with SampleAes before
+ * packetization (METHOD=SAMPLE-AES), leaving the container readable.</li>
+ * </ul>
+ * Keys rotate every keyRotationSegments segments; each key and its IV are announced with an
+ * EXT-X-KEY tag in the playlist.
+ * <p/>
+ * MPEG-TS segments written to disk in the clear or with SAMPLE-AES get a ChunkIndex sidecar,
+ * which SegmentServer uses for I-frame playlists and time-based seeks.
+ */
+public class HlsSegmenter implements EncodedSampleSink {
+    private static final Logger LOG = Logger.getLogger("HlsSegmenter");
+
+    public static final int ENCRYPTION_NONE = 0;
+    public static final int ENCRYPTION_AES_128 = 1;
+    public static final int ENCRYPTION_SAMPLE_AES = 2;
+
+    public static final int FORMAT_TS = 0;
+    public static final int FORMAT_FMP4 = 1;
+
+    public static final String PLAYLIST_NAME = "index.m3u8";
+    public static final String DASH_MANIFEST_NAME = "manifest.mpd";
+    public static final String INIT_SEGMENT_NAME = "init.mp4";
+
+    private static final long MAX_INTERLEAVE_US = 500000;
+    private static final int INTERLEAVER_SLOTS = 256;
+
+    private final File mDir;
+    private final long mTargetDurationUs;
+    private final int mFormat;
+    private final int mEncryption;
+    private final HlsPlaylist mPlaylist;
+    private final DashManifest mDash;
+    private final HlsKeys mKeys;
+    private final SegmentWriter mWriter;
+    private final AesCbcChannel mAes;
+    private final SampleAes mSampleAes;
+    private ByteBuffer mEncrypted = ByteBuffer.allocate(256 * 1024);
+    private final SampleInterleaver mInterleaver;
+
+    private SegmentCache mCache;
+    private String mCacheKeyPrefix;
+
+    private MemoryChannel mMemory;      // segments are assembled here when diskless
+    private ExecutorService mSpill;
+
+    private WritableByteChannel mSegment;
+    private String mSegmentName;
+    private String mSegmentKeyTag;
+    private int mSegmentIndex = -1;
+    private long mSegmentStartUs;
+    private boolean mSegmentDiscontinuity = false;
+    private long mDiscontinuityUs = -1;
+    private long mFirstSegmentStartUs;
+    private long mLastVideoPtsUs = -1;
+    private long mFrameDurationUs = 0;
+    private int mSegmentKeyframes;
+    private int mSegmentFrames;
+    private ChunkIndex.Builder mSegmentSamples;    // null unless the segment is being indexed
+    private long mSegmentBaseBytes;
+    private SegmentEventDispatcher mEvents;
+    private HlsMasterPlaylist mMaster;
+    private int mMasterVariant;
+    private Exception mError;
+
+    public HlsSegmenter(File dir, int targetDurationSec) {
+        this(dir, targetDurationSec, FORMAT_TS, ENCRYPTION_NONE, 0, null, 0);
+    }
+
+    public HlsSegmenter(File dir, int targetDurationSec, int encryption, int keyRotationSegments,
+                        String keyUriPrefix, int windowSegments) {
+        this(dir, targetDurationSec, FORMAT_TS, encryption, keyRotationSegments, keyUriPrefix, windowSegments);
+    }
+
+    /**
+     * @param format FORMAT_TS or FORMAT_FMP4
+     * @param encryption ENCRYPTION_NONE, ENCRYPTION_AES_128 or ENCRYPTION_SAMPLE_AES (TS only)
+     * @param keyRotationSegments segments per key, or 0 for a single key
+     * @param keyUriPrefix prefix for key URIs in the playlist, or null for keys served next
+     *                     to the playlist
+     * @param windowSegments segments kept in the playlist (live sliding window), or 0 for all
+     */
+    public HlsSegmenter(File dir, int targetDurationSec, int format, int encryption, int keyRotationSegments,
+                        String keyUriPrefix, int windowSegments) {
+        if (format == FORMAT_FMP4 && encryption == ENCRYPTION_SAMPLE_AES) {
+            throw new IllegalArgumentException("SAMPLE-AES is only supported for MPEG-TS segments");
+        }
+        mDir = dir;
+        mDir.mkdirs();
+        mTargetDurationUs = targetDurationSec * 1000000L;
+        mFormat = format;
+        mEncryption = encryption;
+        mPlaylist = new HlsPlaylist(new File(dir, PLAYLIST_NAME), windowSegments);
+        if (format == FORMAT_FMP4) {
+            mWriter = new FragmentedMp4Writer();
+            mPlaylist.setMap(INIT_SEGMENT_NAME);
+            mDash = (encryption == ENCRYPTION_NONE) ? new DashManifest(new File(dir, DASH_MANIFEST_NAME),
+                    INIT_SEGMENT_NAME, "segment-$Number$.m4s", mTargetDurationUs, windowSegments) : null;
+        } else {
+            TsWriter ts = new TsWriter(null);
+            ts.setSampleAes(encryption == ENCRYPTION_SAMPLE_AES);
+            mWriter = ts;
+            mDash = null;
+        }
+        mKeys = (encryption == ENCRYPTION_NONE) ? null : new HlsKeys(dir, keyRotationSegments, keyUriPrefix);
+        mInterleaver = new SampleInterleaver(new EncodedSampleSink() {
+            @Override
+            public void setTrackFormat(int track, TrackFormat format) {
+                // Formats go straight to the writer
+            }
+
+            @Override
+            public void writeSampleData(int track, ByteBuffer data, long ptsUs, int flags) {
+                writeOrdered(track, data, ptsUs, flags);
+            }
+        }, MAX_INTERLEAVE_US, INTERLEAVER_SLOTS);
+        try {
+            mAes = (encryption == ENCRYPTION_AES_128) ? new AesCbcChannel() : null;
+            mSampleAes = (encryption == ENCRYPTION_SAMPLE_AES) ? new SampleAes() : null;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES unavailable", e);
+        }
+    }
+
+    /**
+     * Live (the default) rewrites the playlists after every segment so players can follow
+     * along.  Offline packaging turns this off and gets them written once by finish().
+     */
+    public synchronized void setLive(boolean live) {
+        mPlaylist.setLive(live);
+        if (mDash != null) mDash.setLive(live);
+    }
+
+    /**
+     * Changes how many segments the media playlist lists; 0 lists them all.  For
+     * diskless output, where older segments are only in the cache until it evicts them.  An
+     * archived stream's playlist on disk lists every segment regardless.
+     */
+    public synchronized void setWindowSegments(int windowSegments) {
+        mPlaylist.setWindowSegments(windowSegments);
+    }
+
+    /**
+     * Puts finished segments, the init segment and every playlist version in cache as they
+     * are written, so SegmentServer can answer for them from memory.  Keys are never cached.
+     *
+     * @param keyPrefix prepended to file names to form cache keys: this directory's path
+     *                  relative to the server root, with a trailing slash
+     */
+    public synchronized void setCache(SegmentCache cache, String keyPrefix) {
+        mCache = cache;
+        mCacheKeyPrefix = keyPrefix;
+        mPlaylist.setCache(cache, keyPrefix + PLAYLIST_NAME);
+        if (mDash != null) mDash.setCache(cache, keyPrefix + DASH_MANIFEST_NAME);
+    }
+
+    /**
+     * Assembles segments in memory and publishes them straight to the cache given to
+     * setCache(), so the live path does no storage I/O at all; playlists are only kept in the
+     * cache too.  The cache budget must cover the playlist window, or listed segments can be
+     * evicted before players fetch them.  Must be called before the first sample.
+     *
+     * @param archive also write segments to disk, on a background thread off the live path,
+     *                and the playlists when finished
+     */
+    public synchronized void setDiskless(boolean archive) {
+        if (mCache == null) throw new IllegalStateException("Diskless output needs a cache to publish to");
+        mMemory = new MemoryChannel(1024 * 1024);
+        mSpill = archive ? Executors.newSingleThreadExecutor() : null;
+        mPlaylist.setWriteToDisk(false);
+        mPlaylist.setArchive(archive);
+        if (mDash != null) mDash.setWriteToDisk(false);
+    }
+
+    /**
+     * Reports each finished segment to master as its variant-th variant.
+     */
+    synchronized void setMasterPlaylist(HlsMasterPlaylist master, int variant) {
+        mMaster = master;
+        mMasterVariant = variant;
+    }
+
+    /**
+     * Publishes a SegmentEvent when each segment is started and finished.
+     */
+    public synchronized void setEventDispatcher(SegmentEventDispatcher events) {
+        mEvents = events;
+    }
+
+    @Override
+    public synchronized void setTrackFormat(int track, TrackFormat format) {
+        mWriter.setTrackFormat(track, format);
+        if (mDash != null) mDash.setTrackFormat(track, format);
+    }
+
+    /**
+     * Called on the drain threads.  Segments start on a video keyframe; anything before the
+     * first one is skipped.
+     */
+    @Override
+    public synchronized void writeSampleData(int track, ByteBuffer data, long ptsUs, int flags) {
+        if (mError != null) return;
+        mInterleaver.writeSampleData(track, data, ptsUs, flags);
+    }
+
+    /**
+     * The stream is interrupted before ptsUs, e.g. while an encoder was rebuilt: the first
+     * keyframe at or after it starts a new segment marked EXT-X-DISCONTINUITY.
+     */
+    public synchronized void markDiscontinuity(long ptsUs) {
+        mDiscontinuityUs = ptsUs;
+    }
+
+    /**
+     * From the interleaver, in PTS order.
+     */
+    private void writeOrdered(int track, ByteBuffer data, long ptsUs, int flags) {
+        if (mError != null) return;
+        boolean keyframe = track == TRACK_VIDEO && (flags & Mp4Writer.FLAG_SYNC) != 0;
+        try {
+            boolean discontinuity = keyframe && mDiscontinuityUs >= 0 && ptsUs >= mDiscontinuityUs;
+            if (keyframe && (mSegment == null || ptsUs - mSegmentStartUs >= mTargetDurationUs || discontinuity)) {
+                startSegment(ptsUs);
+                mSegmentDiscontinuity = discontinuity && mSegmentIndex > 0;
+                if (discontinuity) mDiscontinuityUs = -1;
+            }
+            if (mSegment == null) return;
+            if (keyframe) mSegmentKeyframes++;
+            if (track == TRACK_VIDEO) {
+                mSegmentFrames++;
+                if (mLastVideoPtsUs >= 0 && ptsUs > mLastVideoPtsUs) mFrameDurationUs = ptsUs - mLastVideoPtsUs;
+                mLastVideoPtsUs = ptsUs;
+            }
+            if (mSegmentSamples == null) {
+                mWriter.writeSampleData(track, encrypt(track, data), ptsUs, flags);
+            } else {
+                // A keyframe's bytes include the PAT/PMT written ahead of it
+                TsWriter ts = (TsWriter) mWriter;
+                long offset = ts.getBytesWritten() - mSegmentBaseBytes;
+                mWriter.writeSampleData(track, encrypt(track, data), ptsUs, flags);
+                mSegmentSamples.add(track, offset, (int) (ts.getBytesWritten() - mSegmentBaseBytes - offset), ptsUs, keyframe);
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (GeneralSecurityException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Closes the last segment and ends the playlist.
+     */
+    public synchronized void finish() {
+        if (mError != null) return;
+        mInterleaver.flush();
+        if (mError != null) return;
+        try {
+            if (mSegment != null) finishSegment(mLastVideoPtsUs + mFrameDurationUs);
+            if (mSpill != null) {
+                // The archive gets the final playlists once every segment is on disk
+                mSpill.shutdown();
+                while (!mSpill.awaitTermination(1, TimeUnit.SECONDS)) LOG.info("Waiting for segments to spill");
+                mPlaylist.setWriteToDisk(true);
+                if (mDash != null) mDash.setWriteToDisk(true);
+            }
+            mPlaylist.finish();
+            if (mDash != null) mDash.finish();
+        } catch (IOException e) {
+            fail(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(e);
+        }
+    }
+
+    public File getDir() {
+        return mDir;
+    }
+
+    public synchronized int getSegmentCount() {
+        return mSegmentIndex + 1;
+    }
+
+    /**
+     * The exception that disabled output, or null if all is well.
+     */
+    public synchronized Exception getError() {
+        return mError;
+    }
+
+    private ByteBuffer encrypt(int track, ByteBuffer data) throws GeneralSecurityException {
+        if (mSampleAes == null) return data;
+        int needed = (track == TRACK_VIDEO) ? SampleAes.maxVideoSize(data.remaining()) : data.remaining();
+        if (mEncrypted.capacity() < needed) mEncrypted = ByteBuffer.allocate(needed * 2);
+        mEncrypted.clear();
+        if (track == TRACK_VIDEO) {
+            mSampleAes.encryptVideo(data, mEncrypted);
+        } else {
+            mSampleAes.encryptAudio(data, mEncrypted);
+        }
+        mEncrypted.flip();
+        return mEncrypted;
+    }
+
+    private void startSegment(long ptsUs) throws IOException, GeneralSecurityException {
+        if (mSegment != null) finishSegment(ptsUs);
+        mSegmentIndex++;
+        mSegmentStartUs = ptsUs;
+        mSegmentKeyframes = 0;
+        mSegmentFrames = 0;
+        if (mSegmentIndex == 0) {
+            mFirstSegmentStartUs = ptsUs;
+            if (mFormat == FORMAT_FMP4) writeInitSegment();
+        }
+        mSegmentName = "segment-" + mSegmentIndex + ((mFormat == FORMAT_FMP4) ? ".m4s" : ".ts");
+        if (mMemory != null) {
+            mMemory.clear();
+            mSegment = mMemory;
+        } else {
+            mSegment = new FileOutputStream(new File(mDir, mSegmentName)).getChannel();
+        }
+        WritableByteChannel out = mSegment;
+        mSegmentKeyTag = null;
+        if (mKeys != null) {
+            mKeys.advance(mSegmentIndex);
+            if (mSampleAes != null) mSampleAes.setKey(mKeys.key(), mKeys.iv());
+            mSegmentKeyTag = mKeys.keyTag(mEncryption == ENCRYPTION_AES_128 ? "AES-128" : "SAMPLE-AES");
+            if (mAes != null) {
+                mAes.start(mSegment, mKeys.key(), mKeys.iv());
+                out = mAes;
+            }
+        }
+        // Whole-segment AES-128 changes the offsets, and diskless segments have no file to index
+        if (mFormat == FORMAT_TS && mAes == null && mMemory == null) {
+            mSegmentSamples = new ChunkIndex.Builder();
+            mSegmentBaseBytes = ((TsWriter) mWriter).getBytesWritten();
+        } else {
+            mSegmentSamples = null;
+        }
+        mWriter.startSegment(out);
+        if (mEvents != null) {
+            mEvents.publish(SegmentEvent.started(SegmentEvent.KIND_HLS_SEGMENT, new File(mDir, mSegmentName), mSegmentIndex));
+        }
+    }
+
+    private void writeInitSegment() throws IOException {
+        if (mMemory != null) {
+            MemoryChannel init = new MemoryChannel(1024);
+            ((FragmentedMp4Writer) mWriter).writeInitSegment(init);
+            publish(INIT_SEGMENT_NAME, init.copy());
+            return;
+        }
+        File file = new File(mDir, INIT_SEGMENT_NAME);
+        FileChannel init = new FileOutputStream(file).getChannel();
+        try {
+            ((FragmentedMp4Writer) mWriter).writeInitSegment(init);
+        } finally {
+            init.close();
+        }
+        if (mCache != null) mCache.putFile(mCacheKeyPrefix + INIT_SEGMENT_NAME, file);
+    }
+
+    private void finishSegment(long endPtsUs) throws IOException {
+        mWriter.finishSegment(endPtsUs);
+        if (mAes != null) mAes.finish();
+        long bytes;
+        if (mMemory != null) {
+            bytes = mMemory.position();
+            publish(mSegmentName, mMemory.copy());
+        } else {
+            bytes = ((FileChannel) mSegment).position();
+            mSegment.close();
+            if (mSegmentSamples != null) {
+                File segment = new File(mDir, mSegmentName);
+                mSegmentSamples.setDurationUs(endPtsUs - mSegmentStartUs);
+                mSegmentSamples.write(ChunkIndex.indexFileFor(segment), bytes);
+                mSegmentSamples = null;
+            }
+            // Cached before it is listed, so the first viewers to ask for it are served from memory
+            if (mCache != null) mCache.putFile(mCacheKeyPrefix + mSegmentName, new File(mDir, mSegmentName));
+        }
+        mSegment = null;
+        mPlaylist.addSegment(mSegmentName, endPtsUs - mSegmentStartUs, mSegmentKeyTag, mSegmentDiscontinuity);
+        if (mDash != null) {
+            mDash.addSegment(mSegmentIndex, mSegmentStartUs - mFirstSegmentStartUs, endPtsUs - mSegmentStartUs, bytes);
+        }
+        if (mMaster != null) mMaster.segmentFinished(mMasterVariant, bytes, endPtsUs - mSegmentStartUs, mSegmentFrames);
+        if (mEvents != null) {
+            mEvents.publish(new SegmentEvent(SegmentEvent.FINISHED, SegmentEvent.KIND_HLS_SEGMENT, new File(mDir, mSegmentName),
+                    mSegmentIndex, mSegmentStartUs, endPtsUs, bytes, mSegmentKeyframes, true));
+        }
+    }
+
+    /**
+     * Diskless mode: makes a finished segment available from the cache, then queues it to be
+     * spilled to the archive if there is one.
+     */
+    private void publish(final String name, final ByteBuffer data) {
+        mCache.putBuffer(mCacheKeyPrefix + name, data);
+        if (mSpill == null) return;
+        mSpill.execute(new Runnable() {
+            @Override
+            public void run() {
+                File file = new File(mDir, name);
+                File temp = new File(mDir, name + ".tmp");
+                ByteBuffer contents = data.duplicate();
+                try {
+                    FileChannel out = new FileOutputStream(temp).getChannel();
+                    try {
+                        while (contents.hasRemaining()) out.write(contents);
+                    } finally {
+                        out.close();
+                    }
+                    if (!temp.renameTo(file)) throw new IOException("Couldn't replace " + file);
+                } catch (IOException e) {
+                    // The live stream doesn't depend on the archive, so keep going
+                    LOG.log(Level.WARNING, "Couldn't spill " + file, e);
+                }
+            }
+        });
+    }
+
+    private void fail(Exception e) {
+        LOG.log(Level.SEVERE, "HLS output failed, disabling it", e);
+        mError = e;
+        if (mEvents != null && mSegmentName != null) {
+            mEvents.publish(new SegmentEvent(SegmentEvent.FAILED, SegmentEvent.KIND_HLS_SEGMENT, new File(mDir, mSegmentName),
+                    mSegmentIndex, mSegmentStartUs, mLastVideoPtsUs, -1, mSegmentKeyframes, true));
+        }
+        if (mSegment != null) {
+            try {
+                mSegment.close();
+            } catch (IOException ignored) {}
+            mSegment = null;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Derives an I-frame playlist (EXT-X-I-FRAMES-ONLY) from an HLS media playlist, for trick
+ * play and scrubbing thumbnails.  Each MPEG-TS segment is listed by its leading keyframe:
+ * an EXT-X-BYTERANGE covering the PAT/PMT and the keyframe's PES packets, located through
+ * the segment's ChunkIndex.  One entry per segment keeps EXT-X-MEDIA-SEQUENCE in step with
+ * the media playlist, so a sliding window slides both the same way.
+ * <p/>
+ * Segments without a usable index (fMP4, whole-segment AES-128, or diskless segments, which
+ * are not indexed) are left out.
+ */
+class IFramePlaylist {
+    static final String NAME = "iframes.m3u8";
+
+    /**
+     * @param mediaPlaylist text of the media playlist
+     * @param dir directory the playlist's segment URIs are relative to
+     * @return the I-frame playlist, or null if no segment is indexed
+     */
+    static String build(String mediaPlaylist, File dir) {
+        StringBuilder m3u8 = new StringBuilder();
+        m3u8.append("#EXTM3U\n#EXT-X-VERSION:4\n#EXT-X-I-FRAMES-ONLY\n");
+        StringBuilder segmentTags = new StringBuilder();
+        long durationUs = 0;
+        int entries = 0;
+        for (String line : mediaPlaylist.split("\n")) {
+            line = line.trim();
+            if (line.length() == 0 || line.equals("#EXTM3U") || line.startsWith("#EXT-X-VERSION:")) {
+                continue;
+            } else if (line.startsWith("#EXT-X-TARGETDURATION:") || line.startsWith("#EXT-X-MEDIA-SEQUENCE:")
+                    || line.startsWith("#EXT-X-DISCONTINUITY-SEQUENCE:") || line.startsWith("#EXT-X-PLAYLIST-TYPE:")) {
+                m3u8.append(line).append('\n');
+            } else if (line.startsWith("#EXT-X-MAP:")) {
+                return null;
+            } else if (line.startsWith("#EXTINF:")) {
+                int comma = line.indexOf(',');
+                durationUs = Math.round(Double.parseDouble(line.substring(8, comma < 0 ? line.length() : comma)) * 1000000);
+            } else if (line.startsWith("#EXT-X-KEY:") || line.equals("#EXT-X-DISCONTINUITY")) {
+                segmentTags.append(line).append('\n');
+            } else if (line.equals("#EXT-X-ENDLIST")) {
+                m3u8.append(line).append('\n');
+            } else if (!line.startsWith("#")) {
+                m3u8.append(segmentTags);
+                segmentTags.setLength(0);
+                ChunkIndex index;
+                int sync;
+                try {
+                    index = ChunkIndex.open(new File(dir, line));
+                    sync = index.findSyncSample(Long.MIN_VALUE);
+                } catch (IOException e) {
+                    continue;
+                }
+                if (sync < 0) continue;
+                m3u8.append(String.format(Locale.US, "#EXTINF:%.3f,\n", durationUs / 1000000.0));
+                m3u8.append("#EXT-X-BYTERANGE:").append(index.getSize(sync)).append('@').append(index.getOffset(sync)).append('\n');
+                m3u8.append(line).append('\n');
+                entries++;
+            }
+        }
+        return (entries == 0) ? null : m3u8.toString();
+    }
+}
@@ -0,0 +1,330 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+/**
+ * Steps the encode settings down a ladder of (resolution, frame rate, bitrate) rungs while
+ * the device is overloaded, and back up once it has recovered.
+ * <p/>
+ * Each sample() reads three pressure signals:
+ * <ul>
+ * <li>CPU busy fraction since the previous sample, from the aggregate line of /proc/stat</li>
+ * <li>the hottest thermal zone, from /sys/class/thermal/thermal_zone*&#47;temp</li>
+ * <li>the pipeline's own per-frame work, reported with reportStageLatency(), as a fraction of
+ * the current rung's frame interval</li>
+ * </ul>
+ * Signals that can't be read (newer Android versions hide /proc/stat from apps) are left out.
+ * Any signal above its high threshold for downAfter samples in a row steps one rung down; all
+ * signals below their low thresholds for upAfter samples steps one rung up.  Between the two
+ * thresholds nothing changes, so the ladder doesn't oscillate around a single limit.
+ * <p/>
+ * The proc and sys roots are constructor arguments, so the policy runs on any Linux machine,
+ * against the real trees or fake ones.
+ */
+public class LoadGovernor {
+    private static final Logger LOG = Logger.getLogger("LoadGovernor");
+
+    /**
+     * One step of the ladder.
+     */
+    public static class Rung {
+        public final int width;
+        public final int height;
+        public final int frameRate;
+        public final int bitRate;
+
+        public Rung(int width, int height, int frameRate, int bitRate) {
+            this.width = width;
+            this.height = height;
+            this.frameRate = frameRate;
+            this.bitRate = bitRate;
+        }
+
+        @Override
+        public String toString() {
+            return width + "x" + height + "@" + frameRate + " " + (bitRate / 1000) + " kbps";
+        }
+    }
+
+    /**
+     * The ladder for the recorder's 640x480 @ 30 default.
+     */
+    public static Rung[] defaultLadder() {
+        return new Rung[] {
+                new Rung(640, 480, 30, 1000000),
+                new Rung(640, 480, 24, 750000),
+                new Rung(480, 360, 24, 500000),
+                new Rung(320, 240, 15, 250000),
+        };
+    }
+
+    /**
+     * The signals one sample() saw.  Unavailable ones are negative.
+     */
+    public static class Sample {
+        public final double cpuBusy;
+        public final double temperatureC;
+        public final double stageLoad;
+
+        Sample(double cpuBusy, double temperatureC, double stageLoad) {
+            this.cpuBusy = cpuBusy;
+            this.temperatureC = temperatureC;
+            this.stageLoad = stageLoad;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "cpu %s, %s, stages %s",
+                    cpuBusy < 0 ? "n/a" : String.format(Locale.US, "%.0f%%", cpuBusy * 100),
+                    temperatureC < 0 ? "n/a" : String.format(Locale.US, "%.1f C", temperatureC),
+                    stageLoad < 0 ? "n/a" : String.format(Locale.US, "%.0f%% of frame", stageLoad * 100));
+        }
+    }
+
+    private final File mProcStat;
+    private final File mThermal;
+    private final Rung[] mLadder;
+
+    private double mCpuHigh = 0.85, mCpuLow = 0.60;
+    private double mTempHigh = 70, mTempLow = 60;
+    private double mStageHigh = 0.90, mStageLow = 0.60;
+    private int mDownAfter = 2;
+    private int mUpAfter = 6;
+
+    private int mRung = 0;
+    private int mHotStreak = 0;
+    private int mCalmStreak = 0;
+    private long mPrevBusy = -1;
+    private long mPrevTotal = -1;
+    private long mStageNs = 0;
+    private int mStageCount = 0;
+    private Sample mLastSample;
+    private int mSteps = 0;
+
+    /**
+     * @param procRoot usually /proc
+     * @param sysRoot  usually /sys
+     */
+    public LoadGovernor(File procRoot, File sysRoot, Rung[] ladder) {
+        if (ladder.length == 0) throw new IllegalArgumentException("empty ladder");
+        mProcStat = new File(procRoot, "stat");
+        mThermal = new File(sysRoot, "class/thermal");
+        mLadder = ladder;
+    }
+
+    public LoadGovernor() {
+        this(new File("/proc"), new File("/sys"), defaultLadder());
+    }
+
+    public synchronized void setCpuThresholds(double high, double low) {
+        mCpuHigh = high;
+        mCpuLow = low;
+    }
+
+    public synchronized void setTemperatureThresholds(double highC, double lowC) {
+        mTempHigh = highC;
+        mTempLow = lowC;
+    }
+
+    /**
+     * Thresholds for per-frame pipeline work as a fraction of the frame interval.
+     */
+    public synchronized void setStageThresholds(double high, double low) {
+        mStageHigh = high;
+        mStageLow = low;
+    }
+
+    /**
+     * @param downAfter consecutive overloaded samples before stepping down
+     * @param upAfter   consecutive calm samples before stepping up
+     */
+    public synchronized void setHysteresis(int downAfter, int upAfter) {
+        mDownAfter = Math.max(1, downAfter);
+        mUpAfter = Math.max(1, upAfter);
+    }
+
+    /**
+     * Render thread: how long one frame's drain, draw and submit took.
+     */
+    public synchronized void reportStageLatency(long ns) {
+        mStageNs += ns;
+        mStageCount++;
+    }
+
+    /**
+     * Reads the signals and moves at most one rung.  Call at a steady interval; the hysteresis
+     * counts samples, not seconds.
+     *
+     * @return true if the rung changed
+     */
+    public synchronized boolean sample() {
+        double cpu = readCpuBusy();
+        double temp = readTemperatureC();
+        double stage = -1;
+        if (mStageCount > 0) {
+            long intervalNs = 1000000000L / mLadder[mRung].frameRate;
+            stage = (double) mStageNs / mStageCount / intervalNs;
+            mStageNs = 0;
+            mStageCount = 0;
+        }
+        mLastSample = new Sample(cpu, temp, stage);
+
+        boolean hot = (cpu >= 0 && cpu > mCpuHigh) || (temp >= 0 && temp > mTempHigh) || (stage >= 0 && stage > mStageHigh);
+        boolean calm = (cpu < 0 || cpu < mCpuLow) && (temp < 0 || temp < mTempLow) && (stage < 0 || stage < mStageLow);
+        int from = mRung;
+        if (hot) {
+            mCalmStreak = 0;
+            if (++mHotStreak >= mDownAfter && mRung < mLadder.length - 1) {
+                mRung++;
+                mHotStreak = 0;
+            }
+        } else if (calm) {
+            mHotStreak = 0;
+            if (++mCalmStreak >= mUpAfter && mRung > 0) {
+                mRung--;
+                mCalmStreak = 0;
+            }
+        } else {
+            mHotStreak = 0;
+            mCalmStreak = 0;
+        }
+        if (mRung == from) return false;
+        mSteps++;
+        LOG.info((mRung > from ? "Stepping down to " : "Stepping up to ") + mLadder[mRung] + " (" + mLastSample + ")");
+        return true;
+    }
+
+    public synchronized Rung getRung() {
+        return mLadder[mRung];
+    }
+
+    /**
+     * The highest quality the governor can step up to.
+     */
+    public Rung getTopRung() {
+        return mLadder[0];
+    }
+
+    public synchronized int getRungIndex() {
+        return mRung;
+    }
+
+    /**
+     * The signals from the latest sample(), or null before the first.
+     */
+    public synchronized Sample getLastSample() {
+        return mLastSample;
+    }
+
+    /**
+     * Rung changes so far, either way.
+     */
+    public synchronized int getSteps() {
+        return mSteps;
+    }
+
+    /**
+     * Busy fraction of all CPUs since the previous call, from the "cpu" line of /proc/stat:
+     * user nice system idle iowait irq softirq steal (guest time is already in user).
+     * -1 on the first call or if the file can't be read.
+     */
+    private double readCpuBusy() {
+        String line = readFirstLine(mProcStat);
+        if (line == null || !line.startsWith("cpu ")) return -1;
+        String[] fields = line.trim().split("\\s+");
+        if (fields.length < 5) return -1;
+        long total = 0;
+        long idle = 0;
+        try {
+            for (int i = 1; i < fields.length && i <= 8; i++) {
+                long value = Long.parseLong(fields[i]);
+                total += value;
+                if (i == 4 || i == 5) idle += value;     // idle, iowait
+            }
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        long busy = total - idle;
+        double result = -1;
+        if (mPrevTotal >= 0 && total > mPrevTotal) {
+            result = (double) (busy - mPrevBusy) / (total - mPrevTotal);
+            result = Math.max(0, Math.min(1, result));
+        }
+        mPrevBusy = busy;
+        mPrevTotal = total;
+        return result;
+    }
+
+    /**
+     * Hottest thermal zone in degrees C, or -1 if there are none.  Zones report millidegrees,
+     * except on some older kernels that report degrees.
+     */
+    private double readTemperatureC() {
+        File[] zones = mThermal.listFiles();
+        if (zones == null) return -1;
+        double hottest = -1;
+        for (File zone : zones) {
+            if (!zone.getName().startsWith("thermal_zone")) continue;
+            String line = readFirstLine(new File(zone, "temp"));
+            if (line == null) continue;
+            try {
+                long value = Long.parseLong(line.trim());
+                double celsius = Math.abs(value) >= 1000 ? value / 1000.0 : value;
+                hottest = Math.max(hottest, celsius);
+            } catch (NumberFormatException e) {
+                // Offline zones read as garbage or an error string
+            }
+        }
+        return hottest;
+    }
+
+    private static String readFirstLine(File file) {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                return reader.readLine();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Samples the given (or real) proc and sys trees and prints every decision, for trying
+     * thresholds out by editing a fake tree while it runs.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        File proc = new File("/proc");
+        File sys = new File("/sys");
+        long intervalMs = 1000;
+        int samples = Integer.MAX_VALUE;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-proc") && i + 1 < args.length) {
+                proc = new File(args[++i]);
+            } else if (arg.equals("-sys") && i + 1 < args.length) {
+                sys = new File(args[++i]);
+            } else if (arg.equals("-interval") && i + 1 < args.length) {
+                intervalMs = Long.parseLong(args[++i]);
+            } else if (arg.equals("-samples") && i + 1 < args.length) {
+                samples = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("usage: LoadGovernor [-proc dir] [-sys dir] [-interval ms] [-samples n]");
+                System.exit(2);
+            }
+        }
+        LoadGovernor governor = new LoadGovernor(proc, sys, defaultLadder());
+        for (int i = 0; i < samples; i++) {
+            boolean changed = governor.sample();
+            System.out.println(governor.getLastSample() + " -> " + governor.getRung() + (changed ? " (changed)" : ""));
+            if (i + 1 < samples) Thread.sleep(intervalMs);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A WritableByteChannel into a growable direct buffer, for assembling segments in memory.
+ * The buffer is kept across clear() calls, so after the first few segments nothing is
+ * allocated until the finished segment is copied out.
+ */
+class MemoryChannel implements WritableByteChannel {
+    private ByteBuffer mBuffer;
+
+    MemoryChannel(int initialCapacity) {
+        mBuffer = ByteBuffer.allocateDirect(initialCapacity);
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        int n = src.remaining();
+        if (n > mBuffer.remaining()) {
+            ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(mBuffer.capacity() * 2, mBuffer.position() + n));
+            mBuffer.flip();
+            grown.put(mBuffer);
+            mBuffer = grown;
+        }
+        mBuffer.put(src);
+        return n;
+    }
+
+    long position() {
+        return mBuffer.position();
+    }
+
+    /**
+     * Returns what has been written since the last clear() as an exactly sized direct buffer
+     * of its own, positioned at 0.
+     */
+    ByteBuffer copy() {
+        ByteBuffer written = mBuffer.duplicate();
+        written.flip();
+        ByteBuffer copy = ByteBuffer.allocateDirect(written.remaining());
+        copy.put(written);
+        copy.flip();
+        return copy;
+    }
+
+    /**
+     * Writes what has been written since the last clear() to out, without copying, and
+     * clears.
+     *
+     * @return bytes written
+     */
+    long drainTo(WritableByteChannel out) throws IOException {
+        mBuffer.flip();
+        long n = 0;
+        while (mBuffer.hasRemaining()) n += out.write(mBuffer);
+        mBuffer.clear();
+        return n;
+    }
+
+    void clear() {
+        mBuffer.clear();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+}
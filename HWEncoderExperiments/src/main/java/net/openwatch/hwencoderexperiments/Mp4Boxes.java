@@ -0,0 +1,176 @@
+package net.openwatch.hwencoderexperiments;
+
+/**
+ * ISO BMFF box writers shared by our MP4 writers.  Each method appends one complete box
+ * (or a small fixed subtree) to a BoxBuilder.
+ */
+class Mp4Boxes {
+    static final int MOVIE_TIMESCALE = 1000;
+    static final int VIDEO_TIMESCALE = 90000;
+
+    private static final int[] UNITY_MATRIX = {
+            0x00010000, 0, 0,
+            0, 0x00010000, 0,
+            0, 0, 0x40000000
+    };
+
+    static int timescaleFor(TrackFormat format) {
+        return format.isVideo() ? VIDEO_TIMESCALE : format.sampleRate;
+    }
+
+    static long usToTimescale(long us, int timescale) {
+        return (us * timescale + 500000) / 1000000;
+    }
+
+    static void ftyp(BoxBuilder b, String majorBrand, String[] compatibleBrands) {
+        fileType(b, "ftyp", majorBrand, compatibleBrands);
+    }
+
+    /**
+     * Segment type box, the ftyp of an fMP4 media segment.
+     */
+    static void styp(BoxBuilder b, String majorBrand, String[] compatibleBrands) {
+        fileType(b, "styp", majorBrand, compatibleBrands);
+    }
+
+    static void mvhd(BoxBuilder b, long duration, int nextTrackId) {
+        boolean wide = duration > 0xFFFFFFFFL;
+        b.startFull("mvhd", wide ? 1 : 0, 0);
+        putTimes(b, wide, MOVIE_TIMESCALE, duration);
+        b.putInt(0x00010000);       // rate 1.0
+        b.putShort(0x0100);         // volume 1.0
+        b.putZeros(10);
+        for (int m : UNITY_MATRIX) b.putInt(m);
+        b.putZeros(24);             // pre_defined
+        b.putInt(nextTrackId);
+        b.end();
+    }
+
+    static void tkhd(BoxBuilder b, int trackId, long duration, TrackFormat format) {
+        boolean wide = duration > 0xFFFFFFFFL;
+        b.startFull("tkhd", wide ? 1 : 0, 0x000003);    // enabled, in movie
+        if (wide) {
+            b.putLong(0).putLong(0).putInt(trackId).putInt(0).putLong(duration);
+        } else {
+            b.putInt(0).putInt(0).putInt(trackId).putInt(0).putInt((int) duration);
+        }
+        b.putZeros(8);
+        b.putShort(0);                                  // layer
+        b.putShort(0);                                  // alternate group
+        b.putShort(format.isAudio() ? 0x0100 : 0);      // volume
+        b.putShort(0);
+        for (int m : UNITY_MATRIX) b.putInt(m);
+        b.putInt(format.width << 16);
+        b.putInt(format.height << 16);
+        b.end();
+    }
+
+    static void mdhd(BoxBuilder b, int timescale, long duration) {
+        boolean wide = duration > 0xFFFFFFFFL;
+        b.startFull("mdhd", wide ? 1 : 0, 0);
+        putTimes(b, wide, timescale, duration);
+        b.putShort(0x55C4);     // 'und'
+        b.putShort(0);
+        b.end();
+    }
+
+    static void hdlr(BoxBuilder b, TrackFormat format) {
+        b.startFull("hdlr", 0, 0).putInt(0);
+        if (format.isVideo()) {
+            b.putFourCC("vide").putZeros(12).put(asciiz("VideoHandler"));
+        } else {
+            b.putFourCC("soun").putZeros(12).put(asciiz("SoundHandler"));
+        }
+        b.end();
+    }
+
+    static void mediaHeader(BoxBuilder b, TrackFormat format) {
+        if (format.isVideo()) {
+            b.startFull("vmhd", 0, 1).putZeros(8).end();
+        } else {
+            b.startFull("smhd", 0, 0).putZeros(4).end();
+        }
+    }
+
+    static void dinf(BoxBuilder b) {
+        b.start("dinf");
+        b.startFull("dref", 0, 0).putInt(1);
+        b.startFull("url ", 0, 1).end();    // media is in this file
+        b.end();
+        b.end();
+    }
+
+    static void stsd(BoxBuilder b, TrackFormat format) {
+        b.startFull("stsd", 0, 0).putInt(1);
+        if (format.isVideo()) {
+            avc1(b, format);
+        } else {
+            mp4a(b, format);
+        }
+        b.end();
+    }
+
+    static void avc1(BoxBuilder b, TrackFormat format) {
+        byte[] sps = format.sps;
+        byte[] pps = format.pps;
+        b.start("avc1");
+        b.putZeros(6).putShort(1);                      // data_reference_index
+        b.putZeros(16);
+        b.putShort(format.width).putShort(format.height);
+        b.putInt(0x00480000).putInt(0x00480000);        // 72 dpi
+        b.putInt(0);
+        b.putShort(1);                                  // frame_count
+        b.putZeros(32);                                 // compressorname
+        b.putShort(0x0018).putShort(0xFFFF);
+        b.start("avcC");
+        b.putByte(1).putByte(sps[1]).putByte(sps[2]).putByte(sps[3]);
+        b.putByte(0xFF);                                // 4 byte NAL lengths
+        b.putByte(0xE1).putShort(sps.length).put(sps);
+        b.putByte(1).putShort(pps.length).put(pps);
+        b.end();
+        b.end();
+    }
+
+    static void mp4a(BoxBuilder b, TrackFormat format) {
+        byte[] asc = format.audioSpecificConfig;
+        b.start("mp4a");
+        b.putZeros(6).putShort(1);
+        b.putZeros(8);
+        b.putShort(format.channelCount).putShort(16);
+        b.putShort(0).putShort(0);
+        b.putInt(format.sampleRate << 16);
+        b.startFull("esds", 0, 0);
+        int decSpecificLen = 2 + asc.length;
+        int decConfigLen = 2 + 13 + decSpecificLen;
+        b.putByte(0x03).putByte(3 + decConfigLen + 3);  // ES_Descriptor
+        b.putShort(0).putByte(0);
+        b.putByte(0x04).putByte(13 + decSpecificLen);   // DecoderConfigDescriptor
+        b.putByte(0x40);                                // MPEG-4 audio
+        b.putByte(0x15);                                // audio stream
+        b.putInt24(0).putInt(0).putInt(0);
+        b.putByte(0x05).putByte(asc.length).put(asc);   // DecoderSpecificInfo
+        b.putByte(0x06).putByte(1).putByte(0x02);       // SLConfigDescriptor
+        b.end();
+        b.end();
+    }
+
+    private static void fileType(BoxBuilder b, String type, String majorBrand, String[] compatibleBrands) {
+        b.start(type).putFourCC(majorBrand).putInt(0x200);
+        for (String brand : compatibleBrands) b.putFourCC(brand);
+        b.end();
+    }
+
+    private static void putTimes(BoxBuilder b, boolean wide, int timescale, long duration) {
+        if (wide) {
+            b.putLong(0).putLong(0).putInt(timescale).putLong(duration);
+        } else {
+            b.putInt(0).putInt(0).putInt(timescale).putInt((int) duration);
+        }
+    }
+
+    private static byte[] asciiz(String s) {
+        byte[] bytes = new byte[s.length() + 1];
+        for (int i = 0; i < s.length(); i++) bytes[i] = (byte) s.charAt(i);
+        return bytes;
+    }
+}
@@ -0,0 +1,504 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Logger;
+
+/**
+ * Reads the samples of an MP4 file (as written by MediaMuxer or Mp4Writer) in decode order,
+ * without decoding, for repackaging.  Loosely follows MediaExtractor: look at the current
+ * sample with getSampleTrack / getSampleTime / getSampleFlags / getSampleData, then advance().
+ * <p/>
+ * Everything goes through memory-mapped I/O: the moov is mapped and parsed into flat sample
+ * tables up front, and sample data is read from a mapped window that slides along the file,
+ * so audio samples are handed out without a copy.  Video is rewritten from length-prefixed
+ * NAL units to Annex-B on the way out, the form our sinks take from MediaCodec.
+ * <p/>
+ * Only the first H.264 video track and the first AAC audio track are read.  Edit lists are
+ * applied, so a track that starts late keeps its offset.  Fragmented MP4s aren't supported.
+ */
+public class Mp4Reader {
+    private static final Logger LOG = Logger.getLogger("Mp4Reader");
+
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private final File mFile;
+    private final RandomAccessFile mRaf;
+    private final FileChannel mChannel;
+    private final long mFileSize;
+    private final Track[] mTracks = new Track[2];
+    private int mMovieTimescale = Mp4Boxes.MOVIE_TIMESCALE;
+
+    private ByteBuffer mWindow;
+    private long mWindowStart;
+    private ByteBuffer mScratch = ByteBuffer.allocateDirect(256 * 1024);
+    private int mCurrentTrack = -1;
+
+    public Mp4Reader(File file) throws IOException {
+        mFile = file;
+        mRaf = new RandomAccessFile(file, "r");
+        mChannel = mRaf.getChannel();
+        mFileSize = mChannel.size();
+        try {
+            parseMoov(findMoov());
+        } catch (RuntimeException e) {
+            // Buffer under / overflows from a truncated or corrupt moov
+            close();
+            throw new IOException(file + ": malformed moov", e);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        pickCurrentTrack();
+    }
+
+    /**
+     * @param track EncodedSampleSink.TRACK_VIDEO or TRACK_AUDIO
+     * @return the track's format, or null if the file has no such track
+     */
+    public TrackFormat getTrackFormat(int track) {
+        return (mTracks[track] == null) ? null : mTracks[track].format;
+    }
+
+    /**
+     * Size of the video track's NAL unit length prefixes, or 0 if there is no video track.
+     */
+    int getNalLengthSize() {
+        return (mTracks[EncodedSampleSink.TRACK_VIDEO] == null) ? 0 : mTracks[EncodedSampleSink.TRACK_VIDEO].lengthSize;
+    }
+
+    /**
+     * Presentation end of the longest track.
+     */
+    public long getDurationUs() {
+        long duration = 0;
+        for (Track track : mTracks) {
+            if (track != null) duration = Math.max(duration, track.endUs);
+        }
+        return duration;
+    }
+
+    public int getSampleCount(int track) {
+        return (mTracks[track] == null) ? 0 : mTracks[track].count;
+    }
+
+    /**
+     * Track of the current sample, or -1 once all samples have been read.
+     */
+    public int getSampleTrack() {
+        return mCurrentTrack;
+    }
+
+    public long getSampleTime() {
+        Track track = current();
+        return track.ptsUs[track.cursor];
+    }
+
+    /**
+     * Mp4Writer.FLAG_SYNC for sync samples, otherwise 0.
+     */
+    public int getSampleFlags() {
+        Track track = current();
+        return (track.sync == null || track.sync[track.cursor]) ? Mp4Writer.FLAG_SYNC : 0;
+    }
+
+    /**
+     * Returns the current sample in [position, limit) of a buffer owned by the reader, valid
+     * until the next call.  Don't modify its contents.
+     */
+    public ByteBuffer getSampleData() throws IOException {
+        Track track = current();
+        int size = track.sizes[track.cursor];
+        ByteBuffer data = map(track.offsets[track.cursor], size);
+        if (track.format.isAudio()) return data;
+        int needed = (track.lengthSize == 4) ? size : size * 5 / (track.lengthSize + 1) + 1;
+        if (mScratch.capacity() < needed) mScratch = ByteBuffer.allocateDirect(needed * 2);
+        mScratch.clear();
+        AvcUtils.avccToAnnexB(data, track.lengthSize, mScratch);
+        mScratch.flip();
+        return mScratch;
+    }
+
+    /**
+     * Moves to the next sample in decode order.  Returns false when there are no more.
+     */
+    public boolean advance() {
+        if (mCurrentTrack < 0) return false;
+        mTracks[mCurrentTrack].cursor++;
+        pickCurrentTrack();
+        return mCurrentTrack >= 0;
+    }
+
+    /**
+     * Feeds every sample of both tracks to an index builder.
+     */
+    void addSamplesTo(ChunkIndex.Builder builder) {
+        for (int type = 0; type < 2; type++) {
+            Track track = mTracks[type];
+            if (track == null) continue;
+            for (int i = 0; i < track.count; i++) {
+                builder.add(type, track.offsets[i], track.sizes[i], track.ptsUs[i],
+                        track.sync == null || track.sync[i]);
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        mWindow = null;
+        mRaf.close();
+    }
+
+    private Track current() {
+        if (mCurrentTrack < 0) throw new IllegalStateException("No more samples");
+        return mTracks[mCurrentTrack];
+    }
+
+    private void pickCurrentTrack() {
+        mCurrentTrack = -1;
+        long earliest = Long.MAX_VALUE;
+        for (int i = 0; i < 2; i++) {
+            Track track = mTracks[i];
+            if (track == null || track.cursor >= track.count) continue;
+            if (track.dtsUs[track.cursor] < earliest) {
+                earliest = track.dtsUs[track.cursor];
+                mCurrentTrack = i;
+            }
+        }
+    }
+
+    private ByteBuffer map(long offset, int size) throws IOException {
+        if (mWindow == null || offset < mWindowStart || offset + size > mWindowStart + mWindow.capacity()) {
+            long length = Math.min(Math.max(WINDOW_SIZE, size), mFileSize - offset);
+            if (offset < 0 || length < size) throw new IOException(mFile + ": sample at " + offset + " runs past end of file");
+            mWindow = mChannel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            mWindowStart = offset;
+        }
+        int position = (int) (offset - mWindowStart);
+        mWindow.clear();
+        mWindow.position(position);
+        mWindow.limit(position + size);
+        return mWindow;
+    }
+
+    /**
+     * Walks the top level boxes and maps the moov.
+     */
+    private ByteBuffer findMoov() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(16);
+        long position = 0;
+        while (position + 8 <= mFileSize) {
+            header.clear();
+            if (mChannel.read(header, position) < 8) break;
+            long size = header.getInt(0) & 0xFFFFFFFFL;
+            int type = header.getInt(4);
+            int headerSize = 8;
+            if (size == 1) {
+                size = header.getLong(8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = mFileSize - position;
+            }
+            if (size < headerSize) break;
+            if (type == fourCC("moov")) {
+                if (size > Integer.MAX_VALUE || position + size > mFileSize) break;
+                return mChannel.map(FileChannel.MapMode.READ_ONLY, position + headerSize, size - headerSize);
+            }
+            position += size;
+        }
+        throw new IOException(mFile + ": no moov box");
+    }
+
+    private void parseMoov(ByteBuffer moov) throws IOException {
+        int end = moov.limit();
+        int p = 0;
+        while (p + 8 <= end) {
+            int size = boxSize(moov, p, end);
+            int type = moov.getInt(p + 4);
+            if (type == fourCC("mvhd")) {
+                mMovieTimescale = moov.getInt(p + 8 + 4 + ((moov.get(p + 8) == 1) ? 16 : 8));
+            } else if (type == fourCC("trak")) {
+                Track track = parseTrak(moov, p + 8, p + size);
+                if (track == null) {
+                    LOG.info(mFile + ": skipping unsupported track");
+                } else {
+                    int index = track.format.isVideo() ? EncodedSampleSink.TRACK_VIDEO : EncodedSampleSink.TRACK_AUDIO;
+                    if (mTracks[index] == null) mTracks[index] = track;
+                }
+            }
+            p += size;
+        }
+        if (mTracks[EncodedSampleSink.TRACK_VIDEO] == null && mTracks[EncodedSampleSink.TRACK_AUDIO] == null) {
+            throw new IOException(mFile + ": no H.264 or AAC track");
+        }
+    }
+
+    /**
+     * Returns the track in trak[start, end), or null if it isn't H.264 or AAC.
+     */
+    private Track parseTrak(ByteBuffer b, int start, int end) throws IOException {
+        int mdia = findChild(b, start, end, "mdia");
+        if (mdia < 0) return null;
+        int mdiaEnd = mdia + boxSize(b, mdia, end);
+        int mdhd = findChild(b, mdia + 8, mdiaEnd, "mdhd");
+        int hdlr = findChild(b, mdia + 8, mdiaEnd, "hdlr");
+        int minf = findChild(b, mdia + 8, mdiaEnd, "minf");
+        if (mdhd < 0 || hdlr < 0 || minf < 0) return null;
+        int handler = b.getInt(hdlr + 16);
+        if (handler != fourCC("vide") && handler != fourCC("soun")) return null;
+        int stbl = findChild(b, minf + 8, minf + boxSize(b, minf, mdiaEnd), "stbl");
+        if (stbl < 0) return null;
+        int stblEnd = stbl + boxSize(b, stbl, mdiaEnd);
+
+        Track track = new Track();
+        track.timescale = b.getInt(mdhd + 12 + ((b.get(mdhd + 8) == 1) ? 16 : 8));
+        if (!parseStsd(b, findChild(b, stbl + 8, stblEnd, "stsd"), track)) return null;
+        buildSampleTable(b, stbl + 8, stblEnd, track);
+        applyEditList(b, findChild(b, start, end, "edts"), end, track);
+        return track;
+    }
+
+    private boolean parseStsd(ByteBuffer b, int stsd, Track track) {
+        if (stsd < 0 || b.getInt(stsd + 12) < 1) return false;
+        int entry = stsd + 16;
+        int entryEnd = entry + boxSize(b, entry, stsd + boxSize(b, stsd, b.limit()));
+        int type = b.getInt(entry + 4);
+        if (type == fourCC("avc1")) {
+            int width = b.getShort(entry + 32) & 0xFFFF;
+            int height = b.getShort(entry + 34) & 0xFFFF;
+            int avcC = findChild(b, entry + 86, entryEnd, "avcC");
+            if (avcC < 0) return false;
+            ByteBuffer r = region(b, avcC + 8, avcC + boxSize(b, avcC, entryEnd));
+            r.position(4);
+            track.lengthSize = (r.get() & 0x03) + 1;
+            if ((r.get() & 0x1F) < 1) return false;
+            byte[] sps = new byte[r.getShort() & 0xFFFF];
+            r.get(sps);
+            if ((r.get() & 0xFF) < 1) return false;
+            byte[] pps = new byte[r.getShort() & 0xFFFF];
+            r.get(pps);
+            track.format = TrackFormat.createVideoFormat(width, height, sps, pps);
+            return true;
+        }
+        if (type == fourCC("mp4a")) {
+            int version = b.getShort(entry + 16) & 0xFFFF;
+            int channelCount = b.getShort(entry + 24) & 0xFFFF;
+            int sampleRate = b.getInt(entry + 32) >>> 16;
+            int children = entry + 36 + ((version == 1) ? 16 : (version == 2) ? 36 : 0);
+            int esds = findChild(b, children, entryEnd, "esds");
+            if (esds < 0) return false;
+            byte[] asc = parseEsds(region(b, esds + 12, esds + boxSize(b, esds, entryEnd)));
+            if (asc == null) return false;
+            track.format = TrackFormat.createAudioFormat(sampleRate, channelCount, asc);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the AudioSpecificConfig from an esds payload, or null if it isn't MPEG-4 audio.
+     */
+    private static byte[] parseEsds(ByteBuffer r) {
+        if (r.get() != 0x03) return null;                   // ES_Descriptor
+        descriptorLength(r);
+        r.getShort();
+        int flags = r.get() & 0xFF;
+        if ((flags & 0x80) != 0) r.getShort();
+        if ((flags & 0x40) != 0) r.position(r.position() + (r.get() & 0xFF));
+        if ((flags & 0x20) != 0) r.getShort();
+        if (r.get() != 0x04) return null;                   // DecoderConfigDescriptor
+        descriptorLength(r);
+        if ((r.get() & 0xFF) != 0x40) return null;          // MPEG-4 audio
+        r.position(r.position() + 12);
+        if (r.get() != 0x05) return null;                   // DecoderSpecificInfo
+        byte[] asc = new byte[descriptorLength(r)];
+        r.get(asc);
+        return asc;
+    }
+
+    private static int descriptorLength(ByteBuffer r) {
+        int length = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = r.get() & 0xFF;
+            length = (length << 7) | (b & 0x7F);
+            if ((b & 0x80) == 0) break;
+        }
+        return length;
+    }
+
+    private void buildSampleTable(ByteBuffer b, int start, int end, Track track) throws IOException {
+        int stsz = findChild(b, start, end, "stsz");
+        int stts = findChild(b, start, end, "stts");
+        int stsc = findChild(b, start, end, "stsc");
+        int stco = findChild(b, start, end, "stco");
+        int co64 = findChild(b, start, end, "co64");
+        if (stsz < 0 || stts < 0 || stsc < 0 || (stco < 0 && co64 < 0)) {
+            throw new IOException(mFile + ": incomplete sample table");
+        }
+        int count = b.getInt(stsz + 16);
+        int uniformSize = b.getInt(stsz + 12);
+        track.allocate(count);
+        for (int i = 0; i < count; i++) {
+            track.sizes[i] = (uniformSize != 0) ? uniformSize : b.getInt(stsz + 20 + 4 * i);
+        }
+
+        // Decode times
+        long[] dts = new long[count];
+        int entries = b.getInt(stts + 12);
+        long time = 0;
+        int s = 0;
+        for (int e = 0, p = stts + 16; e < entries; e++, p += 8) {
+            int run = b.getInt(p);
+            int delta = b.getInt(p + 4);
+            for (int j = 0; j < run && s < count; j++) {
+                dts[s++] = time;
+                time += delta;
+            }
+        }
+        track.endUs = toUs(time, track.timescale);
+
+        // Presentation times, if they differ
+        int ctts = findChild(b, start, end, "ctts");
+        s = 0;
+        if (ctts >= 0) {
+            entries = b.getInt(ctts + 12);
+            for (int e = 0, p = ctts + 16; e < entries; e++, p += 8) {
+                int run = b.getInt(p);
+                int offset = b.getInt(p + 4);
+                for (int j = 0; j < run && s < count; j++, s++) track.ptsUs[s] = toUs(dts[s] + offset, track.timescale);
+            }
+        }
+        for (; s < count; s++) track.ptsUs[s] = toUs(dts[s], track.timescale);
+        for (int i = 0; i < count; i++) track.dtsUs[i] = toUs(dts[i], track.timescale);
+
+        // Sample offsets, chunk by chunk
+        boolean wide = stco < 0;
+        int chunkTable = wide ? co64 : stco;
+        int chunkCount = b.getInt(chunkTable + 12);
+        entries = b.getInt(stsc + 12);
+        s = 0;
+        for (int e = 0; e < entries && s < count; e++) {
+            int p = stsc + 16 + 12 * e;
+            int firstChunk = b.getInt(p);
+            int samplesPerChunk = b.getInt(p + 4);
+            int nextFirstChunk = (e + 1 < entries) ? b.getInt(p + 12) : chunkCount + 1;
+            for (int chunk = firstChunk; chunk < nextFirstChunk && chunk <= chunkCount && s < count; chunk++) {
+                long offset = wide ? b.getLong(chunkTable + 16 + 8 * (chunk - 1))
+                        : b.getInt(chunkTable + 16 + 4 * (chunk - 1)) & 0xFFFFFFFFL;
+                for (int j = 0; j < samplesPerChunk && s < count; j++, s++) {
+                    track.offsets[s] = offset;
+                    offset += track.sizes[s];
+                }
+            }
+        }
+        if (s < count) throw new IOException(mFile + ": chunk table covers " + s + " of " + count + " samples");
+
+        int stss = findChild(b, start, end, "stss");
+        if (stss >= 0) {
+            track.sync = new boolean[count];
+            entries = b.getInt(stss + 12);
+            for (int e = 0; e < entries; e++) {
+                int sample = b.getInt(stss + 16 + 4 * e) - 1;
+                if (sample >= 0 && sample < count) track.sync[sample] = true;
+            }
+        }
+    }
+
+    /**
+     * Shifts the track by its edit list: leading empty edits delay it, and the media time of
+     * the first real edit trims its start.
+     */
+    private void applyEditList(ByteBuffer b, int edts, int end, Track track) {
+        if (edts < 0) return;
+        int elst = findChild(b, edts + 8, edts + boxSize(b, edts, end), "elst");
+        if (elst < 0) return;
+        boolean wide = b.get(elst + 8) == 1;
+        int entries = b.getInt(elst + 12);
+        long emptyUs = 0;
+        long mediaStartUs = 0;
+        int p = elst + 16;
+        for (int e = 0; e < entries; e++) {
+            long duration = wide ? b.getLong(p) : b.getInt(p) & 0xFFFFFFFFL;
+            long mediaTime = wide ? b.getLong(p + 8) : b.getInt(p + 4);
+            p += wide ? 20 : 12;
+            if (mediaTime == -1) {
+                emptyUs += toUs(duration, mMovieTimescale);
+            } else {
+                mediaStartUs = toUs(mediaTime, track.timescale);
+                break;
+            }
+        }
+        long shift = emptyUs - mediaStartUs;
+        if (shift == 0) return;
+        for (int i = 0; i < track.count; i++) {
+            track.ptsUs[i] += shift;
+            track.dtsUs[i] += shift;
+        }
+        track.endUs += shift;
+    }
+
+    /**
+     * Returns the offset of the first box of the given type in [start, end), or -1.
+     */
+    private static int findChild(ByteBuffer b, int start, int end, String type) {
+        int wanted = fourCC(type);
+        int p = start;
+        while (p + 8 <= end) {
+            int size = boxSize(b, p, end);
+            if (b.getInt(p + 4) == wanted) return p;
+            p += size;
+        }
+        return -1;
+    }
+
+    /**
+     * Size of the box at p, clamped to end.  Boxes inside a moov never need 64-bit sizes.
+     */
+    private static int boxSize(ByteBuffer b, int p, int end) {
+        long size = b.getInt(p) & 0xFFFFFFFFL;
+        if (size == 1) size = b.getLong(p + 8);
+        if (size == 0 || p + size > end) size = end - p;
+        return (int) Math.max(size, 8);
+    }
+
+    private static ByteBuffer region(ByteBuffer b, int start, int end) {
+        ByteBuffer view = b.duplicate();
+        view.limit(end).position(start);
+        return view.slice();
+    }
+
+    private static long toUs(long time, int timescale) {
+        return time * 1000000 / timescale;
+    }
+
+    static int fourCC(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+
+    /**
+     * Flattened sample table of one track.
+     */
+    private static class Track {
+        TrackFormat format;
+        int timescale;
+        int lengthSize = 4;
+        int count;
+        long[] offsets;
+        int[] sizes;
+        long[] dtsUs;
+        long[] ptsUs;
+        boolean[] sync;     // null if every sample is a sync sample
+        long endUs;
+        int cursor = 0;
+
+        void allocate(int count) {
+            this.count = count;
+            offsets = new long[count];
+            sizes = new int[count];
+            dtsUs = new long[count];
+            ptsUs = new long[count];
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Minimal progressive MP4 writer: ftyp, one mdat streamed to disk as samples arrive, and a
+ * moov written by finish().  Covers what MediaMuxer does for our H.264 + AAC tracks, but in
+ * plain Java so it can be driven from buffers we own (pre-roll dumps, clips) and run
+ * off-device.
+ * <p/>
+ * Video samples may be passed in Annex-B form as they come out of MediaCodec; they are
+ * rewritten with length prefixes on the way to disk.
+ * <p/>
+ * Timestamps are rebased so the first sample written lands at time zero.  Tracks that start
+ * later get an edit list so A/V sync is preserved.
+ * <p/>
+ * With setIndexFile(), finish() also writes the file's ChunkIndex sidecar.
+ * <p/>
+ * Samples that are already in an MP4 (clips) can be copied across with writeSampleFrom(),
+ * which moves the bytes file to file with transferTo instead of through a buffer.
+ */
+public class Mp4Writer {
+    /** Same value as MediaCodec.BUFFER_FLAG_SYNC_FRAME */
+    public static final int FLAG_SYNC = 1;
+
+    private final FileChannel mChannel;
+    private final ArrayList<Track> mTracks = new ArrayList<Track>();
+    private final BoxBuilder mBoxes = new BoxBuilder(64 * 1024);
+    private ByteBuffer mScratch = ByteBuffer.allocateDirect(256 * 1024);
+    private long mMdatStart;
+    private long mWritePosition;
+    private long mBaseTimeUs = -1;
+    private File mIndexFile;
+    // Samples queued by writeSampleFrom that sit back to back in their source, copied in one go
+    private FileChannel mRunSource;
+    private long mRunStart;
+    private long mRunLength;
+    private boolean mStarted = false;
+    private boolean mFinished = false;
+
+    /**
+     * @param channel a channel positioned where the file should begin.  The writer uses
+     *                positional writes from there on (writeSampleFrom also moves the
+     *                position) and does not close it.
+     */
+    public Mp4Writer(FileChannel channel) throws IOException {
+        mChannel = channel;
+        mWritePosition = channel.position();
+    }
+
+    public int addTrack(TrackFormat format) {
+        if (mStarted) throw new IllegalStateException("addTrack after start");
+        mTracks.add(new Track(format));
+        return mTracks.size() - 1;
+    }
+
+    public void start() throws IOException {
+        if (mStarted) throw new IllegalStateException("Already started");
+        mBoxes.reset();
+        Mp4Boxes.ftyp(mBoxes, "isom", new String[]{"isom", "iso2", "avc1", "mp41"});
+        mMdatStart = mWritePosition + mBoxes.position();
+        mBoxes.putInt(1).putFourCC("mdat").putLong(0);  // 64-bit size patched in finish()
+        writeFully(mBoxes.buffer());
+        mStarted = true;
+    }
+
+    /**
+     * Appends one encoded sample, taken from data[position, limit).  data is not modified.
+     *
+     * @param flags MediaCodec buffer flags; only FLAG_SYNC is interpreted
+     */
+    public void writeSampleData(int trackIndex, ByteBuffer data, long ptsUs, int flags) throws IOException {
+        if (!mStarted || mFinished) throw new IllegalStateException("Writer not running");
+        flushRun();
+        Track track = mTracks.get(trackIndex);
+        long offset = mWritePosition;
+        int size;
+        if (track.format.isVideo()) {
+            int needed = AvcUtils.avccSize(data);
+            if (mScratch.capacity() < needed) mScratch = ByteBuffer.allocateDirect(needed * 2);
+            mScratch.clear();
+            size = AvcUtils.annexBToAvcc(data, mScratch);
+            mScratch.flip();
+            writeFully(mScratch);
+        } else {
+            size = data.remaining();
+            int position = data.position();
+            writeFully(data);
+            data.position(position);
+        }
+        track.add(offset, size, rebase(ptsUs), (flags & FLAG_SYNC) != 0);
+    }
+
+    /**
+     * Appends one sample copied from src[srcOffset, srcOffset + size) without passing through
+     * the Java heap.  The bytes must already be in MP4 form: video with 4 byte NAL lengths.
+     * Consecutive samples that are also consecutive in src are copied with a single transfer,
+     * so src must stay open and unchanged until the next call, flush() or finish().
+     *
+     * @param flags MediaCodec buffer flags; only FLAG_SYNC is interpreted
+     */
+    public void writeSampleFrom(int trackIndex, FileChannel src, long srcOffset, int size, long ptsUs, int flags)
+            throws IOException {
+        if (!mStarted || mFinished) throw new IllegalStateException("Writer not running");
+        if (src != mRunSource || srcOffset != mRunStart + mRunLength) {
+            flushRun();
+            mRunSource = src;
+            mRunStart = srcOffset;
+        }
+        mTracks.get(trackIndex).add(mWritePosition + mRunLength, size, rebase(ptsUs), (flags & FLAG_SYNC) != 0);
+        mRunLength += size;
+    }
+
+    /**
+     * Copies any samples writeSampleFrom() is still holding back.
+     */
+    public void flush() throws IOException {
+        flushRun();
+    }
+
+    /**
+     * Completes the mdat and writes the moov.  The channel is left open.
+     */
+    public void finish() throws IOException {
+        if (!mStarted || mFinished) throw new IllegalStateException("Writer not running");
+        flushRun();
+        mFinished = true;
+        ByteBuffer largeSize = ByteBuffer.allocate(8);
+        largeSize.putLong(0, mWritePosition - mMdatStart);
+        mChannel.write(largeSize, mMdatStart + 8);
+
+        mBoxes.reset();
+        long movieDuration = 0;
+        for (Track track : mTracks) {
+            movieDuration = Math.max(movieDuration, track.movieDuration());
+        }
+        mBoxes.start("moov");
+        Mp4Boxes.mvhd(mBoxes, movieDuration, mTracks.size() + 1);
+        for (int i = 0; i < mTracks.size(); i++) {
+            mTracks.get(i).writeTrak(mBoxes, i + 1);
+        }
+        mBoxes.end();
+        writeFully(mBoxes.buffer());
+        if (mIndexFile != null) writeIndex(movieDuration * 1000000 / Mp4Boxes.MOVIE_TIMESCALE);
+    }
+
+    /**
+     * Has finish() write a ChunkIndex to indexFile, normally ChunkIndex.indexFileFor(the
+     * file this writer writes).  Only valid if the file starts where this writer started.
+     */
+    public void setIndexFile(File indexFile) {
+        mIndexFile = indexFile;
+    }
+
+    /**
+     * Pins the timestamp that maps to time zero.  By default the first sample written
+     * becomes the base.
+     */
+    public void setBaseTimeUs(long baseTimeUs) {
+        mBaseTimeUs = baseTimeUs;
+    }
+
+    /**
+     * Total bytes written so far, including headers.
+     */
+    public long size() {
+        return mWritePosition + mRunLength;
+    }
+
+    private void writeIndex(long durationUs) throws IOException {
+        ChunkIndex.Builder index = new ChunkIndex.Builder();
+        for (Track track : mTracks) {
+            int type = track.format.isVideo() ? EncodedSampleSink.TRACK_VIDEO : EncodedSampleSink.TRACK_AUDIO;
+            int sync = 0;
+            for (int i = 0; i < track.count; i++) {
+                boolean isSync = sync < track.syncCount && track.syncSamples[sync] == i + 1;
+                if (isSync) sync++;
+                index.add(type, track.offsets[i], track.sizes[i], track.times[i] * 1000000 / track.timescale, isSync);
+            }
+        }
+        index.setDurationUs(durationUs);
+        index.write(mIndexFile, mWritePosition);
+    }
+
+    private long rebase(long ptsUs) {
+        if (mBaseTimeUs < 0) mBaseTimeUs = ptsUs;
+        return Math.max(0, ptsUs - mBaseTimeUs);
+    }
+
+    private void flushRun() throws IOException {
+        if (mRunSource == null) return;
+        mChannel.position(mWritePosition);
+        long done = 0;
+        while (done < mRunLength) {
+            long n = mRunSource.transferTo(mRunStart + done, mRunLength - done, mChannel);
+            if (n <= 0) throw new IOException("Source ended " + (mRunLength - done) + " bytes early");
+            done += n;
+        }
+        mWritePosition += mRunLength;
+        mRunSource = null;
+        mRunLength = 0;
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mWritePosition += mChannel.write(buffer, mWritePosition);
+        }
+    }
+
+    /**
+     * Sample table for one track, kept in growable primitive arrays.
+     */
+    private static class Track {
+        final TrackFormat format;
+        final int timescale;
+        int count = 0;
+        long[] offsets = new long[256];
+        int[] sizes = new int[256];
+        long[] times = new long[256];       // in track timescale
+        int[] syncSamples = new int[32];
+        int syncCount = 0;
+
+        Track(TrackFormat format) {
+            this.format = format;
+            this.timescale = Mp4Boxes.timescaleFor(format);
+        }
+
+        void add(long offset, int size, long ptsUs, boolean sync) {
+            if (count == offsets.length) {
+                offsets = grow(offsets);
+                sizes = grow(sizes);
+                times = grow(times);
+            }
+            offsets[count] = offset;
+            sizes[count] = size;
+            times[count] = Mp4Boxes.usToTimescale(ptsUs, timescale);
+            if (count > 0 && times[count] < times[count - 1]) times[count] = times[count - 1];
+            count++;
+            if (sync) {
+                if (syncCount == syncSamples.length) syncSamples = grow(syncSamples);
+                syncSamples[syncCount++] = count;       // 1-based sample number
+            }
+        }
+
+        long sampleDuration(int i) {
+            if (i + 1 < count) return times[i + 1] - times[i];
+            if (count > 1) return times[count - 1] - times[count - 2];
+            return format.isVideo() ? timescale / 30 : 1024;
+        }
+
+        long mediaDuration() {
+            if (count == 0) return 0;
+            return times[count - 1] - times[0] + sampleDuration(count - 1);
+        }
+
+        long startOffsetMovie() {
+            return (count == 0) ? 0 : times[0] * Mp4Boxes.MOVIE_TIMESCALE / timescale;
+        }
+
+        long movieDuration() {
+            return startOffsetMovie() + mediaDuration() * Mp4Boxes.MOVIE_TIMESCALE / timescale;
+        }
+
+        void writeTrak(BoxBuilder b, int trackId) {
+            b.start("trak");
+            Mp4Boxes.tkhd(b, trackId, movieDuration(), format);
+            long startOffset = startOffsetMovie();
+            if (startOffset > 0) {
+                b.start("edts");
+                b.startFull("elst", 0, 0).putInt(2);
+                b.putInt((int) startOffset).putInt(-1).putInt(0x00010000);     // empty edit
+                b.putInt((int) (movieDuration() - startOffset)).putInt(0).putInt(0x00010000);
+                b.end();
+                b.end();
+            }
+            b.start("mdia");
+            Mp4Boxes.mdhd(b, timescale, mediaDuration());
+            Mp4Boxes.hdlr(b, format);
+            b.start("minf");
+            Mp4Boxes.mediaHeader(b, format);
+            Mp4Boxes.dinf(b);
+            b.start("stbl");
+            Mp4Boxes.stsd(b, format);
+            writeStts(b);
+            if (format.isVideo()) {
+                b.startFull("stss", 0, 0).putInt(syncCount);
+                for (int i = 0; i < syncCount; i++) b.putInt(syncSamples[i]);
+                b.end();
+            }
+            // One sample per chunk keeps stsc trivial and lets tracks interleave freely
+            b.startFull("stsc", 0, 0).putInt(1).putInt(1).putInt(1).putInt(1).end();
+            writeStsz(b);
+            writeChunkOffsets(b);
+            b.end();    // stbl
+            b.end();    // minf
+            b.end();    // mdia
+            b.end();    // trak
+        }
+
+        private void writeStts(BoxBuilder b) {
+            b.startFull("stts", 0, 0);
+            int entryCountPosition = b.position();
+            b.putInt(0);
+            int entries = 0;
+            int i = 0;
+            while (i < count) {
+                long duration = sampleDuration(i);
+                int run = 1;
+                while (i + run < count && sampleDuration(i + run) == duration) run++;
+                b.putInt(run).putInt((int) duration);
+                entries++;
+                i += run;
+            }
+            b.patchInt(entryCountPosition, entries);
+            b.end();
+        }
+
+        private void writeStsz(BoxBuilder b) {
+            boolean uniform = count > 0;
+            for (int i = 1; i < count && uniform; i++) uniform = sizes[i] == sizes[0];
+            b.startFull("stsz", 0, 0);
+            if (uniform) {
+                b.putInt(sizes[0]).putInt(count);
+            } else {
+                b.putInt(0).putInt(count);
+                for (int i = 0; i < count; i++) b.putInt(sizes[i]);
+            }
+            b.end();
+        }
+
+        private void writeChunkOffsets(BoxBuilder b) {
+            boolean wide = count > 0 && offsets[count - 1] > 0xFFFFFFFFL;
+            b.startFull(wide ? "co64" : "stco", 0, 0).putInt(count);
+            for (int i = 0; i < count; i++) {
+                if (wide) b.putLong(offsets[i]);
+                else b.putInt((int) offsets[i]);
+            }
+            b.end();
+        }
+
+        private static long[] grow(long[] a) {
+            long[] g = new long[a.length * 2];
+            System.arraycopy(a, 0, g, 0, a.length);
+            return g;
+        }
+
+        private static int[] grow(int[] a) {
+            int[] g = new int[a.length * 2];
+            System.arraycopy(a, 0, g, 0, a.length);
+            return g;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.util.Arrays;
+
+/**
+ * Converts captured 16-bit PCM to what the audio encoder is configured for: stereo to mono
+ * downmix (or mono to stereo), gain, and sample rate conversion.  Each step runs only when
+ * the formats or gain call for it; with nothing to do, process() is a copy.
+ * <p/>
+ * Rate conversion is polyphase: for a ratio out/in = L/M in lowest terms, every output
+ * sample is a TAPS-long dot product of the input with one of L Kaiser-windowed sinc filters,
+ * low-passed below the lower of the two Nyquist rates.  The filter's delay is taken up by
+ * leading history, so output sample 0 lines up with input sample 0 and capture timestamps
+ * carry over unchanged.
+ * <p/>
+ * All buffers are allocated up front for blocks of up to maxInputFrames, so process()
+ * allocates nothing; its loops run over plain arrays, one channel at a time.
+ */
+public class PcmProcessor {
+    /** Filter length per phase */
+    public static final int TAPS = 32;
+    private static final double KAISER_BETA = 8.0;
+    // Passband edge as a fraction of the lower Nyquist rate
+    private static final double CUTOFF = 0.92;
+    private static final int MAX_PHASES = 4096;
+
+    private final int mInRate;
+    private final int mInChannels;
+    private final int mOutRate;
+    private final int mOutChannels;
+    private final int mMaxInputFrames;
+    private float mGain = 1f;
+
+    // Rate conversion, if any
+    private final boolean mResample;
+    private final int mL;
+    private final int mM;
+    private final float[] mFilters;        // mL phases of TAPS coefficients
+    private final float[][] mPlanes;       // per output channel: history, then the block
+    private int mHistory;                  // frames of history at the start of each plane
+    private int mPhase = 0;
+
+    public PcmProcessor(int inRate, int inChannels, int outRate, int outChannels, int maxInputFrames) {
+        if (inChannels < 1 || inChannels > 2 || outChannels < 1 || outChannels > 2) {
+            throw new IllegalArgumentException("only mono and stereo are supported");
+        }
+        mInRate = inRate;
+        mInChannels = inChannels;
+        mOutRate = outRate;
+        mOutChannels = outChannels;
+        mMaxInputFrames = maxInputFrames;
+        mResample = inRate != outRate;
+        if (mResample) {
+            int gcd = gcd(inRate, outRate);
+            mL = outRate / gcd;
+            mM = inRate / gcd;
+            if (mL > MAX_PHASES) throw new IllegalArgumentException("Can't convert " + inRate + " Hz to " + outRate + " Hz");
+            mFilters = designFilters(mL, mM);
+            mPlanes = new float[outChannels][TAPS + maxInputFrames];
+            reset();
+        } else {
+            mL = 1;
+            mM = 1;
+            mFilters = null;
+            mPlanes = null;
+        }
+    }
+
+    public void setGain(float gain) {
+        mGain = gain;
+    }
+
+    public float getGain() {
+        return mGain;
+    }
+
+    public int getInRate() {
+        return mInRate;
+    }
+
+    public int getOutRate() {
+        return mOutRate;
+    }
+
+    /**
+     * Whether process() only copies.
+     */
+    public boolean isPassthrough() {
+        return !mResample && mInChannels == mOutChannels && mGain == 1f;
+    }
+
+    /**
+     * Output buffer size, in shorts, that process() needs for inputFrames.
+     */
+    public int maxOutputShorts(int inputFrames) {
+        return (int) (((long) inputFrames * mL + mM - 1) / mM + 1) * mOutChannels;
+    }
+
+    /**
+     * Forgets the rate converter's history, e.g. after a gap in capture.
+     */
+    public void reset() {
+        if (!mResample) return;
+        // TAPS / 2 - 1 frames of silence put input sample 0 at the first output's centre tap
+        mHistory = TAPS / 2 - 1;
+        for (float[] plane : mPlanes) Arrays.fill(plane, 0, mHistory, 0f);
+        mPhase = 0;
+    }
+
+    /**
+     * Converts length shorts (whole input frames) from in into out, starting at out[0].
+     *
+     * @return shorts written to out
+     */
+    public int process(short[] in, int offset, int length, short[] out) {
+        int frames = length / mInChannels;
+        if (frames > mMaxInputFrames) throw new IllegalArgumentException(frames + " frames > " + mMaxInputFrames);
+        if (!mResample) return convert(in, offset, frames, out);
+
+        // Input to float planes, downmixing and applying gain on the way
+        int h = mHistory;
+        if (mInChannels == 2 && mOutChannels == 1) {
+            float g = mGain * 0.5f;
+            float[] plane = mPlanes[0];
+            for (int i = 0; i < frames; i++) plane[h + i] = (in[offset + 2 * i] + in[offset + 2 * i + 1]) * g;
+        } else if (mInChannels == 2) {
+            float g = mGain;
+            for (int c = 0; c < 2; c++) {
+                float[] plane = mPlanes[c];
+                for (int i = 0; i < frames; i++) plane[h + i] = in[offset + 2 * i + c] * g;
+            }
+        } else {
+            float g = mGain;
+            float[] plane = mPlanes[0];
+            for (int i = 0; i < frames; i++) plane[h + i] = in[offset + i] * g;
+            if (mOutChannels == 2) System.arraycopy(plane, h, mPlanes[1], h, frames);
+        }
+
+        // Filter each channel with the same phase sequence
+        int available = h + frames;
+        int written = 0;
+        int endStart = 0;
+        int endPhase = mPhase;
+        for (int c = 0; c < mOutChannels; c++) {
+            float[] plane = mPlanes[c];
+            int start = 0;
+            int phase = mPhase;
+            int o = c;
+            while (start + TAPS <= available) {
+                int f = phase * TAPS;
+                float sum = 0f;
+                for (int j = 0; j < TAPS; j++) sum += mFilters[f + j] * plane[start + j];
+                out[o] = clamp(sum);
+                o += mOutChannels;
+                phase += mM;
+                start += phase / mL;
+                phase %= mL;
+            }
+            written = o - c;
+            endStart = start;
+            endPhase = phase;
+        }
+
+        // Keep the unread tail as the next block's history
+        mHistory = available - endStart;
+        for (int c = 0; c < mOutChannels; c++) System.arraycopy(mPlanes[c], endStart, mPlanes[c], 0, mHistory);
+        mPhase = endPhase;
+        return written;
+    }
+
+    /**
+     * Same rate: channel conversion and gain straight from short to short.
+     */
+    private int convert(short[] in, int offset, int frames, short[] out) {
+        float g = mGain;
+        if (mInChannels == mOutChannels) {
+            int n = frames * mInChannels;
+            if (g == 1f) {
+                System.arraycopy(in, offset, out, 0, n);
+            } else {
+                for (int i = 0; i < n; i++) out[i] = clamp(in[offset + i] * g);
+            }
+            return n;
+        }
+        if (mInChannels == 2) {
+            g *= 0.5f;
+            for (int i = 0; i < frames; i++) out[i] = clamp((in[offset + 2 * i] + in[offset + 2 * i + 1]) * g);
+            return frames;
+        }
+        for (int i = 0; i < frames; i++) {
+            short s = clamp(in[offset + i] * g);
+            out[2 * i] = s;
+            out[2 * i + 1] = s;
+        }
+        return frames * 2;
+    }
+
+    private static short clamp(float x) {
+        int v = Math.round(x);
+        return (short) (v > Short.MAX_VALUE ? Short.MAX_VALUE : (v < Short.MIN_VALUE ? Short.MIN_VALUE : v));
+    }
+
+    /**
+     * Phase p's tap j weighs the input sample (j - TAPS / 2 + 1 - p / L) input samples from
+     * the output instant.  Each phase is normalized to unity gain at DC.
+     */
+    private static float[] designFilters(int l, int m) {
+        double cutoff = CUTOFF * Math.min(1.0, (double) l / m);
+        float[] filters = new float[l * TAPS];
+        double i0Beta = besselI0(KAISER_BETA);
+        for (int p = 0; p < l; p++) {
+            double sum = 0;
+            for (int j = 0; j < TAPS; j++) {
+                double d = j - TAPS / 2 + 1 - (double) p / l;
+                double x = d / (TAPS / 2);
+                double window = Math.abs(x) >= 1 ? 0 : besselI0(KAISER_BETA * Math.sqrt(1 - x * x)) / i0Beta;
+                double sinc = d == 0 ? 1 : Math.sin(Math.PI * cutoff * d) / (Math.PI * cutoff * d);
+                double h = cutoff * sinc * window;
+                filters[p * TAPS + j] = (float) h;
+                sum += h;
+            }
+            for (int j = 0; j < TAPS; j++) filters[p * TAPS + j] /= sum;
+        }
+        return filters;
+    }
+
+    private static double besselI0(double x) {
+        double sum = 1;
+        double term = 1;
+        for (int k = 1; k < 50; k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+            if (term < 1e-12 * sum) break;
+        }
+        return sum;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,259 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Preallocated ring of 16-bit PCM between the capture thread, which reads large blocks from
+ * the microphone, and the audio encoder's feeder, which takes whole AAC frames.  An encoder
+ * stall then only fills the ring instead of making the microphone overrun.
+ * <p/>
+ * One writer and one reader; neither takes a lock.  Each written block is stamped with the
+ * capture time of its first sample, so read() can time any position even after blocks were
+ * dropped.  When the ring is full, the new block is dropped and counted as an overrun; a
+ * reader that can't get what it needs in time counts an underrun.  The fill level at every read
+ * is kept for percentiles.
+ */
+public class PcmRing {
+
+    private final short[] mRing;
+    private final int mMask;
+    private final int mChannels;
+    private final int mSampleRate;
+
+    // Block stamps: position (in shorts) and capture time of each written block
+    private final long[] mStampPos;
+    private final long[] mStampNs;
+    private final int mStampMask;
+
+    private volatile long mWritePos = 0;
+    private volatile long mReadPos = 0;
+    private volatile long mStampWrite = 0;
+    private volatile long mStampRead = 0;
+    private volatile boolean mClosed = false;
+    private volatile Thread mReader;
+
+    private volatile long mOverruns = 0;
+    private volatile long mOverrunShorts = 0;
+    private volatile long mUnderruns = 0;
+    private final long[] mFillHistogram = new long[101];
+    private volatile long mReads = 0;
+
+    /**
+     * @param capacityFrames sample frames (one short per channel) the ring holds, rounded up
+     *                       to a power of two
+     */
+    public PcmRing(int capacityFrames, int channels, int sampleRate) {
+        int shorts = Integer.highestOneBit(Math.max(2, capacityFrames * channels - 1)) << 1;
+        mRing = new short[shorts];
+        mMask = shorts - 1;
+        mChannels = channels;
+        mSampleRate = sampleRate;
+        int stamps = Integer.highestOneBit(Math.max(16, shorts / 256)) << 1;
+        mStampPos = new long[stamps];
+        mStampNs = new long[stamps];
+        mStampMask = stamps - 1;
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * Capacity in sample frames.
+     */
+    public int getCapacityFrames() {
+        return mRing.length / mChannels;
+    }
+
+    /**
+     * Writer: appends length shorts (whole frames) whose first frame was captured at
+     * firstFrameNs.  Drops the whole block if it doesn't fit.
+     *
+     * @return false if the block was dropped
+     */
+    public boolean write(short[] pcm, int offset, int length, long firstFrameNs) {
+        if (length <= 0) return true;
+        long write = mWritePos;
+        long stampWrite = mStampWrite;
+        if (write + length - mReadPos > mRing.length || stampWrite - mStampRead > mStampMask) {
+            mOverruns++;
+            mOverrunShorts += length;
+            return false;
+        }
+        mStampPos[(int) (stampWrite & mStampMask)] = write;
+        mStampNs[(int) (stampWrite & mStampMask)] = firstFrameNs;
+        mStampWrite = stampWrite + 1;
+
+        int start = (int) (write & mMask);
+        int first = Math.min(length, mRing.length - start);
+        System.arraycopy(pcm, offset, mRing, start, first);
+        if (first < length) System.arraycopy(pcm, offset + first, mRing, 0, length - first);
+        mWritePos = write + length;
+
+        Thread reader = mReader;
+        if (reader != null) LockSupport.unpark(reader);
+        return true;
+    }
+
+    /**
+     * Writer: no more blocks are coming.  Wakes a waiting reader.
+     */
+    public void close() {
+        mClosed = true;
+        Thread reader = mReader;
+        if (reader != null) LockSupport.unpark(reader);
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Sample frames written and not yet read.
+     */
+    public int availableFrames() {
+        return (int) (mWritePos - mReadPos) / mChannels;
+    }
+
+    /**
+     * Reader: waits until frames are available, the ring is closed or timeoutNs passes.  A
+     * timeout counts as an underrun.
+     *
+     * @return whether frames are available
+     */
+    public boolean awaitFrames(int frames, long timeoutNs) {
+        long deadline = System.nanoTime() + timeoutNs;
+        mReader = Thread.currentThread();
+        try {
+            while (availableFrames() < frames && !mClosed) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) break;
+                LockSupport.parkNanos(this, left);
+            }
+        } finally {
+            mReader = null;
+        }
+        if (availableFrames() >= frames) return true;
+        if (!mClosed) mUnderruns++;
+        return false;
+    }
+
+    /**
+     * Reader: copies as many whole multiples of frameMultiple sample frames as are available
+     * and fit in dst (native byte order, as MediaCodec wants), starting at dst's position.
+     * With frameMultiple 1, takes everything that fits, e.g. the tail before end of stream.
+     *
+     * @return capture time of the first frame copied, or -1 if not even one multiple was
+     * available (an underrun)
+     */
+    public long read(ByteBuffer dst, int frameMultiple) {
+        long read = mReadPos;
+        long available = mWritePos - read;
+        recordFill(available);
+        int unit = frameMultiple * mChannels;
+        long fits = Math.min(available, dst.remaining() / 2);
+        int length = (int) (fits / unit * unit);
+        if (length == 0) {
+            if (!mClosed) mUnderruns++;
+            return -1;
+        }
+        long firstNs = timeAt(read);
+        dst.order(ByteOrder.nativeOrder());
+        int start = (int) (read & mMask);
+        int first = Math.min(length, mRing.length - start);
+        dst.asShortBuffer().put(mRing, start, first).put(mRing, 0, length - first);
+        dst.position(dst.position() + length * 2);
+        mReadPos = read + length;
+        return firstNs;
+    }
+
+    /**
+     * Reader: drops frames captured before ns, e.g. before the recording's time zero.
+     *
+     * @return frames dropped
+     */
+    public int skipBefore(long ns) {
+        long read = mReadPos;
+        long write = mWritePos;
+        long skip = 0;
+        while (read + skip < write && timeAt(read + skip) < ns) {
+            long framesToGo = (ns - timeAt(read + skip)) * mSampleRate / 1000000000L;
+            // Stop at the next block, whose stamp may be later after a drop
+            long next = mStampRead + 1 < mStampWrite ? mStampPos[(int) ((mStampRead + 1) & mStampMask)] : write;
+            skip = Math.min(read + skip + Math.max(1, framesToGo) * mChannels, next) - read;
+        }
+        mReadPos = read + skip;
+        return (int) (skip / mChannels);
+    }
+
+    /**
+     * Capture time of the frame at position, from the latest stamp at or before it.  Moves
+     * the reader's stamp cursor past stamps it no longer needs.
+     */
+    private long timeAt(long position) {
+        long stamp = mStampRead;
+        long stampWrite = mStampWrite;
+        while (stamp + 1 < stampWrite && mStampPos[(int) ((stamp + 1) & mStampMask)] <= position) stamp++;
+        mStampRead = stamp;
+        int i = (int) (stamp & mStampMask);
+        long frames = (position - mStampPos[i]) / mChannels;
+        return mStampNs[i] + frames * 1000000000L / mSampleRate;
+    }
+
+    private void recordFill(long availableShorts) {
+        int percent = (int) Math.min(100, availableShorts * 100 / mRing.length);
+        mFillHistogram[percent]++;
+        mReads++;
+    }
+
+    /**
+     * Blocks dropped because the ring was full.
+     */
+    public long getOverruns() {
+        return mOverruns;
+    }
+
+    /**
+     * Sample frames lost to overruns.
+     */
+    public long getOverrunFrames() {
+        return mOverrunShorts / mChannels;
+    }
+
+    /**
+     * Waits that timed out and reads that found less than a frame multiple, while capture
+     * was running.
+     */
+    public long getUnderruns() {
+        return mUnderruns;
+    }
+
+    /**
+     * Fill level at read time, in percent of capacity, at percentile p (0-100).  Written by
+     * the reader only, so another thread may see it slightly out of date.
+     */
+    public int getFillPercentile(double p) {
+        long reads = mReads;
+        if (reads == 0) return 0;
+        long rank = (long) Math.ceil(reads * p / 100);
+        long seen = 0;
+        for (int percent = 0; percent < mFillHistogram.length; percent++) {
+            seen += mFillHistogram[percent];
+            if (seen >= rank) return percent;
+        }
+        return 100;
+    }
+
+    public String getStats() {
+        return String.format(Locale.US, "%d reads, fill p50 %d%% p95 %d%% p99 %d%%, %d overruns (%d frames lost), %d underruns",
+                mReads, getFillPercentile(50), getFillPercentile(95), getFillPercentile(99), mOverruns, getOverrunFrames(),
+                mUnderruns);
+    }
+}
@@ -0,0 +1,148 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Notices when a stage of the recording pipeline stops making progress.
+ * <p/>
+ * Each stage calls beat() whenever it gets something done (a camera frame latched, an
+ * encoder output buffer drained).  A background thread looks at the beats every quarter of
+ * the shortest deadline and reports a stage silent for longer than its deadline to the
+ * listener, once per stall: it is reported again only after it has beaten in between.
+ * Stages that are legitimately idle (not started yet, being rebuilt) are disarmed.
+ * <p/>
+ * beat() is a clock read and an ordered store, so it can sit on every frame.  The listener
+ * runs on the watchdog thread and should only flag the stage for its owner to rebuild;
+ * the stalled thread is the one that can safely tear its component down.
+ */
+public class PipelineWatchdog {
+    private static final Logger LOG = Logger.getLogger("PipelineWatchdog");
+
+    private static final long DISARMED = Long.MIN_VALUE;
+
+    public interface Listener {
+        /**
+         * @param silentNs time since the stage's last beat
+         */
+        void onStall(int stage, long silentNs);
+    }
+
+    private final String[] mNames;
+    private final long[] mDeadlineNs;
+    private final AtomicLongArray mLastBeatNs;
+    private final AtomicLongArray mStalls;
+    private final long[] mReportedBeatNs;      // watchdog thread
+    private final FrameClock mClock;
+    private final Listener mListener;
+    private ScheduledExecutorService mExecutor;
+
+    /**
+     * All stages start disarmed, with deadlineNs.
+     */
+    public PipelineWatchdog(String[] stageNames, long deadlineNs, FrameClock clock, Listener listener) {
+        mNames = stageNames.clone();
+        int stages = mNames.length;
+        mDeadlineNs = new long[stages];
+        mLastBeatNs = new AtomicLongArray(stages);
+        mStalls = new AtomicLongArray(stages);
+        mReportedBeatNs = new long[stages];
+        for (int stage = 0; stage < stages; stage++) {
+            mDeadlineNs[stage] = deadlineNs;
+            mLastBeatNs.set(stage, DISARMED);
+            mReportedBeatNs[stage] = DISARMED;
+        }
+        mClock = clock;
+        mListener = listener;
+    }
+
+    /**
+     * Before start().
+     */
+    public void setDeadline(int stage, long deadlineNs) {
+        mDeadlineNs[stage] = deadlineNs;
+    }
+
+    public void beat(int stage) {
+        mLastBeatNs.lazySet(stage, mClock.nanoTime());
+    }
+
+    /**
+     * Starts watching stage, counting from now.
+     */
+    public void arm(int stage) {
+        beat(stage);
+    }
+
+    public void disarm(int stage) {
+        mLastBeatNs.set(stage, DISARMED);
+    }
+
+    public synchronized void start() {
+        if (mExecutor != null) return;
+        long periodNs = Long.MAX_VALUE;
+        for (long deadline : mDeadlineNs) periodNs = Math.min(periodNs, deadline / 4);
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "pipeline watchdog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                check();
+            }
+        }, periodNs, periodNs, TimeUnit.NANOSECONDS);
+    }
+
+    public synchronized void stop() {
+        if (mExecutor == null) return;
+        mExecutor.shutdownNow();
+        mExecutor = null;
+    }
+
+    /**
+     * One pass over the stages.  Called by the watchdog thread; simulations call it directly.
+     */
+    void check() {
+        long now = mClock.nanoTime();
+        for (int stage = 0; stage < mNames.length; stage++) {
+            long last = mLastBeatNs.get(stage);
+            if (last == DISARMED || last == mReportedBeatNs[stage]) continue;
+            long silent = now - last;
+            if (silent <= mDeadlineNs[stage]) continue;
+            mReportedBeatNs[stage] = last;
+            mStalls.incrementAndGet(stage);
+            try {
+                mListener.onStall(stage, silent);
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "Watchdog listener threw on " + mNames[stage], e);
+            }
+        }
+    }
+
+    public String getName(int stage) {
+        return mNames[stage];
+    }
+
+    public long getStalls(int stage) {
+        return mStalls.get(stage);
+    }
+
+    public String getStats() {
+        StringBuilder stats = new StringBuilder("stalls:");
+        for (int stage = 0; stage < mNames.length; stage++) {
+            stats.append(String.format(Locale.US, " %s %d", mNames[stage], mStalls.get(stage)));
+        }
+        return stats.toString();
+    }
+}
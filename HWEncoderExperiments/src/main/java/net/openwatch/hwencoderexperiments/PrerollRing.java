@@ -0,0 +1,303 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Bounded in-memory history of encoded audio and video samples, for "instant replay" of the
+ * seconds before a trigger.
+ * <p/>
+ * Sample bytes live in a single direct (off-heap) arena used as a circular log; per-sample
+ * metadata lives in parallel primitive arrays indexed by sequence number.  Appending evicts
+ * from the head, one sample at a time, until the new sample fits, so eviction is O(1) per
+ * sample and nothing is allocated on the append path.  Video sync samples are additionally
+ * indexed so a dump can always begin on an IDR.
+ * <p/>
+ * History is kept for at least retainUs behind the newest sample, counted from a keyframe,
+ * unless the byte budget runs out first.  Samples from before a track's format last changed
+ * (an encoder rebuild or a resolution step) can't be decoded with the current format, so a
+ * dump leaves them out and starts at the first keyframe after the change.
+ * <p/>
+ * append() is called from both encoder drain threads; writeMp4() only holds the lock while
+ * copying the retained bytes out, and does its file I/O unlocked.
+ */
+public class PrerollRing implements EncodedSampleSink {
+    private final ByteBuffer mArena;
+    private final ByteBuffer mWriteView;
+    private final long mRetainUs;
+
+    // Per-sample metadata, indexed by (sequence & mMask)
+    private final int mMask;
+    private final long[] mPts;
+    private final int[] mOffsets;
+    private final int[] mSizes;
+    private final int[] mFlags;
+    private final byte[] mTracks;
+    private long mHead = 0;     // oldest live sequence
+    private long mTail = 0;     // next sequence to assign
+    private int mWritePosition = 0;
+    private int mWrapPosition = 0;  // end of the live bytes before the write position wrapped
+
+    // Sequence numbers of retained video sync samples, oldest first
+    private final int mKeyMask;
+    private final long[] mKeyframes;
+    private long mKeyHead = 0;
+    private long mKeyTail = 0;
+
+    private final TrackFormat[] mFormats = new TrackFormat[2];
+    // First sequence appended under each track's current format
+    private final long[] mFormatSince = new long[2];
+
+    private long mEvictedSamples = 0;
+    private long mDroppedSamples = 0;
+
+    /**
+     * @param budgetBytes off-heap bytes reserved for sample data
+     * @param retainUs how much history to keep behind the newest sample
+     * @param maxSamples upper bound on retained samples; rounded up to a power of two
+     */
+    public PrerollRing(int budgetBytes, long retainUs, int maxSamples) {
+        mArena = ByteBuffer.allocateDirect(budgetBytes);
+        mWriteView = mArena.duplicate();
+        mRetainUs = retainUs;
+        int slots = Integer.highestOneBit(Math.max(2, maxSamples - 1)) << 1;
+        mMask = slots - 1;
+        mPts = new long[slots];
+        mOffsets = new int[slots];
+        mSizes = new int[slots];
+        mFlags = new int[slots];
+        mTracks = new byte[slots];
+        mKeyMask = mMask;
+        mKeyframes = new long[slots];
+    }
+
+    /**
+     * Sizes the sample metadata for the given retention at our nominal frame rate plus audio.
+     */
+    public PrerollRing(int budgetBytes, long retainUs) {
+        this(budgetBytes, retainUs, (int) (retainUs / 1000000 + 10) * (30 + 50));
+    }
+
+    @Override
+    public synchronized void setTrackFormat(int track, TrackFormat format) {
+        // Every new encoder reports its format, usually the same one again
+        if (mFormats[track] != null && !mFormats[track].equals(format)) mFormatSince[track] = mTail;
+        mFormats[track] = format;
+    }
+
+    @Override
+    public void writeSampleData(int track, ByteBuffer data, long ptsUs, int flags) {
+        append(track, data, ptsUs, flags);
+    }
+
+    /**
+     * Copies data[position, limit) into the ring.  data's position is left unchanged.
+     *
+     * @param flags MediaCodec buffer flags; BUFFER_FLAG_SYNC_FRAME marks video keyframes
+     */
+    public synchronized void append(int track, ByteBuffer data, long ptsUs, int flags) {
+        int size = data.remaining();
+        if (size == 0) return;
+        if (size > mArena.capacity()) {
+            mDroppedSamples++;
+            return;
+        }
+        if (mTail - mHead == mMask + 1) evictHead();
+        int offset = reserve(size);
+
+        int position = data.position();
+        mWriteView.limit(offset + size).position(offset);
+        mWriteView.put(data);
+        data.position(position);
+        mWritePosition = offset + size;
+
+        int slot = (int) (mTail & mMask);
+        mPts[slot] = ptsUs;
+        mOffsets[slot] = offset;
+        mSizes[slot] = size;
+        mFlags[slot] = flags;
+        mTracks[slot] = (byte) track;
+        if (track == TRACK_VIDEO && (flags & Mp4Writer.FLAG_SYNC) != 0) {
+            mKeyframes[(int) (mKeyTail++ & mKeyMask)] = mTail;
+        }
+        mTail++;
+        evictExpired(ptsUs);
+    }
+
+    /**
+     * Finds room for size bytes, evicting the oldest samples as needed, and returns the
+     * arena offset to write at.
+     */
+    private int reserve(int size) {
+        int capacity = mArena.capacity();
+        while (true) {
+            if (mHead == mTail) {
+                mWritePosition = 0;
+                return 0;
+            }
+            int headOffset = mOffsets[(int) (mHead & mMask)];
+            if (headOffset < mWritePosition) {
+                // Live bytes are [headOffset, mWritePosition): room after them, or wrap to 0
+                if (mWritePosition + size <= capacity) return mWritePosition;
+                if (size <= headOffset) {
+                    mWrapPosition = mWritePosition;
+                    return 0;
+                }
+            } else {
+                // Live bytes wrap: [headOffset, capacity) + [0, mWritePosition)
+                if (mWritePosition + size <= headOffset) return mWritePosition;
+            }
+            evictHead();
+        }
+    }
+
+    private void evictExpired(long newestPtsUs) {
+        // Drop whole GOPs while the next keyframe alone still covers the retention window
+        while (mKeyTail - mKeyHead > 1) {
+            long nextKeyframe = mKeyframes[(int) ((mKeyHead + 1) & mKeyMask)];
+            if (newestPtsUs - mPts[(int) (nextKeyframe & mMask)] < mRetainUs) break;
+            mKeyHead++;
+            long cutoff = mKeyframes[(int) (mKeyHead & mKeyMask)];
+            while (mHead < cutoff) evictHead();
+        }
+    }
+
+    private void evictHead() {
+        mHead++;
+        mEvictedSamples++;
+        while (mKeyHead < mKeyTail && mKeyframes[(int) (mKeyHead & mKeyMask)] < mHead) mKeyHead++;
+    }
+
+    /**
+     * Writes the retained history, starting at the oldest retained IDR under the current video
+     * format, as a standalone MP4.  Audio older than that IDR is skipped.  The live pipeline keeps appending while the file
+     * is written.
+     *
+     * @return the number of samples written, or 0 if no keyframe is retained yet
+     */
+    public int writeMp4(FileChannel output) throws IOException {
+        Snapshot snapshot = snapshot();
+        if (snapshot == null) return 0;
+        return snapshot.writeMp4(output);
+    }
+
+    /**
+     * Copies the retained samples out of the ring.  This is the only part of a dump that
+     * holds the lock.
+     */
+    synchronized Snapshot snapshot() {
+        if (mFormats[TRACK_VIDEO] == null) return null;
+        long key = mKeyHead;
+        while (key < mKeyTail && mKeyframes[(int) (key & mKeyMask)] < mFormatSince[TRACK_VIDEO]) key++;
+        if (key == mKeyTail) return null;
+        long first = mKeyframes[(int) (key & mKeyMask)];
+        long firstPts = mPts[(int) (first & mMask)];
+
+        int count = 0;
+        int bytes = 0;
+        for (long seq = mHead; seq < mTail; seq++) {
+            if (include(seq, first, firstPts)) {
+                count++;
+                bytes += mSizes[(int) (seq & mMask)];
+            }
+        }
+        Snapshot snapshot = new Snapshot(count, bytes, firstPts, mFormats[TRACK_VIDEO], mFormats[TRACK_AUDIO]);
+        ByteBuffer readView = mArena.duplicate();
+        int i = 0;
+        for (long seq = mHead; seq < mTail; seq++) {
+            if (!include(seq, first, firstPts)) continue;
+            int slot = (int) (seq & mMask);
+            readView.limit(mOffsets[slot] + mSizes[slot]).position(mOffsets[slot]);
+            snapshot.offsets[i] = snapshot.data.position();
+            snapshot.sizes[i] = mSizes[slot];
+            snapshot.pts[i] = mPts[slot];
+            snapshot.flags[i] = mFlags[slot];
+            snapshot.tracks[i] = mTracks[slot];
+            snapshot.data.put(readView);
+            i++;
+        }
+        return snapshot;
+    }
+
+    private boolean include(long seq, long firstKeyframe, long firstPts) {
+        int slot = (int) (seq & mMask);
+        if (mTracks[slot] == TRACK_VIDEO) return seq >= firstKeyframe;
+        return mFormats[TRACK_AUDIO] != null && seq >= mFormatSince[TRACK_AUDIO] && mPts[slot] >= firstPts;
+    }
+
+    public synchronized int sampleCount() {
+        return (int) (mTail - mHead);
+    }
+
+    /**
+     * Bytes held by live samples.  The gap left at the end of the arena when the write
+     * position wrapped doesn't count.
+     */
+    public synchronized int usedBytes() {
+        if (mHead == mTail) return 0;
+        int headOffset = mOffsets[(int) (mHead & mMask)];
+        if (headOffset < mWritePosition) return mWritePosition - headOffset;
+        return mWrapPosition - headOffset + mWritePosition;
+    }
+
+    /**
+     * Returns the span between the oldest retained keyframe and the newest sample.
+     */
+    public synchronized long retainedDurationUs() {
+        if (mKeyHead == mKeyTail) return 0;
+        long first = mKeyframes[(int) (mKeyHead & mKeyMask)];
+        return mPts[(int) ((mTail - 1) & mMask)] - mPts[(int) (first & mMask)];
+    }
+
+    public synchronized long evictedSamples() {
+        return mEvictedSamples;
+    }
+
+    public synchronized long droppedSamples() {
+        return mDroppedSamples;
+    }
+
+    /**
+     * A point-in-time copy of the ring, owned by the dumping thread.
+     */
+    static class Snapshot {
+        final ByteBuffer data;
+        final int[] offsets;
+        final int[] sizes;
+        final long[] pts;
+        final int[] flags;
+        final byte[] tracks;
+        final long basePtsUs;
+        final TrackFormat videoFormat;
+        final TrackFormat audioFormat;
+
+        Snapshot(int count, int bytes, long basePtsUs, TrackFormat videoFormat, TrackFormat audioFormat) {
+            data = ByteBuffer.allocateDirect(Math.max(1, bytes));
+            offsets = new int[count];
+            sizes = new int[count];
+            pts = new long[count];
+            flags = new int[count];
+            tracks = new byte[count];
+            this.basePtsUs = basePtsUs;
+            this.videoFormat = videoFormat;
+            this.audioFormat = audioFormat;
+        }
+
+        int writeMp4(FileChannel output) throws IOException {
+            Mp4Writer writer = new Mp4Writer(output);
+            int[] trackIndex = new int[2];
+            trackIndex[TRACK_VIDEO] = writer.addTrack(videoFormat);
+            if (audioFormat != null) trackIndex[TRACK_AUDIO] = writer.addTrack(audioFormat);
+            writer.setBaseTimeUs(basePtsUs);
+            writer.start();
+            ByteBuffer view = data.duplicate();
+            for (int i = 0; i < offsets.length; i++) {
+                view.limit(offsets[i] + sizes[i]).position(offsets[i]);
+                writer.writeSampleData(trackIndex[tracks[i]], view, pts[i], flags[i]);
+            }
+            writer.finish();
+            return offsets.length;
+        }
+    }
+}
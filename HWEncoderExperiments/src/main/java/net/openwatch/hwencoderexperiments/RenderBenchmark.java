@@ -0,0 +1,145 @@
+package net.openwatch.hwencoderexperiments;
+
+import android.graphics.SurfaceTexture;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Times the encode render loop on the device: drawFrame() plus eglSwapBuffers() into an
+ * offscreen surface the size of the encoder's, with the old renderer (clear, client arrays,
+ * glGetError() per call, glFinish()) and the current one.  Needs a GPU, so it runs from the
+ * activity rather than under JMH:
+ * <pre>
+ * adb shell am start -n net.openwatch.hwencoderexperiments/.HWRecorderActivity --ez renderBenchmark true
+ * </pre>
+ * Results go to the log.
+ */
+public class RenderBenchmark {
+    private static final String TAG = "RenderBenchmark";
+    private static final int WARMUP_FRAMES = 60;
+
+    private EGLDisplay mDisplay = EGL14.EGL_NO_DISPLAY;
+    private EGLContext mContext = EGL14.EGL_NO_CONTEXT;
+    private EGLSurface mSurface = EGL14.EGL_NO_SURFACE;
+    private int mGlesVersion;
+
+    /**
+     * Renders frames per variant at width x height and returns a line per variant.
+     */
+    public static String run(int width, int height, int frames) {
+        RenderBenchmark benchmark = new RenderBenchmark();
+        try {
+            benchmark.eglSetup(width, height);
+            StringBuilder result = new StringBuilder();
+            result.append(benchmark.measure(true, frames)).append('\n');
+            result.append(benchmark.measure(false, frames));
+            Log.i(TAG, result.toString());
+            return result.toString();
+        } finally {
+            benchmark.release();
+        }
+    }
+
+    private String measure(boolean legacy, int frames) {
+        ChunkedHWRecorder.STextureRender render = new ChunkedHWRecorder.STextureRender();
+        render.surfaceCreated(mGlesVersion);
+        render.setLegacy(legacy);
+        SurfaceTexture st = new SurfaceTexture(render.getTextureId());
+        try {
+            for (int i = 0; i < WARMUP_FRAMES; i++) drawAndSwap(render, st);
+            GLES20.glFinish();
+            long start = System.nanoTime();
+            for (int i = 0; i < frames; i++) drawAndSwap(render, st);
+            // Frames still queued on the GPU count too
+            GLES20.glFinish();
+            long elapsed = System.nanoTime() - start;
+            return String.format(Locale.US, "%s (ES %d): %d frames, %.1f us per frame; %s", legacy ? "legacy" : "fast",
+                    mGlesVersion, frames, elapsed / 1000.0 / frames, render.getStats());
+        } finally {
+            render.release();
+            st.release();
+        }
+    }
+
+    private void drawAndSwap(ChunkedHWRecorder.STextureRender render, SurfaceTexture st) {
+        render.drawFrame(st);
+        EGL14.eglSwapBuffers(mDisplay, mSurface);
+    }
+
+    /**
+     * Same context setup as the recorder's encode surface, on a pbuffer instead of the
+     * encoder's input Surface.
+     */
+    private void eglSetup(int width, int height) {
+        mDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        if (mDisplay == EGL14.EGL_NO_DISPLAY) {
+            throw new RuntimeException("unable to get EGL14 display");
+        }
+        int[] version = new int[2];
+        if (!EGL14.eglInitialize(mDisplay, version, 0, version, 1)) {
+            throw new RuntimeException("unable to initialize EGL14");
+        }
+        EGLConfig config = null;
+        for (int glesVersion = 3; glesVersion >= 2 && mContext == EGL14.EGL_NO_CONTEXT; glesVersion--) {
+            int[] attribList = {
+                    EGL14.EGL_RED_SIZE, 8,
+                    EGL14.EGL_GREEN_SIZE, 8,
+                    EGL14.EGL_BLUE_SIZE, 8,
+                    EGL14.EGL_RENDERABLE_TYPE, glesVersion >= 3 ? EGLExt.EGL_OPENGL_ES3_BIT_KHR : EGL14.EGL_OPENGL_ES2_BIT,
+                    EGL14.EGL_SURFACE_TYPE, EGL14.EGL_PBUFFER_BIT,
+                    EGL14.EGL_NONE
+            };
+            EGLConfig[] configs = new EGLConfig[1];
+            int[] numConfigs = new int[1];
+            if (!EGL14.eglChooseConfig(mDisplay, attribList, 0, configs, 0, configs.length, numConfigs, 0)
+                    || numConfigs[0] == 0) continue;
+            int[] contextAttribs = {
+                    EGL14.EGL_CONTEXT_CLIENT_VERSION, glesVersion,
+                    EGL14.EGL_NONE
+            };
+            EGLContext context = EGL14.eglCreateContext(mDisplay, configs[0], EGL14.EGL_NO_CONTEXT, contextAttribs, 0);
+            if (context != null && context != EGL14.EGL_NO_CONTEXT) {
+                mContext = context;
+                mGlesVersion = glesVersion;
+                config = configs[0];
+            }
+        }
+        if (config == null) throw new RuntimeException("unable to create an ES 2 context");
+        EGL14.eglGetError();
+
+        int[] surfaceAttribs = {
+                EGL14.EGL_WIDTH, width,
+                EGL14.EGL_HEIGHT, height,
+                EGL14.EGL_NONE
+        };
+        mSurface = EGL14.eglCreatePbufferSurface(mDisplay, config, surfaceAttribs, 0);
+        if (mSurface == null || mSurface == EGL14.EGL_NO_SURFACE) {
+            throw new RuntimeException("eglCreatePbufferSurface: EGL error: 0x" + Integer.toHexString(EGL14.eglGetError()));
+        }
+        if (!EGL14.eglMakeCurrent(mDisplay, mSurface, mSurface, mContext)) {
+            throw new RuntimeException("eglMakeCurrent: EGL error: 0x" + Integer.toHexString(EGL14.eglGetError()));
+        }
+        GLES20.glViewport(0, 0, width, height);
+    }
+
+    private void release() {
+        if (mDisplay != EGL14.EGL_NO_DISPLAY) {
+            EGL14.eglMakeCurrent(mDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+            if (mSurface != EGL14.EGL_NO_SURFACE) EGL14.eglDestroySurface(mDisplay, mSurface);
+            if (mContext != EGL14.EGL_NO_CONTEXT) EGL14.eglDestroyContext(mDisplay, mContext);
+            EGL14.eglReleaseThread();
+            EGL14.eglTerminate(mDisplay);
+        }
+        mDisplay = EGL14.EGL_NO_DISPLAY;
+        mContext = EGL14.EGL_NO_CONTEXT;
+        mSurface = EGL14.EGL_NO_SURFACE;
+    }
+}
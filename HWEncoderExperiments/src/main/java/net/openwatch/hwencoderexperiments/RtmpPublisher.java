@@ -0,0 +1,609 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Publishes the encoder output straight to an RTMP ingest server (nginx-rtmp, Wowza, YouTube
+ * Live, ...) over a single TCP connection, bypassing segment files entirely.
+ * <p/>
+ * Encoded samples are wrapped as FLV tag bodies (H.264 NAL units with length prefixes,
+ * raw AAC frames) on the drain threads and handed to a bounded RtmpSendQueue; a sender thread
+ * owns the socket.  When the uplink can't keep up the queue sheds disposable frames first.
+ * If the connection drops, the sender reconnects with exponential backoff, resends the
+ * sequence headers and resumes on the next keyframe.
+ * <p/>
+ * Only the parts of RTMP a publisher needs are implemented: the plain (unencrypted)
+ * handshake, connect / createStream / publish, and enough of the chunk stream and control
+ * messages to keep the server happy.
+ */
+public class RtmpPublisher implements EncodedSampleSink {
+    private static final Logger LOG = Logger.getLogger("RtmpPublisher");
+
+    private static final int DEFAULT_PORT = 1935;
+    private static final int HANDSHAKE_SIZE = 1536;
+    private static final int OUT_CHUNK_SIZE = 4096;
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int MIN_BACKOFF_MS = 500;
+    private static final int MAX_BACKOFF_MS = 30000;
+
+    // Message types
+    private static final int MSG_SET_CHUNK_SIZE = 1;
+    private static final int MSG_ACK = 3;
+    private static final int MSG_USER_CONTROL = 4;
+    private static final int MSG_WINDOW_ACK_SIZE = 5;
+    private static final int MSG_AUDIO = 8;
+    private static final int MSG_VIDEO = 9;
+    private static final int MSG_DATA_AMF0 = 18;
+    private static final int MSG_COMMAND_AMF0 = 20;
+
+    // Chunk stream ids
+    private static final int CSID_CONTROL = 2;
+    private static final int CSID_COMMAND = 3;
+    private static final int CSID_AUDIO = 4;
+    private static final int CSID_VIDEO = 6;
+
+    private static final int USER_CONTROL_PING_REQUEST = 6;
+    private static final int USER_CONTROL_PING_RESPONSE = 7;
+
+    private final String mHost;
+    private final int mPort;
+    private final String mApp;
+    private final String mStreamName;
+    private final String mTcUrl;
+
+    private final RtmpSendQueue mQueue;
+    private final TrackFormat[] mFormats = new TrackFormat[2];
+    private final ByteBuffer[] mScratch = {
+            ByteBuffer.allocateDirect(256 * 1024), ByteBuffer.allocateDirect(8 * 1024)
+    };
+    private volatile long mBaseTimeUs = -1;
+
+    private Thread mSenderThread;
+    private volatile boolean mRunning = false;
+    private volatile Socket mSocket;
+
+    // Connection state, owned by the sender thread
+    private OutputStream mOut;
+    // Also the write lock: held for a whole message, so the reader's replies fall between messages
+    private final byte[] mChunkHeader = new byte[18];
+    private final ByteBuffer mCommand = ByteBuffer.allocate(4096);
+    private int mStreamId;
+    private int mTransactionId;
+    private boolean mHeadersSent;
+
+    private volatile long mBytesSent = 0;
+    private volatile int mReconnects = 0;
+
+    /**
+     * @param url rtmp://host[:port]/app[/...]/streamName
+     * @param maxQueueBytes how much encoded media may wait for the socket before frames are
+     *                      dropped.  This bounds the added latency to roughly
+     *                      maxQueueBytes / bitrate.
+     */
+    public RtmpPublisher(String url, int maxQueueBytes) {
+        if (!url.startsWith("rtmp://")) throw new IllegalArgumentException("Not an rtmp:// url: " + url);
+        String rest = url.substring("rtmp://".length());
+        int slash = rest.indexOf('/');
+        int lastSlash = rest.lastIndexOf('/');
+        if (slash < 0 || lastSlash == slash) throw new IllegalArgumentException("Expected rtmp://host/app/stream: " + url);
+        String hostPort = rest.substring(0, slash);
+        int colon = hostPort.indexOf(':');
+        mHost = (colon < 0) ? hostPort : hostPort.substring(0, colon);
+        mPort = (colon < 0) ? DEFAULT_PORT : Integer.parseInt(hostPort.substring(colon + 1));
+        mApp = rest.substring(slash + 1, lastSlash);
+        mStreamName = rest.substring(lastSlash + 1);
+        mTcUrl = "rtmp://" + hostPort + "/" + mApp;
+        mQueue = new RtmpSendQueue(512, maxQueueBytes);
+    }
+
+    public synchronized void start() {
+        if (mRunning) return;
+        mRunning = true;
+        mSenderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sendLoop();
+            }
+        }, "rtmp sender");
+        mSenderThread.start();
+    }
+
+    public synchronized void stop() {
+        mRunning = false;
+        mQueue.close();
+        closeSocket();
+        if (mSenderThread != null) {
+            mSenderThread.interrupt();
+            mSenderThread = null;
+        }
+    }
+
+    @Override
+    public void setTrackFormat(int track, TrackFormat format) {
+        synchronized (mFormats) {
+            mFormats[track] = format;
+        }
+    }
+
+    /**
+     * Wraps the sample as an FLV tag body and queues it.  Called on the drain threads.
+     */
+    @Override
+    public void writeSampleData(int track, ByteBuffer data, long ptsUs, int flags) {
+        if (!mRunning) return;
+        if (mBaseTimeUs < 0) mBaseTimeUs = ptsUs;
+        int timestamp = (int) Math.max(0, (ptsUs - mBaseTimeUs) / 1000);
+        ByteBuffer body = mScratch[track];
+        body.clear();
+        if (track == TRACK_VIDEO) {
+            int needed = 5 + AvcUtils.avccSize(data);
+            if (body.capacity() < needed) body = mScratch[track] = ByteBuffer.allocateDirect(needed * 2);
+            boolean keyframe = (flags & Mp4Writer.FLAG_SYNC) != 0;
+            body.put((byte) (keyframe ? 0x17 : 0x27));     // frame type | AVC
+            body.put((byte) 1);                             // AVC NALU
+            body.put((byte) 0).put((byte) 0).put((byte) 0); // composition time
+            AvcUtils.annexBToAvcc(data, body);
+            body.flip();
+            int kind = keyframe ? RtmpSendQueue.KIND_KEYFRAME
+                    : AvcUtils.isReferencePicture(data) ? RtmpSendQueue.KIND_REFERENCE : RtmpSendQueue.KIND_DISPOSABLE;
+            mQueue.offer(MSG_VIDEO, kind, timestamp, body);
+        } else {
+            if (body.capacity() < 2 + data.remaining()) body = mScratch[track] = ByteBuffer.allocateDirect(2 * (2 + data.remaining()));
+            body.put((byte) 0xAF);  // AAC, 44kHz, 16 bit, stereo (fixed for AAC)
+            body.put((byte) 1);     // AAC raw
+            int position = data.position();
+            body.put(data);
+            data.position(position);
+            body.flip();
+            mQueue.offer(MSG_AUDIO, RtmpSendQueue.KIND_AUDIO, timestamp, body);
+        }
+    }
+
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    public int getReconnectCount() {
+        return mReconnects;
+    }
+
+    public long getQueuedBytes() {
+        return mQueue.queuedBytes();
+    }
+
+    public long getQueueHighWaterBytes() {
+        return mQueue.highWaterBytes();
+    }
+
+    public long getDroppedFrames() {
+        return mQueue.droppedFrames();
+    }
+
+    private void sendLoop() {
+        int backoffMs = MIN_BACKOFF_MS;
+        while (mRunning) {
+            try {
+                connect();
+                backoffMs = MIN_BACKOFF_MS;
+                drainQueue();
+            } catch (IOException e) {
+                if (mRunning) LOG.warning("RTMP connection to " + mHost + ":" + mPort + " lost: " + e.getMessage());
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                closeSocket();
+            }
+            if (!mRunning) break;
+            mReconnects++;
+            mQueue.requireKeyframe();
+            try {
+                Thread.sleep(backoffMs);
+            } catch (InterruptedException e) {
+                break;
+            }
+            backoffMs = Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+        }
+    }
+
+    private void drainQueue() throws IOException, InterruptedException {
+        while (mRunning) {
+            RtmpSendQueue.Message message = mQueue.peek();
+            if (message == null) return;
+            if (!mHeadersSent) sendSequenceHeaders(message.timestamp);
+            int csid = (message.type == MSG_VIDEO) ? CSID_VIDEO : CSID_AUDIO;
+            writeMessage(mOut, csid, message.type, mStreamId, message.timestamp, message.body);
+            mQueue.release();
+            if (mQueue.queuedBytes() == 0) flush(mOut);
+        }
+    }
+
+    private void connect() throws IOException {
+        LOG.info("Connecting to " + mTcUrl + " stream " + mStreamName);
+        Socket socket = new Socket();
+        mSocket = socket;
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(mHost, mPort), CONNECT_TIMEOUT_MS);
+        socket.setSoTimeout(CONNECT_TIMEOUT_MS);
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        mOut = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        mHeadersSent = false;
+        mTransactionId = 0;
+
+        handshake(in);
+        ChunkReader reader = new ChunkReader(socket, in, mOut);
+
+        writeControl(mOut, MSG_SET_CHUNK_SIZE, OUT_CHUNK_SIZE);
+
+        mCommand.clear();
+        Amf0.writeString(mCommand, "connect");
+        Amf0.writeNumber(mCommand, ++mTransactionId);
+        Amf0.writeObjectStart(mCommand);
+        Amf0.writeKey(mCommand, "app");
+        Amf0.writeString(mCommand, mApp);
+        Amf0.writeKey(mCommand, "type");
+        Amf0.writeString(mCommand, "nonprivate");
+        Amf0.writeKey(mCommand, "flashVer");
+        Amf0.writeString(mCommand, "FMLE/3.0 (compatible; HWEncoderExperiments)");
+        Amf0.writeKey(mCommand, "tcUrl");
+        Amf0.writeString(mCommand, mTcUrl);
+        Amf0.writeObjectEnd(mCommand);
+        sendCommand(0);
+        awaitResult(reader, mTransactionId);
+
+        mCommand.clear();
+        Amf0.writeString(mCommand, "createStream");
+        Amf0.writeNumber(mCommand, ++mTransactionId);
+        Amf0.writeNull(mCommand);
+        sendCommand(0);
+        List<Object> result = awaitResult(reader, mTransactionId);
+        mStreamId = (result.size() > 3 && result.get(3) instanceof Double) ? ((Double) result.get(3)).intValue() : 1;
+
+        mCommand.clear();
+        Amf0.writeString(mCommand, "publish");
+        Amf0.writeNumber(mCommand, 0);
+        Amf0.writeNull(mCommand);
+        Amf0.writeString(mCommand, mStreamName);
+        Amf0.writeString(mCommand, "live");
+        sendCommand(mStreamId);
+        awaitPublishStart(reader);
+
+        // From here on the server only sends control traffic; keep reading it so pings get
+        // answered and the server's send window never fills.
+        socket.setSoTimeout(0);
+        reader.startBackgroundReads();
+        LOG.info("Publishing " + mStreamName + " on stream " + mStreamId);
+    }
+
+    private void handshake(DataInputStream in) throws IOException {
+        byte[] c1 = new byte[HANDSHAKE_SIZE];
+        new Random().nextBytes(c1);
+        for (int i = 0; i < 8; i++) c1[i] = 0;      // time, zero
+        mOut.write(3);                              // C0: RTMP version 3
+        mOut.write(c1);
+        mOut.flush();
+
+        int version = in.readUnsignedByte();
+        if (version != 3) throw new IOException("Unexpected RTMP version " + version);
+        byte[] s1 = new byte[HANDSHAKE_SIZE];
+        in.readFully(s1);
+        mOut.write(s1);                             // C2 echoes S1
+        mOut.flush();
+        byte[] s2 = new byte[HANDSHAKE_SIZE];
+        in.readFully(s2);
+    }
+
+    private List<Object> awaitResult(ChunkReader reader, int transactionId) throws IOException {
+        while (true) {
+            List<Object> command = reader.readCommand();
+            String name = (String) command.get(0);
+            double txn = (command.size() > 1 && command.get(1) instanceof Double) ? (Double) command.get(1) : -1;
+            if (txn != transactionId) continue;
+            if ("_result".equals(name)) return command;
+            if ("_error".equals(name)) throw new IOException("RTMP command failed: " + command);
+        }
+    }
+
+    private void awaitPublishStart(ChunkReader reader) throws IOException {
+        while (true) {
+            List<Object> command = reader.readCommand();
+            if (!"onStatus".equals(command.get(0)) || command.size() < 4) continue;
+            Object info = command.get(3);
+            String code = (info instanceof Map) ? String.valueOf(((Map) info).get("code")) : "";
+            if ("NetStream.Publish.Start".equals(code)) return;
+            if (code.startsWith("NetStream.Publish.")) throw new IOException("Publish rejected: " + code);
+        }
+    }
+
+    private void sendSequenceHeaders(int timestamp) throws IOException {
+        TrackFormat video;
+        TrackFormat audio;
+        synchronized (mFormats) {
+            video = mFormats[TRACK_VIDEO];
+            audio = mFormats[TRACK_AUDIO];
+        }
+        mCommand.clear();
+        Amf0.writeString(mCommand, "@setDataFrame");
+        Amf0.writeString(mCommand, "onMetaData");
+        Amf0.writeEcmaArrayStart(mCommand, 0);
+        if (video != null) {
+            Amf0.writeKey(mCommand, "width");
+            Amf0.writeNumber(mCommand, video.width);
+            Amf0.writeKey(mCommand, "height");
+            Amf0.writeNumber(mCommand, video.height);
+            Amf0.writeKey(mCommand, "videocodecid");
+            Amf0.writeNumber(mCommand, 7);
+        }
+        if (audio != null) {
+            Amf0.writeKey(mCommand, "audiosamplerate");
+            Amf0.writeNumber(mCommand, audio.sampleRate);
+            Amf0.writeKey(mCommand, "audiocodecid");
+            Amf0.writeNumber(mCommand, 10);
+        }
+        Amf0.writeObjectEnd(mCommand);
+        mCommand.flip();
+        writeMessage(mOut, CSID_COMMAND, MSG_DATA_AMF0, mStreamId, 0, mCommand);
+
+        if (video != null) {
+            ByteBuffer header = ByteBuffer.allocate(16 + video.sps.length + video.pps.length);
+            header.put((byte) 0x17).put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 0);
+            header.put((byte) 1).put(video.sps[1]).put(video.sps[2]).put(video.sps[3]);
+            header.put((byte) 0xFF).put((byte) 0xE1).putShort((short) video.sps.length).put(video.sps);
+            header.put((byte) 1).putShort((short) video.pps.length).put(video.pps);
+            header.flip();
+            writeMessage(mOut, CSID_VIDEO, MSG_VIDEO, mStreamId, timestamp, header);
+        }
+        if (audio != null) {
+            ByteBuffer header = ByteBuffer.allocate(2 + audio.audioSpecificConfig.length);
+            header.put((byte) 0xAF).put((byte) 0).put(audio.audioSpecificConfig);
+            header.flip();
+            writeMessage(mOut, CSID_AUDIO, MSG_AUDIO, mStreamId, timestamp, header);
+        }
+        mHeadersSent = true;
+    }
+
+    private void sendCommand(int streamId) throws IOException {
+        mCommand.flip();
+        writeMessage(mOut, CSID_COMMAND, MSG_COMMAND_AMF0, streamId, 0, mCommand);
+        flush(mOut);
+    }
+
+    private void writeControl(OutputStream out, int type, int value) throws IOException {
+        ByteBuffer body = ByteBuffer.allocate(4);
+        body.putInt(0, value);
+        writeMessage(out, CSID_CONTROL, type, 0, 0, body);
+    }
+
+    private void flush(OutputStream out) throws IOException {
+        synchronized (mChunkHeader) {
+            out.flush();
+        }
+    }
+
+    /**
+     * Writes one message to out as a type 0 chunk followed by type 3 continuation chunks.
+     * Called from the sender thread, and from the reader thread for control replies on the
+     * connection it reads.
+     */
+    private void writeMessage(OutputStream out, int csid, int type, int streamId, int timestamp, ByteBuffer body)
+            throws IOException {
+        synchronized (mChunkHeader) {
+            int length = body.remaining();
+            boolean extended = timestamp >= 0xFFFFFF;
+            byte[] h = mChunkHeader;
+            h[0] = (byte) csid;     // fmt 0
+            putInt24(h, 1, extended ? 0xFFFFFF : timestamp);
+            putInt24(h, 4, length);
+            h[7] = (byte) type;
+            h[8] = (byte) streamId;
+            h[9] = (byte) (streamId >> 8);
+            h[10] = (byte) (streamId >> 16);
+            h[11] = (byte) (streamId >> 24);
+            int headerLength = 12;
+            if (extended) {
+                putInt32(h, 12, timestamp);
+                headerLength = 16;
+            }
+            out.write(h, 0, headerLength);
+
+            int position = body.position();
+            int written = 0;
+            while (written < length) {
+                if (written > 0) {
+                    out.write(0xC0 | csid);     // fmt 3
+                    if (extended) out.write(h, 12, 4);
+                }
+                int chunk = Math.min(OUT_CHUNK_SIZE, length - written);
+                writeBody(out, body, position + written, chunk);
+                written += chunk;
+            }
+            mBytesSent += headerLength + length;
+        }
+    }
+
+    private final byte[] mCopyBuffer = new byte[OUT_CHUNK_SIZE];
+
+    private void writeBody(OutputStream out, ByteBuffer body, int offset, int length) throws IOException {
+        if (body.hasArray()) {
+            out.write(body.array(), body.arrayOffset() + offset, length);
+            return;
+        }
+        ByteBuffer view = body.duplicate();
+        view.position(offset);
+        view.get(mCopyBuffer, 0, length);
+        out.write(mCopyBuffer, 0, length);
+    }
+
+    private void closeSocket() {
+        Socket socket = mSocket;
+        mSocket = null;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private static void putInt24(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >> 16);
+        b[offset + 1] = (byte) (value >> 8);
+        b[offset + 2] = (byte) value;
+    }
+
+    private static void putInt32(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >> 24);
+        putInt24(b, offset + 1, value);
+    }
+
+    /**
+     * Reassembles incoming chunk streams into messages and handles protocol control.
+     */
+    private class ChunkReader {
+        private final Socket mReaderSocket;
+        private final DataInputStream mIn;
+        private final OutputStream mReaderOut;     // the same connection's output
+        private final Map<Integer, ChunkState> mStreams = new HashMap<Integer, ChunkState>();
+        private int mChunkSize = 128;
+        private long mBytesRead = 0;
+        private long mLastAck = 0;
+        private int mWindowAckSize = Integer.MAX_VALUE;
+
+        ChunkReader(Socket socket, InputStream in, OutputStream out) {
+            mReaderSocket = socket;
+            mIn = new DataInputStream(in);
+            mReaderOut = out;
+        }
+
+        /**
+         * Reads until the next AMF0 command, handling control messages along the way.
+         */
+        List<Object> readCommand() throws IOException {
+            while (true) {
+                ChunkState message = readMessage();
+                if (message.type == MSG_COMMAND_AMF0) {
+                    ByteBuffer body = ByteBuffer.wrap(message.buffer, 0, message.length);
+                    List<Object> command = Amf0.readAll(body);
+                    LOG.fine("received " + command);
+                    if (!command.isEmpty() && command.get(0) instanceof String) return command;
+                }
+            }
+        }
+
+        void startBackgroundReads() {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (mRunning && mSocket == mReaderSocket) readMessage();
+                    } catch (IOException e) {
+                        // The sender notices the dead socket on its next write
+                        if (mSocket == mReaderSocket) closeSocket();
+                    }
+                }
+            }, "rtmp reader").start();
+        }
+
+        private ChunkState readMessage() throws IOException {
+            while (true) {
+                int basic = read8();
+                int fmt = basic >> 6;
+                int csid = basic & 0x3F;
+                if (csid == 0) csid = 64 + read8();
+                else if (csid == 1) csid = 64 + read8() + (read8() << 8);
+
+                ChunkState state = mStreams.get(csid);
+                if (state == null) {
+                    state = new ChunkState();
+                    mStreams.put(csid, state);
+                }
+                if (fmt <= 2) {
+                    int timestamp = read24();
+                    if (fmt <= 1) {
+                        state.length = read24();
+                        state.type = read8();
+                        if (fmt == 0) {
+                            state.streamId = read8() | (read8() << 8) | (read8() << 16) | (read8() << 24);
+                        }
+                    }
+                    state.extended = timestamp == 0xFFFFFF;
+                }
+                if (state.extended) {
+                    mIn.readInt();
+                    mBytesRead += 4;
+                }
+                if (state.received == 0 && state.buffer.length < state.length) {
+                    state.buffer = new byte[state.length];
+                }
+                int chunk = Math.min(mChunkSize, state.length - state.received);
+                mIn.readFully(state.buffer, state.received, chunk);
+                mBytesRead += chunk;
+                state.received += chunk;
+                acknowledge();
+                if (state.received < state.length) continue;
+
+                state.received = 0;
+                handleControl(state);
+                return state;
+            }
+        }
+
+        private void handleControl(ChunkState message) throws IOException {
+            ByteBuffer body = ByteBuffer.wrap(message.buffer, 0, message.length);
+            switch (message.type) {
+                case MSG_SET_CHUNK_SIZE:
+                    mChunkSize = body.getInt() & 0x7FFFFFFF;
+                    break;
+                case MSG_WINDOW_ACK_SIZE:
+                    mWindowAckSize = body.getInt();
+                    break;
+                case MSG_USER_CONTROL:
+                    if (message.length >= 6 && body.getShort(0) == USER_CONTROL_PING_REQUEST) {
+                        ByteBuffer pong = ByteBuffer.allocate(6);
+                        pong.putShort((short) USER_CONTROL_PING_RESPONSE).putInt(body.getInt(2)).flip();
+                        writeMessage(mReaderOut, CSID_CONTROL, MSG_USER_CONTROL, 0, 0, pong);
+                        flush(mReaderOut);
+                    }
+                    break;
+            }
+        }
+
+        private void acknowledge() throws IOException {
+            if (mBytesRead - mLastAck < mWindowAckSize / 2) return;
+            mLastAck = mBytesRead;
+            writeControl(mReaderOut, MSG_ACK, (int) mBytesRead);
+            flush(mReaderOut);
+        }
+
+        private int read8() throws IOException {
+            int b = mIn.read();
+            if (b < 0) throw new EOFException("RTMP server closed the connection");
+            mBytesRead++;
+            return b;
+        }
+
+        private int read24() throws IOException {
+            return (read8() << 16) | (read8() << 8) | read8();
+        }
+    }
+
+    private static class ChunkState {
+        int length;
+        int type;
+        int streamId;
+        boolean extended;
+        int received;
+        byte[] buffer = new byte[256];
+    }
+}
@@ -0,0 +1,190 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bounded single-consumer queue of RTMP media messages between the encoder drain threads
+ * and the socket writer.
+ * <p/>
+ * Slots and their bodies are preallocated and reused, so steady-state queuing doesn't
+ * allocate.  When the byte budget is exceeded (the uplink can't keep up) frames are shed in
+ * order of how little decoding depends on them:
+ * <ol>
+ * <li>queued disposable video frames (nal_ref_idc 0), oldest first</li>
+ * <li>the incoming frame.  If it was a reference frame, video is then skipped until the
+ * next keyframe, since everything in between would be undecodable.  An incoming keyframe
+ * instead discards all queued video: it supersedes the stale GOP.</li>
+ * </ol>
+ */
+class RtmpSendQueue {
+    static final int KIND_AUDIO = 0;
+    static final int KIND_KEYFRAME = 1;
+    static final int KIND_REFERENCE = 2;
+    static final int KIND_DISPOSABLE = 3;
+
+    static class Message {
+        int type;
+        int timestamp;
+        int kind;
+        boolean dropped;
+        ByteBuffer body = ByteBuffer.allocateDirect(16 * 1024);
+    }
+
+    private final Message[] mSlots;
+    private final long mMaxBytes;
+    private int mHead = 0;
+    private int mCount = 0;
+    private long mQueuedBytes = 0;
+    private boolean mSkipUntilKeyframe = false;
+    private boolean mClosed = false;
+
+    private long mDroppedFrames = 0;
+    private long mDroppedBytes = 0;
+    private long mHighWaterBytes = 0;
+
+    RtmpSendQueue(int slots, long maxBytes) {
+        mSlots = new Message[slots];
+        for (int i = 0; i < slots; i++) mSlots[i] = new Message();
+        mMaxBytes = maxBytes;
+    }
+
+    static boolean isVideo(int kind) {
+        return kind != KIND_AUDIO;
+    }
+
+    /**
+     * Copies body[position, limit) into the queue, applying the congestion policy.
+     *
+     * @return false if the message was dropped
+     */
+    synchronized boolean offer(int type, int kind, int timestamp, ByteBuffer body) {
+        int size = body.remaining();
+        if (isVideo(kind) && mSkipUntilKeyframe) {
+            if (kind != KIND_KEYFRAME) return drop(size);
+            mSkipUntilKeyframe = false;
+        }
+        if (kind == KIND_KEYFRAME && !fits(size)) {
+            dropQueued(KIND_KEYFRAME);
+        }
+        while (!fits(size)) {
+            if (!dropQueued(KIND_DISPOSABLE)) {
+                if (kind == KIND_KEYFRAME || kind == KIND_REFERENCE) mSkipUntilKeyframe = true;
+                return drop(size);
+            }
+        }
+
+        Message message = mSlots[(mHead + mCount) % mSlots.length];
+        if (message.body.capacity() < size) {
+            message.body = ByteBuffer.allocateDirect(Math.max(size, message.body.capacity() * 2));
+        }
+        message.body.clear();
+        int position = body.position();
+        message.body.put(body);
+        body.position(position);
+        message.body.flip();
+        message.type = type;
+        message.kind = kind;
+        message.timestamp = timestamp;
+        message.dropped = false;
+        mCount++;
+        mQueuedBytes += size;
+        mHighWaterBytes = Math.max(mHighWaterBytes, mQueuedBytes);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Blocks until a message is available and returns it without removing it.  The caller
+     * sends it and then calls release().  Returns null once closed.
+     */
+    synchronized Message peek() throws InterruptedException {
+        while (true) {
+            while (mCount > 0 && mSlots[mHead].dropped) advance();
+            if (mCount > 0) return mSlots[mHead];
+            if (mClosed) return null;
+            wait();
+        }
+    }
+
+    synchronized void release() {
+        Message message = mSlots[mHead];
+        if (!message.dropped) mQueuedBytes -= message.body.limit();
+        advance();
+    }
+
+    /**
+     * After a reconnect the server has none of the frames the queued ones refer to: drop
+     * queued video up to the next queued keyframe, or until one arrives.
+     */
+    synchronized void requireKeyframe() {
+        for (int i = 0; i < mCount; i++) {
+            Message message = mSlots[(mHead + i) % mSlots.length];
+            if (message.dropped || !isVideo(message.kind)) continue;
+            if (message.kind == KIND_KEYFRAME) return;
+            markDropped(message);
+        }
+        mSkipUntilKeyframe = true;
+    }
+
+    synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+    synchronized long queuedBytes() {
+        return mQueuedBytes;
+    }
+
+    synchronized long highWaterBytes() {
+        return mHighWaterBytes;
+    }
+
+    synchronized long droppedFrames() {
+        return mDroppedFrames;
+    }
+
+    synchronized long droppedBytes() {
+        return mDroppedBytes;
+    }
+
+    private boolean fits(int size) {
+        return mCount < mSlots.length && mQueuedBytes + size <= mMaxBytes;
+    }
+
+    /**
+     * Drops the oldest queued video message of the given kind, or with KIND_KEYFRAME, all
+     * queued video.  The head slot is skipped as the sender may be writing it.
+     */
+    private boolean dropQueued(int kind) {
+        boolean droppedAny = false;
+        for (int i = 1; i < mCount; i++) {
+            Message message = mSlots[(mHead + i) % mSlots.length];
+            if (message.dropped || !isVideo(message.kind)) continue;
+            if (kind == KIND_KEYFRAME || message.kind == kind) {
+                markDropped(message);
+                droppedAny = true;
+                if (kind != KIND_KEYFRAME) break;
+            }
+        }
+        // Dropped slots still count against mCount until the sender passes them
+        return droppedAny;
+    }
+
+    private void markDropped(Message message) {
+        message.dropped = true;
+        mQueuedBytes -= message.body.limit();
+        mDroppedFrames++;
+        mDroppedBytes += message.body.limit();
+    }
+
+    private boolean drop(int size) {
+        mDroppedFrames++;
+        mDroppedBytes += size;
+        return false;
+    }
+
+    private void advance() {
+        mHead = (mHead + 1) % mSlots.length;
+        mCount--;
+    }
+}
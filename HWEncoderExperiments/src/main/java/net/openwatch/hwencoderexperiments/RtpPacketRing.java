@@ -0,0 +1,119 @@
+package net.openwatch.hwencoderexperiments;
+
+/**
+ * Fixed-size ring of finished RTP packets, written once by the packetizer and read by every
+ * connected client.
+ * <p/>
+ * Packets live back to back in one byte[] with a fixed slot stride.  A client copies a
+ * packet out of its slot and then checks intact(seq) before sending the copy: the producer
+ * never waits for readers, so a slot can be rewritten while it is being read.  Each client only keeps
+ * a cursor (a packet sequence number); how far that cursor trails the write sequence is the
+ * client's send queue.  A client that trails by more than the ring's capacity has lost
+ * packets to overwrite and must resynchronize on a keyframe.
+ */
+class RtpPacketRing {
+    static final int SLOT_SIZE = 1500;
+
+    private final byte[] mArena;
+    private final int[] mLengths;
+    private final byte[] mTracks;
+    private final int mMask;
+
+    // Published with a volatile write after the slot is filled; read without locking
+    private volatile long mWriteSeq = 0;
+    private volatile long mLastKeyframeSeq = -1;
+
+    /**
+     * @param capacity number of packets retained; rounded up to a power of two
+     */
+    RtpPacketRing(int capacity) {
+        int slots = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mMask = slots - 1;
+        mArena = new byte[slots * SLOT_SIZE];
+        mLengths = new int[slots];
+        mTracks = new byte[slots];
+    }
+
+    int capacity() {
+        return mMask + 1;
+    }
+
+    byte[] arena() {
+        return mArena;
+    }
+
+    int offset(long seq) {
+        return (int) (seq & mMask) * SLOT_SIZE;
+    }
+
+    int length(long seq) {
+        return mLengths[(int) (seq & mMask)];
+    }
+
+    int track(long seq) {
+        return mTracks[(int) (seq & mMask)];
+    }
+
+    /**
+     * Offset at which the producer should build the next packet.
+     */
+    int nextOffset() {
+        return offset(mWriteSeq);
+    }
+
+    /**
+     * Makes the packet built at nextOffset() visible to readers.  Producer only.
+     */
+    void commit(int track, int length, boolean keyframeStart) {
+        long seq = mWriteSeq;
+        int slot = (int) (seq & mMask);
+        mLengths[slot] = length;
+        mTracks[slot] = (byte) track;
+        if (keyframeStart) mLastKeyframeSeq = seq;
+        mWriteSeq = seq + 1;
+    }
+
+    /**
+     * Wakes readers blocked in awaitPackets.  Called once per access unit, not per packet.
+     */
+    synchronized void signal() {
+        notifyAll();
+    }
+
+    long writeSeq() {
+        return mWriteSeq;
+    }
+
+    /**
+     * Whether packet seq still hasn't been overwritten.  Called after copying the packet
+     * out: the producer builds packet seq + capacity in the same slot only once the write
+     * sequence has reached it.
+     */
+    boolean intact(long seq) {
+        return mWriteSeq - seq < capacity();
+    }
+
+    /**
+     * Where a newly joined client should start: the most recent keyframe, so its decoder
+     * can start immediately.
+     */
+    long joinSeq() {
+        long keyframe = mLastKeyframeSeq;
+        long write = mWriteSeq;
+        return (keyframe >= 0 && write - keyframe < capacity()) ? keyframe : write;
+    }
+
+    /**
+     * Blocks until the write sequence passes cursor or the timeout elapses, and returns it.
+     */
+    long awaitPackets(long cursor, long timeoutMs) throws InterruptedException {
+        long write = mWriteSeq;
+        if (write > cursor) return write;
+        synchronized (this) {
+            write = mWriteSeq;
+            if (write > cursor) return write;
+            wait(timeoutMs);
+        }
+        return mWriteSeq;
+    }
+}
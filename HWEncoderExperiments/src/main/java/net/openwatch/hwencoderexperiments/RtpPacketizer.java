@@ -0,0 +1,234 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Turns encoded samples into RTP packets, once, directly into an RtpPacketRing.
+ * <ul>
+ * <li>H.264 per RFC 6184, packetization-mode 1: NAL units that fit are sent as single NAL
+ * unit packets, larger ones as FU-A fragments.  SPS and PPS are repeated in-band before
+ * every IDR so clients can join at any keyframe.</li>
+ * <li>AAC per RFC 3640 (mpeg4-generic, AAC-hbr): one access unit per packet behind a
+ * single 16 bit AU header.</li>
+ * </ul>
+ * Sequence numbers and SSRCs are shared by all clients, which is what lets one packetization
+ * pass serve everybody.
+ */
+class RtpPacketizer {
+    static final int PAYLOAD_TYPE_H264 = 96;
+    static final int PAYLOAD_TYPE_AAC = 97;
+    static final int MAX_PACKET_SIZE = 1400;   // RTP header + payload; stays under common MTUs
+
+    private static final int RTP_HEADER_SIZE = 12;
+    private static final int NAL_TYPE_FU_A = 28;
+
+    private final RtpPacketRing mRing;
+    private final int[] mSsrc = new int[2];
+    private final int[] mSequence = new int[2];
+    private final int[] mTimestampBase = new int[2];
+    private final int[] mClockRate = {90000, 44100};
+    private final TrackFormat[] mFormats = new TrackFormat[2];
+
+    // Latest (wall clock, RTP time) pair per track, for RTCP sender reports
+    private final long[] mLastWallClockMs = new long[2];
+    private final int[] mLastRtpTime = new int[2];
+    private final long[] mPacketCount = new long[2];
+    private final long[] mOctetCount = new long[2];
+
+    RtpPacketizer(RtpPacketRing ring) {
+        mRing = ring;
+        Random random = new Random();
+        for (int i = 0; i < 2; i++) {
+            mSsrc[i] = random.nextInt();
+            mSequence[i] = random.nextInt(0x10000);
+            mTimestampBase[i] = random.nextInt();
+        }
+    }
+
+    synchronized void setTrackFormat(int track, TrackFormat format) {
+        mFormats[track] = format;
+        if (format.isAudio()) mClockRate[track] = format.sampleRate;
+    }
+
+    synchronized TrackFormat format(int track) {
+        return mFormats[track];
+    }
+
+    synchronized int clockRate(int track) {
+        return mClockRate[track];
+    }
+
+    int ssrc(int track) {
+        return mSsrc[track];
+    }
+
+    /**
+     * Sequence number the next packet of this track will carry, for RTP-Info.
+     */
+    synchronized int nextSequence(int track) {
+        return mSequence[track] & 0xFFFF;
+    }
+
+    synchronized int rtpTime(int track, long ptsUs) {
+        return mTimestampBase[track] + (int) (ptsUs * mClockRate[track] / 1000000);
+    }
+
+    /**
+     * Fills a 28 byte RTCP sender report for the track into out and returns its length, or
+     * 0 if the track hasn't produced any packets yet.
+     */
+    synchronized int writeSenderReport(int track, byte[] out, int offset) {
+        if (mLastWallClockMs[track] == 0) return 0;
+        long nowMs = System.currentTimeMillis();
+        int rtpNow = mLastRtpTime[track] + (int) ((nowMs - mLastWallClockMs[track]) * mClockRate[track] / 1000);
+        long ntpSeconds = nowMs / 1000 + 2208988800L;   // NTP epoch is 1900
+        long ntpFraction = ((nowMs % 1000) << 32) / 1000;
+        out[offset] = (byte) 0x80;
+        out[offset + 1] = (byte) 200;                   // SR
+        putShort(out, offset + 2, 6);                   // length in words - 1
+        putInt(out, offset + 4, mSsrc[track]);
+        putInt(out, offset + 8, (int) ntpSeconds);
+        putInt(out, offset + 12, (int) ntpFraction);
+        putInt(out, offset + 16, rtpNow);
+        putInt(out, offset + 20, (int) mPacketCount[track]);
+        putInt(out, offset + 24, (int) mOctetCount[track]);
+        return 28;
+    }
+
+    /**
+     * Packetizes one Annex-B access unit.  data is left untouched.
+     */
+    synchronized void packetizeVideo(ByteBuffer data, long ptsUs, boolean keyframe) {
+        int timestamp = rtpTime(EncodedSampleSink.TRACK_VIDEO, ptsUs);
+        TrackFormat format = mFormats[EncodedSampleSink.TRACK_VIDEO];
+        boolean first = true;
+        if (keyframe && format != null && format.sps != null && format.pps != null) {
+            sendParameterSet(format.sps, timestamp, true);
+            sendParameterSet(format.pps, timestamp, false);
+            first = false;
+        }
+        int limit = data.limit();
+        int nal = -1;
+        if (AvcUtils.isAnnexB(data)) {
+            nal = AvcUtils.nextNalStart(data, data.position(), limit);
+        } else if (data.hasRemaining()) {
+            // Already a bare NAL unit
+            sendNal(data, data.position(), limit, timestamp, true, first && keyframe);
+        }
+        while (nal >= 0 && nal < limit) {
+            int end = AvcUtils.nalEnd(data, nal, limit);
+            int next = AvcUtils.nextNalStart(data, end, limit);
+            boolean last = next < 0;
+            int type = AvcUtils.nalType(data.get(nal));
+            // Parameter sets are repeated above; MediaCodec's access unit delimiters aren't needed
+            if (type != AvcUtils.NAL_TYPE_AUD && !(keyframe && (type == AvcUtils.NAL_TYPE_SPS || type == AvcUtils.NAL_TYPE_PPS))) {
+                sendNal(data, nal, end, timestamp, last, first && keyframe);
+                first = false;
+            }
+            nal = next;
+        }
+        track(EncodedSampleSink.TRACK_VIDEO, timestamp);
+        mRing.signal();
+    }
+
+    /**
+     * Packetizes one raw AAC frame.  data is left untouched.
+     */
+    synchronized void packetizeAudio(ByteBuffer data, long ptsUs) {
+        int size = data.remaining();
+        if (RTP_HEADER_SIZE + 4 + size > RtpPacketRing.SLOT_SIZE) return;  // can't happen at our bitrates
+        int timestamp = rtpTime(EncodedSampleSink.TRACK_AUDIO, ptsUs);
+        byte[] arena = mRing.arena();
+        int offset = mRing.nextOffset();
+        writeHeader(arena, offset, EncodedSampleSink.TRACK_AUDIO, PAYLOAD_TYPE_AAC, timestamp, true);
+        int p = offset + RTP_HEADER_SIZE;
+        putShort(arena, p, 16);             // AU-headers-length in bits
+        putShort(arena, p + 2, size << 3);  // AU-size (13 bits), AU-index 0
+        copy(data, data.position(), size, arena, p + 4);
+        commit(EncodedSampleSink.TRACK_AUDIO, RTP_HEADER_SIZE + 4 + size, false);
+        track(EncodedSampleSink.TRACK_AUDIO, timestamp);
+        mRing.signal();
+    }
+
+    private void sendParameterSet(byte[] nal, int timestamp, boolean keyframeStart) {
+        byte[] arena = mRing.arena();
+        int offset = mRing.nextOffset();
+        writeHeader(arena, offset, EncodedSampleSink.TRACK_VIDEO, PAYLOAD_TYPE_H264, timestamp, false);
+        System.arraycopy(nal, 0, arena, offset + RTP_HEADER_SIZE, nal.length);
+        commit(EncodedSampleSink.TRACK_VIDEO, RTP_HEADER_SIZE + nal.length, keyframeStart);
+    }
+
+    private void sendNal(ByteBuffer data, int start, int end, int timestamp, boolean lastOfAccessUnit, boolean keyframeStart) {
+        byte[] arena = mRing.arena();
+        int size = end - start;
+        int maxPayload = MAX_PACKET_SIZE - RTP_HEADER_SIZE;
+        if (size <= maxPayload) {
+            int offset = mRing.nextOffset();
+            writeHeader(arena, offset, EncodedSampleSink.TRACK_VIDEO, PAYLOAD_TYPE_H264, timestamp, lastOfAccessUnit);
+            copy(data, start, size, arena, offset + RTP_HEADER_SIZE);
+            commit(EncodedSampleSink.TRACK_VIDEO, RTP_HEADER_SIZE + size, keyframeStart);
+            return;
+        }
+        // FU-A: the NAL header is split into the FU indicator and FU header
+        byte header = data.get(start);
+        int maxFragment = maxPayload - 2;
+        int position = start + 1;
+        while (position < end) {
+            int fragment = Math.min(maxFragment, end - position);
+            boolean firstFragment = position == start + 1;
+            boolean lastFragment = position + fragment == end;
+            int offset = mRing.nextOffset();
+            writeHeader(arena, offset, EncodedSampleSink.TRACK_VIDEO, PAYLOAD_TYPE_H264, timestamp, lastOfAccessUnit && lastFragment);
+            int p = offset + RTP_HEADER_SIZE;
+            arena[p] = (byte) ((header & 0xE0) | NAL_TYPE_FU_A);
+            arena[p + 1] = (byte) ((firstFragment ? 0x80 : 0) | (lastFragment ? 0x40 : 0) | (header & 0x1F));
+            copy(data, position, fragment, arena, p + 2);
+            commit(EncodedSampleSink.TRACK_VIDEO, RTP_HEADER_SIZE + 2 + fragment, keyframeStart && firstFragment);
+            position += fragment;
+        }
+    }
+
+    private void writeHeader(byte[] out, int offset, int track, int payloadType, int timestamp, boolean marker) {
+        out[offset] = (byte) 0x80;  // version 2
+        out[offset + 1] = (byte) ((marker ? 0x80 : 0) | payloadType);
+        putShort(out, offset + 2, mSequence[track]++);
+        putInt(out, offset + 4, timestamp);
+        putInt(out, offset + 8, mSsrc[track]);
+    }
+
+    private void commit(int track, int length, boolean keyframeStart) {
+        mPacketCount[track]++;
+        mOctetCount[track] += length - RTP_HEADER_SIZE;
+        mRing.commit(track, length, keyframeStart);
+    }
+
+    private void track(int track, int rtpTime) {
+        mLastWallClockMs[track] = System.currentTimeMillis();
+        mLastRtpTime[track] = rtpTime;
+    }
+
+    private static void copy(ByteBuffer src, int from, int length, byte[] dst, int offset) {
+        if (src.hasArray()) {
+            System.arraycopy(src.array(), src.arrayOffset() + from, dst, offset, length);
+            return;
+        }
+        // Bulk relative get, restoring the caller's position afterwards
+        int position = src.position();
+        src.position(from);
+        src.get(dst, offset, length);
+        src.position(position);
+    }
+
+    static void putShort(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >> 8);
+        b[offset + 1] = (byte) value;
+    }
+
+    static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >> 24);
+        b[offset + 1] = (byte) (value >> 16);
+        b[offset + 2] = (byte) (value >> 8);
+        b[offset + 3] = (byte) value;
+    }
+}
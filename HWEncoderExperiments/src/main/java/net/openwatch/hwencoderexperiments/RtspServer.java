@@ -0,0 +1,635 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Minimal RTSP server for watching the live encoder output on the local network with
+ * sub-second latency (VLC, ffplay, gstreamer: rtsp://device:8554/live).
+ * <p/>
+ * Samples are packetized exactly once by an RtpPacketizer into a shared RtpPacketRing.  Each
+ * playing client has a sender thread that walks the ring with its own cursor, copies each
+ * packet out of the ring's arena and sends it over UDP (RTP/AVP) or interleaved on the RTSP
+ * connection (RTP/AVP/TCP), so fan-out costs a 1.5 KB copy per packet beyond the socket write.
+ * Clients join at the most recent keyframe.  A client that falls a full ring behind is moved
+ * forward to the next keyframe rather than being fed a broken GOP; so is one whose packet was
+ * overwritten while it was being copied, which is only checked after the copy.
+ * <p/>
+ * Implements OPTIONS, DESCRIBE, SETUP, PLAY, TEARDOWN and GET_PARAMETER (keepalive); one
+ * stream, any path.
+ */
+public class RtspServer implements EncodedSampleSink {
+    private static final Logger LOG = Logger.getLogger("RtspServer");
+
+    public static final int DEFAULT_PORT = 8554;
+    private static final int DEFAULT_RING_PACKETS = 4096;        // ~5 MB, several seconds at LAN bitrates
+    private static final int RESYNC_MARGIN_PACKETS = 64;         // resync this far before the producer laps a client
+    private static final int SENDER_REPORT_INTERVAL_MS = 1000;
+
+    private final int mPort;
+    private final RtpPacketRing mRing;
+    private final RtpPacketizer mPacketizer;
+    private final List<Session> mSessions = new CopyOnWriteArrayList<Session>();
+    private final DatagramSocket[] mRtpSockets = new DatagramSocket[2];
+    private final DatagramSocket[] mRtcpSockets = new DatagramSocket[2];
+    private final Random mRandom = new Random();
+
+    private ServerSocket mServerSocket;
+    private Thread mAcceptThread;
+    private volatile boolean mRunning = false;
+
+    /**
+     * Per-client view of the send path.  queuedPackets is how far the client's cursor trails
+     * the packetizer; resyncs counts the times it fell a full ring behind and skipped
+     * skippedPackets to catch up.
+     */
+    public static class ClientStats {
+        public final String address;
+        public final boolean interleaved;
+        public final long packetsSent;
+        public final long bytesSent;
+        public final long queuedPackets;
+        public final long maxQueuedPackets;
+        public final long resyncs;
+        public final long skippedPackets;
+
+        ClientStats(Session session) {
+            address = session.mAddress;
+            interleaved = session.mInterleaved;
+            packetsSent = session.mPacketsSent;
+            bytesSent = session.mBytesSent;
+            queuedPackets = session.mQueuedPackets;
+            maxQueuedPackets = session.mMaxQueuedPackets;
+            resyncs = session.mResyncs;
+            skippedPackets = session.mSkippedPackets;
+        }
+
+        @Override
+        public String toString() {
+            return address + (interleaved ? " tcp" : " udp") + " sent " + packetsSent + " packets / " + bytesSent
+                    + " bytes, queued " + queuedPackets + " (max " + maxQueuedPackets + "), resyncs " + resyncs
+                    + " (" + skippedPackets + " packets skipped)";
+        }
+    }
+
+    public RtspServer(int port) {
+        this(port, DEFAULT_RING_PACKETS);
+    }
+
+    /**
+     * @param port TCP port for RTSP, or 0 for any free port (see getPort())
+     * @param ringPackets how many packets clients may trail the encoder by before they're
+     *                    resynchronized
+     */
+    public RtspServer(int port, int ringPackets) {
+        mPort = port;
+        mRing = new RtpPacketRing(ringPackets);
+        mPacketizer = new RtpPacketizer(mRing);
+    }
+
+    public synchronized void start() throws IOException {
+        if (mRunning) return;
+        mServerSocket = new ServerSocket(mPort);
+        for (int track = 0; track < 2; track++) bindRtpPair(track);
+        mRunning = true;
+        mAcceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "rtsp accept");
+        mAcceptThread.start();
+        LOG.info("RTSP server listening on port " + getPort());
+    }
+
+    public synchronized void stop() {
+        mRunning = false;
+        closeQuietly(mServerSocket);
+        for (Session session : mSessions) session.close();
+        mSessions.clear();
+        for (int track = 0; track < 2; track++) {
+            if (mRtpSockets[track] != null) mRtpSockets[track].close();
+            if (mRtcpSockets[track] != null) mRtcpSockets[track].close();
+        }
+        if (mAcceptThread != null) {
+            mAcceptThread.interrupt();
+            mAcceptThread = null;
+        }
+        mRing.signal();
+    }
+
+    public int getPort() {
+        ServerSocket serverSocket = mServerSocket;
+        return (serverSocket == null) ? mPort : serverSocket.getLocalPort();
+    }
+
+    public List<ClientStats> getClientStats() {
+        List<ClientStats> stats = new ArrayList<ClientStats>();
+        for (Session session : mSessions) stats.add(new ClientStats(session));
+        return stats;
+    }
+
+    @Override
+    public void setTrackFormat(int track, TrackFormat format) {
+        mPacketizer.setTrackFormat(track, format);
+    }
+
+    /**
+     * Packetizes the sample into the shared ring.  Called on the drain threads; packetizing
+     * continues with no clients connected so a joining client can start on a keyframe at once.
+     */
+    @Override
+    public void writeSampleData(int track, ByteBuffer data, long ptsUs, int flags) {
+        if (!mRunning) return;
+        if (track == TRACK_VIDEO) {
+            mPacketizer.packetizeVideo(data, ptsUs, (flags & Mp4Writer.FLAG_SYNC) != 0);
+        } else {
+            mPacketizer.packetizeAudio(data, ptsUs);
+        }
+    }
+
+    private void bindRtpPair(int track) throws SocketException {
+        // RTP on an even port with RTCP on the next one, as clients expect
+        for (int attempt = 0; attempt < 20; attempt++) {
+            int port = 50000 + 2 * mRandom.nextInt(5000);
+            DatagramSocket rtp = null;
+            try {
+                rtp = new DatagramSocket(port);
+                mRtcpSockets[track] = new DatagramSocket(port + 1);
+                mRtpSockets[track] = rtp;
+                return;
+            } catch (SocketException e) {
+                if (rtp != null) rtp.close();
+            }
+        }
+        mRtpSockets[track] = new DatagramSocket();
+        mRtcpSockets[track] = new DatagramSocket();
+    }
+
+    private void acceptLoop() {
+        while (mRunning) {
+            try {
+                Socket socket = mServerSocket.accept();
+                socket.setTcpNoDelay(true);
+                final Session session = new Session(socket);
+                mSessions.add(session);
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        session.serve();
+                    }
+                }, "rtsp " + session.mAddress).start();
+            } catch (IOException e) {
+                if (mRunning) LOG.log(Level.WARNING, "RTSP accept failed", e);
+            }
+        }
+    }
+
+    private static void closeQuietly(ServerSocket socket) {
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private static String base64(byte[] data) {
+        // android.util.Base64 isn't available off-device and java.util.Base64 needs API 26
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < data.length; i += 3) {
+            int b = (data[i] & 0xFF) << 16;
+            if (i + 1 < data.length) b |= (data[i + 1] & 0xFF) << 8;
+            if (i + 2 < data.length) b |= data[i + 2] & 0xFF;
+            out.append(alphabet.charAt((b >> 18) & 0x3F));
+            out.append(alphabet.charAt((b >> 12) & 0x3F));
+            out.append(i + 1 < data.length ? alphabet.charAt((b >> 6) & 0x3F) : '=');
+            out.append(i + 2 < data.length ? alphabet.charAt(b & 0x3F) : '=');
+        }
+        return out.toString();
+    }
+
+    private static String hex(byte[] data, int offset, int length) {
+        StringBuilder out = new StringBuilder();
+        for (int i = offset; i < offset + length; i++) {
+            out.append(Character.forDigit((data[i] >> 4) & 0xF, 16));
+            out.append(Character.forDigit(data[i] & 0xF, 16));
+        }
+        return out.toString();
+    }
+
+    /**
+     * One RTSP connection and, once PLAY is received, its sender thread.
+     */
+    private class Session {
+        final Socket mSocket;
+        final String mAddress;
+        final String mId = Integer.toHexString(mRandom.nextInt() & 0x7FFFFFFF);
+        private InputStream mIn;
+        private OutputStream mOut;
+        private final byte[] mLine = new byte[4096];
+
+        // Transport, fixed by SETUP before the sender thread starts
+        final boolean[] mSetup = new boolean[2];
+        volatile boolean mInterleaved;
+        final int[] mChannels = new int[2];
+        final DatagramPacket[] mRtpPackets = new DatagramPacket[2];
+        final DatagramPacket[] mRtcpPackets = new DatagramPacket[2];
+
+        private volatile boolean mPlaying = false;
+        private Thread mSenderThread;
+        private long mStartSeq;
+
+        // Sender thread state, preallocated so the send path doesn't allocate
+        private final byte[] mInterleavedHeader = new byte[4];
+        private final byte[] mPacket = new byte[RtpPacketRing.SLOT_SIZE];
+        private final byte[] mReport = new byte[28];
+
+        volatile long mPacketsSent = 0;
+        volatile long mBytesSent = 0;
+        volatile long mQueuedPackets = 0;
+        volatile long mMaxQueuedPackets = 0;
+        volatile long mResyncs = 0;
+        volatile long mSkippedPackets = 0;
+
+        Session(Socket socket) {
+            mSocket = socket;
+            mAddress = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+        }
+
+        void serve() {
+            try {
+                mIn = mSocket.getInputStream();
+                mOut = new BufferedOutputStream(mSocket.getOutputStream(), 64 * 1024);
+                while (mRunning) {
+                    Map<String, String> request = readRequest();
+                    if (request == null) break;
+                    if (!handle(request)) break;
+                }
+            } catch (IOException e) {
+                if (mRunning && mPlaying) LOG.log(Level.INFO, "RTSP client " + mAddress + " dropped", e);
+            } finally {
+                close();
+                mSessions.remove(this);
+                LOG.info("RTSP client " + mAddress + " gone");
+            }
+        }
+
+        void close() {
+            mPlaying = false;
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            if (mSenderThread != null) mSenderThread.interrupt();
+        }
+
+        /**
+         * Reads one request: the request line under key "", headers under their lower-cased
+         * names.  Interleaved RTCP from the client is skipped.  Returns null at end of stream.
+         */
+        private Map<String, String> readRequest() throws IOException {
+            Map<String, String> request = new HashMap<String, String>();
+            String line;
+            do {
+                line = readLine();
+                if (line == null) return null;
+            } while (line.length() == 0);
+            request.put("", line);
+            while ((line = readLine()) != null && line.length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon > 0) request.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+            String contentLength = request.get("content-length");
+            if (contentLength != null) skip(Integer.parseInt(contentLength));
+            return request;
+        }
+
+        private String readLine() throws IOException {
+            int length = 0;
+            while (true) {
+                int b = mIn.read();
+                if (b < 0) return (length == 0) ? null : new String(mLine, 0, length, "US-ASCII");
+                if (b == '$' && length == 0) {
+                    // Interleaved binary frame: channel, 16 bit length, payload
+                    mIn.read();
+                    int size = (readByte() << 8) | readByte();
+                    skip(size);
+                    continue;
+                }
+                if (b == '\n') break;
+                if (b != '\r' && length < mLine.length) mLine[length++] = (byte) b;
+            }
+            return new String(mLine, 0, length, "US-ASCII");
+        }
+
+        private int readByte() throws IOException {
+            int b = mIn.read();
+            if (b < 0) throw new EOFException();
+            return b;
+        }
+
+        private void skip(int count) throws IOException {
+            while (count > 0) {
+                long skipped = mIn.skip(count);
+                if (skipped <= 0) {
+                    readByte();
+                    skipped = 1;
+                }
+                count -= skipped;
+            }
+        }
+
+        /**
+         * @return false to close the connection
+         */
+        private boolean handle(Map<String, String> request) throws IOException {
+            String[] requestLine = request.get("").split(" ");
+            String method = requestLine[0];
+            String url = (requestLine.length > 1) ? requestLine[1] : "";
+            String cseq = request.get("cseq");
+            if (cseq == null) cseq = "0";
+
+            if (method.equals("OPTIONS")) {
+                respond(cseq, "200 OK", "Public: OPTIONS, DESCRIBE, SETUP, PLAY, TEARDOWN, GET_PARAMETER\r\n", null);
+            } else if (method.equals("DESCRIBE")) {
+                String sdp = describe();
+                if (sdp == null) {
+                    respond(cseq, "503 Service Unavailable", "", null);
+                } else {
+                    String base = url.endsWith("/") ? url : url + "/";
+                    respond(cseq, "200 OK", "Content-Base: " + base + "\r\nContent-Type: application/sdp\r\n", sdp);
+                }
+            } else if (method.equals("SETUP")) {
+                setup(cseq, url, request.get("transport"));
+            } else if (method.equals("PLAY")) {
+                play(cseq, url);
+            } else if (method.equals("TEARDOWN")) {
+                respond(cseq, "200 OK", "Session: " + mId + "\r\n", null);
+                return false;
+            } else if (method.equals("GET_PARAMETER") || method.equals("SET_PARAMETER")) {
+                respond(cseq, "200 OK", "Session: " + mId + "\r\n", null);
+            } else {
+                respond(cseq, "501 Not Implemented", "", null);
+            }
+            return true;
+        }
+
+        private String describe() {
+            TrackFormat video = mPacketizer.format(TRACK_VIDEO);
+            TrackFormat audio = mPacketizer.format(TRACK_AUDIO);
+            if (video == null && audio == null) return null;
+            StringBuilder sdp = new StringBuilder();
+            sdp.append("v=0\r\n");
+            sdp.append("o=- ").append(mId).append(" 1 IN IP4 ").append(mSocket.getLocalAddress().getHostAddress()).append("\r\n");
+            sdp.append("s=HWEncoderExperiments\r\n");
+            sdp.append("c=IN IP4 0.0.0.0\r\n");
+            sdp.append("t=0 0\r\n");
+            sdp.append("a=control:*\r\n");
+            if (video != null && video.sps != null && video.pps != null) {
+                sdp.append("m=video 0 RTP/AVP ").append(RtpPacketizer.PAYLOAD_TYPE_H264).append("\r\n");
+                sdp.append("a=rtpmap:").append(RtpPacketizer.PAYLOAD_TYPE_H264).append(" H264/90000\r\n");
+                sdp.append("a=fmtp:").append(RtpPacketizer.PAYLOAD_TYPE_H264)
+                        .append(" packetization-mode=1;profile-level-id=").append(hex(video.sps, 1, 3))
+                        .append(";sprop-parameter-sets=").append(base64(video.sps)).append(',').append(base64(video.pps))
+                        .append("\r\n");
+                sdp.append("a=control:trackID=").append(TRACK_VIDEO).append("\r\n");
+            }
+            if (audio != null && audio.audioSpecificConfig != null) {
+                sdp.append("m=audio 0 RTP/AVP ").append(RtpPacketizer.PAYLOAD_TYPE_AAC).append("\r\n");
+                sdp.append("a=rtpmap:").append(RtpPacketizer.PAYLOAD_TYPE_AAC).append(" mpeg4-generic/")
+                        .append(audio.sampleRate).append('/').append(audio.channelCount).append("\r\n");
+                sdp.append("a=fmtp:").append(RtpPacketizer.PAYLOAD_TYPE_AAC)
+                        .append(" streamtype=5;profile-level-id=15;mode=AAC-hbr;config=")
+                        .append(hex(audio.audioSpecificConfig, 0, audio.audioSpecificConfig.length))
+                        .append(";sizelength=13;indexlength=3;indexdeltalength=3\r\n");
+                sdp.append("a=control:trackID=").append(TRACK_AUDIO).append("\r\n");
+            }
+            return sdp.toString();
+        }
+
+        private void setup(String cseq, String url, String transport) throws IOException {
+            int track = url.endsWith("trackID=" + TRACK_AUDIO) ? TRACK_AUDIO : TRACK_VIDEO;
+            if (transport == null || mPlaying) {
+                respond(cseq, "455 Method Not Valid in This State", "", null);
+                return;
+            }
+            String ssrc = ";ssrc=" + Integer.toHexString(mPacketizer.ssrc(track)).toUpperCase();
+            String reply;
+            if (transport.indexOf("RTP/AVP/TCP") >= 0 || transport.indexOf("interleaved=") >= 0) {
+                int[] channels = parseRange(transport, "interleaved=", 2 * track);
+                mInterleaved = true;
+                mChannels[track] = channels[0];
+                reply = "RTP/AVP/TCP;unicast;interleaved=" + channels[0] + "-" + channels[1] + ssrc;
+            } else {
+                int[] ports = parseRange(transport, "client_port=", -1);
+                if (ports == null || mInterleaved) {
+                    respond(cseq, "461 Unsupported Transport", "", null);
+                    return;
+                }
+                mRtpPackets[track] = new DatagramPacket(new byte[0], 0, new InetSocketAddress(mSocket.getInetAddress(), ports[0]));
+                mRtcpPackets[track] = new DatagramPacket(new byte[0], 0, new InetSocketAddress(mSocket.getInetAddress(), ports[1]));
+                reply = "RTP/AVP;unicast;client_port=" + ports[0] + "-" + ports[1]
+                        + ";server_port=" + mRtpSockets[track].getLocalPort() + "-" + mRtcpSockets[track].getLocalPort() + ssrc;
+            }
+            mSetup[track] = true;
+            respond(cseq, "200 OK", "Transport: " + reply + "\r\nSession: " + mId + ";timeout=60\r\n", null);
+        }
+
+        private void play(String cseq, String url) throws IOException {
+            if (!mSetup[TRACK_VIDEO] && !mSetup[TRACK_AUDIO]) {
+                respond(cseq, "455 Method Not Valid in This State", "", null);
+                return;
+            }
+            if (mPlaying) {
+                respond(cseq, "200 OK", "Session: " + mId + "\r\n", null);
+                return;
+            }
+            mStartSeq = mRing.joinSeq();
+            String base = url.endsWith("/") ? url : url + "/";
+            StringBuilder rtpInfo = new StringBuilder();
+            for (int track = 0; track < 2; track++) {
+                if (!mSetup[track]) continue;
+                if (rtpInfo.length() > 0) rtpInfo.append(',');
+                rtpInfo.append("url=").append(base).append("trackID=").append(track).append(firstPacketInfo(track));
+            }
+            respond(cseq, "200 OK", "Session: " + mId + "\r\nRange: npt=0.000-\r\nRTP-Info: " + rtpInfo + "\r\n", null);
+            mPlaying = true;
+            mSenderThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    sendLoop();
+                }
+            }, "rtp sender " + mAddress);
+            mSenderThread.start();
+            LOG.info("RTSP client " + mAddress + " playing over " + (mInterleaved ? "TCP" : "UDP"));
+        }
+
+        /**
+         * ";seq=..;rtptime=.." of the first packet of the track the client will receive.
+         */
+        private String firstPacketInfo(int track) {
+            byte[] arena = mRing.arena();
+            for (long seq = mStartSeq; seq < mRing.writeSeq(); seq++) {
+                if (mRing.track(seq) != track) continue;
+                int offset = mRing.offset(seq);
+                int sequence = ((arena[offset + 2] & 0xFF) << 8) | (arena[offset + 3] & 0xFF);
+                long rtpTime = ((arena[offset + 4] & 0xFFL) << 24) | ((arena[offset + 5] & 0xFF) << 16)
+                        | ((arena[offset + 6] & 0xFF) << 8) | (arena[offset + 7] & 0xFF);
+                return ";seq=" + sequence + ";rtptime=" + rtpTime;
+            }
+            return ";seq=" + mPacketizer.nextSequence(track);
+        }
+
+        private int[] parseRange(String transport, String key, int fallback) {
+            int start = transport.indexOf(key);
+            if (start < 0) return (fallback < 0) ? null : new int[]{fallback, fallback + 1};
+            start += key.length();
+            int end = start;
+            while (end < transport.length() && transport.charAt(end) != ';') end++;
+            String[] parts = transport.substring(start, end).split("-");
+            int first = Integer.parseInt(parts[0].trim());
+            int second = (parts.length > 1) ? Integer.parseInt(parts[1].trim()) : first + 1;
+            return new int[]{first, second};
+        }
+
+        private void respond(String cseq, String status, String headers, String body) throws IOException {
+            StringBuilder response = new StringBuilder();
+            response.append("RTSP/1.0 ").append(status).append("\r\n");
+            response.append("CSeq: ").append(cseq).append("\r\n");
+            response.append("Server: HWEncoderExperiments\r\n");
+            response.append(headers);
+            if (body != null) response.append("Content-Length: ").append(body.length()).append("\r\n");
+            response.append("\r\n");
+            if (body != null) response.append(body);
+            byte[] bytes = response.toString().getBytes("US-ASCII");
+            synchronized (mOut) {
+                mOut.write(bytes);
+                mOut.flush();
+            }
+        }
+
+        private void sendLoop() {
+            long cursor = mStartSeq;
+            long lastReportMs = 0;
+            int resyncThreshold = mRing.capacity() - RESYNC_MARGIN_PACKETS;
+            try {
+                while (mPlaying) {
+                    long write = mRing.awaitPackets(cursor, SENDER_REPORT_INTERVAL_MS / 2);
+                    long queued = write - cursor;
+                    mQueuedPackets = queued;
+                    if (queued > mMaxQueuedPackets) mMaxQueuedPackets = queued;
+                    while (cursor < write && mPlaying) {
+                        if (mRing.writeSeq() - cursor > resyncThreshold || !send(cursor)) {
+                            cursor = resync(cursor, resyncThreshold);
+                            break;
+                        }
+                        cursor++;
+                    }
+                    if (mInterleaved) {
+                        synchronized (mOut) {
+                            mOut.flush();
+                        }
+                    }
+                    mQueuedPackets = mRing.writeSeq() - cursor;
+                    long now = System.currentTimeMillis();
+                    if (now - lastReportMs >= SENDER_REPORT_INTERVAL_MS) {
+                        sendReports();
+                        lastReportMs = now;
+                    }
+                }
+            } catch (InterruptedException e) {
+                // stopping
+            } catch (IOException e) {
+                if (mPlaying) LOG.log(Level.INFO, "RTP send to " + mAddress + " failed", e);
+                close();
+            }
+        }
+
+        /**
+         * The producer is about to overwrite packets this client hasn't sent: jump to the
+         * newest keyframe, or to the live edge if there isn't a usable one.
+         */
+        private long resync(long cursor, int threshold) {
+            long write = mRing.writeSeq();
+            long target = mRing.joinSeq();
+            if (target <= cursor || write - target > threshold) target = write;
+            mResyncs++;
+            mSkippedPackets += target - cursor;
+            return target;
+        }
+
+        /**
+         * Sends packet seq from a copy, since the producer may overwrite its slot while the
+         * socket write blocks.  Returns false, sending nothing, if the slot was overwritten
+         * before the copy was complete.
+         */
+        private boolean send(long seq) throws IOException {
+            int track = mRing.track(seq);
+            int length = mRing.length(seq);
+            System.arraycopy(mRing.arena(), mRing.offset(seq), mPacket, 0, length);
+            if (!mRing.intact(seq)) return false;
+            if (!mSetup[track]) return true;
+            if (mInterleaved) {
+                mInterleavedHeader[0] = '$';
+                mInterleavedHeader[1] = (byte) mChannels[track];
+                mInterleavedHeader[2] = (byte) (length >> 8);
+                mInterleavedHeader[3] = (byte) length;
+                synchronized (mOut) {
+                    mOut.write(mInterleavedHeader);
+                    mOut.write(mPacket, 0, length);
+                }
+            } else {
+                DatagramPacket packet = mRtpPackets[track];
+                packet.setData(mPacket, 0, length);
+                mRtpSockets[track].send(packet);
+            }
+            mPacketsSent++;
+            mBytesSent += length;
+            return true;
+        }
+
+        private void sendReports() throws IOException {
+            for (int track = 0; track < 2; track++) {
+                if (!mSetup[track]) continue;
+                int length = mPacketizer.writeSenderReport(track, mReport, 0);
+                if (length == 0) continue;
+                if (mInterleaved) {
+                    mInterleavedHeader[0] = '$';
+                    mInterleavedHeader[1] = (byte) (mChannels[track] + 1);
+                    mInterleavedHeader[2] = 0;
+                    mInterleavedHeader[3] = (byte) length;
+                    synchronized (mOut) {
+                        mOut.write(mInterleavedHeader);
+                        mOut.write(mReport, 0, length);
+                        mOut.flush();
+                    }
+                } else {
+                    DatagramPacket packet = mRtcpPackets[track];
+                    packet.setData(mReport, 0, length);
+                    mRtcpSockets[track].send(packet);
+                }
+            }
+        }
+    }
+}
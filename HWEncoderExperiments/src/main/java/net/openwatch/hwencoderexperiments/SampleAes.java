@@ -0,0 +1,171 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * HLS SAMPLE-AES (Apple's "MPEG-2 Stream Encryption Format for HTTP Live Streaming") for the
+ * elementary streams, applied to each sample before it is packetized.
+ * <ul>
+ * <li>H.264: slice NAL units longer than 48 bytes keep a 32 byte clear leader, then every
+ * tenth 16 byte block is encrypted (16 encrypted, 144 clear).  Encryption runs on the NAL
+ * with emulation prevention removed, and emulation prevention is reapplied afterwards.</li>
+ * <li>AAC: a 16 byte clear leader, then every whole 16 byte block encrypted, the remainder
+ * clear.</li>
+ * </ul>
+ * Both use AES-128-CBC restarted from the IV for every NAL unit / frame.  CBC chaining is
+ * done here over a single ECB cipher so nothing is re-initialized per NAL.
+ */
+class SampleAes {
+    private static final int BLOCK = 16;
+    private static final int VIDEO_CLEAR_LEADER = 32;
+    private static final int VIDEO_MIN_ENCRYPTED_NAL = 49;
+    private static final int VIDEO_CLEAR_RUN = 144;
+    private static final int AUDIO_CLEAR_LEADER = 16;
+
+    private final Cipher mEcb;
+    private byte[] mIv;
+    private final byte[] mChain = new byte[BLOCK];
+    private final byte[] mBlock = new byte[BLOCK];
+    private byte[] mNal = new byte[64 * 1024];
+    private byte[] mEscaped = new byte[96 * 1024];
+
+    SampleAes() throws GeneralSecurityException {
+        mEcb = Cipher.getInstance("AES/ECB/NoPadding");
+    }
+
+    void setKey(byte[] key, byte[] iv) throws GeneralSecurityException {
+        mEcb.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+        mIv = iv;
+    }
+
+    /**
+     * Upper bound on the output size of encryptVideo for an access unit of the given size.
+     */
+    static int maxVideoSize(int size) {
+        return size + size / 2 + 64;
+    }
+
+    /**
+     * Encrypts the Annex-B access unit src[position, limit) into dst at its position, leaving
+     * src untouched.  Start codes are normalized to four bytes.
+     */
+    void encryptVideo(ByteBuffer src, ByteBuffer dst) throws ShortBufferException {
+        int limit = src.limit();
+        if (!AvcUtils.isAnnexB(src)) {
+            putStartCode(dst);
+            encryptNal(src, src.position(), limit, dst);
+            return;
+        }
+        int nal = AvcUtils.nextNalStart(src, src.position(), limit);
+        while (nal >= 0 && nal < limit) {
+            int end = AvcUtils.nalEnd(src, nal, limit);
+            putStartCode(dst);
+            encryptNal(src, nal, end, dst);
+            nal = AvcUtils.nextNalStart(src, end, limit);
+        }
+    }
+
+    /**
+     * Encrypts the raw AAC frame src[position, limit) into dst at its position, leaving src
+     * untouched.  Output is the same size as the input.
+     */
+    void encryptAudio(ByteBuffer src, ByteBuffer dst) throws ShortBufferException {
+        int size = src.remaining();
+        byte[] frame = buffer(size);
+        int position = src.position();
+        src.get(frame, 0, size);
+        src.position(position);
+        System.arraycopy(mIv, 0, mChain, 0, BLOCK);
+        for (int p = AUDIO_CLEAR_LEADER; p + BLOCK <= size; p += BLOCK) encryptBlock(frame, p);
+        dst.put(frame, 0, size);
+    }
+
+    private void encryptNal(ByteBuffer src, int start, int end, ByteBuffer dst) throws ShortBufferException {
+        int type = AvcUtils.nalType(src.get(start));
+        boolean slice = type == AvcUtils.NAL_TYPE_NON_IDR_SLICE || type == AvcUtils.NAL_TYPE_IDR_SLICE;
+        if (!slice || end - start < VIDEO_MIN_ENCRYPTED_NAL) {
+            copy(src, start, end, dst);
+            return;
+        }
+        int size = unescape(src, start, end);
+        byte[] nal = mNal;
+        System.arraycopy(mIv, 0, mChain, 0, BLOCK);
+        int p = VIDEO_CLEAR_LEADER;
+        while (size - p > BLOCK) {
+            encryptBlock(nal, p);
+            p += BLOCK + VIDEO_CLEAR_RUN;
+        }
+        escape(nal, size, dst);
+    }
+
+    private void encryptBlock(byte[] data, int offset) throws ShortBufferException {
+        for (int i = 0; i < BLOCK; i++) mBlock[i] = (byte) (data[offset + i] ^ mChain[i]);
+        mEcb.update(mBlock, 0, BLOCK, mChain, 0);
+        System.arraycopy(mChain, 0, data, offset, BLOCK);
+    }
+
+    /**
+     * Copies src[start, end) into mNal with emulation prevention bytes removed and returns the
+     * resulting size.
+     */
+    private int unescape(ByteBuffer src, int start, int end) {
+        int length = end - start;
+        byte[] nal = buffer(length);
+        int position = src.position();
+        src.position(start);
+        src.get(nal, 0, length);
+        src.position(position);
+        // Compact in place
+        int size = 0;
+        int zeros = 0;
+        for (int i = 0; i < length; i++) {
+            byte b = nal[i];
+            if (zeros >= 2 && b == 3) {
+                zeros = 0;
+                continue;
+            }
+            zeros = (b == 0) ? zeros + 1 : 0;
+            nal[size++] = b;
+        }
+        return size;
+    }
+
+    private void escape(byte[] nal, int size, ByteBuffer dst) {
+        if (mEscaped.length < maxVideoSize(size)) mEscaped = new byte[maxVideoSize(size) * 2];
+        byte[] out = mEscaped;
+        int length = 0;
+        int zeros = 0;
+        for (int i = 0; i < size; i++) {
+            byte b = nal[i];
+            if (zeros >= 2 && (b & 0xFF) <= 3) {
+                out[length++] = 3;
+                zeros = 0;
+            }
+            zeros = (b == 0) ? zeros + 1 : 0;
+            out[length++] = b;
+        }
+        dst.put(out, 0, length);
+    }
+
+    private byte[] buffer(int size) {
+        if (mNal.length < size) mNal = new byte[size * 2];
+        return mNal;
+    }
+
+    private static void putStartCode(ByteBuffer dst) {
+        dst.put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 1);
+    }
+
+    private static void copy(ByteBuffer src, int from, int to, ByteBuffer dst) {
+        int position = src.position();
+        int limit = src.limit();
+        src.limit(to).position(from);
+        dst.put(src);
+        src.limit(limit).position(position);
+    }
+}
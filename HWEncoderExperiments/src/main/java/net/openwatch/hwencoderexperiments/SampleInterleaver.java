@@ -0,0 +1,163 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Merges the audio and video samples coming off the two drain threads into one stream
+ * ordered by decode time before handing them to a muxer, so the file ends up finely
+ * interleaved instead of in whatever bursts the threads happened to drain in.
+ * <p/>
+ * Each track's samples already arrive in decode order, so the interleaver only has to merge
+ * two queues: the earlier head is written as soon as the other track has a sample queued
+ * (or has finished).  A head is also released once it is more than maxInterleaveUs older
+ * than the newest sample seen, which bounds both the delay and the memory when one track
+ * stalls.  Our encoders produce no B-frames, so presentation time stands in for decode time.
+ * <p/>
+ * Samples are copied into a fixed pool of slots whose buffers are reused, so steady state
+ * doesn't allocate.  Not thread-safe by itself; callers serialize (MediaMuxerWrapper does).
+ */
+class SampleInterleaver implements EncodedSampleSink {
+    private final EncodedSampleSink mOutput;
+    private final long mMaxInterleaveUs;
+
+    // Slot pool
+    private final ByteBuffer[] mData;
+    private final long[] mPtsUs;
+    private final int[] mFlags;
+    private final int[] mFree;
+    private int mFreeCount;
+
+    // Per-track FIFO of slot indices
+    private final int[][] mQueues = new int[2][];
+    private final int[] mHeads = new int[2];
+    private final int[] mCounts = new int[2];
+    private final boolean[] mFinished = new boolean[2];
+    private long mNewestUs = Long.MIN_VALUE;
+
+    private long mForcedWrites = 0;
+    private int mMaxQueued = 0;
+
+    /**
+     * @param maxInterleaveUs how long a sample may wait for the other track
+     * @param maxSamples slots in the pool; when all are taken the oldest sample is written
+     *                   regardless of order
+     */
+    SampleInterleaver(EncodedSampleSink output, long maxInterleaveUs, int maxSamples) {
+        mOutput = output;
+        mMaxInterleaveUs = maxInterleaveUs;
+        mData = new ByteBuffer[maxSamples];
+        mPtsUs = new long[maxSamples];
+        mFlags = new int[maxSamples];
+        mFree = new int[maxSamples];
+        for (int i = 0; i < maxSamples; i++) mFree[i] = maxSamples - 1 - i;
+        mFreeCount = maxSamples;
+        mQueues[TRACK_VIDEO] = new int[maxSamples];
+        mQueues[TRACK_AUDIO] = new int[maxSamples];
+    }
+
+    @Override
+    public void setTrackFormat(int track, TrackFormat format) {
+        mOutput.setTrackFormat(track, format);
+    }
+
+    /**
+     * Queues a copy of data[position, limit) and writes whatever can now be written in order.
+     * data is not modified.
+     */
+    @Override
+    public void writeSampleData(int track, ByteBuffer data, long ptsUs, int flags) {
+        if (mFreeCount == 0) {
+            mForcedWrites++;
+            emit(oldestTrack());
+        }
+        int slot = mFree[--mFreeCount];
+        int size = data.remaining();
+        ByteBuffer buffer = mData[slot];
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = mData[slot] = ByteBuffer.allocateDirect(Math.max(size, (buffer == null) ? 0 : buffer.capacity() * 2));
+        }
+        buffer.clear();
+        int position = data.position();
+        buffer.put(data);
+        data.position(position);
+        buffer.flip();
+        mPtsUs[slot] = ptsUs;
+        mFlags[slot] = flags;
+
+        int[] queue = mQueues[track];
+        queue[(mHeads[track] + mCounts[track]) % queue.length] = slot;
+        mCounts[track]++;
+        mMaxQueued = Math.max(mMaxQueued, mCounts[TRACK_VIDEO] + mCounts[TRACK_AUDIO]);
+        if (ptsUs > mNewestUs) mNewestUs = ptsUs;
+        drain();
+    }
+
+    /**
+     * No more samples will arrive for track; the other track no longer waits for it.
+     */
+    void finishTrack(int track) {
+        mFinished[track] = true;
+        drain();
+    }
+
+    /**
+     * Writes everything still queued, in order.
+     */
+    void flush() {
+        while (mCounts[TRACK_VIDEO] + mCounts[TRACK_AUDIO] > 0) emit(oldestTrack());
+    }
+
+    /**
+     * Flushes and readies the interleaver for the next file.
+     */
+    void reset() {
+        flush();
+        mFinished[TRACK_VIDEO] = false;
+        mFinished[TRACK_AUDIO] = false;
+        mNewestUs = Long.MIN_VALUE;
+    }
+
+    /**
+     * Samples written out of order because the pool ran out.
+     */
+    long getForcedWrites() {
+        return mForcedWrites;
+    }
+
+    int getMaxQueued() {
+        return mMaxQueued;
+    }
+
+    private void drain() {
+        while (true) {
+            int video = mCounts[TRACK_VIDEO];
+            int audio = mCounts[TRACK_AUDIO];
+            if (video + audio == 0) return;
+            int track = oldestTrack();
+            int other = 1 - track;
+            boolean known = mCounts[other] > 0 || mFinished[other];
+            boolean expired = mNewestUs - headPts(track) > mMaxInterleaveUs;
+            if (!known && !expired) return;
+            emit(track);
+        }
+    }
+
+    private int oldestTrack() {
+        if (mCounts[TRACK_VIDEO] == 0) return TRACK_AUDIO;
+        if (mCounts[TRACK_AUDIO] == 0) return TRACK_VIDEO;
+        return (headPts(TRACK_AUDIO) < headPts(TRACK_VIDEO)) ? TRACK_AUDIO : TRACK_VIDEO;
+    }
+
+    private long headPts(int track) {
+        return mPtsUs[mQueues[track][mHeads[track]]];
+    }
+
+    private void emit(int track) {
+        int[] queue = mQueues[track];
+        int slot = queue[mHeads[track]];
+        mHeads[track] = (mHeads[track] + 1) % queue.length;
+        mCounts[track]--;
+        mOutput.writeSampleData(track, mData[slot], mPtsUs[slot], mFlags[slot]);
+        mFree[mFreeCount++] = slot;
+    }
+}
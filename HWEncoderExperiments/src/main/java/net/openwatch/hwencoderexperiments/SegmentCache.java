@@ -0,0 +1,138 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Recently finished segments, chunks and playlists held in memory for SegmentServer, so a
+ * popular live stream is served from RAM instead of every viewer re-reading the same files.
+ * <p/>
+ * Writers put entries in as they close them: finished files are memory-mapped (the pages
+ * they were just written through, no copy), small generated files such as playlists are
+ * copied into direct buffers.  Either way the bytes live off the Java heap.  Entries are
+ * evicted least recently used first once the total exceeds the byte budget.
+ * <p/>
+ * Thread-safe.  Buffers handed out stay valid after eviction; they are just no longer shared.
+ */
+public class SegmentCache {
+    private final long mBudgetBytes;
+    private final LinkedHashMap<String, ByteBuffer> mEntries = new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true);
+    private long mBytes = 0;
+    private long mHits = 0;
+    private long mMisses = 0;
+    private long mEvictions = 0;
+
+    public static class Stats {
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+        public final int entries;
+        public final long bytes;
+        public final long budgetBytes;
+
+        Stats(long hits, long misses, long evictions, int entries, long bytes, long budgetBytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.entries = entries;
+            this.bytes = bytes;
+            this.budgetBytes = budgetBytes;
+        }
+
+        @Override
+        public String toString() {
+            return hits + " hits, " + misses + " misses, " + evictions + " evictions, " + entries + " entries, "
+                    + bytes + " / " + budgetBytes + " bytes";
+        }
+    }
+
+    public SegmentCache(long budgetBytes) {
+        mBudgetBytes = budgetBytes;
+    }
+
+    /**
+     * Caches a copy of data[position, limit) under name, replacing any previous entry.
+     * data is not modified.
+     */
+    public void put(String name, ByteBuffer data) {
+        ByteBuffer copy = ByteBuffer.allocateDirect(data.remaining());
+        copy.put(data.duplicate());
+        copy.flip();
+        insert(name, copy);
+    }
+
+    public void put(String name, byte[] data) {
+        put(name, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Caches data itself instead of a copy.  It must be direct, positioned at 0, and never
+     * modified afterwards.
+     */
+    void putBuffer(String name, ByteBuffer data) {
+        insert(name, data);
+    }
+
+    /**
+     * Caches a finished file by mapping it.  The file must not change afterwards.
+     */
+    public void putFile(String name, File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            if (length > mBudgetBytes) {
+                remove(name);
+                return;
+            }
+            insert(name, raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns the entry as a read-only buffer of its own, positioned at 0, or null.
+     */
+    public synchronized ByteBuffer get(String name) {
+        ByteBuffer data = mEntries.get(name);
+        if (data == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return data.asReadOnlyBuffer();
+    }
+
+    public synchronized void remove(String name) {
+        ByteBuffer old = mEntries.remove(name);
+        if (old != null) mBytes -= old.capacity();
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(mHits, mMisses, mEvictions, mEntries.size(), mBytes, mBudgetBytes);
+    }
+
+    private synchronized void insert(String name, ByteBuffer data) {
+        if (data.capacity() > mBudgetBytes) {
+            remove(name);
+            return;
+        }
+        ByteBuffer old = mEntries.put(name, data);
+        if (old != null) mBytes -= old.capacity();
+        mBytes += data.capacity();
+        Iterator<Map.Entry<String, ByteBuffer>> eldest = mEntries.entrySet().iterator();
+        while (mBytes > mBudgetBytes && eldest.hasNext()) {
+            Map.Entry<String, ByteBuffer> entry = eldest.next();
+            if (entry.getKey().equals(name)) continue;
+            mBytes -= entry.getValue().capacity();
+            eldest.remove();
+            mEvictions++;
+        }
+    }
+}
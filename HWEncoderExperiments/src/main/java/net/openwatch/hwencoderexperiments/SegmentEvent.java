@@ -0,0 +1,65 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.io.File;
+
+/**
+ * Something happened to one output file: a chunk MP4 or an HLS/DASH media segment.
+ * <p/>
+ * STARTED carries the file and sequence number only.  FINISHED means the file is complete
+ * and won't change again, and carries its PTS range, size and keyframes.  FAILED means
+ * output stopped with the file incomplete.  Times and sizes that aren't known are -1.
+ */
+public class SegmentEvent {
+    public static final int STARTED = 0;
+    public static final int FINISHED = 1;
+    public static final int FAILED = 2;
+
+    public static final int KIND_CHUNK = 0;
+    public static final int KIND_HLS_SEGMENT = 1;
+
+    public final int type;
+    public final int kind;
+    /**
+     * Where the file is, or will be.  A diskless HLS segment is in the cache first and on
+     * disk only once it has been archived, if ever.
+     */
+    public final File file;
+    /** Chunk number, or segment number as in the playlist */
+    public final int sequence;
+    public final long startPtsUs;
+    /** Exclusive */
+    public final long endPtsUs;
+    public final long bytes;
+    /** Video keyframes in the file */
+    public final int keyframes;
+    /** Whether playback can start at the beginning of the file */
+    public final boolean startsWithKeyframe;
+    public final long timeMs;
+
+    public SegmentEvent(int type, int kind, File file, int sequence, long startPtsUs, long endPtsUs, long bytes,
+                        int keyframes, boolean startsWithKeyframe) {
+        this.type = type;
+        this.kind = kind;
+        this.file = file;
+        this.sequence = sequence;
+        this.startPtsUs = startPtsUs;
+        this.endPtsUs = endPtsUs;
+        this.bytes = bytes;
+        this.keyframes = keyframes;
+        this.startsWithKeyframe = startsWithKeyframe;
+        this.timeMs = System.currentTimeMillis();
+    }
+
+    static SegmentEvent started(int kind, File file, int sequence) {
+        return new SegmentEvent(STARTED, kind, file, sequence, -1, -1, -1, -1, false);
+    }
+
+    @Override
+    public String toString() {
+        String what = (type == STARTED ? "started " : type == FINISHED ? "finished " : "failed ")
+                + (kind == KIND_CHUNK ? "chunk " : "segment ") + sequence + " " + file;
+        if (type == STARTED) return what;
+        return what + ": " + startPtsUs + "-" + endPtsUs + " us, " + bytes + " bytes, " + keyframes + " keyframes"
+                + (startsWithKeyframe ? "" : ", no leading keyframe");
+    }
+}
@@ -0,0 +1,147 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fans SegmentEvents out to subscribers without ever blocking the publisher.
+ * <p/>
+ * Each subscription has its own bounded queue and delivery thread.  publish() only appends
+ * to the queues (lock-free) and unparks the delivery threads, so it costs the same however
+ * slow the listeners are.  A subscriber that falls a whole queue behind loses its oldest
+ * events, which are counted in getDropped(); it can list the directory to catch up.
+ */
+public class SegmentEventDispatcher {
+    private static final Logger LOG = Logger.getLogger("SegmentEventDispatcher");
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+    private final List<Subscription> mSubscriptions = new CopyOnWriteArrayList<Subscription>();
+    private final AtomicInteger mThreadCount = new AtomicInteger();
+    private volatile boolean mClosed = false;
+
+    public class Subscription implements Runnable {
+        private final SegmentListener mListener;
+        private final int mCapacity;
+        private final ConcurrentLinkedQueue<SegmentEvent> mQueue = new ConcurrentLinkedQueue<SegmentEvent>();
+        private final AtomicInteger mSize = new AtomicInteger();
+        private final AtomicLong mDropped = new AtomicLong();
+        private final Thread mThread;
+        private volatile boolean mCancelled = false;
+        private volatile boolean mDraining = false;
+        private volatile long mDelivered = 0;
+
+        Subscription(SegmentListener listener, int capacity) {
+            mListener = listener;
+            mCapacity = capacity;
+            mThread = new Thread(this, "segment events " + mThreadCount.incrementAndGet());
+            mThread.setDaemon(true);
+        }
+
+        void offer(SegmentEvent event) {
+            mQueue.offer(event);
+            // Over capacity: make room by dropping the oldest.  Concurrent publishers can
+            // overshoot by one event each, which is fine for a bound on memory.
+            if (mSize.incrementAndGet() > mCapacity && mQueue.poll() != null) {
+                mSize.decrementAndGet();
+                mDropped.incrementAndGet();
+            }
+            LockSupport.unpark(mThread);
+        }
+
+        @Override
+        public void run() {
+            while (!mCancelled) {
+                SegmentEvent event = mQueue.poll();
+                if (event == null) {
+                    if (mDraining) break;
+                    LockSupport.park(this);
+                    continue;
+                }
+                mSize.decrementAndGet();
+                try {
+                    mListener.onSegmentEvent(event);
+                } catch (RuntimeException e) {
+                    LOG.log(Level.WARNING, "Segment listener threw on " + event, e);
+                }
+                mDelivered++;
+            }
+        }
+
+        /**
+         * Stops delivery.  Events still queued are discarded.
+         */
+        public void cancel() {
+            mCancelled = true;
+            mSubscriptions.remove(this);
+            LockSupport.unpark(mThread);
+        }
+
+        public long getDelivered() {
+            return mDelivered;
+        }
+
+        public long getDropped() {
+            return mDropped.get();
+        }
+
+        public int getQueued() {
+            return Math.max(0, mSize.get());
+        }
+
+        void drain(long timeoutMs) throws InterruptedException {
+            mDraining = true;
+            LockSupport.unpark(mThread);
+            mThread.join(timeoutMs);
+        }
+    }
+
+    /**
+     * Starts delivering events published from now on to listener.
+     */
+    public Subscription subscribe(SegmentListener listener, int queueCapacity) {
+        if (queueCapacity < 1) throw new IllegalArgumentException("queueCapacity < 1");
+        Subscription subscription = new Subscription(listener, queueCapacity);
+        mSubscriptions.add(subscription);
+        subscription.mThread.start();
+        return subscription;
+    }
+
+    public Subscription subscribe(SegmentListener listener) {
+        return subscribe(listener, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Never blocks.  Events published after close() are ignored.
+     */
+    public void publish(SegmentEvent event) {
+        if (mClosed) return;
+        for (Subscription subscription : mSubscriptions) subscription.offer(event);
+    }
+
+    /**
+     * Delivers what is already queued, waiting up to timeoutMs for each subscriber, and ends
+     * the delivery threads.
+     */
+    public void close(long timeoutMs) {
+        mClosed = true;
+        try {
+            for (Subscription subscription : mSubscriptions) {
+                subscription.drain(timeoutMs);
+                if (subscription.mThread.isAlive()) {
+                    LOG.warning(subscription.mThread.getName() + " still busy, " + subscription.getQueued() + " events undelivered");
+                    subscription.cancel();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mSubscriptions.clear();
+    }
+}
@@ -0,0 +1,545 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only record of what happened to each chunk file, so a recorder restarted after a
+ * crash knows where numbering left off, which chunks were never uploaded and which were
+ * left half-written, by reading one small file instead of scanning the output directory.
+ * <p/>
+ * The journal is a 'SJNL' header followed by records:
+ * <pre>
+ *   type (1), payload length (2), sequence (4), wall time ms (8), payload, CRC32 of all that (4)
+ * </pre>
+ * OPEN carries the file name; CLOSE its size, PTS range, keyframe count and whether it starts
+ * on one; INDEXED, UPLOADED, FAILED (abandoned, nothing to recover) and DISCONTINUITY (the
+ * chunk follows an interruption the recorder recovered from) nothing.  HIGH_WATER,
+ * written by compaction, keeps the numbering when uploaded chunks are forgotten.
+ * <p/>
+ * Records are appended to memory and written and fsynced by a background thread every
+ * SYNC_INTERVAL_MS, so the callers (drain threads) never wait for storage.  A crash loses at
+ * most that much; a chunk whose CLOSE was lost replays as partial and gets checked, which is
+ * the safe direction.  Replay stops at the first torn or corrupt record and the tail is
+ * dropped.  Once the file is COMPACT_BYTES and mostly dead records, it is rewritten with
+ * just the live state.
+ */
+public class SegmentJournal {
+    private static final Logger LOG = Logger.getLogger("SegmentJournal");
+
+    public static final String FILE_NAME = "segments.journal";
+
+    static final int OPEN = 1;
+    static final int CLOSE = 2;
+    static final int INDEXED = 3;
+    static final int UPLOADED = 4;
+    static final int FAILED = 5;
+    static final int HIGH_WATER = 6;
+    static final int DISCONTINUITY = 7;
+
+    private static final int MAGIC = 0x534A4E4C;    // 'SJNL'
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_OVERHEAD = 1 + 2 + 4 + 8 + 4;
+    private static final int CLOSE_PAYLOAD = 8 + 8 + 8 + 4 + 1;
+    private static final long SYNC_INTERVAL_MS = 250;
+    private static final long COMPACT_BYTES = 64 * 1024;
+
+    /**
+     * What the journal knows about one chunk.
+     */
+    public static class Entry {
+        public final int sequence;
+        public String name;
+        public boolean closed;
+        public boolean indexed;
+        public boolean uploaded;
+        public boolean failed;
+        public boolean discontinuity;
+        public long bytes = -1;
+        public long startPtsUs = -1;
+        public long endPtsUs = -1;
+        public int keyframes = -1;
+        public boolean startsWithKeyframe;
+
+        Entry(int sequence) {
+            this.sequence = sequence;
+        }
+
+        /**
+         * Opened but never closed or abandoned: the process died while writing it.
+         */
+        public boolean isPartial() {
+            return !closed && !failed;
+        }
+
+        @Override
+        public String toString() {
+            return sequence + " " + name + (closed ? " closed" : " partial") + (indexed ? " indexed" : "")
+                    + (uploaded ? " uploaded" : "") + (failed ? " failed" : "") + (discontinuity ? " discontinuity" : "");
+        }
+    }
+
+    /**
+     * The state found when the journal was opened.
+     */
+    public static class Replay {
+        /** First chunk number not used yet */
+        public final int nextSequence;
+        /** Closed chunks not yet uploaded, oldest first */
+        public final List<Entry> pendingUploads;
+        /** Chunks that were being written when the previous session ended */
+        public final List<Entry> partial;
+        public final int records;
+        public final boolean truncatedTail;
+        public final long elapsedUs;
+
+        Replay(int nextSequence, List<Entry> pendingUploads, List<Entry> partial, int records, boolean truncatedTail,
+               long elapsedUs) {
+            this.nextSequence = nextSequence;
+            this.pendingUploads = pendingUploads;
+            this.partial = partial;
+            this.records = records;
+            this.truncatedTail = truncatedTail;
+            this.elapsedUs = elapsedUs;
+        }
+
+        @Override
+        public String toString() {
+            return records + " records in " + elapsedUs + " us: next chunk " + nextSequence + ", "
+                    + pendingUploads.size() + " to upload, " + partial.size() + " partial"
+                    + (truncatedTail ? ", torn tail dropped" : "");
+        }
+    }
+
+    private final File mFile;
+    private final Replay mReplay;
+    private final ScheduledExecutorService mFlusher;
+    private final CRC32 mCrc = new CRC32();
+    // Held for a whole flush, so only one thread writes or compacts at a time; taken before this
+    private final Object mWriteLock = new Object();
+
+    // Guarded by this
+    private final TreeMap<Integer, Entry> mEntries = new TreeMap<Integer, Entry>();
+    private int mHighWater = 0;
+    private ByteBuffer mPending = ByteBuffer.allocate(4096);
+    private boolean mClosed = false;
+
+    // Guarded by mWriteLock
+    private FileChannel mChannel;
+    private ByteBuffer mWriting = ByteBuffer.allocate(4096);
+
+    private SegmentJournal(File file) throws IOException {
+        mFile = file;
+        mReplay = replay();
+        mChannel = new RandomAccessFile(mFile, "rw").getChannel();
+        if (mChannel.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).put((byte) VERSION).put((byte) 0).putShort((short) 0).flip();
+            while (header.hasRemaining()) mChannel.write(header);
+        }
+        mChannel.position(mChannel.size());
+        mFlusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "segment journal");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mFlusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, SYNC_INTERVAL_MS, SYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Replays dir's journal, creating it if there is none, and opens it for appending.
+     */
+    public static SegmentJournal open(File dir) throws IOException {
+        return new SegmentJournal(new File(dir, FILE_NAME));
+    }
+
+    public Replay getReplay() {
+        return mReplay;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public void opened(int sequence, String name) {
+        byte[] bytes = utf8(name);
+        synchronized (this) {
+            ByteBuffer record = startRecord(OPEN, sequence, bytes.length);
+            record.put(bytes);
+            endRecord(record);
+            entry(sequence).name = name;
+            mHighWater = Math.max(mHighWater, sequence);
+        }
+    }
+
+    public synchronized void closed(int sequence, long bytes, long startPtsUs, long endPtsUs, int keyframes,
+                                    boolean startsWithKeyframe) {
+        Entry entry = entry(sequence);
+        entry.closed = true;
+        entry.bytes = bytes;
+        entry.startPtsUs = startPtsUs;
+        entry.endPtsUs = endPtsUs;
+        entry.keyframes = keyframes;
+        entry.startsWithKeyframe = startsWithKeyframe;
+        putClose(entry);
+    }
+
+    private void putClose(Entry entry) {
+        ByteBuffer record = startRecord(CLOSE, entry.sequence, CLOSE_PAYLOAD);
+        record.putLong(entry.bytes).putLong(entry.startPtsUs).putLong(entry.endPtsUs).putInt(entry.keyframes)
+                .put((byte) (entry.startsWithKeyframe ? 1 : 0));
+        endRecord(record);
+    }
+
+    public synchronized void indexed(int sequence) {
+        endRecord(startRecord(INDEXED, sequence, 0));
+        entry(sequence).indexed = true;
+    }
+
+    public synchronized void uploaded(int sequence) {
+        endRecord(startRecord(UPLOADED, sequence, 0));
+        entry(sequence).uploaded = true;
+    }
+
+    public synchronized void failed(int sequence) {
+        endRecord(startRecord(FAILED, sequence, 0));
+        entry(sequence).failed = true;
+    }
+
+    public synchronized void discontinuity(int sequence) {
+        endRecord(startRecord(DISCONTINUITY, sequence, 0));
+        entry(sequence).discontinuity = true;
+    }
+
+    /**
+     * Writes and fsyncs everything appended so far, on the calling thread.  If the background
+     * thread is in the middle of a flush, waits for it first.
+     */
+    public void sync() {
+        flush();
+    }
+
+    /**
+     * Syncs and closes the file.  Later records are ignored.
+     */
+    public void close() {
+        mFlusher.shutdown();
+        try {
+            mFlusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (mWriteLock) {
+            flush();
+            synchronized (this) {
+                mClosed = true;
+            }
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Couldn't close " + mFile, e);
+            }
+        }
+    }
+
+    private Entry entry(int sequence) {
+        Entry entry = mEntries.get(sequence);
+        if (entry == null) {
+            entry = new Entry(sequence);
+            mEntries.put(sequence, entry);
+        }
+        return entry;
+    }
+
+    private ByteBuffer startRecord(int type, int sequence, int payloadLength) {
+        int needed = RECORD_OVERHEAD + payloadLength;
+        if (mPending.remaining() < needed) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(mPending.capacity() * 2, mPending.position() + needed));
+            mPending.flip();
+            grown.put(mPending);
+            mPending = grown;
+        }
+        mPending.mark();
+        mPending.put((byte) type).putShort((short) payloadLength).putInt(sequence).putLong(System.currentTimeMillis());
+        return mPending;
+    }
+
+    private void endRecord(ByteBuffer record) {
+        int end = record.position();
+        record.reset();
+        int start = record.position();
+        record.position(end);
+        mCrc.reset();
+        if (record.hasArray()) {
+            mCrc.update(record.array(), record.arrayOffset() + start, end - start);
+        }
+        record.putInt((int) mCrc.getValue());
+        if (mClosed) record.position(start);
+    }
+
+    /**
+     * Hands the pending records to the file and compacts if it's time.  Appenders only wait
+     * for the buffer swap; the write and fsync happen outside this but under mWriteLock.
+     */
+    private void flush() {
+        synchronized (mWriteLock) {
+            synchronized (this) {
+                if (mClosed || mPending.position() == 0) {
+                    if (!mClosed && needsCompaction()) compact();
+                    return;
+                }
+                ByteBuffer swap = mWriting;
+                mWriting = mPending;
+                mPending = swap;
+                mPending.clear();
+            }
+            mWriting.flip();
+            try {
+                while (mWriting.hasRemaining()) mChannel.write(mWriting);
+                mChannel.force(false);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Couldn't write " + mFile, e);
+            }
+            mWriting.clear();
+            synchronized (this) {
+                if (!mClosed && needsCompaction()) compact();
+            }
+        }
+    }
+
+    private boolean needsCompaction() {
+        long size;
+        try {
+            size = mChannel.size();
+        } catch (IOException e) {
+            return false;
+        }
+        int live = 0;
+        for (Entry entry : mEntries.values()) if (!entry.uploaded) live++;
+        return size > COMPACT_BYTES && size > 4L * (HEADER_SIZE + live * 100);
+    }
+
+    /**
+     * Rewrites the journal as the live entries plus a HIGH_WATER record, via a temporary file
+     * renamed into place.  Called from flush() with both locks held.
+     */
+    private void compact() {
+        ByteBuffer saved = mPending;
+        mPending = ByteBuffer.allocate(4096);
+        mPending.putInt(MAGIC).put((byte) VERSION).put((byte) 0).putShort((short) 0);
+        endRecord(startRecord(HIGH_WATER, mHighWater, 0));
+        int kept = 0;
+        for (Iterator<Map.Entry<Integer, Entry>> it = mEntries.entrySet().iterator(); it.hasNext(); ) {
+            Entry entry = it.next().getValue();
+            if (entry.uploaded) {
+                it.remove();
+                continue;
+            }
+            kept++;
+            if (entry.name != null) {
+                byte[] name = utf8(entry.name);
+                ByteBuffer record = startRecord(OPEN, entry.sequence, name.length);
+                record.put(name);
+                endRecord(record);
+            }
+            if (entry.closed) putClose(entry);
+            if (entry.indexed) endRecord(startRecord(INDEXED, entry.sequence, 0));
+            if (entry.failed) endRecord(startRecord(FAILED, entry.sequence, 0));
+            if (entry.discontinuity) endRecord(startRecord(DISCONTINUITY, entry.sequence, 0));
+        }
+        ByteBuffer compacted = mPending;
+        // Records appended since the last flush are part of the snapshot already
+        mPending = saved;
+        mPending.clear();
+        compacted.flip();
+
+        File temp = new File(mFile.getPath() + ".tmp");
+        try {
+            long before = mChannel.size();
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                FileChannel channel = out.getChannel();
+                while (compacted.hasRemaining()) channel.write(compacted);
+                channel.force(false);
+            } finally {
+                out.close();
+            }
+            mChannel.close();
+            if (!temp.renameTo(mFile)) throw new IOException("Couldn't replace " + mFile);
+            LOG.info("Compacted " + mFile + " from " + before + " to " + mFile.length() + " bytes, " + kept + " live chunks");
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Couldn't compact " + mFile, e);
+            temp.delete();
+        }
+        try {
+            if (!mChannel.isOpen()) {
+                mChannel = new RandomAccessFile(mFile, "rw").getChannel();
+                mChannel.position(mChannel.size());
+            }
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "Couldn't reopen " + mFile + ", journal disabled", e);
+            mClosed = true;
+        }
+    }
+
+    /**
+     * Reads the whole journal, rebuilding mEntries.  Drops a torn tail so appends continue
+     * after the last good record.
+     */
+    private Replay replay() throws IOException {
+        long start = System.nanoTime();
+        int records = 0;
+        boolean truncated = false;
+        if (mFile.exists() && mFile.length() > 0) {
+            ByteBuffer journal;
+            FileInputStream in = new FileInputStream(mFile);
+            try {
+                FileChannel channel = in.getChannel();
+                journal = ByteBuffer.allocate((int) channel.size());
+                while (journal.hasRemaining() && channel.read(journal) > 0) {
+                    // keep reading
+                }
+            } finally {
+                in.close();
+            }
+            journal.flip();
+            int good;
+            if (journal.remaining() < HEADER_SIZE || journal.getInt(0) != MAGIC || journal.get(4) != VERSION) {
+                LOG.warning(mFile + " is not a segment journal, starting a new one");
+                good = 0;
+                truncated = true;
+            } else {
+                journal.position(HEADER_SIZE);
+                good = HEADER_SIZE;
+                while (journal.remaining() >= RECORD_OVERHEAD) {
+                    int recordStart = journal.position();
+                    int type = journal.get();
+                    int payloadLength = journal.getShort() & 0xFFFF;
+                    int sequence = journal.getInt();
+                    journal.getLong();
+                    if (journal.remaining() < payloadLength + 4) break;
+                    int payloadStart = journal.position();
+                    mCrc.reset();
+                    mCrc.update(journal.array(), journal.arrayOffset() + recordStart, payloadStart + payloadLength - recordStart);
+                    if (journal.getInt(payloadStart + payloadLength) != (int) mCrc.getValue()) break;
+                    apply(type, sequence, journal, payloadLength);
+                    journal.position(payloadStart + payloadLength + 4);
+                    good = journal.position();
+                    records++;
+                }
+                truncated = good != journal.limit();
+            }
+            if (truncated) {
+                LOG.warning(mFile + ": dropping " + (journal.limit() - good) + " bytes after the last good record");
+                RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+                try {
+                    file.setLength(good);
+                } finally {
+                    file.close();
+                }
+            }
+        }
+        List<Entry> pending = new ArrayList<Entry>();
+        List<Entry> partial = new ArrayList<Entry>();
+        for (Entry entry : mEntries.values()) {
+            if (entry.isPartial()) partial.add(entry);
+            else if (entry.closed && !entry.uploaded) pending.add(entry);
+        }
+        return new Replay(mHighWater + 1, Collections.unmodifiableList(pending), Collections.unmodifiableList(partial),
+                records, truncated, (System.nanoTime() - start) / 1000);
+    }
+
+    private void apply(int type, int sequence, ByteBuffer journal, int payloadLength) {
+        mHighWater = Math.max(mHighWater, sequence);
+        if (type == HIGH_WATER) return;
+        Entry entry = entry(sequence);
+        switch (type) {
+            case OPEN:
+                byte[] name = new byte[payloadLength];
+                journal.get(name);
+                entry.name = fromUtf8(name);
+                break;
+            case CLOSE:
+                entry.closed = true;
+                entry.bytes = journal.getLong();
+                entry.startPtsUs = journal.getLong();
+                entry.endPtsUs = journal.getLong();
+                entry.keyframes = journal.getInt();
+                entry.startsWithKeyframe = journal.get() != 0;
+                break;
+            case INDEXED:
+                entry.indexed = true;
+                break;
+            case UPLOADED:
+                entry.uploaded = true;
+                break;
+            case FAILED:
+                entry.failed = true;
+                break;
+            case DISCONTINUITY:
+                entry.discontinuity = true;
+                break;
+            default:
+                // From a newer version; skipped by length
+        }
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String fromUtf8(byte[] bytes) {
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("usage: SegmentJournal dir");
+            System.exit(2);
+        }
+        SegmentJournal journal = open(new File(args[0]));
+        try {
+            Replay replay = journal.getReplay();
+            System.out.println(replay);
+            for (Entry entry : replay.partial) System.out.println("partial: " + entry);
+            for (Entry entry : replay.pendingUploads) System.out.println("to upload: " + entry);
+        } finally {
+            journal.close();
+        }
+    }
+}
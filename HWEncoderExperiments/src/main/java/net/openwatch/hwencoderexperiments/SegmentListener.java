@@ -0,0 +1,10 @@
+package net.openwatch.hwencoderexperiments;
+
+/**
+ * Told when the recorder starts, finishes or gives up on an output file.  Called on the
+ * subscription's own delivery thread, never on the encoding path, one event at a time in
+ * the order they were published.
+ */
+public interface SegmentListener {
+    void onSegmentEvent(SegmentEvent event);
+}
@@ -0,0 +1,626 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Spreads a live stream's viewers over several nodes (phones or boxes on the same network),
+ * each running a SegmentServer.
+ * <p/>
+ * The node recording the stream (the origin) pushes every finished HLS segment, and the
+ * playlists and init segment next to it, to each of its peers over a persistent TCP
+ * connection.  Peers keep them in their SegmentCache under the origin's node id, so
+ * /hls/index.m3u8 on origin "a" is /a/hls/index.m3u8 on every other node, and announce to
+ * everyone which segments they hold.  Every node also reports its load (open HTTP
+ * connections) once a second.  A segment request then gets a 302 to the least loaded node
+ * holding that segment when it is clearly less loaded than this one, or when this node
+ * doesn't hold the segment at all.  Playlists are always answered where they are asked for.
+ * <p/>
+ * Each peer has its own sender thread and byte-bounded queue; a peer that can't keep up
+ * loses the oldest queued segments and its viewers are served by the nodes that have them.
+ * Lost connections are redialed with exponential backoff.  The origin sends each segment
+ * once per peer, so this suits a handful of nodes on a LAN rather than a wide fan-out.
+ * Encryption keys are not relayed.
+ */
+public class SegmentRelay implements SegmentListener, SegmentServer.Redirector {
+    private static final Logger LOG = Logger.getLogger("SegmentRelay");
+
+    public static final int DEFAULT_PORT = 9080;
+
+    private static final int VERSION = 1;
+    private static final int HELLO = 1;
+    private static final int SEGMENT = 2;
+    private static final int HAVE = 3;
+    private static final int LOAD = 4;
+
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int MIN_BACKOFF_MS = 500;
+    private static final int MAX_BACKOFF_MS = 30000;
+    private static final int LOAD_INTERVAL_MS = 1000;
+    /** A node whose load is older than this is not redirected to. */
+    private static final int LOAD_STALE_MS = 3 * LOAD_INTERVAL_MS;
+    /** Announcements older than this are ignored; live segments have long left the playlist. */
+    private static final int HOLDER_STALE_MS = 60000;
+    private static final int MAX_TRACKED_SEGMENTS = 4096;
+    private static final int MAX_SEGMENT_BYTES = 64 * 1024 * 1024;
+    private static final long DEFAULT_QUEUE_BYTES = 8 * 1024 * 1024;
+    /** Connections a peer must have fewer of before this node sends its viewers there. */
+    private static final int REDIRECT_MARGIN = 2;
+
+    private final String mNodeId;
+    private final int mPort;
+    private final SegmentServer mServer;
+    private final SegmentCache mCache;
+    private final List<Peer> mPeers = new ArrayList<Peer>();
+    private final List<Socket> mIncoming = new CopyOnWriteArrayList<Socket>();
+    private final Map<String, Node> mNodes = new ConcurrentHashMap<String, Node>();
+    private final LinkedHashMap<String, Map<String, Long>> mHolders =
+            new LinkedHashMap<String, Map<String, Long>>(16, 0.75f, false) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Map<String, Long>> eldest) {
+                    return size() > MAX_TRACKED_SEGMENTS;
+                }
+            };
+    private long mQueueBytes = DEFAULT_QUEUE_BYTES;
+
+    private final AtomicLong mPublished = new AtomicLong();
+    private final AtomicLong mSent = new AtomicLong();
+    private final AtomicLong mReceived = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+
+    private volatile boolean mRunning = false;
+    private ServerSocket mServerSocket;
+
+    /** What this node knows about another. */
+    private static class Node {
+        final String id;
+        volatile String baseUrl;
+        volatile int load;
+        volatile long loadTimeMs;
+
+        Node(String id) {
+            this.id = id;
+        }
+    }
+
+    private static class Frame {
+        final int type;
+        final String origin;
+        final String name;
+        final ByteBuffer body;
+
+        Frame(int type, String origin, String name, ByteBuffer body) {
+            this.type = type;
+            this.origin = origin;
+            this.name = name;
+            this.body = body;
+        }
+
+        long size() {
+            return (body == null) ? 64 : 64 + body.remaining();
+        }
+    }
+
+    /**
+     * @param nodeId names this node to its peers and prefixes its segments on theirs; no '/'
+     * @param port   port to accept peers on, usually DEFAULT_PORT
+     * @param server serves this node's viewers; needs a cache for the segments relayed in
+     */
+    public SegmentRelay(String nodeId, int port, SegmentServer server) {
+        if (nodeId.length() == 0 || nodeId.indexOf('/') >= 0) throw new IllegalArgumentException("Bad node id " + nodeId);
+        if (server.getCache() == null) throw new IllegalArgumentException("The segment server needs a cache");
+        mNodeId = nodeId;
+        mPort = port;
+        mServer = server;
+        mCache = server.getCache();
+    }
+
+    /**
+     * Pushes this node's segments to host:port and announces what it holds there.  Before
+     * start().
+     */
+    public void addPeer(String hostAndPort) {
+        int colon = hostAndPort.lastIndexOf(':');
+        String host = (colon < 0) ? hostAndPort : hostAndPort.substring(0, colon);
+        int port = (colon < 0) ? DEFAULT_PORT : Integer.parseInt(hostAndPort.substring(colon + 1));
+        mPeers.add(new Peer(host, port));
+    }
+
+    /**
+     * Per peer queue limit.  Before start().
+     */
+    public void setQueueBytes(long bytes) {
+        mQueueBytes = bytes;
+    }
+
+    public String getNodeId() {
+        return mNodeId;
+    }
+
+    public synchronized void start() throws IOException {
+        if (mRunning) return;
+        mServerSocket = new ServerSocket();
+        mServerSocket.setReuseAddress(true);
+        mServerSocket.bind(new InetSocketAddress(mPort));
+        mRunning = true;
+        Thread accept = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "relay accept");
+        accept.setDaemon(true);
+        accept.start();
+        for (Peer peer : mPeers) peer.start();
+        mServer.setRedirector(this);
+        LOG.info("Relay " + mNodeId + " on port " + mServerSocket.getLocalPort() + ", " + mPeers.size() + " peers");
+    }
+
+    public synchronized void stop() {
+        if (!mRunning) return;
+        mRunning = false;
+        mServer.setRedirector(null);
+        closeQuietly(mServerSocket);
+        for (Peer peer : mPeers) peer.stop();
+        for (Socket socket : mIncoming) closeQuietly(socket);
+    }
+
+    @Override
+    public void onSegmentEvent(SegmentEvent event) {
+        if (event.type == SegmentEvent.FINISHED && event.kind == SegmentEvent.KIND_HLS_SEGMENT && event.file != null) {
+            publish(event.file);
+        }
+    }
+
+    /**
+     * Sends a finished segment under the server root to every peer, followed by the
+     * playlists and init segment that refer to it.  The segment is read from the cache if it
+     * is there, so diskless segments work too.
+     */
+    public void publish(File segment) {
+        String name = relativeName(segment);
+        if (name == null) {
+            LOG.warning(segment + " is outside " + mServer.getRoot() + ", not relaying it");
+            return;
+        }
+        ByteBuffer data = read(name);
+        if (data == null) return;
+        addHolder(mNodeId + "/" + name, mNodeId);
+        send(new Frame(SEGMENT, mNodeId, name, data));
+        mPublished.incrementAndGet();
+
+        int slash = name.lastIndexOf('/');
+        String dir = (slash < 0) ? "" : name.substring(0, slash + 1);
+        String parent = "";
+        if (slash > 0) {
+            int up = name.lastIndexOf('/', slash - 1);
+            parent = (up < 0) ? "" : name.substring(0, up + 1);
+        }
+        String[] sidecars = {
+                dir + HlsSegmenter.INIT_SEGMENT_NAME, dir + HlsSegmenter.PLAYLIST_NAME,
+                dir + HlsMasterPlaylist.NAME, parent + HlsMasterPlaylist.NAME
+        };
+        for (String sidecar : sidecars) {
+            ByteBuffer bytes = read(sidecar);
+            if (bytes != null) send(new Frame(SEGMENT, mNodeId, sidecar, bytes));
+        }
+    }
+
+    @Override
+    public String redirect(String name) {
+        String origin = mNodeId;
+        String path = name;
+        int slash = name.indexOf('/');
+        if (slash > 0 && mNodes.containsKey(name.substring(0, slash))) {
+            origin = name.substring(0, slash);
+            path = name.substring(slash + 1);
+        }
+        Map<String, Long> holders;
+        synchronized (mHolders) {
+            holders = mHolders.get(origin + "/" + path);
+            if (holders == null) return null;
+            holders = new HashMap<String, Long>(holders);
+        }
+        long now = System.currentTimeMillis();
+        boolean local = holders.containsKey(mNodeId);
+        Node best = null;
+        for (Map.Entry<String, Long> holder : holders.entrySet()) {
+            Node node = mNodes.get(holder.getKey());
+            if (node == null || node.baseUrl == null) continue;
+            if (now - holder.getValue() > HOLDER_STALE_MS || now - node.loadTimeMs > LOAD_STALE_MS) continue;
+            if (best == null || node.load < best.load) best = node;
+        }
+        if (best == null) return null;
+        if (local && best.load + REDIRECT_MARGIN >= mServer.getConnectionCount()) return null;
+        return best.baseUrl + (best.id.equals(origin) ? path : origin + "/" + path);
+    }
+
+    public String getStats() {
+        long queued = 0;
+        int connected = 0;
+        for (Peer peer : mPeers) {
+            queued += peer.queuedBytes();
+            if (peer.mConnected) connected++;
+        }
+        StringBuilder stats = new StringBuilder();
+        stats.append(mPublished.get()).append(" published, ").append(mSent.get()).append(" sent, ")
+                .append(mReceived.get()).append(" received, ").append(mDropped.get()).append(" dropped, ")
+                .append(connected).append('/').append(mPeers.size()).append(" peers connected, ")
+                .append(queued).append(" bytes queued; loads:");
+        for (Node node : mNodes.values()) stats.append(' ').append(node.id).append('=').append(node.load);
+        return stats.toString();
+    }
+
+    private String relativeName(File file) {
+        String root = mServer.getRoot().getAbsolutePath() + File.separator;
+        String path = file.getAbsolutePath();
+        if (!path.startsWith(root)) return null;
+        return path.substring(root.length()).replace(File.separatorChar, '/');
+    }
+
+    /**
+     * A request path's bytes from the cache or the disk, or null.
+     */
+    private ByteBuffer read(String name) {
+        ByteBuffer cached = mCache.get(name);
+        if (cached != null) return cached;
+        File file = new File(mServer.getRoot(), name);
+        if (!file.isFile()) return null;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Couldn't read " + file, e);
+            return null;
+        }
+    }
+
+    private void send(Frame frame) {
+        for (Peer peer : mPeers) {
+            peer.offer(new Frame(frame.type, frame.origin, frame.name, (frame.body == null) ? null : frame.body.duplicate()));
+        }
+    }
+
+    private void addHolder(String key, String nodeId) {
+        synchronized (mHolders) {
+            Map<String, Long> holders = mHolders.get(key);
+            if (holders == null) {
+                holders = new HashMap<String, Long>(4);
+                mHolders.put(key, holders);
+            }
+            holders.put(nodeId, System.currentTimeMillis());
+        }
+    }
+
+    private static boolean isSegment(String name) {
+        return name.endsWith(".ts") || name.endsWith(".m4s");
+    }
+
+    private void acceptLoop() {
+        while (mRunning) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                mIncoming.add(socket);
+                Thread reader = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            readLoop(socket);
+                        } finally {
+                            mIncoming.remove(socket);
+                            closeQuietly(socket);
+                        }
+                    }
+                }, "relay from " + socket.getRemoteSocketAddress());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (mRunning) LOG.log(Level.WARNING, "accept failed", e);
+            }
+        }
+    }
+
+    /**
+     * Takes in what one peer sends: a HELLO, then segments, announcements and loads.
+     */
+    private void readLoop(Socket socket) {
+        Node node = null;
+        try {
+            socket.setSoTimeout(LOAD_STALE_MS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            byte[] copy = new byte[64 * 1024];
+            if (in.readUnsignedByte() != HELLO || in.readInt() != VERSION) {
+                LOG.warning("Not a relay peer: " + socket.getRemoteSocketAddress());
+                return;
+            }
+            String id = in.readUTF();
+            node = mNodes.get(id);
+            if (node == null) {
+                node = new Node(id);
+                mNodes.put(id, node);
+            }
+            node.baseUrl = in.readUTF();
+            LOG.info("Relay peer " + id + " connected, serving at " + node.baseUrl);
+            while (mRunning) {
+                int type = in.readUnsignedByte();
+                if (type == SEGMENT) {
+                    String origin = in.readUTF();
+                    String name = in.readUTF();
+                    int length = in.readInt();
+                    if (length < 0 || length > MAX_SEGMENT_BYTES || origin.equals(mNodeId) || name.contains("..")) {
+                        throw new IOException("Bad segment " + origin + "/" + name + " (" + length + " bytes)");
+                    }
+                    ByteBuffer data = ByteBuffer.allocateDirect(length);
+                    while (data.hasRemaining()) {
+                        int n = Math.min(copy.length, data.remaining());
+                        in.readFully(copy, 0, n);
+                        data.put(copy, 0, n);
+                    }
+                    data.flip();
+                    String key = origin + "/" + name;
+                    mCache.putBuffer(key, data);
+                    mReceived.incrementAndGet();
+                    if (isSegment(name)) {
+                        addHolder(key, origin);
+                        addHolder(key, mNodeId);
+                        send(new Frame(HAVE, origin, name, null));
+                    }
+                } else if (type == HAVE) {
+                    String origin = in.readUTF();
+                    String name = in.readUTF();
+                    addHolder(origin + "/" + name, node.id);
+                } else if (type == LOAD) {
+                    node.load = in.readInt();
+                    node.loadTimeMs = System.currentTimeMillis();
+                } else {
+                    throw new IOException("Unknown frame " + type);
+                }
+            }
+        } catch (EOFException e) {
+            if (mRunning) LOG.info("Relay peer " + ((node == null) ? socket.getRemoteSocketAddress() : node.id) + " disconnected");
+        } catch (IOException e) {
+            if (mRunning) LOG.info("Relay peer " + ((node == null) ? socket.getRemoteSocketAddress() : node.id) + " gone: " + e.getMessage());
+        } finally {
+            if (node != null) node.loadTimeMs = 0;
+        }
+    }
+
+    /**
+     * The outgoing connection to one peer and what is waiting to go over it.
+     */
+    private class Peer implements Runnable {
+        final String mHost;
+        final int mPort;
+        final ArrayDeque<Frame> mQueue = new ArrayDeque<Frame>();
+        final byte[] mCopy = new byte[64 * 1024];
+        long mQueuedBytes = 0;
+        Thread mThread;
+        volatile Socket mSocket;
+        volatile boolean mConnected = false;
+
+        Peer(String host, int port) {
+            mHost = host;
+            mPort = port;
+        }
+
+        void start() {
+            mThread = new Thread(this, "relay to " + mHost + ":" + mPort);
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+
+        void stop() {
+            mThread.interrupt();
+            closeQuietly(mSocket);
+        }
+
+        /**
+         * Queues frame, dropping the oldest queued frames to stay within the byte limit.
+         */
+        synchronized void offer(Frame frame) {
+            mQueue.add(frame);
+            mQueuedBytes += frame.size();
+            while (mQueuedBytes > mQueueBytes && mQueue.size() > 1) {
+                Frame old = mQueue.poll();
+                mQueuedBytes -= old.size();
+                if (old.type == SEGMENT) mDropped.incrementAndGet();
+            }
+            notifyAll();
+        }
+
+        synchronized Frame poll(long timeoutMs) throws InterruptedException {
+            if (mQueue.isEmpty() && timeoutMs > 0) wait(timeoutMs);
+            Frame frame = mQueue.poll();
+            if (frame != null) mQueuedBytes -= frame.size();
+            return frame;
+        }
+
+        synchronized long queuedBytes() {
+            return mQueuedBytes;
+        }
+
+        @Override
+        public void run() {
+            int backoffMs = MIN_BACKOFF_MS;
+            while (mRunning) {
+                try {
+                    DataOutputStream out = connect();
+                    backoffMs = MIN_BACKOFF_MS;
+                    sendLoop(out);
+                } catch (IOException e) {
+                    if (mRunning) LOG.info("Relay connection to " + mHost + ":" + mPort + " lost: " + e.getMessage());
+                } catch (InterruptedException e) {
+                    break;
+                } finally {
+                    mConnected = false;
+                    closeQuietly(mSocket);
+                }
+                if (!mRunning) break;
+                try {
+                    Thread.sleep(backoffMs);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                backoffMs = Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+            }
+        }
+
+        private DataOutputStream connect() throws IOException {
+            Socket socket = new Socket();
+            mSocket = socket;
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(mHost, mPort), CONNECT_TIMEOUT_MS);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            // Viewers reach this node at the address the peer sees it on
+            String baseUrl = "http://" + socket.getLocalAddress().getHostAddress() + ":" + mServer.getPort() + "/";
+            out.writeByte(HELLO);
+            out.writeInt(VERSION);
+            out.writeUTF(mNodeId);
+            out.writeUTF(baseUrl);
+            out.flush();
+            mConnected = true;
+            LOG.info("Relaying to " + mHost + ":" + mPort);
+            return out;
+        }
+
+        private void sendLoop(DataOutputStream out) throws IOException, InterruptedException {
+            long nextLoadMs = 0;
+            while (mRunning) {
+                long now = System.currentTimeMillis();
+                if (now >= nextLoadMs) {
+                    out.writeByte(LOAD);
+                    out.writeInt(mServer.getConnectionCount());
+                    out.flush();
+                    nextLoadMs = now + LOAD_INTERVAL_MS;
+                }
+                Frame frame = poll(nextLoadMs - now);
+                if (frame == null) continue;
+                out.writeByte(frame.type);
+                out.writeUTF(frame.origin);
+                out.writeUTF(frame.name);
+                if (frame.type == SEGMENT) {
+                    ByteBuffer body = frame.body;
+                    out.writeInt(body.remaining());
+                    while (body.hasRemaining()) {
+                        int n = Math.min(mCopy.length, body.remaining());
+                        body.get(mCopy, 0, n);
+                        out.write(mCopy, 0, n);
+                    }
+                    mSent.incrementAndGet();
+                }
+                if (queuedBytes() == 0) out.flush();
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+
+    private static void closeQuietly(ServerSocket socket) {
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Runs one node: serves root over HTTP, relays with the given peers and, with -watch,
+     * publishes every .ts or .m4s file that appears under the watched directory as this
+     * node's own.  Several on loopback make a test cluster.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String id = null;
+        int httpPort = SegmentServer.DEFAULT_PORT;
+        int relayPort = DEFAULT_PORT;
+        long cacheBytes = 64L * 1024 * 1024;
+        File watch = null;
+        File root = null;
+        List<String> peers = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-id") && i + 1 < args.length) {
+                id = args[++i];
+            } else if (arg.equals("-http") && i + 1 < args.length) {
+                httpPort = Integer.parseInt(args[++i]);
+            } else if (arg.equals("-relay") && i + 1 < args.length) {
+                relayPort = Integer.parseInt(args[++i]);
+            } else if (arg.equals("-peer") && i + 1 < args.length) {
+                peers.add(args[++i]);
+            } else if (arg.equals("-cache") && i + 1 < args.length) {
+                cacheBytes = Long.parseLong(args[++i]) * 1024 * 1024;
+            } else if (arg.equals("-watch") && i + 1 < args.length) {
+                watch = new File(args[++i]);
+            } else if (root == null && !arg.startsWith("-")) {
+                root = new File(arg);
+            } else {
+                root = null;
+                break;
+            }
+        }
+        if (id == null || root == null) {
+            System.err.println("usage: SegmentRelay -id node [-http port] [-relay port] [-peer host:port]... [-cache mb] [-watch dir] root");
+            System.exit(2);
+        }
+        SegmentServer server = new SegmentServer(httpPort, root, new SegmentCache(cacheBytes));
+        server.start();
+        SegmentRelay relay = new SegmentRelay(id, relayPort, server);
+        for (String peer : peers) relay.addPeer(peer);
+        relay.start();
+
+        // A file counts as finished once its size holds still for a poll
+        Map<File, Long> pending = new HashMap<File, Long>();
+        Map<File, Boolean> published = new HashMap<File, Boolean>();
+        long nextStatsMs = System.currentTimeMillis() + 5000;
+        while (true) {
+            Thread.sleep(500);
+            File[] files = (watch == null) ? null : watch.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (!isSegment(file.getName()) || published.containsKey(file)) continue;
+                    Long size = pending.get(file);
+                    if (size != null && size == file.length()) {
+                        pending.remove(file);
+                        published.put(file, Boolean.TRUE);
+                        relay.publish(file);
+                    } else {
+                        pending.put(file, file.length());
+                    }
+                }
+            }
+            if (System.currentTimeMillis() >= nextStatsMs) {
+                System.out.println(id + ": relay " + relay.getStats() + "; HTTP " + server.getStats());
+                nextStatsMs += 5000;
+            }
+        }
+    }
+}
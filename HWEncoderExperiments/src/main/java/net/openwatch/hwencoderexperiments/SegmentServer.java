@@ -0,0 +1,511 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Minimal HTTP/1.1 server for the recording output directory: HLS / DASH playlists and
+ * segments, chunk files and their indexes.
+ * <p/>
+ * Anything in the SegmentCache is answered from memory with a single gathering write of
+ * the response header and the cached buffer; everything else is sent from disk with
+ * FileChannel.transferTo.  GET and HEAD, keep-alive and single byte ranges (for seeking in
+ * chunk files) are supported.  Key files are never served: they need whatever access control
+ * the deployment puts in front of its key server.
+ * <p/>
+ * Any file with a ChunkIndex (chunk files, MPEG-TS segments) can be requested from a point in
+ * time with "?t=&lt;seconds&gt;": the index finds the keyframe at or before that time and the
+ * answer is the rest of the file from there, as for "Range: bytes=&lt;offset&gt;-".  For a TS
+ * segment that is a stream a player can start on.  "&lt;dir&gt;/iframes.m3u8" is the
+ * I-frame playlist of "&lt;dir&gt;/index.m3u8", built from the segment indexes on request
+ * (see IFramePlaylist).
+ * <p/>
+ * One thread accepts connections and each connection gets a thread of its own.
+ * <p/>
+ * With a Redirector (see SegmentRelay) a segment request may be answered with a 302 to
+ * another node holding the same segment.  Redirected requests carry a query string and are
+ * always served where they land, so a request is never redirected twice.
+ */
+public class SegmentServer {
+    private static final Logger LOG = Logger.getLogger("SegmentServer");
+
+    public static final int DEFAULT_PORT = 8080;
+    private static final int MAX_REQUEST_HEAD = 8 * 1024;
+
+    private final int mPort;
+    private final File mRoot;
+    private final SegmentCache mCache;
+    private final List<Connection> mConnections = new CopyOnWriteArrayList<Connection>();
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mCacheResponses = new AtomicLong();
+    private final AtomicLong mDiskResponses = new AtomicLong();
+    private final AtomicLong mBytesSent = new AtomicLong();
+
+    private final AtomicLong mRedirects = new AtomicLong();
+    private volatile Redirector mRedirector;
+
+    private ServerSocketChannel mServerChannel;
+    private Thread mAcceptThread;
+    private volatile boolean mRunning = false;
+
+    /**
+     * Decides where a segment request should be served.
+     */
+    public interface Redirector {
+        /**
+         * @param name request path without the leading slash or query
+         * @return absolute URL to send the client to, or null to serve it here
+         */
+        String redirect(String name);
+    }
+
+    public static class Stats {
+        public final long requests;
+        public final long cacheResponses;
+        public final long diskResponses;
+        public final long redirects;
+        public final long bytesSent;
+        public final int connections;
+
+        Stats(long requests, long cacheResponses, long diskResponses, long redirects, long bytesSent, int connections) {
+            this.requests = requests;
+            this.cacheResponses = cacheResponses;
+            this.diskResponses = diskResponses;
+            this.redirects = redirects;
+            this.bytesSent = bytesSent;
+            this.connections = connections;
+        }
+
+        @Override
+        public String toString() {
+            return requests + " requests (" + cacheResponses + " from cache, " + diskResponses + " from disk, "
+                    + redirects + " redirected), " + bytesSent + " bytes sent, " + connections + " connections open";
+        }
+    }
+
+    /**
+     * @param port TCP port, or 0 for any free port (see getPort())
+     * @param root directory request paths are resolved against
+     * @param cache consulted before the disk; may be null
+     */
+    public SegmentServer(int port, File root, SegmentCache cache) {
+        mPort = port;
+        mRoot = root;
+        mCache = cache;
+    }
+
+    public synchronized void start() throws IOException {
+        if (mRunning) return;
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.socket().setReuseAddress(true);
+        mServerChannel.socket().bind(new InetSocketAddress(mPort));
+        mRunning = true;
+        mAcceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "http accept");
+        mAcceptThread.start();
+        LOG.info("Serving " + mRoot + " on port " + getPort());
+    }
+
+    public synchronized void stop() {
+        mRunning = false;
+        closeQuietly(mServerChannel);
+        for (Connection connection : mConnections) closeQuietly(connection.mChannel);
+        mConnections.clear();
+        mAcceptThread = null;
+    }
+
+    public int getPort() {
+        ServerSocketChannel channel = mServerChannel;
+        return (channel == null) ? mPort : channel.socket().getLocalPort();
+    }
+
+    public File getRoot() {
+        return mRoot;
+    }
+
+    public SegmentCache getCache() {
+        return mCache;
+    }
+
+    public Stats getStats() {
+        return new Stats(mRequests.get(), mCacheResponses.get(), mDiskResponses.get(), mRedirects.get(), mBytesSent.get(),
+                mConnections.size());
+    }
+
+    /**
+     * Open client connections, the load figure a relay compares nodes by.
+     */
+    public int getConnectionCount() {
+        return mConnections.size();
+    }
+
+    /**
+     * Consulted for segment (.ts, .m4s) requests; playlists are always served here.
+     */
+    public void setRedirector(Redirector redirector) {
+        mRedirector = redirector;
+    }
+
+    private void acceptLoop() {
+        while (mRunning) {
+            try {
+                SocketChannel channel = mServerChannel.accept();
+                channel.socket().setTcpNoDelay(true);
+                final Connection connection = new Connection(channel);
+                mConnections.add(connection);
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        connection.serve();
+                    }
+                }, "http " + channel.socket().getRemoteSocketAddress()).start();
+            } catch (IOException e) {
+                if (mRunning) LOG.log(Level.WARNING, "accept failed", e);
+            }
+        }
+    }
+
+    static String contentTypeFor(String name) {
+        if (name.endsWith(".m3u8")) return "application/vnd.apple.mpegurl";
+        if (name.endsWith(".mpd")) return "application/dash+xml";
+        if (name.endsWith(".ts")) return "video/mp2t";
+        if (name.endsWith(".m4s")) return "video/iso.segment";
+        if (name.endsWith(".mp4")) return "video/mp4";
+        return "application/octet-stream";
+    }
+
+    /**
+     * Value of name in an URL query string ("" if it has none), or null if it isn't there.
+     */
+    static String parameter(String query, String name) {
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            String key = (equals < 0) ? pair : pair.substring(0, equals);
+            if (key.equals(name)) return (equals < 0) ? "" : pair.substring(equals + 1);
+        }
+        return null;
+    }
+
+    private static String readText(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return new String(bytes, "UTF-8");
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+    }
+
+    private class Connection {
+        final SocketChannel mChannel;
+        final ByteBuffer mRequest = ByteBuffer.allocate(MAX_REQUEST_HEAD);
+        final ByteBuffer mHeader = ByteBuffer.allocate(1024);
+        final ByteBuffer[] mGather = new ByteBuffer[2];
+
+        Connection(SocketChannel channel) {
+            mChannel = channel;
+        }
+
+        void serve() {
+            try {
+                while (mRunning) {
+                    String head = readRequestHead();
+                    if (head == null) break;
+                    if (!respond(head)) break;
+                }
+            } catch (ClosedChannelException ignored) {
+                // stop() or the client hung up
+            } catch (IOException e) {
+                if (mRunning) LOG.log(Level.FINE, "connection failed", e);
+            } finally {
+                mConnections.remove(this);
+                closeQuietly(mChannel);
+            }
+        }
+
+        /**
+         * Returns the request line and headers, or null once the client has closed the
+         * connection.  Any bytes after the head (a pipelined request) are kept for next time.
+         */
+        private String readRequestHead() throws IOException {
+            while (true) {
+                int end = headEnd();
+                if (end >= 0) {
+                    String head = new String(mRequest.array(), 0, end, "ISO-8859-1");
+                    int consumed = end + 4;
+                    mRequest.flip();
+                    mRequest.position(consumed);
+                    mRequest.compact();
+                    return head;
+                }
+                if (!mRequest.hasRemaining()) throw new IOException("Request head too large");
+                if (mChannel.read(mRequest) < 0) return null;
+            }
+        }
+
+        private int headEnd() {
+            byte[] b = mRequest.array();
+            for (int i = 0; i + 3 < mRequest.position(); i++) {
+                if (b[i] == '\r' && b[i + 1] == '\n' && b[i + 2] == '\r' && b[i + 3] == '\n') return i;
+            }
+            return -1;
+        }
+
+        /**
+         * Answers one request.  Returns false if the connection should be closed.
+         */
+        private boolean respond(String head) throws IOException {
+            mRequests.incrementAndGet();
+            String[] lines = head.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3) {
+                sendStatus("400 Bad Request", false);
+                return false;
+            }
+            String method = requestLine[0];
+            String target = requestLine[1];
+            boolean keepAlive = requestLine[2].equals("HTTP/1.1");
+            String range = null;
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon < 0) continue;
+                String name = lines[i].substring(0, colon).trim();
+                String value = lines[i].substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Connection")) keepAlive = value.equalsIgnoreCase("keep-alive");
+                else if (name.equalsIgnoreCase("Range")) range = value;
+            }
+            boolean headOnly = method.equals("HEAD");
+            if (!method.equals("GET") && !headOnly) {
+                sendStatus("405 Method Not Allowed", keepAlive);
+                return keepAlive;
+            }
+
+            String query = null;
+            int mark = target.indexOf('?');
+            if (mark >= 0) {
+                query = target.substring(mark + 1);
+                target = target.substring(0, mark);
+            }
+            boolean redirected = query != null && parameter(query, "relayed") != null;
+            String name = target.startsWith("/") ? target.substring(1) : target;
+            if (name.contains("..") || name.contains("\\") || name.contains("%") || name.length() == 0) {
+                sendStatus("404 Not Found", keepAlive);
+                return keepAlive;
+            }
+            if (name.endsWith(".key")) {
+                sendStatus("403 Forbidden", keepAlive);
+                return keepAlive;
+            }
+
+            Redirector redirector = mRedirector;
+            if (redirector != null && !redirected && (name.endsWith(".ts") || name.endsWith(".m4s"))) {
+                String location = redirector.redirect(name);
+                if (location != null) {
+                    sendRedirect(location + "?relayed" + (query != null ? "&" + query : ""), keepAlive);
+                    mRedirects.incrementAndGet();
+                    return keepAlive;
+                }
+            }
+
+            if (name.equals(IFramePlaylist.NAME) || name.endsWith("/" + IFramePlaylist.NAME)) {
+                return sendIFramePlaylist(name, headOnly, keepAlive);
+            }
+            String seconds = (query == null) ? null : parameter(query, "t");
+            if (seconds != null) range = seekRange(name, seconds, range);
+
+            ByteBuffer cached = (mCache == null) ? null : mCache.get(name);
+            if (cached != null) {
+                long[] span = parseRange(range, cached.limit());
+                if (span == null) {
+                    sendUnsatisfiable(cached.limit(), keepAlive);
+                    return keepAlive;
+                }
+                writeHeader(name, span, cached.limit(), range != null, keepAlive);
+                cached.limit((int) span[1]).position((int) span[0]);
+                mGather[0] = mHeader;
+                mGather[1] = headOnly ? ByteBuffer.allocate(0) : cached;
+                long sent = 0;
+                while (mHeader.hasRemaining() || mGather[1].hasRemaining()) sent += mChannel.write(mGather);
+                mGather[1] = null;
+                mBytesSent.addAndGet(sent);
+                mCacheResponses.incrementAndGet();
+                return keepAlive;
+            }
+
+            File file = new File(mRoot, name);
+            if (!file.isFile()) {
+                sendStatus("404 Not Found", keepAlive);
+                return keepAlive;
+            }
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel body = raf.getChannel();
+                long length = body.size();
+                long[] span = parseRange(range, length);
+                if (span == null) {
+                    sendUnsatisfiable(length, keepAlive);
+                    return keepAlive;
+                }
+                writeHeader(name, span, length, range != null, keepAlive);
+                long sent = 0;
+                while (mHeader.hasRemaining()) sent += mChannel.write(mHeader);
+                long position = span[0];
+                while (!headOnly && position < span[1]) {
+                    long n = body.transferTo(position, span[1] - position, mChannel);
+                    if (n <= 0) throw new IOException("transferTo stalled");
+                    position += n;
+                    sent += n;
+                }
+                mBytesSent.addAndGet(sent);
+                mDiskResponses.incrementAndGet();
+            } finally {
+                raf.close();
+            }
+            return keepAlive;
+        }
+
+        /**
+         * Returns the range from the keyframe at or before the given number of seconds into
+         * name's first sample, or range unchanged if name has no index.
+         */
+        private String seekRange(String name, String seconds, String range) {
+            try {
+                ChunkIndex index = ChunkIndex.open(new File(mRoot, name));
+                if (index.getSampleCount() == 0) return range;
+                long ptsUs = index.getPtsUs(0) + Math.round(Double.parseDouble(seconds) * 1000000);
+                int sync = index.findSyncSample(ptsUs);
+                return (sync < 0) ? range : "bytes=" + index.getOffset(sync) + "-";
+            } catch (IOException e) {
+                return range;
+            } catch (NumberFormatException e) {
+                return range;
+            }
+        }
+
+        private boolean sendIFramePlaylist(String name, boolean headOnly, boolean keepAlive) throws IOException {
+            String dir = name.substring(0, name.length() - IFramePlaylist.NAME.length());
+            String media = dir + HlsSegmenter.PLAYLIST_NAME;
+            ByteBuffer cached = (mCache == null) ? null : mCache.get(media);
+            String text = null;
+            if (cached != null) {
+                byte[] bytes = new byte[cached.remaining()];
+                cached.get(bytes);
+                text = new String(bytes, "UTF-8");
+            } else if (new File(mRoot, media).isFile()) {
+                text = readText(new File(mRoot, media));
+            }
+            String playlist = (text == null) ? null : IFramePlaylist.build(text, new File(mRoot, dir));
+            if (playlist == null) {
+                sendStatus("404 Not Found", keepAlive);
+                return keepAlive;
+            }
+            ByteBuffer body = ByteBuffer.wrap(playlist.getBytes("UTF-8"));
+            writeHeader(name, new long[]{0, body.limit()}, body.limit(), false, keepAlive);
+            mGather[0] = mHeader;
+            mGather[1] = headOnly ? ByteBuffer.allocate(0) : body;
+            long sent = 0;
+            while (mHeader.hasRemaining() || mGather[1].hasRemaining()) sent += mChannel.write(mGather);
+            mGather[1] = null;
+            mBytesSent.addAndGet(sent);
+            return keepAlive;
+        }
+
+        /**
+         * Resolves a Range header against length into [start, end), or returns null if it
+         * can't be satisfied.  No header (or one we don't understand) means the whole body.
+         */
+        private long[] parseRange(String range, long length) {
+            if (range == null || !range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+                return new long[]{0, length};
+            }
+            String spec = range.substring(6).trim();
+            int dash = spec.indexOf('-');
+            try {
+                long start;
+                long end;
+                if (dash == 0) {
+                    long suffix = Long.parseLong(spec.substring(1));
+                    start = Math.max(0, length - suffix);
+                    end = length;
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    end = (dash == spec.length() - 1) ? length : Math.min(length, Long.parseLong(spec.substring(dash + 1)) + 1);
+                }
+                if (start >= length || end <= start) return null;
+                return new long[]{start, end};
+            } catch (NumberFormatException e) {
+                return new long[]{0, length};
+            }
+        }
+
+        private void writeHeader(String name, long[] span, long length, boolean partial, boolean keepAlive) {
+            StringBuilder header = new StringBuilder();
+            header.append(partial ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+            header.append("Content-Type: ").append(contentTypeFor(name)).append("\r\n");
+            header.append("Content-Length: ").append(span[1] - span[0]).append("\r\n");
+            if (partial) {
+                header.append("Content-Range: bytes ").append(span[0]).append('-').append(span[1] - 1)
+                        .append('/').append(length).append("\r\n");
+            }
+            header.append("Accept-Ranges: bytes\r\n");
+            // Playlists change as segments are added; segments never do
+            boolean playlist = name.endsWith(".m3u8") || name.endsWith(".mpd");
+            header.append("Cache-Control: ").append(playlist ? "no-cache" : "max-age=3600").append("\r\n");
+            header.append("Access-Control-Allow-Origin: *\r\n");
+            header.append(keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n");
+            header.append("\r\n");
+            putHeader(header);
+        }
+
+        private void sendStatus(String status, boolean keepAlive) throws IOException {
+            putHeader(new StringBuilder("HTTP/1.1 ").append(status).append("\r\nContent-Length: 0\r\n")
+                    .append(keepAlive ? "Connection: keep-alive\r\n\r\n" : "Connection: close\r\n\r\n"));
+            while (mHeader.hasRemaining()) mChannel.write(mHeader);
+        }
+
+        private void sendRedirect(String location, boolean keepAlive) throws IOException {
+            putHeader(new StringBuilder("HTTP/1.1 302 Found\r\nLocation: ").append(location)
+                    .append("\r\nContent-Length: 0\r\nAccess-Control-Allow-Origin: *\r\n")
+                    .append(keepAlive ? "Connection: keep-alive\r\n\r\n" : "Connection: close\r\n\r\n"));
+            while (mHeader.hasRemaining()) mChannel.write(mHeader);
+        }
+
+        private void sendUnsatisfiable(long length, boolean keepAlive) throws IOException {
+            putHeader(new StringBuilder("HTTP/1.1 416 Range Not Satisfiable\r\nContent-Range: bytes */").append(length)
+                    .append("\r\nContent-Length: 0\r\n")
+                    .append(keepAlive ? "Connection: keep-alive\r\n\r\n" : "Connection: close\r\n\r\n"));
+            while (mHeader.hasRemaining()) mChannel.write(mHeader);
+        }
+
+        private void putHeader(CharSequence header) {
+            mHeader.clear();
+            for (int i = 0; i < header.length(); i++) mHeader.put((byte) header.charAt(i));
+            mHeader.flip();
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Container format behind HlsSegmenter: turns the samples of one segment into bytes on a
+ * channel.  Implemented by TsWriter (MPEG-TS) and FragmentedMp4Writer (fMP4).
+ */
+interface SegmentWriter {
+    void setTrackFormat(int track, TrackFormat format);
+
+    /**
+     * Begins a segment on out.  Segments always begin with a video keyframe.
+     */
+    void startSegment(WritableByteChannel out) throws IOException;
+
+    /**
+     * Adds one Annex-B access unit or raw AAC frame, taken from data[position, limit).
+     * data is not modified.
+     */
+    void writeSampleData(int track, ByteBuffer data, long ptsUs, int flags) throws IOException;
+
+    /**
+     * Completes the segment.  Nothing is written to its channel afterwards.
+     *
+     * @param endPtsUs presentation time at which the next segment begins
+     */
+    void finishSegment(long endPtsUs) throws IOException;
+}
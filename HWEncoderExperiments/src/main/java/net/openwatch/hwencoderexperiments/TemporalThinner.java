@@ -0,0 +1,72 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Passes encoded samples on to sink minus the H.264 pictures nothing else is predicted from,
+ * giving a lower frame rate rendition of the same encode without encoding again.
+ * <p/>
+ * An access unit is dropped when its slices have nal_ref_idc 0, or when the encoder marks
+ * temporal layers with SVC prefix NAL units and its temporal_id is above maxTemporalId.
+ * Dropping non-reference pictures never leaves a gap in frame_num.  Dropping higher layers
+ * that are references relies on the encoder allowing frame_num gaps, which encoders that
+ * emit temporal layers do.  Keyframes and audio always pass.  The frame rate that results
+ * depends on the encoder: one making two temporal layers halves it, one making every
+ * frame a reference leaves nothing to drop.
+ * <p/>
+ * It costs a scan of each video sample's first NAL headers.  Samples are passed on
+ * unmodified, so sink may be anything that would take the full stream, e.g. a second
+ * HlsSegmenter.
+ */
+public class TemporalThinner implements EncodedSampleSink {
+    private final EncodedSampleSink mSink;
+    private final int mMaxTemporalId;
+    // Video only, written by the one video drain thread
+    private volatile long mPassedFrames = 0;
+    private volatile long mDroppedFrames = 0;
+    private volatile long mDroppedBytes = 0;
+
+    /**
+     * @param maxTemporalId highest temporal layer kept where the encoder marks layers
+     */
+    public TemporalThinner(EncodedSampleSink sink, int maxTemporalId) {
+        mSink = sink;
+        mMaxTemporalId = maxTemporalId;
+    }
+
+    @Override
+    public void setTrackFormat(int track, TrackFormat format) {
+        mSink.setTrackFormat(track, format);
+    }
+
+    @Override
+    public void writeSampleData(int track, ByteBuffer data, long ptsUs, int flags) {
+        if (track == TRACK_VIDEO) {
+            if ((flags & Mp4Writer.FLAG_SYNC) == 0 && !keep(data)) {
+                mDroppedFrames++;
+                mDroppedBytes += data.remaining();
+                return;
+            }
+            mPassedFrames++;
+        }
+        mSink.writeSampleData(track, data, ptsUs, flags);
+    }
+
+    private boolean keep(ByteBuffer data) {
+        if (!AvcUtils.isReferencePicture(data)) return false;
+        int temporalId = AvcUtils.temporalId(data);
+        return temporalId < 0 || temporalId <= mMaxTemporalId;
+    }
+
+    public long getPassedFrames() {
+        return mPassedFrames;
+    }
+
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    public long getDroppedBytes() {
+        return mDroppedBytes;
+    }
+}
@@ -0,0 +1,216 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process trace of the recorder's stages, cheap enough to leave on in the field, dumped
+ * on demand as Chrome trace JSON (chrome://tracing, Perfetto).
+ * <p/>
+ * Every thread that records gets its own ring of the last eventsPerThread events, so
+ * recording takes no lock and allocates nothing: a System.nanoTime(), three array stores and
+ * an ordered store of the ring's count.  Events are section begins and ends, and instants
+ * with one long argument.  Names are fixed up front and events refer to them by index.
+ * <p/>
+ * A dump copies each ring while its thread keeps writing, then drops whatever the writer
+ * may have overwritten during the copy.  Ends whose begin has already been overwritten are
+ * left out.
+ */
+public class TraceRecorder {
+    public static final int DEFAULT_EVENTS_PER_THREAD = 16384;
+
+    private static final int PHASE_BEGIN = 0;
+    private static final int PHASE_END = 1;
+    private static final int PHASE_INSTANT = 2;
+    private static final int PHASE_SHIFT = 24;
+    private static final int NAME_MASK = (1 << PHASE_SHIFT) - 1;
+
+    private final String[] mNames;
+    private final int mCapacity;
+    private final long mOriginNs = System.nanoTime();
+    private final List<Ring> mRings = new CopyOnWriteArrayList<Ring>();
+    private final ThreadLocal<Ring> mLocal = new ThreadLocal<Ring>() {
+        @Override
+        protected Ring initialValue() {
+            Ring ring = new Ring(Thread.currentThread(), mCapacity);
+            mRings.add(ring);
+            return ring;
+        }
+    };
+    private volatile boolean mEnabled = true;
+
+    private static class Ring {
+        final String threadName;
+        final long threadId;
+        final long[] times;
+        final int[] meta;       // phase << PHASE_SHIFT | name
+        final long[] args;
+        final int mask;
+        final AtomicLong written = new AtomicLong();
+
+        Ring(Thread thread, int capacity) {
+            threadName = thread.getName();
+            threadId = thread.getId();
+            times = new long[capacity];
+            meta = new int[capacity];
+            args = new long[capacity];
+            mask = capacity - 1;
+        }
+
+        void add(int phase, int name, long arg) {
+            long n = written.get();
+            int i = (int) (n & mask);
+            times[i] = System.nanoTime();
+            meta[i] = phase << PHASE_SHIFT | name;
+            args[i] = arg;
+            written.lazySet(n + 1);
+        }
+    }
+
+    /**
+     * @param names           event names; events are recorded by index into this array
+     * @param eventsPerThread rounded up to a power of two
+     */
+    public TraceRecorder(String[] names, int eventsPerThread) {
+        mNames = names.clone();
+        mCapacity = Integer.highestOneBit(Math.max(2, eventsPerThread - 1)) << 1;
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public String getName(int name) {
+        return mNames[name];
+    }
+
+    public void begin(int name) {
+        if (mEnabled) mLocal.get().add(PHASE_BEGIN, name, 0);
+    }
+
+    public void end(int name) {
+        if (mEnabled) mLocal.get().add(PHASE_END, name, 0);
+    }
+
+    public void instant(int name, long arg) {
+        if (mEnabled) mLocal.get().add(PHASE_INSTANT, name, arg);
+    }
+
+    /**
+     * Events overwritten before they could be dumped, over all threads.
+     */
+    public long getOverwritten() {
+        long overwritten = 0;
+        for (Ring ring : mRings) overwritten += Math.max(0, ring.written.get() - mCapacity);
+        return overwritten;
+    }
+
+    public void dump(File file) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 64 * 1024);
+        try {
+            writeChromeTrace(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes what the rings hold now as a Chrome trace: one JSON object with a traceEvents
+     * array, timestamps in microseconds from the recorder's creation.
+     */
+    public void writeChromeTrace(Writer out) throws IOException {
+        long[] times = new long[mCapacity];
+        int[] meta = new int[mCapacity];
+        long[] args = new long[mCapacity];
+        StringBuilder line = new StringBuilder(160);
+        out.write("{\"displayTimeUnit\":\"ns\",\"traceEvents\":[\n");
+        boolean first = true;
+        for (Ring ring : mRings) {
+            // Copy, then keep only what the writer can't have touched since
+            long end = ring.written.get();
+            long start = Math.max(0, end - mCapacity);
+            for (long n = start; n < end; n++) {
+                int i = (int) (n & ring.mask);
+                times[i] = ring.times[i];
+                meta[i] = ring.meta[i];
+                args[i] = ring.args[i];
+            }
+            start = Math.max(start, ring.written.get() - mCapacity);
+
+            line.setLength(0);
+            line.append(first ? "" : ",\n").append("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":").append(ring.threadId)
+                    .append(",\"args\":{\"name\":");
+            appendString(line, ring.threadName);
+            line.append("}}");
+            out.append(line);
+            first = false;
+
+            int depth = 0;
+            for (long n = start; n < end; n++) {
+                int i = (int) (n & ring.mask);
+                int phase = meta[i] >>> PHASE_SHIFT;
+                if (phase == PHASE_END) {
+                    if (depth == 0) continue;
+                    depth--;
+                } else if (phase == PHASE_BEGIN) {
+                    depth++;
+                }
+                line.setLength(0);
+                line.append(",\n{\"name\":");
+                appendString(line, mNames[meta[i] & NAME_MASK]);
+                line.append(",\"ph\":\"").append(phase == PHASE_BEGIN ? 'B' : phase == PHASE_END ? 'E' : 'i').append('"');
+                line.append(",\"ts\":");
+                appendMicros(line, times[i] - mOriginNs);
+                line.append(",\"pid\":1,\"tid\":").append(ring.threadId);
+                if (phase == PHASE_INSTANT) line.append(",\"s\":\"t\",\"args\":{\"value\":").append(args[i]).append('}');
+                line.append('}');
+                out.append(line);
+            }
+        }
+        out.write("\n]}\n");
+        out.flush();
+    }
+
+    /**
+     * Microseconds with the nanoseconds as three decimals, without going through floating
+     * point.
+     */
+    private static void appendMicros(StringBuilder s, long ns) {
+        if (ns < 0) {
+            s.append('-');
+            ns = -ns;
+        }
+        long fraction = ns % 1000;
+        s.append(ns / 1000).append('.');
+        if (fraction < 100) s.append('0');
+        if (fraction < 10) s.append('0');
+        s.append(fraction);
+    }
+
+    private static void appendString(StringBuilder s, String value) {
+        s.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                s.append('\\').append(c);
+            } else if (c < 0x20) {
+                s.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                s.append(c);
+            }
+        }
+        s.append('"');
+    }
+}
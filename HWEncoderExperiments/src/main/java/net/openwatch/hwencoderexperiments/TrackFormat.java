@@ -0,0 +1,115 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Plain-Java description of an encoded track.  Carries the subset of a MediaCodec output
+ * MediaFormat that our own container writers need, so they can run (and be benchmarked)
+ * off-device.
+ * <p/>
+ * Video tracks hold the SPS / PPS without Annex-B start codes; audio tracks hold the
+ * AAC AudioSpecificConfig.
+ */
+public class TrackFormat {
+    public static final String MIME_AVC = "video/avc";
+    public static final String MIME_AAC = "audio/mp4a-latm";
+
+    public final String mime;
+    public final int width;
+    public final int height;
+    public final int sampleRate;
+    public final int channelCount;
+    public final byte[] sps;
+    public final byte[] pps;
+    public final byte[] audioSpecificConfig;
+
+    private TrackFormat(String mime, int width, int height, int sampleRate, int channelCount,
+                        byte[] sps, byte[] pps, byte[] audioSpecificConfig) {
+        this.mime = mime;
+        this.width = width;
+        this.height = height;
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.sps = sps;
+        this.pps = pps;
+        this.audioSpecificConfig = audioSpecificConfig;
+    }
+
+    /**
+     * @param sps sequence parameter set, with or without a leading start code
+     * @param pps picture parameter set, with or without a leading start code
+     */
+    public static TrackFormat createVideoFormat(int width, int height, byte[] sps, byte[] pps) {
+        return new TrackFormat(MIME_AVC, width, height, 0, 0,
+                AvcUtils.stripStartCode(sps), AvcUtils.stripStartCode(pps), null);
+    }
+
+    public static TrackFormat createAudioFormat(int sampleRate, int channelCount, byte[] audioSpecificConfig) {
+        return new TrackFormat(MIME_AAC, 0, 0, sampleRate, channelCount, null, null, audioSpecificConfig);
+    }
+
+    /**
+     * Builds a two byte AAC-LC AudioSpecificConfig for the given rate and channel count.
+     * Useful when a synthetic stream has no encoder-provided csd-0.
+     */
+    public static byte[] aacLcAudioSpecificConfig(int sampleRate, int channelCount) {
+        int objectType = 2; // AAC LC
+        int freqIndex = AvcUtils.aacSampleRateIndex(sampleRate);
+        return new byte[]{
+                (byte) ((objectType << 3) | (freqIndex >> 1)),
+                (byte) (((freqIndex & 1) << 7) | (channelCount << 3))
+        };
+    }
+
+    public boolean isVideo() {
+        return MIME_AVC.equals(mime);
+    }
+
+    public boolean isAudio() {
+        return MIME_AAC.equals(mime);
+    }
+
+    /**
+     * RFC 6381 codecs string, e.g. "avc1.42801e" or "mp4a.40.2", as used in HLS and DASH
+     * manifests.
+     */
+    public String codecs() {
+        if (isVideo()) {
+            return String.format(Locale.US, "avc1.%02x%02x%02x", sps[1] & 0xFF, sps[2] & 0xFF, sps[3] & 0xFF);
+        }
+        return "mp4a.40." + ((audioSpecificConfig[0] & 0xFF) >> 3);
+    }
+
+    /**
+     * Equal formats decode the same samples: same codec configuration and dimensions.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof TrackFormat)) return false;
+        TrackFormat other = (TrackFormat) o;
+        return mime.equals(other.mime) && width == other.width && height == other.height
+                && sampleRate == other.sampleRate && channelCount == other.channelCount
+                && Arrays.equals(sps, other.sps) && Arrays.equals(pps, other.pps)
+                && Arrays.equals(audioSpecificConfig, other.audioSpecificConfig);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = mime.hashCode();
+        hash = 31 * hash + width;
+        hash = 31 * hash + height;
+        hash = 31 * hash + sampleRate;
+        hash = 31 * hash + channelCount;
+        hash = 31 * hash + Arrays.hashCode(sps);
+        hash = 31 * hash + Arrays.hashCode(pps);
+        return 31 * hash + Arrays.hashCode(audioSpecificConfig);
+    }
+
+    @Override
+    public String toString() {
+        if (isVideo()) return mime + " " + width + "x" + height;
+        return mime + " " + sampleRate + "Hz " + channelCount + "ch";
+    }
+}
@@ -0,0 +1,237 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Offline packager: re-segments finished recordings (an hq.mp4, or a set of chunk files
+ * played back to back) into HLS / DASH without decoding anything.
+ * <p/>
+ * Samples are read with Mp4Reader and pushed through the same HlsSegmenter the live path
+ * uses, so segment boundaries, encryption and playlists behave identically; the only
+ * difference is that the playlists are written once at the end.  Each job is single
+ * threaded and I/O bound, so throughput comes from running several files at once on the
+ * pool.
+ * <p/>
+ * From the command line (see the benchmarks module's transmux task):
+ * <pre>
+ *     Transmuxer [-format ts|fmp4] [-duration sec] [-threads n] -out dir input...
+ * </pre>
+ * where each input is an .mp4, or a directory whose .mp4 chunks are joined in chunk order.
+ * Every input gets its own subdirectory of dir.
+ */
+public class Transmuxer {
+    private static final Logger LOG = Logger.getLogger("Transmuxer");
+
+    // Transport stream clocks start here instead of at zero, leaving room for the PCR lead
+    private static final long START_OFFSET_US = 1000000;
+
+    public static class Result {
+        public final File outputDir;
+        public final int segments;
+        public final long durationUs;
+        public final long elapsedMs;
+
+        Result(File outputDir, int segments, long durationUs, long elapsedMs) {
+            this.outputDir = outputDir;
+            this.segments = segments;
+            this.durationUs = durationUs;
+            this.elapsedMs = elapsedMs;
+        }
+
+        /**
+         * Media time packaged per unit of wall time.
+         */
+        public double speed() {
+            return durationUs / 1000.0 / Math.max(1, elapsedMs);
+        }
+    }
+
+    private final ExecutorService mPool;
+    private final int mFormat;
+    private final int mTargetDurationSec;
+
+    /**
+     * @param threads files packaged concurrently
+     * @param format HlsSegmenter.FORMAT_TS or FORMAT_FMP4
+     */
+    public Transmuxer(int threads, int format, int targetDurationSec) {
+        mPool = Executors.newFixedThreadPool(threads);
+        mFormat = format;
+        mTargetDurationSec = targetDurationSec;
+    }
+
+    /**
+     * Queues the packaging of inputs, joined in order, into outputDir.
+     */
+    public Future<Result> submit(final List<File> inputs, final File outputDir) {
+        return mPool.submit(new Callable<Result>() {
+            @Override
+            public Result call() throws IOException {
+                return transmux(inputs, outputDir, mFormat, mTargetDurationSec);
+            }
+        });
+    }
+
+    /**
+     * Lets queued jobs finish, then stops the pool threads.
+     */
+    public void shutdown() {
+        mPool.shutdown();
+    }
+
+    /**
+     * Packages inputs, joined in order, into outputDir on the calling thread.  Each input
+     * picks up where the previous one ended, as chunk files do.
+     */
+    public static Result transmux(List<File> inputs, File outputDir, int format, int targetDurationSec) throws IOException {
+        long start = System.nanoTime();
+        HlsSegmenter segmenter = new HlsSegmenter(outputDir, targetDurationSec, format,
+                HlsSegmenter.ENCRYPTION_NONE, 0, null, 0);
+        segmenter.setLive(false);
+        long offsetUs = START_OFFSET_US;
+        TrackFormat video = null;
+        for (File input : inputs) {
+            Mp4Reader reader = new Mp4Reader(input);
+            try {
+                TrackFormat inputVideo = reader.getTrackFormat(EncodedSampleSink.TRACK_VIDEO);
+                if (inputVideo == null) throw new IOException(input + ": no video track to cut segments on");
+                if (video == null) {
+                    video = inputVideo;
+                    segmenter.setTrackFormat(EncodedSampleSink.TRACK_VIDEO, video);
+                    TrackFormat audio = reader.getTrackFormat(EncodedSampleSink.TRACK_AUDIO);
+                    if (audio != null) segmenter.setTrackFormat(EncodedSampleSink.TRACK_AUDIO, audio);
+                } else if (!Arrays.equals(video.sps, inputVideo.sps) || !Arrays.equals(video.pps, inputVideo.pps)) {
+                    LOG.warning(input + ": parameter sets differ from the first input");
+                }
+                for (int track = reader.getSampleTrack(); track >= 0; track = reader.getSampleTrack()) {
+                    segmenter.writeSampleData(track, reader.getSampleData(), offsetUs + reader.getSampleTime(),
+                            reader.getSampleFlags());
+                    reader.advance();
+                }
+                offsetUs += reader.getDurationUs();
+            } finally {
+                reader.close();
+            }
+            if (segmenter.getError() != null) break;
+        }
+        segmenter.finish();
+        if (segmenter.getError() != null) {
+            throw new IOException("Packaging into " + outputDir + " failed", segmenter.getError());
+        }
+        return new Result(outputDir, segmenter.getSegmentCount(), offsetUs - START_OFFSET_US,
+                (System.nanoTime() - start) / 1000000);
+    }
+
+    /**
+     * The recorder's chunk files in dir (named WxH_N.mp4), ordered by chunk number.  Other
+     * MP4s that end up next to them, such as an hq.mp4, clips or pre-roll dumps, are left out.
+     */
+    static List<File> chunkFiles(File dir) {
+        File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && chunkNumber(file.getName()) >= 0;
+            }
+        });
+        List<File> chunks = new ArrayList<File>();
+        if (files == null) return chunks;
+        chunks.addAll(Arrays.asList(files));
+        Collections.sort(chunks, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long na = chunkNumber(a.getName());
+                long nb = chunkNumber(b.getName());
+                if (na != nb) return (na < nb) ? -1 : 1;
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        return chunks;
+    }
+
+    /**
+     * Returns N for a name of the form WxH_N.mp4, or -1 for anything else.
+     */
+    static long chunkNumber(String name) {
+        if (!name.endsWith(".mp4")) return -1;
+        int end = name.length() - ".mp4".length();
+        int start = digitsBefore(name, end);
+        if (start == end || end - start > 18 || start == 0 || name.charAt(start - 1) != '_') return -1;
+        int height = digitsBefore(name, start - 1);
+        if (height == start - 1 || height == 0 || name.charAt(height - 1) != 'x') return -1;
+        int width = digitsBefore(name, height - 1);
+        if (width != 0 || width == height - 1) return -1;
+        return Long.parseLong(name.substring(start, end));
+    }
+
+    private static int digitsBefore(String s, int end) {
+        int start = end;
+        while (start > 0 && Character.isDigit(s.charAt(start - 1))) start--;
+        return start;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int format = HlsSegmenter.FORMAT_TS;
+        int duration = 6;
+        int threads = Runtime.getRuntime().availableProcessors();
+        File out = null;
+        List<File> inputs = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-format") && i + 1 < args.length) {
+                format = args[++i].equals("fmp4") ? HlsSegmenter.FORMAT_FMP4 : HlsSegmenter.FORMAT_TS;
+            } else if (arg.equals("-duration") && i + 1 < args.length) {
+                duration = Integer.parseInt(args[++i]);
+            } else if (arg.equals("-threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (arg.equals("-out") && i + 1 < args.length) {
+                out = new File(args[++i]);
+            } else {
+                inputs.add(new File(arg));
+            }
+        }
+        if (out == null || inputs.isEmpty()) {
+            System.err.println("usage: Transmuxer [-format ts|fmp4] [-duration sec] [-threads n] -out dir input...");
+            System.exit(2);
+        }
+
+        Transmuxer transmuxer = new Transmuxer(threads, format, duration);
+        List<File> names = new ArrayList<File>();
+        List<Future<Result>> jobs = new ArrayList<Future<Result>>();
+        for (File input : inputs) {
+            List<File> files = input.isDirectory() ? chunkFiles(input) : Collections.singletonList(input);
+            String name = input.getName();
+            if (name.endsWith(".mp4")) name = name.substring(0, name.length() - 4);
+            names.add(input);
+            jobs.add(transmuxer.submit(files, new File(out, name)));
+        }
+        transmuxer.shutdown();
+
+        int failures = 0;
+        for (int i = 0; i < jobs.size(); i++) {
+            try {
+                Result result = jobs.get(i).get();
+                System.out.println(String.format(Locale.US, "%s -> %s: %d segments, %.1f s in %d ms (%.0fx real time)",
+                        names.get(i), result.outputDir, result.segments, result.durationUs / 1000000.0,
+                        result.elapsedMs, result.speed()));
+            } catch (ExecutionException e) {
+                System.err.println(names.get(i) + ": " + e.getCause());
+                failures++;
+            }
+        }
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}
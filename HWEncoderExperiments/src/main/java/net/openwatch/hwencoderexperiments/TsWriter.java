@@ -0,0 +1,360 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Sequential MPEG-2 transport stream writer for HLS segments: one H.264 and one AAC
+ * elementary stream, PES per sample, PAT / PMT in front of every keyframe.
+ * <p/>
+ * Unlike Mp4Writer nothing is ever patched, so the output can go through any
+ * WritableByteChannel - a file, a socket, or an encrypting channel.  Packets are built in a
+ * reused direct buffer and handed to the channel in large writes.
+ * <p/>
+ * With setSampleAes(true) the PMT advertises the SAMPLE-AES stream types and descriptors from
+ * Apple's "MPEG-2 Stream Encryption Format for HTTP Live Streaming"; the caller is expected
+ * to pass in samples already encrypted by SampleAes.
+ */
+public class TsWriter implements SegmentWriter {
+    public static final int PACKET_SIZE = 188;
+
+    private static final int PID_PAT = 0;
+    private static final int PID_PMT = 0x1000;
+    private static final int[] PID_ES = {0x100, 0x101};   // indexed by track
+    private static final int STREAM_ID_VIDEO = 0xE0;
+    private static final int STREAM_ID_AUDIO = 0xC0;
+    private static final int STREAM_TYPE_H264 = 0x1B;
+    private static final int STREAM_TYPE_AAC_ADTS = 0x0F;
+    private static final int STREAM_TYPE_H264_SAMPLE_AES = 0xDB;
+    private static final int STREAM_TYPE_AAC_SAMPLE_AES = 0xCF;
+    private static final long PCR_LEAD_90K = 9000;           // PCR runs 100ms ahead of decode time
+
+    private static final byte[] AUD = {0, 0, 0, 1, 0x09, (byte) 0xF0};
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 24;
+            for (int bit = 0; bit < 8; bit++) crc = (crc << 1) ^ ((crc < 0) ? 0x04C11DB7 : 0);
+            CRC_TABLE[i] = crc;
+        }
+    }
+
+    private WritableByteChannel mOut;
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(PACKET_SIZE * 348);
+    private final TrackFormat[] mFormats = new TrackFormat[2];
+    private final int[] mContinuity = new int[4];               // PAT, PMT, video, audio
+    private final byte[] mSection = new byte[PACKET_SIZE];
+    private ByteBuffer mPes = ByteBuffer.allocate(256 * 1024);
+    private boolean mSampleAes = false;
+    private long mBytesWritten = 0;
+
+    public TsWriter(WritableByteChannel out) {
+        mOut = out;
+    }
+
+    /**
+     * Redirects subsequent output, e.g. to the next segment file.  Flush first.  Continuity
+     * counters carry on across segments, as players expect of one HLS stream.
+     */
+    public void setChannel(WritableByteChannel out) {
+        mOut = out;
+    }
+
+    @Override
+    public void setTrackFormat(int track, TrackFormat format) {
+        mFormats[track] = format;
+    }
+
+    public void setSampleAes(boolean sampleAes) {
+        mSampleAes = sampleAes;
+    }
+
+    /**
+     * Writes PAT and PMT.  Each segment must start with them; writeSampleData also repeats
+     * them before keyframes.
+     */
+    public void writeTables() throws IOException {
+        writeSection(PID_PAT, 0, buildPat());
+        writeSection(PID_PMT, 1, buildPmt());
+    }
+
+    /**
+     * Writes one Annex-B access unit or raw AAC frame from data[position, limit) as a PES
+     * packet.  data is not modified.
+     */
+    @Override
+    public void writeSampleData(int track, ByteBuffer data, long ptsUs, int flags) throws IOException {
+        boolean keyframe = (flags & Mp4Writer.FLAG_SYNC) != 0;
+        long pts = (ptsUs * 9 / 100) & 0x1FFFFFFFFL;
+        if (track == EncodedSampleSink.TRACK_VIDEO) {
+            if (keyframe) writeTables();
+            buildVideoPes(data, pts, keyframe);
+            writePes(track, keyframe, (pts - PCR_LEAD_90K) & 0x1FFFFFFFFL);
+        } else {
+            buildAudioPes(data, pts);
+            // Audio-only streams carry the PCR on the audio PID
+            writePes(track, false, (mFormats[EncodedSampleSink.TRACK_VIDEO] == null) ? (pts - PCR_LEAD_90K) & 0x1FFFFFFFFL : -1);
+        }
+    }
+
+    @Override
+    public void startSegment(WritableByteChannel out) throws IOException {
+        setChannel(out);
+        writeTables();
+    }
+
+    @Override
+    public void finishSegment(long endPtsUs) throws IOException {
+        flush();
+    }
+
+    public void flush() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) mBytesWritten += mOut.write(mBuffer);
+        mBuffer.clear();
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten + mBuffer.position();
+    }
+
+    private void buildVideoPes(ByteBuffer data, long pts, boolean keyframe) {
+        TrackFormat format = mFormats[EncodedSampleSink.TRACK_VIDEO];
+        boolean annexB = AvcUtils.isAnnexB(data);
+        int size = 14 + AUD.length + data.remaining() + (annexB ? 0 : START_CODE.length);
+        boolean addParameterSets = keyframe && format != null && format.sps != null && !hasParameterSets(data);
+        if (addParameterSets) size += 2 * START_CODE.length + format.sps.length + format.pps.length;
+        ByteBuffer pes = pesBuffer(size);
+        putPesHeader(pes, STREAM_ID_VIDEO, 0, pts);   // unbounded length is allowed for video
+        pes.put(AUD);
+        if (addParameterSets) {
+            pes.put(START_CODE).put(format.sps);
+            pes.put(START_CODE).put(format.pps);
+        }
+        if (!annexB) pes.put(START_CODE);
+        putSample(pes, data);
+        pes.flip();
+    }
+
+    private void buildAudioPes(ByteBuffer data, long pts) {
+        int frameLength = 7 + data.remaining();
+        ByteBuffer pes = pesBuffer(14 + frameLength);
+        putPesHeader(pes, STREAM_ID_AUDIO, 8 + frameLength, pts);
+        // ADTS header: MPEG-4, no CRC
+        TrackFormat format = mFormats[EncodedSampleSink.TRACK_AUDIO];
+        int profile = (format.audioSpecificConfig != null) ? ((format.audioSpecificConfig[0] & 0xFF) >> 3) - 1 : 1;
+        int frequencyIndex = AvcUtils.aacSampleRateIndex(format.sampleRate);
+        int channels = format.channelCount;
+        pes.put((byte) 0xFF);
+        pes.put((byte) 0xF1);
+        pes.put((byte) ((profile << 6) | (frequencyIndex << 2) | (channels >> 2)));
+        pes.put((byte) (((channels & 3) << 6) | (frameLength >> 11)));
+        pes.put((byte) (frameLength >> 3));
+        pes.put((byte) (((frameLength & 7) << 5) | 0x1F));
+        pes.put((byte) 0xFC);
+        putSample(pes, data);
+        pes.flip();
+    }
+
+    private ByteBuffer pesBuffer(int size) {
+        if (mPes.capacity() < size) mPes = ByteBuffer.allocate(size * 2);
+        mPes.clear();
+        return mPes;
+    }
+
+    private static void putPesHeader(ByteBuffer pes, int streamId, int packetLength, long pts) {
+        pes.put((byte) 0).put((byte) 0).put((byte) 1).put((byte) streamId);
+        pes.putShort((short) ((packetLength > 0xFFFF) ? 0 : packetLength));
+        pes.put((byte) 0x84);   // marker bits, data_alignment_indicator
+        pes.put((byte) 0x80);   // PTS only
+        pes.put((byte) 5);
+        pes.put((byte) (0x21 | ((pts >> 29) & 0x0E)));
+        pes.put((byte) (pts >> 22));
+        pes.put((byte) (0x01 | ((pts >> 14) & 0xFE)));
+        pes.put((byte) (pts >> 7));
+        pes.put((byte) (0x01 | ((pts << 1) & 0xFE)));
+    }
+
+    private static void putSample(ByteBuffer pes, ByteBuffer data) {
+        int position = data.position();
+        pes.put(data);
+        data.position(position);
+    }
+
+    private static boolean hasParameterSets(ByteBuffer data) {
+        int limit = data.limit();
+        int nal = AvcUtils.nextNalStart(data, data.position(), limit);
+        while (nal >= 0 && nal < limit) {
+            int type = AvcUtils.nalType(data.get(nal));
+            if (type == AvcUtils.NAL_TYPE_SPS) return true;
+            if (type == AvcUtils.NAL_TYPE_IDR_SLICE || type == AvcUtils.NAL_TYPE_NON_IDR_SLICE) return false;
+            nal = AvcUtils.nextNalStart(data, nal + 1, limit);
+        }
+        return false;
+    }
+
+    /**
+     * Splits mPes into transport packets.  The first packet of a keyframe is flagged as a
+     * random access point; pcr >= 0 adds a PCR to the first packet.
+     */
+    private void writePes(int track, boolean keyframe, long pcr) throws IOException {
+        ByteBuffer pes = mPes;
+        int pid = PID_ES[track];
+        boolean first = true;
+        while (pes.hasRemaining()) {
+            if (mBuffer.remaining() < PACKET_SIZE) flush();
+            int remaining = pes.remaining();
+            boolean withPcr = first && pcr >= 0;
+            boolean randomAccess = first && keyframe;
+            int adaptation = (withPcr || randomAccess) ? 2 + (withPcr ? 6 : 0) : 0;
+            if (remaining < 184 - adaptation) adaptation = 184 - remaining;   // stuff the last packet
+
+            mBuffer.put((byte) 0x47);
+            mBuffer.put((byte) ((first ? 0x40 : 0) | (pid >> 8)));
+            mBuffer.put((byte) pid);
+            mBuffer.put((byte) ((adaptation > 0 ? 0x30 : 0x10) | nextContinuity(2 + track)));
+            if (adaptation > 0) {
+                mBuffer.put((byte) (adaptation - 1));
+                if (adaptation > 1) {
+                    mBuffer.put((byte) ((randomAccess ? 0x40 : 0) | (withPcr ? 0x10 : 0)));
+                    int stuffing = adaptation - 2;
+                    if (withPcr) {
+                        mBuffer.put((byte) (pcr >> 25));
+                        mBuffer.put((byte) (pcr >> 17));
+                        mBuffer.put((byte) (pcr >> 9));
+                        mBuffer.put((byte) (pcr >> 1));
+                        mBuffer.put((byte) (((pcr & 1) << 7) | 0x7E));
+                        mBuffer.put((byte) 0);
+                        stuffing -= 6;
+                    }
+                    for (int i = 0; i < stuffing; i++) mBuffer.put((byte) 0xFF);
+                }
+            }
+            int payload = 184 - adaptation;
+            int limit = pes.limit();
+            pes.limit(pes.position() + payload);
+            mBuffer.put(pes);
+            pes.limit(limit);
+            first = false;
+        }
+    }
+
+    private int nextContinuity(int index) {
+        int counter = mContinuity[index];
+        mContinuity[index] = (counter + 1) & 0x0F;
+        return counter;
+    }
+
+    private int buildPat() {
+        byte[] s = mSection;
+        s[0] = 0x00;                            // table_id
+        s[3] = 0x00; s[4] = 0x01;               // transport_stream_id
+        s[5] = (byte) 0xC1;                     // version 0, current
+        s[6] = 0; s[7] = 0;                     // section numbers
+        s[8] = 0x00; s[9] = 0x01;               // program_number 1
+        s[10] = (byte) (0xE0 | (PID_PMT >> 8)); s[11] = (byte) PID_PMT;
+        return finishSection(12);
+    }
+
+    private int buildPmt() {
+        byte[] s = mSection;
+        TrackFormat video = mFormats[EncodedSampleSink.TRACK_VIDEO];
+        TrackFormat audio = mFormats[EncodedSampleSink.TRACK_AUDIO];
+        int pcrPid = PID_ES[(video != null) ? EncodedSampleSink.TRACK_VIDEO : EncodedSampleSink.TRACK_AUDIO];
+        s[0] = 0x02;
+        s[3] = 0x00; s[4] = 0x01;               // program_number
+        s[5] = (byte) 0xC1;
+        s[6] = 0; s[7] = 0;
+        s[8] = (byte) (0xE0 | (pcrPid >> 8)); s[9] = (byte) pcrPid;
+        s[10] = (byte) 0xF0; s[11] = 0;         // no program descriptors
+        int p = 12;
+        if (video != null) {
+            int streamType = mSampleAes ? STREAM_TYPE_H264_SAMPLE_AES : STREAM_TYPE_H264;
+            int infoStart = p + 5;
+            p = putStream(s, p, streamType, PID_ES[EncodedSampleSink.TRACK_VIDEO]);
+            if (mSampleAes) p = putFourCcDescriptor(s, p, 0x0F, "zavc");   // private_data_indicator
+            putEsInfoLength(s, infoStart, p);
+        }
+        if (audio != null) {
+            int streamType = mSampleAes ? STREAM_TYPE_AAC_SAMPLE_AES : STREAM_TYPE_AAC_ADTS;
+            int infoStart = p + 5;
+            p = putStream(s, p, streamType, PID_ES[EncodedSampleSink.TRACK_AUDIO]);
+            if (mSampleAes) {
+                p = putFourCcDescriptor(s, p, 0x0F, "aacd");
+                // registration_descriptor carrying audio_setup_information
+                byte[] config = (audio.audioSpecificConfig != null) ? audio.audioSpecificConfig : new byte[0];
+                s[p++] = 0x05;
+                s[p++] = (byte) (12 + config.length);
+                p = putFourCc(s, p, "apad");
+                p = putFourCc(s, p, "zaac");
+                s[p++] = 0; s[p++] = 0;         // priming
+                s[p++] = 1;                     // version
+                s[p++] = (byte) config.length;
+                System.arraycopy(config, 0, s, p, config.length);
+                p += config.length;
+            }
+            putEsInfoLength(s, infoStart, p);
+        }
+        return finishSection(p);
+    }
+
+    private static int putStream(byte[] s, int p, int streamType, int pid) {
+        s[p] = (byte) streamType;
+        s[p + 1] = (byte) (0xE0 | (pid >> 8));
+        s[p + 2] = (byte) pid;
+        return p + 5;   // ES_info_length filled in by putEsInfoLength
+    }
+
+    private static void putEsInfoLength(byte[] s, int infoStart, int end) {
+        int length = end - infoStart;
+        s[infoStart - 2] = (byte) (0xF0 | (length >> 8));
+        s[infoStart - 1] = (byte) length;
+    }
+
+    private static int putFourCcDescriptor(byte[] s, int p, int tag, String fourCc) {
+        s[p] = (byte) tag;
+        s[p + 1] = 4;
+        return putFourCc(s, p + 2, fourCc);
+    }
+
+    private static int putFourCc(byte[] s, int p, String fourCc) {
+        for (int i = 0; i < 4; i++) s[p + i] = (byte) fourCc.charAt(i);
+        return p + 4;
+    }
+
+    /**
+     * Fills in section_length and appends the CRC.  Returns the full section size.
+     */
+    private int finishSection(int end) {
+        byte[] s = mSection;
+        int sectionLength = end - 3 + 4;
+        s[1] = (byte) (0xB0 | (sectionLength >> 8));
+        s[2] = (byte) sectionLength;
+        int crc = crc32(s, end);
+        s[end] = (byte) (crc >> 24);
+        s[end + 1] = (byte) (crc >> 16);
+        s[end + 2] = (byte) (crc >> 8);
+        s[end + 3] = (byte) crc;
+        return end + 4;
+    }
+
+    private void writeSection(int pid, int continuityIndex, int length) throws IOException {
+        if (mBuffer.remaining() < PACKET_SIZE) flush();
+        mBuffer.put((byte) 0x47);
+        mBuffer.put((byte) (0x40 | (pid >> 8)));
+        mBuffer.put((byte) pid);
+        mBuffer.put((byte) (0x10 | nextContinuity(continuityIndex)));
+        mBuffer.put((byte) 0);  // pointer_field
+        mBuffer.put(mSection, 0, length);
+        for (int i = 5 + length; i < PACKET_SIZE; i++) mBuffer.put((byte) 0xFF);
+    }
+
+    static int crc32(byte[] data, int length) {
+        int crc = 0xFFFFFFFF;
+        for (int i = 0; i < length; i++) crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ data[i]) & 0xFF];
+        return crc;
+    }
+}
@@ -0,0 +1,112 @@
+package net.openwatch.hwencoderexperiments;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Box writing for one chunk's worth of encoder output (CHUNK_SEC at 4 Mbit/s): a
+ * progressive MP4 from Mp4Writer, including the moov written at the end, or one fMP4
+ * media segment from FragmentedMp4Writer.  The samples are generated up front, so the
+ * score is muxing alone: Annex-B rewriting, sample tables and box layout.  The MP4 goes
+ * to a file that stays in the page cache; the fMP4 segment is discarded.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkWriteBenchmark {
+    static final int CHUNK_SEC = 5;
+
+    @Param({"mp4", "fmp4"})
+    String format;
+
+    SyntheticStream stream;
+    int[] tracks;
+    ByteBuffer[] samples;
+    long[] ptsUs;
+    int[] flags;
+    long chunkUs;
+    long baseUs = 0;
+
+    File file;
+    RandomAccessFile out;
+    FragmentedMp4Writer fragmented;
+    SegmentEncryptionBenchmark.DiscardChannel discard = new SegmentEncryptionBenchmark.DiscardChannel();
+
+    @Setup
+    public void setup() throws IOException {
+        stream = new SyntheticStream(4000000);
+        int count = CHUNK_SEC * (SyntheticStream.FRAME_RATE + SyntheticStream.SAMPLE_RATE / SyntheticStream.SAMPLES_PER_FRAME + 1);
+        tracks = new int[count];
+        samples = new ByteBuffer[count];
+        ptsUs = new long[count];
+        flags = new int[count];
+        int n = 0;
+        stream.next();
+        while (n < count && stream.ptsUs < CHUNK_SEC * 1000000L) {
+            tracks[n] = stream.track;
+            samples[n] = stream.data.duplicate();
+            ptsUs[n] = stream.ptsUs;
+            flags[n] = stream.flags;
+            n++;
+            stream.next();
+        }
+        tracks = Arrays.copyOf(tracks, n);
+        chunkUs = CHUNK_SEC * 1000000L;
+
+        if (format.equals("mp4")) {
+            file = File.createTempFile("chunk", ".mp4");
+            out = new RandomAccessFile(file, "rw");
+        } else {
+            fragmented = new FragmentedMp4Writer();
+            fragmented.setTrackFormat(EncodedSampleSink.TRACK_VIDEO, stream.videoFormat);
+            fragmented.setTrackFormat(EncodedSampleSink.TRACK_AUDIO, stream.audioFormat);
+            fragmented.writeInitSegment(discard);
+        }
+    }
+
+    @Benchmark
+    public long writeChunk() throws IOException {
+        if (fragmented != null) {
+            // Timestamps keep running from segment to segment, as they do live
+            fragmented.startSegment(discard);
+            for (int i = 0; i < tracks.length; i++) {
+                samples[i].rewind();
+                fragmented.writeSampleData(tracks[i], samples[i], baseUs + ptsUs[i], flags[i]);
+            }
+            baseUs += chunkUs;
+            fragmented.finishSegment(baseUs);
+            return fragmented.getBytesWritten();
+        }
+        FileChannel channel = out.getChannel();
+        channel.truncate(0);
+        channel.position(0);
+        Mp4Writer writer = new Mp4Writer(channel);
+        writer.addTrack(stream.videoFormat);
+        writer.addTrack(stream.audioFormat);
+        writer.start();
+        for (int i = 0; i < tracks.length; i++) {
+            samples[i].rewind();
+            writer.writeSampleData(tracks[i], samples[i], ptsUs[i], flags[i]);
+        }
+        writer.finish();
+        return writer.size();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (out != null) {
+            out.close();
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Compares two JMH result files (-rf json), e.g. one saved from the commit before a change
+ * and one from after:
+ * <pre>
+ *   JmhCompare [-threshold pct] baseline.json current.json
+ * </pre>
+ * Benchmarks are matched by name and parameters.  A change counts when it is bigger than
+ * the threshold (default 5%) and the two runs' error intervals don't overlap; higher is
+ * better for throughput, lower for the time modes.  Exits with status 1 if anything
+ * regressed, so a script can stop on it.
+ */
+public class JmhCompare {
+
+    static class Result {
+        final String key;
+        final String mode;
+        final double score;
+        final double error;
+        final String unit;
+
+        Result(String key, String mode, double score, double error, String unit) {
+            this.key = key;
+            this.mode = mode;
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        double threshold = 5;
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-threshold") && i + 1 < args.length) {
+                threshold = Double.parseDouble(args[++i]);
+            } else {
+                files.add(new File(args[i]));
+            }
+        }
+        if (files.size() != 2) {
+            System.err.println("usage: JmhCompare [-threshold pct] baseline.json current.json");
+            System.exit(2);
+        }
+        Map<String, Result> baseline = load(files.get(0));
+        Map<String, Result> current = load(files.get(1));
+
+        int regressions = 0;
+        for (Result now : current.values()) {
+            Result before = baseline.get(now.key);
+            if (before == null) {
+                System.out.println(String.format(Locale.US, "%-70s %12s %12.3f %s  (new)", now.key, "", now.score, now.unit));
+                continue;
+            }
+            double changePct = (now.score - before.score) / before.score * 100;
+            boolean higherIsBetter = now.mode.equals("thrpt");
+            boolean overlap = Math.abs(now.score - before.score) <= safe(now.error) + safe(before.error);
+            String verdict = "";
+            if (Math.abs(changePct) > threshold && !overlap) {
+                boolean better = (changePct > 0) == higherIsBetter;
+                verdict = better ? "  faster" : "  SLOWER";
+                if (!better) regressions++;
+            }
+            System.out.println(String.format(Locale.US, "%-70s %12.3f %12.3f %s %+7.1f%%%s",
+                    now.key, before.score, now.score, now.unit, changePct, verdict));
+        }
+        for (Result before : baseline.values()) {
+            if (!current.containsKey(before.key)) System.out.println(String.format(Locale.US, "%-70s %12.3f %12s %s  (gone)", before.key, before.score, "", before.unit));
+        }
+        if (regressions > 0) {
+            System.out.println(regressions + " regression(s) beyond " + threshold + "%");
+            System.exit(1);
+        }
+    }
+
+    private static double safe(double error) {
+        return Double.isNaN(error) ? 0 : error;
+    }
+
+    @SuppressWarnings("unchecked")
+    static Map<String, Result> load(File file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        Object root;
+        try {
+            StringBuilder text = new StringBuilder();
+            char[] buffer = new char[8192];
+            int n;
+            while ((n = reader.read(buffer)) > 0) text.append(buffer, 0, n);
+            root = new JsonParser(text.toString()).parse();
+        } finally {
+            reader.close();
+        }
+        if (!(root instanceof List)) throw new IOException(file + ": not a JMH result list");
+        Map<String, Result> results = new LinkedHashMap<String, Result>();
+        for (Object item : (List<Object>) root) {
+            Map<String, Object> run = (Map<String, Object>) item;
+            String name = (String) run.get("benchmark");
+            name = name.substring(name.lastIndexOf('.', name.lastIndexOf('.') - 1) + 1);
+            StringBuilder key = new StringBuilder(name);
+            Map<String, Object> params = (Map<String, Object>) run.get("params");
+            if (params != null) {
+                for (Map.Entry<String, Object> param : params.entrySet()) {
+                    key.append(key.indexOf("{") < 0 ? " {" : ", ").append(param.getKey()).append('=').append(param.getValue());
+                }
+                key.append('}');
+            }
+            Map<String, Object> metric = (Map<String, Object>) run.get("primaryMetric");
+            results.put(key.toString(), new Result(key.toString(), (String) run.get("mode"),
+                    number(metric.get("score")), number(metric.get("scoreError")), (String) metric.get("scoreUnit")));
+        }
+        return results;
+    }
+
+    // JMH writes NaN and infinities as strings
+    private static double number(Object value) {
+        if (value instanceof Double) return (Double) value;
+        try {
+            return Double.parseDouble(String.valueOf(value));
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Just enough JSON for JMH's output: objects (insertion ordered), arrays, strings,
+     * numbers as Double, true, false and null.
+     */
+    static class JsonParser {
+        private final String mText;
+        private int mPos = 0;
+
+        JsonParser(String text) {
+            mText = text;
+        }
+
+        Object parse() throws IOException {
+            Object value = value();
+            skipSpace();
+            if (mPos != mText.length()) throw error("trailing data");
+            return value;
+        }
+
+        private Object value() throws IOException {
+            skipSpace();
+            if (mPos >= mText.length()) throw error("unexpected end");
+            char c = mText.charAt(mPos);
+            if (c == '{') return object();
+            if (c == '[') return array();
+            if (c == '"') return string();
+            if (mText.startsWith("true", mPos)) {
+                mPos += 4;
+                return Boolean.TRUE;
+            }
+            if (mText.startsWith("false", mPos)) {
+                mPos += 5;
+                return Boolean.FALSE;
+            }
+            if (mText.startsWith("null", mPos)) {
+                mPos += 4;
+                return null;
+            }
+            int start = mPos;
+            while (mPos < mText.length() && "+-0123456789.eE".indexOf(mText.charAt(mPos)) >= 0) mPos++;
+            if (start == mPos) throw error("unexpected '" + c + "'");
+            return Double.valueOf(mText.substring(start, mPos));
+        }
+
+        private Map<String, Object> object() throws IOException {
+            Map<String, Object> object = new LinkedHashMap<String, Object>();
+            mPos++;
+            skipSpace();
+            if (peek() == '}') {
+                mPos++;
+                return object;
+            }
+            while (true) {
+                skipSpace();
+                String key = string();
+                skipSpace();
+                expect(':');
+                object.put(key, value());
+                skipSpace();
+                if (peek() == ',') {
+                    mPos++;
+                } else {
+                    expect('}');
+                    return object;
+                }
+            }
+        }
+
+        private List<Object> array() throws IOException {
+            List<Object> array = new ArrayList<Object>();
+            mPos++;
+            skipSpace();
+            if (peek() == ']') {
+                mPos++;
+                return array;
+            }
+            while (true) {
+                array.add(value());
+                skipSpace();
+                if (peek() == ',') {
+                    mPos++;
+                } else {
+                    expect(']');
+                    return array;
+                }
+            }
+        }
+
+        private String string() throws IOException {
+            expect('"');
+            StringBuilder s = new StringBuilder();
+            while (true) {
+                if (mPos >= mText.length()) throw error("unterminated string");
+                char c = mText.charAt(mPos++);
+                if (c == '"') return s.toString();
+                if (c != '\\') {
+                    s.append(c);
+                    continue;
+                }
+                char escape = mText.charAt(mPos++);
+                switch (escape) {
+                    case 'n': s.append('\n'); break;
+                    case 't': s.append('\t'); break;
+                    case 'r': s.append('\r'); break;
+                    case 'b': s.append('\b'); break;
+                    case 'f': s.append('\f'); break;
+                    case 'u':
+                        s.append((char) Integer.parseInt(mText.substring(mPos, mPos + 4), 16));
+                        mPos += 4;
+                        break;
+                    default: s.append(escape);
+                }
+            }
+        }
+
+        private char peek() throws IOException {
+            if (mPos >= mText.length()) throw error("unexpected end");
+            return mText.charAt(mPos);
+        }
+
+        private void expect(char c) throws IOException {
+            if (peek() != c) throw error("expected '" + c + "'");
+            mPos++;
+        }
+
+        private void skipSpace() {
+            while (mPos < mText.length() && Character.isWhitespace(mText.charAt(mPos))) mPos++;
+        }
+
+        private IOException error(String message) {
+            return new IOException("JSON: " + message + " at " + mPos);
+        }
+    }
+}
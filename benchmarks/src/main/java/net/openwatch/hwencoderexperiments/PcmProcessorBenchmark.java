@@ -0,0 +1,52 @@
+package net.openwatch.hwencoderexperiments;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of each PcmProcessor conversion on capture-sized blocks.  Scores are input
+ * sample frames per second on one core; 48000 (or 44100) per second is real time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PcmProcessorBenchmark {
+    static final int BLOCK_FRAMES = 4096;
+
+    /**
+     * in rate / channels > out rate / channels, and gain
+     */
+    @Param({"44100/1>44100/1", "44100/1>44100/1 gain", "48000/2>48000/1", "48000/1>44100/1", "48000/2>44100/1 gain", "44100/1>48000/2"})
+    public String conversion;
+
+    PcmProcessor processor;
+    short[] in;
+    short[] out;
+
+    @Setup
+    public void setup() {
+        String[] parts = conversion.split("[ >/]");
+        int inRate = Integer.parseInt(parts[0]);
+        int inChannels = Integer.parseInt(parts[1]);
+        int outRate = Integer.parseInt(parts[2]);
+        int outChannels = Integer.parseInt(parts[3]);
+        processor = new PcmProcessor(inRate, inChannels, outRate, outChannels, BLOCK_FRAMES);
+        if (parts.length > 4) processor.setGain(1.5f);
+        in = new short[BLOCK_FRAMES * inChannels];
+        out = new short[processor.maxOutputShorts(BLOCK_FRAMES)];
+        // Speech-level noise, so gain clips now and then
+        Random random = new Random(0);
+        for (int i = 0; i < in.length; i++) in[i] = (short) (random.nextGaussian() * 6000);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK_FRAMES)
+    public int process() {
+        return processor.process(in, 0, in.length, out);
+    }
+}
@@ -0,0 +1,68 @@
+package net.openwatch.hwencoderexperiments;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishing a live playlist after each new segment: an HLS sliding-window playlist or a
+ * DASH manifest, regenerated in full and put into SegmentCache, without touching disk as in
+ * diskless mode.  windowSegments 0 is an EVENT playlist that keeps every segment; it is
+ * started over every EVENT_SEGMENTS (an hour), so the score is the average over an hour-long
+ * recording however many ops a run makes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PlaylistBenchmark {
+    static final long SEGMENT_US = 6000000L;
+    static final int EVENT_SEGMENTS = 600;
+
+    @Param({"hls", "dash"})
+    String format;
+
+    @Param({"6", "0"})
+    int windowSegments;
+
+    SegmentCache cache;
+    HlsPlaylist playlist;
+    DashManifest manifest;
+    int segment = 0;
+
+    @Setup
+    public void setup() {
+        cache = new SegmentCache(16 * 1024 * 1024);
+        start();
+    }
+
+    private void start() {
+        segment = 0;
+        if (format.equals("hls")) {
+            playlist = new HlsPlaylist(null, windowSegments);
+            playlist.setCache(cache, "index.m3u8");
+            playlist.setWriteToDisk(false);
+        } else {
+            SyntheticStream stream = new SyntheticStream();
+            manifest = new DashManifest(null, "init.mp4", "segment-$Number$.m4s", SEGMENT_US, windowSegments);
+            manifest.setTrackFormat(EncodedSampleSink.TRACK_VIDEO, stream.videoFormat);
+            manifest.setTrackFormat(EncodedSampleSink.TRACK_AUDIO, stream.audioFormat);
+            manifest.setCache(cache, "manifest.mpd");
+            manifest.setWriteToDisk(false);
+        }
+    }
+
+    @Benchmark
+    public void addSegment() throws IOException {
+        if (windowSegments == 0 && segment == EVENT_SEGMENTS) start();
+        if (playlist != null) {
+            playlist.addSegment("segment-" + segment + ".ts", SEGMENT_US, null);
+        } else {
+            manifest.addSegment(segment, segment * SEGMENT_US, SEGMENT_US, 3000000);
+        }
+        segment++;
+    }
+}
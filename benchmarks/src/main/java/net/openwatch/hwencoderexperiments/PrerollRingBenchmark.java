@@ -0,0 +1,68 @@
+package net.openwatch.hwencoderexperiments;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of keeping a pre-roll history (per appended sample) and of dumping it to MP4.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PrerollRingBenchmark {
+
+    @Param({"8388608"})
+    int budgetBytes;
+
+    @Param({"10"})
+    int retainSec;
+
+    PrerollRing ring;
+    SyntheticStream stream;
+    File dumpFile;
+    RandomAccessFile dumpOut;
+
+    @Setup
+    public void setup() throws IOException {
+        ring = new PrerollRing(budgetBytes, retainSec * 1000000L);
+        stream = new SyntheticStream();
+        ring.setTrackFormat(PrerollRing.TRACK_VIDEO, stream.videoFormat);
+        ring.setTrackFormat(PrerollRing.TRACK_AUDIO, stream.audioFormat);
+        // Fill the ring so appends exercise eviction
+        for (int i = 0; i < (retainSec + 10) * (SyntheticStream.FRAME_RATE + 44); i++) {
+            stream.next();
+            ring.append(stream.track, stream.data, stream.ptsUs, stream.flags);
+        }
+        dumpFile = File.createTempFile("preroll", ".mp4");
+        dumpOut = new RandomAccessFile(dumpFile, "rw");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        dumpOut.close();
+        dumpFile.delete();
+    }
+
+    @Benchmark
+    public void append() {
+        stream.next();
+        ring.append(stream.track, stream.data, stream.ptsUs, stream.flags);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int dumpMp4() throws IOException {
+        FileChannel channel = dumpOut.getChannel();
+        channel.truncate(0);
+        channel.position(0);
+        return ring.writeMp4(channel);
+    }
+}
@@ -0,0 +1,78 @@
+package net.openwatch.hwencoderexperiments;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-sample cost of interleaving encoder output before the muxer.  Samples arrive the way the
+ * two drain threads deliver them: video frame by frame, audio in bursts (audioBurst frames at
+ * a time), so the interleaver really has to hold samples back and reorder.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SampleInterleaverBenchmark {
+
+    @Param({"500"})
+    int maxInterleaveMs;
+
+    @Param({"1", "8"})
+    int audioBurst;
+
+    static class NullSink implements EncodedSampleSink {
+        long bytes;
+
+        @Override
+        public void setTrackFormat(int track, TrackFormat format) {
+        }
+
+        @Override
+        public void writeSampleData(int track, ByteBuffer data, long ptsUs, int flags) {
+            bytes += data.remaining();
+        }
+    }
+
+    SyntheticStream stream;
+    SampleInterleaver interleaver;
+    NullSink sink;
+
+    // Audio held back to simulate the audio drain thread running in bursts
+    ByteBuffer[] audioData;
+    long[] audioPts;
+    int audioHeld;
+
+    @Setup
+    public void setup() {
+        stream = new SyntheticStream();
+        sink = new NullSink();
+        interleaver = new SampleInterleaver(sink, maxInterleaveMs * 1000L, 256);
+        audioData = new ByteBuffer[audioBurst];
+        audioPts = new long[audioBurst];
+        for (int i = 0; i < audioBurst; i++) audioData[i] = ByteBuffer.allocate(4096);
+    }
+
+    @Benchmark
+    public void writeSample() {
+        stream.next();
+        if (stream.track == EncodedSampleSink.TRACK_VIDEO) {
+            interleaver.writeSampleData(stream.track, stream.data, stream.ptsUs, stream.flags);
+            return;
+        }
+        ByteBuffer held = audioData[audioHeld];
+        held.clear();
+        held.put(stream.data);
+        held.flip();
+        audioPts[audioHeld++] = stream.ptsUs;
+        if (audioHeld == audioBurst) {
+            for (int i = 0; i < audioBurst; i++) {
+                interleaver.writeSampleData(EncodedSampleSink.TRACK_AUDIO, audioData[i], audioPts[i], Mp4Writer.FLAG_SYNC);
+            }
+            audioHeld = 0;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package net.openwatch.hwencoderexperiments;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-thread (per core) throughput of the HLS write path: MPEG-TS packetization of the
+ * encoder output in the clear, with whole-segment AES-128, and with SAMPLE-AES.  Output goes
+ * to a channel that discards it, so disk speed doesn't mask the CPU cost.  The "bytes"
+ * counter reports elementary stream bytes per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SegmentEncryptionBenchmark {
+
+    @Param({"NONE", "AES_128", "SAMPLE_AES"})
+    String encryption;
+
+    @Param({"4000000"})
+    int bitRate;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    static class DiscardChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    SyntheticStream stream;
+    TsWriter ts;
+    SampleAes sampleAes;
+    ByteBuffer encrypted = ByteBuffer.allocate(1024 * 1024);
+
+    @Setup
+    public void setup() throws Exception {
+        byte[] key = new byte[16];
+        byte[] iv = new byte[16];
+        stream = new SyntheticStream(bitRate);
+        WritableByteChannel out = new DiscardChannel();
+        if (encryption.equals("AES_128")) {
+            AesCbcChannel aes = new AesCbcChannel();
+            aes.start(out, key, iv);
+            out = aes;
+        } else if (encryption.equals("SAMPLE_AES")) {
+            sampleAes = new SampleAes();
+            sampleAes.setKey(key, iv);
+        }
+        ts = new TsWriter(out);
+        ts.setSampleAes(sampleAes != null);
+        ts.setTrackFormat(EncodedSampleSink.TRACK_VIDEO, stream.videoFormat);
+        ts.setTrackFormat(EncodedSampleSink.TRACK_AUDIO, stream.audioFormat);
+        ts.writeTables();
+    }
+
+    @Benchmark
+    public void writeSample(Counters counters) throws Exception {
+        stream.next();
+        ByteBuffer data = stream.data;
+        counters.bytes += data.remaining();
+        if (sampleAes != null) {
+            encrypted.clear();
+            if (stream.track == EncodedSampleSink.TRACK_VIDEO) {
+                sampleAes.encryptVideo(data, encrypted);
+            } else {
+                sampleAes.encryptAudio(data, encrypted);
+            }
+            encrypted.flip();
+            data = encrypted;
+        }
+        ts.writeSampleData(stream.track, data, stream.ptsUs, stream.flags);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        ts.flush();
+    }
+}
@@ -0,0 +1,99 @@
+package net.openwatch.hwencoderexperiments;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serving one 1 MB segment over a loopback keep-alive connection, from SegmentCache
+ * (gathering write from a mapped buffer) versus from disk (open + transferTo per request).
+ * The file is in the page cache either way, so the difference is per-request file handling,
+ * not disk speed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SegmentServerBenchmark {
+    static final int SEGMENT_BYTES = 1024 * 1024;
+
+    @Param({"cache", "disk"})
+    String source;
+
+    File root;
+    SegmentServer server;
+    SocketChannel client;
+    ByteBuffer request;
+    ByteBuffer response = ByteBuffer.allocateDirect(SEGMENT_BYTES + 4096);
+    int responseBytes;
+
+    @Setup
+    public void setup() throws IOException {
+        root = File.createTempFile("serve", "");
+        root.delete();
+        root.mkdirs();
+        File segment = new File(root, "segment-0.ts");
+        byte[] data = new byte[SEGMENT_BYTES];
+        new Random(0).nextBytes(data);
+        FileOutputStream out = new FileOutputStream(segment);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        SegmentCache cache = new SegmentCache(4 * SEGMENT_BYTES);
+        if (source.equals("cache")) cache.putFile(segment.getName(), segment);
+        server = new SegmentServer(0, root, cache);
+        server.start();
+        client = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getPort()));
+        request = ByteBuffer.wrap("GET /segment-0.ts HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII"));
+
+        // Headers are the same every time, so after the first response each one is a fixed size
+        send();
+        int headEnd = -1;
+        while (headEnd < 0) {
+            client.read(response);
+            for (int i = 0; i + 3 < response.position() && headEnd < 0; i++) {
+                if (response.get(i) == '\r' && response.get(i + 1) == '\n'
+                        && response.get(i + 2) == '\r' && response.get(i + 3) == '\n') headEnd = i + 4;
+            }
+        }
+        responseBytes = headEnd + SEGMENT_BYTES;
+        while (response.position() < responseBytes) client.read(response);
+    }
+
+    @Benchmark
+    public int get() throws IOException {
+        send();
+        response.clear().limit(responseBytes);
+        while (response.hasRemaining()) {
+            if (client.read(response) < 0) throw new IOException("server closed the connection");
+        }
+        return response.get(responseBytes - 1);
+    }
+
+    private void send() throws IOException {
+        request.rewind();
+        while (request.hasRemaining()) client.write(request);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+        server.stop();
+        File[] files = root.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        root.delete();
+    }
+}
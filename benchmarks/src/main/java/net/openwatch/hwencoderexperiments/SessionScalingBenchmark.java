@@ -0,0 +1,104 @@
+package net.openwatch.hwencoderexperiments;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Many live sessions in one process, the server case: one op runs sessions independent
+ * HlsSegmenters at once, each packaging MEDIA_SEC seconds of a 1 Mbit/s synthetic stream into
+ * diskless HLS on a thread of its own.  Only packaging and the cache are measured, not
+ * encoding.  Throughput in media seconds per second is sessions * MEDIA_SEC / time per op.
+ * With a shared cache every session publishes into one SegmentCache, as behind one
+ * SegmentServer, so on several cores lock contention there would show up as flattening early.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionScalingBenchmark {
+    static final int MEDIA_SEC = 20;
+    static final long CACHE_BYTES_PER_SESSION = 4 * 1024 * 1024;
+
+    @Param({"1", "2", "4", "8", "16", "32"})
+    int sessions;
+
+    @Param({"shared", "perSession"})
+    String cache;
+
+    File root;
+    ExecutorService executor;
+    SegmentCache sharedCache;
+    List<Callable<Integer>> jobs;
+
+    @Setup
+    public void setup() throws IOException {
+        root = File.createTempFile("sessions", "");
+        root.delete();
+        root.mkdirs();
+        executor = Executors.newFixedThreadPool(sessions);
+        sharedCache = new SegmentCache(sessions * CACHE_BYTES_PER_SESSION);
+        jobs = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i < sessions; i++) {
+            final File dir = new File(root, "session-" + i);
+            final String keyPrefix = dir.getName() + "/";
+            jobs.add(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return runSession(dir, keyPrefix);
+                }
+            });
+        }
+    }
+
+    int runSession(File dir, String keyPrefix) {
+        SegmentCache segmentCache = cache.equals("shared") ? sharedCache : new SegmentCache(CACHE_BYTES_PER_SESSION);
+        SyntheticStream stream = new SyntheticStream();
+        HlsSegmenter segmenter = new HlsSegmenter(dir, 2, HlsSegmenter.FORMAT_TS, HlsSegmenter.ENCRYPTION_NONE, 0, null, 6);
+        segmenter.setCache(segmentCache, keyPrefix);
+        segmenter.setDiskless(false);
+        segmenter.setTrackFormat(EncodedSampleSink.TRACK_VIDEO, stream.videoFormat);
+        segmenter.setTrackFormat(EncodedSampleSink.TRACK_AUDIO, stream.audioFormat);
+        do {
+            stream.next();
+            segmenter.writeSampleData(stream.track, stream.data, stream.ptsUs, stream.flags);
+        } while (stream.ptsUs < MEDIA_SEC * 1000000L);
+        segmenter.finish();
+        if (segmenter.getError() != null) throw new IllegalStateException(segmenter.getError());
+        return segmenter.getSegmentCount();
+    }
+
+    @Benchmark
+    public int run() throws InterruptedException, ExecutionException {
+        int segments = 0;
+        for (Future<Integer> session : executor.invokeAll(jobs)) segments += session.get();
+        return segments;
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+        File[] dirs = root.listFiles();
+        if (dirs != null) {
+            for (File dir : dirs) {
+                File[] files = dir.listFiles();
+                if (files != null) {
+                    for (File file : files) file.delete();
+                }
+                dir.delete();
+            }
+        }
+        root.delete();
+    }
+}
@@ -0,0 +1,87 @@
+package net.openwatch.hwencoderexperiments;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Deterministic stand-in for the encoder output seen by drainEncoder: Annex-B H.264 access
+ * units at 30fps with an IDR every IFRAME_INTERVAL seconds, interleaved with 1024-sample AAC
+ * frames, in presentation order.  Payload bytes are random but free of start code
+ * emulation, so NAL parsing behaves as it would on real streams.
+ * <p/>
+ * Call next() and read the public fields; the buffers are reused between calls.
+ */
+public class SyntheticStream {
+    public static final int FRAME_RATE = 30;
+    public static final int IFRAME_INTERVAL = 5;
+    public static final int SAMPLE_RATE = 44100;
+    public static final int SAMPLES_PER_FRAME = 1024;
+
+    static final byte[] SPS = {0x67, 0x42, (byte) 0x80, 0x1E, (byte) 0xDA, 0x02, (byte) 0x80, (byte) 0xF6, 0x40};
+    static final byte[] PPS = {0x68, (byte) 0xCE, 0x06, (byte) 0xE2};
+
+    public final TrackFormat videoFormat = TrackFormat.createVideoFormat(640, 480, SPS, PPS);
+    public final TrackFormat audioFormat = TrackFormat.createAudioFormat(SAMPLE_RATE, 1,
+            TrackFormat.aacLcAudioSpecificConfig(SAMPLE_RATE, 1));
+
+    private final ByteBuffer mIdr;
+    private final ByteBuffer mPFrame;
+    private final ByteBuffer mAacFrame;
+    private long mFrameCount = 0;
+    private long mAudioFrameCount = 0;
+
+    // The current sample
+    public int track;
+    public ByteBuffer data;
+    public long ptsUs;
+    public int flags;
+
+    /**
+     * @param bitRate target video bits per second; IDRs are made four times the size of P frames
+     */
+    public SyntheticStream(int bitRate) {
+        Random random = new Random(42);
+        int pFrameSize = bitRate / 8 / (FRAME_RATE + 3);
+        mIdr = accessUnit(random, 5, pFrameSize * 4);
+        mPFrame = accessUnit(random, 1, pFrameSize);
+        mAacFrame = payload(random, 371);
+    }
+
+    public SyntheticStream() {
+        this(1000000);
+    }
+
+    public void next() {
+        long videoPts = mFrameCount * 1000000L / FRAME_RATE;
+        long audioPts = mAudioFrameCount * SAMPLES_PER_FRAME * 1000000L / SAMPLE_RATE;
+        if (audioPts < videoPts) {
+            track = PrerollRing.TRACK_AUDIO;
+            data = mAacFrame;
+            ptsUs = audioPts;
+            flags = Mp4Writer.FLAG_SYNC;
+            mAudioFrameCount++;
+        } else {
+            boolean idr = (mFrameCount % (FRAME_RATE * IFRAME_INTERVAL)) == 0;
+            track = PrerollRing.TRACK_VIDEO;
+            data = idr ? mIdr : mPFrame;
+            ptsUs = videoPts;
+            flags = idr ? Mp4Writer.FLAG_SYNC : 0;
+            mFrameCount++;
+        }
+        data.rewind();
+    }
+
+    private static ByteBuffer accessUnit(Random random, int nalType, int size) {
+        ByteBuffer au = payload(random, size);
+        au.put(0, (byte) 0).put(1, (byte) 0).put(2, (byte) 0).put(3, (byte) 1);
+        au.put(4, (byte) (0x60 | nalType));
+        return au;
+    }
+
+    private static ByteBuffer payload(Random random, int size) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        for (int i = 0; i < size; i++) buffer.put((byte) (1 + random.nextInt(254)));
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,55 @@
+package net.openwatch.hwencoderexperiments;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What deriving the thinned rendition costs per video frame on top of the segmenter that
+ * writes it: the NAL header scan that decides whether a 1 Mbit/s P frame is kept.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TemporalThinnerBenchmark {
+    TemporalThinner thinner;
+    ByteBuffer reference;
+    ByteBuffer disposable;
+
+    @Setup
+    public void setup() {
+        thinner = new TemporalThinner(new EncodedSampleSink() {
+            @Override
+            public void setTrackFormat(int track, TrackFormat format) {
+            }
+
+            @Override
+            public void writeSampleData(int track, ByteBuffer data, long ptsUs, int flags) {
+            }
+        }, 0);
+        SyntheticStream stream = new SyntheticStream();
+        do {
+            stream.next();
+        } while (stream.track != EncodedSampleSink.TRACK_VIDEO || stream.flags != 0);
+        reference = stream.data.duplicate();
+        disposable = ByteBuffer.allocate(reference.remaining());
+        disposable.put(reference.duplicate()).flip();
+        disposable.put(4, (byte) AvcUtils.NAL_TYPE_NON_IDR_SLICE);     // nal_ref_idc 0
+    }
+
+    @Benchmark
+    public long keep() {
+        thinner.writeSampleData(EncodedSampleSink.TRACK_VIDEO, reference, 0, 0);
+        return thinner.getPassedFrames();
+    }
+
+    @Benchmark
+    public long drop() {
+        thinner.writeSampleData(EncodedSampleSink.TRACK_VIDEO, disposable, 0, 0);
+        return thinner.getDroppedFrames();
+    }
+}
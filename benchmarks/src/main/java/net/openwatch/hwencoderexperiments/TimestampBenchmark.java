@@ -0,0 +1,75 @@
+package net.openwatch.hwencoderexperiments;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-lookup and per-frame timestamp work: finding the sample and the preceding keyframe
+ * for a time in an hour-long ChunkIndex (what seeks, range requests and clips do), and
+ * the FrameScheduler decision the render loop makes for every camera frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TimestampBenchmark {
+    static final int INDEX_SEC = 3600;
+
+    File media;
+    ChunkIndex index;
+    long[] lookups = new long[4096];
+    int lookup = 0;
+
+    // The camera runs at 60 fps against a 30 fps target, so half the frames are paced out
+    long nowNs = 1000000000L;
+    final FrameScheduler scheduler = new FrameScheduler(30, 4 * 1000000000L / 30, new FrameClock() {
+        @Override
+        public long nanoTime() {
+            return nowNs;
+        }
+    });
+
+    @Setup
+    public void setup() throws IOException {
+        media = File.createTempFile("timestamps", ".mp4");
+        SyntheticStream stream = new SyntheticStream();
+        ChunkIndex.Builder builder = new ChunkIndex.Builder();
+        long offset = 0;
+        do {
+            stream.next();
+            builder.add(stream.track, offset, stream.data.remaining(), stream.ptsUs, (stream.flags & Mp4Writer.FLAG_SYNC) != 0);
+            offset += stream.data.remaining();
+        } while (stream.ptsUs < INDEX_SEC * 1000000L);
+        builder.setDurationUs(stream.ptsUs);
+        // Offsets are made up, so the index describes an empty media file
+        builder.write(ChunkIndex.indexFileFor(media), media.length());
+        index = ChunkIndex.open(media);
+        Random random = new Random(0);
+        for (int i = 0; i < lookups.length; i++) lookups[i] = (long) (random.nextDouble() * INDEX_SEC * 1000000L);
+    }
+
+    @Benchmark
+    public int findSyncSample() {
+        long ptsUs = lookups[lookup++ & (lookups.length - 1)];
+        return index.findSyncSample(ptsUs) + index.findSample(ptsUs);
+    }
+
+    @Benchmark
+    public int decideFrame() {
+        long timestampNs = nowNs;
+        nowNs += 1000000000L / 60;
+        return scheduler.decide(timestampNs);
+    }
+
+    @TearDown
+    public void tearDown() {
+        ChunkIndex.indexFileFor(media).delete();
+        media.delete();
+    }
+}
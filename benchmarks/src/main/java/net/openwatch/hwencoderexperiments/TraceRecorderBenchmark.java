@@ -0,0 +1,75 @@
+package net.openwatch.hwencoderexperiments;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of tracing a section (a begin and an end) with the recorder on and off, and of dumping
+ * four threads' full rings as Chrome trace JSON.  Threads record into rings of their own, so
+ * the section cost doesn't depend on how many threads trace; two System.nanoTime() calls
+ * are most of it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TraceRecorderBenchmark {
+    static final String[] NAMES = {"drainVideo", "drawImage", "chunk"};
+
+    @Param({"true", "false"})
+    boolean enabled;
+
+    TraceRecorder tracer;
+    TraceRecorder full;
+    Writer discard = new Writer() {
+        @Override
+        public void write(char[] chars, int offset, int length) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    @Setup
+    public void setup() throws InterruptedException {
+        tracer = new TraceRecorder(NAMES, TraceRecorder.DEFAULT_EVENTS_PER_THREAD);
+        tracer.setEnabled(enabled);
+        full = new TraceRecorder(NAMES, TraceRecorder.DEFAULT_EVENTS_PER_THREAD);
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < TraceRecorder.DEFAULT_EVENTS_PER_THREAD; i++) {
+                        full.begin(0);
+                        full.instant(2, i);
+                        full.end(0);
+                    }
+                }
+            }, "recording " + t);
+            thread.start();
+            thread.join();
+        }
+    }
+
+    @Benchmark
+    public void section() {
+        tracer.begin(0);
+        tracer.end(0);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void dump() throws IOException {
+        full.writeChromeTrace(discard);
+    }
+}
@@ -0,0 +1,69 @@
+package net.openwatch.hwencoderexperiments;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Offline repackaging speed: one op turns a MEDIA_SEC second, 4 Mbit/s MP4 written by
+ * Mp4Writer into 6 second HLS segments.  Divide MEDIA_SEC by the time per op for the
+ * real-time factor of a single job (one core).  The input sits in the page cache after the
+ * first op, so this is the CPU side of "disk speed".
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransmuxBenchmark {
+    static final int MEDIA_SEC = 60;
+
+    @Param({"ts", "fmp4"})
+    String format;
+
+    File input;
+    File output;
+
+    @Setup
+    public void setup() throws IOException {
+        input = File.createTempFile("transmux", ".mp4");
+        output = new File(input.getPath() + ".out");
+        FileChannel channel = new FileOutputStream(input).getChannel();
+        try {
+            SyntheticStream stream = new SyntheticStream(4000000);
+            Mp4Writer writer = new Mp4Writer(channel);
+            writer.addTrack(stream.videoFormat);
+            writer.addTrack(stream.audioFormat);
+            writer.start();
+            do {
+                stream.next();
+                writer.writeSampleData(stream.track, stream.data, stream.ptsUs, stream.flags);
+            } while (stream.ptsUs < MEDIA_SEC * 1000000L);
+            writer.finish();
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Benchmark
+    public Transmuxer.Result transmux() throws IOException {
+        return Transmuxer.transmux(Collections.singletonList(input), output,
+                format.equals("fmp4") ? HlsSegmenter.FORMAT_FMP4 : HlsSegmenter.FORMAT_TS, 6);
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = output.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        output.delete();
+        input.delete();
+    }
+}
@@ -0,0 +1,118 @@
+package net.openwatch.hwencoderexperiments;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Cuts a clip spanning two chunks out of a four-chunk session.  The chunks outside the clip
+ * only have their index headers read: one of them has a garbled sample table and another no
+ * index at all until it is rebuilt.
+ */
+public class ClipExtractorTest {
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0x80, 0x1e, (byte) 0x95, (byte) 0xa0, 0x50, 0x7c};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x38, (byte) 0x80};
+    private static final int CHUNKS = 4;
+    private static final int CHUNK_FRAMES = 60;     // 2 s
+    private static final int GOP_FRAMES = 30;
+    private static final long CHUNK_US = 2000000;
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("clip", "");
+        mDir.delete();
+        mDir.mkdirs();
+        for (int n = 1; n <= CHUNKS; n++) writeChunk(new File(mDir, "640x480_" + n + ".mp4"), n);
+        new File(mDir, "hq.mp4").createNewFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void clipReadsOnlyTheChunksItCovers() throws IOException {
+        File garbled = ChunkIndex.indexFileFor(new File(mDir, "640x480_1.mp4"));
+        RandomAccessFile raf = new RandomAccessFile(garbled, "rw");
+        try {
+            raf.seek(32);
+            while (raf.getFilePointer() < raf.length()) raf.write(0xFF);
+        } finally {
+            raf.close();
+        }
+        File missing = ChunkIndex.indexFileFor(new File(mDir, "640x480_4.mp4"));
+        assertTrue(missing.delete());
+
+        ClipExtractor extractor = ClipExtractor.forDirectory(mDir);
+        assertEquals(CHUNKS * CHUNK_US, extractor.getDurationUs(), 1000);
+        assertTrue(missing.exists());
+
+        // 3.5 s is in chunk 2, whose keyframe before it is at 3.0 s; chunk 3 starts at 4.0 s
+        File output = new File(mDir, "clip.mp4");
+        ClipExtractor.Result result = extractor.extract(3500000, 5000000, output);
+        assertEquals(3000000, result.startUs, 1000);
+        assertEquals(2000000, result.durationUs, 40000);
+
+        Mp4Reader reader = new Mp4Reader(output);
+        try {
+            assertEquals(2 * GOP_FRAMES, reader.getSampleCount(EncodedSampleSink.TRACK_VIDEO));
+            int frames = 0;
+            do {
+                ByteBuffer data = reader.getSampleData();
+                int chunk = (frames < GOP_FRAMES) ? 2 : 3;
+                int frame = (frames < GOP_FRAMES) ? GOP_FRAMES + frames : frames - GOP_FRAMES;
+                assertEquals(chunk, data.get(5));
+                assertEquals(0x8000 | frame, data.getShort(6) & 0xFFFF);
+                if (frame % GOP_FRAMES == 0) {
+                    assertEquals(Mp4Writer.FLAG_SYNC, reader.getSampleFlags() & Mp4Writer.FLAG_SYNC);
+                }
+                frames++;
+            } while (reader.advance());
+            assertEquals(2 * GOP_FRAMES, frames);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * A chunk of video whose frames carry the chunk number and their frame number.
+     */
+    private static void writeChunk(File file, int number) throws IOException {
+        FileChannel out = new FileOutputStream(file).getChannel();
+        try {
+            Mp4Writer writer = new Mp4Writer(out);
+            writer.setIndexFile(ChunkIndex.indexFileFor(file));
+            int track = writer.addTrack(TrackFormat.createVideoFormat(640, 480, SPS, PPS));
+            writer.start();
+            ByteBuffer frame = ByteBuffer.allocate(1000);
+            for (int i = 0; i < CHUNK_FRAMES; i++) {
+                boolean keyframe = i % GOP_FRAMES == 0;
+                frame.clear();
+                frame.putInt(1).put((byte) (keyframe ? 0x65 : 0x41)).put((byte) number).putShort((short) (0x8000 | i));
+                while (frame.hasRemaining()) frame.put((byte) 0x5A);
+                frame.flip();
+                writer.writeSampleData(track, frame, i * CHUNK_US / CHUNK_FRAMES, keyframe ? Mp4Writer.FLAG_SYNC : 0);
+            }
+            writer.finish();
+        } finally {
+            out.close();
+        }
+    }
+}
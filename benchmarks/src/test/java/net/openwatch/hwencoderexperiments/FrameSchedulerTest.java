@@ -0,0 +1,151 @@
+package net.openwatch.hwencoderexperiments;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives FrameScheduler with a simulated clock: a camera delivering frames on a timetable and
+ * a render thread that takes a given time per encoded frame.
+ */
+public class FrameSchedulerTest {
+    private static final long MS = 1000000L;
+    private static final long MAX_LATENCY_NS = 4 * 1000000000L / 30;
+    private static final long START_NS = 1000 * MS;   // a zero timestamp means "none"
+
+    private static class SimulatedClock implements FrameClock {
+        long now;
+
+        @Override
+        public long nanoTime() {
+            return now;
+        }
+    }
+
+    private final SimulatedClock mClock = new SimulatedClock();
+
+    @Test
+    public void arrivalsWhileBusyAreCoalesced() throws InterruptedException {
+        FrameScheduler scheduler = new FrameScheduler(30, MAX_LATENCY_NS, mClock);
+        for (int i = 0; i < 5; i++) scheduler.onFrameAvailable();
+        assertTrue(scheduler.awaitFrame(0));
+        assertFalse(scheduler.awaitFrame(10));
+
+        FrameScheduler.Stats stats = scheduler.getStats();
+        assertEquals(5, stats.arrived);
+        assertEquals(4, stats.coalesced);
+        assertEquals(1, stats.timeouts);
+    }
+
+    @Test
+    public void matchingCameraIsEncodedInFullDespiteJitter() {
+        FrameScheduler scheduler = new FrameScheduler(30, MAX_LATENCY_NS, mClock);
+        int encoded = 0;
+        for (int i = 0; i < 300; i++) {
+            long timestamp = START_NS + i * 1000000000L / 30 + ((i % 3) - 1) * 2 * MS;
+            mClock.now = timestamp + 5 * MS;
+            if (scheduler.decide(timestamp) == FrameScheduler.ENCODE) encoded++;
+        }
+        assertEquals(300, encoded);
+    }
+
+    @Test
+    public void fasterCameraIsPacedToTheTargetRate() {
+        FrameScheduler scheduler = new FrameScheduler(30, MAX_LATENCY_NS, mClock);
+        int encoded = 0;
+        int paced = 0;
+        // 60 fps for 10 s, with a millisecond of jitter either way
+        for (int i = 0; i < 600; i++) {
+            long timestamp = START_NS + i * 1000000000L / 60 + ((i % 3) - 1) * MS;
+            mClock.now = timestamp + 5 * MS;
+            int decision = scheduler.decide(timestamp);
+            if (decision == FrameScheduler.ENCODE) encoded++;
+            if (decision == FrameScheduler.PACED) paced++;
+        }
+        assertNear(300, encoded, 1);
+        assertEquals(600, encoded + paced);
+
+        // Lowering the target takes effect from the next frame
+        scheduler.setTargetFps(15);
+        encoded = 0;
+        for (int i = 600; i < 1200; i++) {
+            long timestamp = START_NS + i * 1000000000L / 60;
+            mClock.now = timestamp + 5 * MS;
+            if (scheduler.decide(timestamp) == FrameScheduler.ENCODE) encoded++;
+        }
+        assertNear(150, encoded, 1);
+    }
+
+    @Test
+    public void slowEncoderGetsTheNewestFrameAndNothingIsLate() throws InterruptedException {
+        // Each encode takes 100 ms while the camera keeps delivering at 30 fps: the frames that
+        // arrive meanwhile are coalesced, and the one latched is always fresh
+        FrameScheduler scheduler = new FrameScheduler(30, MAX_LATENCY_NS, mClock);
+        long busyUntil = 0;
+        long newest = -1;
+        boolean arrived = false;
+        int encoded = 0;
+        for (mClock.now = START_NS; mClock.now < START_NS + 3000 * MS; mClock.now += MS) {
+            long frameTime = START_NS + ((mClock.now - START_NS) * 30 / 1000000000L) * 1000000000L / 30;
+            if (frameTime > newest) {
+                newest = frameTime;
+                arrived = true;
+                scheduler.onFrameAvailable();
+            }
+            if (arrived && mClock.now >= busyUntil) {
+                assertTrue(scheduler.awaitFrame(0));
+                arrived = false;
+                if (scheduler.decide(newest) == FrameScheduler.ENCODE) {
+                    encoded++;
+                    busyUntil = mClock.now + 100 * MS;
+                }
+            }
+        }
+        FrameScheduler.Stats stats = scheduler.getStats();
+        assertNear(30, encoded, 1);
+        assertEquals(0, stats.late);
+        assertEquals(90, stats.arrived);
+        // Every arrival was latched and encoded, coalesced, or is still waiting to be latched
+        assertEquals(stats.arrived - encoded, stats.coalesced + (arrived ? 1 : 0));
+    }
+
+    @Test
+    public void framesQueuedDuringAStallAreDroppedLate() {
+        // A BufferQueue hands over frames oldest first: after a stall the backlog is
+        // dropped until the frames are recent again, instead of being encoded late
+        FrameScheduler scheduler = new FrameScheduler(30, MAX_LATENCY_NS, mClock);
+        ArrayDeque<Long> queue = new ArrayDeque<Long>();
+        long interval = 1000000000L / 30;
+        for (int i = 0; i < 15; i++) queue.add(START_NS + i * interval);
+        mClock.now = START_NS + 490 * MS;
+        int late = 0;
+        int encoded = 0;
+        while (!queue.isEmpty()) {
+            long timestamp = queue.poll();
+            int decision = scheduler.decide(timestamp);
+            if (decision == FrameScheduler.LATE) {
+                assertTrue(mClock.now - timestamp > MAX_LATENCY_NS);
+                late++;
+            } else if (decision == FrameScheduler.ENCODE) {
+                assertTrue(mClock.now - timestamp <= MAX_LATENCY_NS);
+                encoded++;
+                mClock.now += MS;
+            }
+        }
+        assertEquals(11, late);
+        assertEquals(4, encoded);
+        assertEquals(late, scheduler.getStats().late);
+
+        // Timestamps too old to be on the clock's timebase are encoded rather than dropped forever
+        mClock.now = START_NS + 10000 * MS;
+        assertEquals(FrameScheduler.ENCODE, scheduler.decide(START_NS + 1000 * MS));
+    }
+
+    private static void assertNear(long expected, long actual, long tolerance) {
+        assertTrue("expected " + expected + " +/- " + tolerance + ", got " + actual, Math.abs(expected - actual) <= tolerance);
+    }
+}
@@ -0,0 +1,129 @@
+package net.openwatch.hwencoderexperiments;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Diskless HLS with a sliding window: the live playlist in the cache only lists what the
+ * cache can hold, and an archived stream still ends with a complete playlist on disk.
+ */
+public class HlsSegmenterTest {
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0x80, 0x1e, (byte) 0x95, (byte) 0xa0, 0x50, 0x7c};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x38, (byte) 0x80};
+    private static final int GOP_FRAMES = 30;
+    private static final int SEGMENTS = 10;         // 2 s each
+    private static final int WINDOW = 3;
+
+    private File mDir;
+    private SegmentCache mCache;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("hls", "");
+        mDir.delete();
+        mCache = new SegmentCache(64 * 1024 * 1024);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void disklessPlaylistSlidesOverTheCache() throws IOException {
+        HlsSegmenter segmenter = segmenter(false);
+        write(segmenter, SEGMENTS * 60);
+        String live = playlist();
+        assertEquals(WINDOW, segments(live).size());
+        assertTrue(live, live.contains("#EXT-X-MEDIA-SEQUENCE:" + (SEGMENTS - 1 - WINDOW) + "\n"));
+        assertTrue(live, !live.contains("#EXT-X-PLAYLIST-TYPE"));
+        for (String segment : segments(live)) assertTrue(segment, mCache.get("hls/" + segment) != null);
+
+        segmenter.finish();
+        String ended = playlist();
+        assertEquals(WINDOW, segments(ended).size());
+        assertTrue(ended, ended.endsWith("#EXT-X-ENDLIST\n"));
+        assertTrue(!new File(mDir, HlsSegmenter.PLAYLIST_NAME).exists());
+    }
+
+    @Test
+    public void archivedPlaylistListsEverySegment() throws IOException {
+        HlsSegmenter segmenter = segmenter(true);
+        write(segmenter, SEGMENTS * 60);
+        assertEquals(WINDOW, segments(playlist()).size());
+
+        segmenter.finish();
+        String ended = playlist();
+        assertEquals(WINDOW, segments(ended).size());
+        assertTrue(ended, ended.endsWith("#EXT-X-ENDLIST\n"));
+        String archived = readText(new File(mDir, HlsSegmenter.PLAYLIST_NAME));
+        List<String> segments = segments(archived);
+        assertEquals(SEGMENTS, segments.size());
+        assertTrue(archived, archived.contains("#EXT-X-MEDIA-SEQUENCE:0\n"));
+        assertTrue(archived, archived.endsWith("#EXT-X-ENDLIST\n"));
+        for (String segment : segments) assertTrue(segment, new File(mDir, segment).length() > 0);
+    }
+
+    private HlsSegmenter segmenter(boolean archive) {
+        HlsSegmenter segmenter = new HlsSegmenter(mDir, 2);
+        segmenter.setTrackFormat(EncodedSampleSink.TRACK_VIDEO, TrackFormat.createVideoFormat(640, 480, SPS, PPS));
+        segmenter.setCache(mCache, "hls/");
+        segmenter.setWindowSegments(WINDOW);
+        segmenter.setDiskless(archive);
+        return segmenter;
+    }
+
+    private static void write(HlsSegmenter segmenter, int frames) {
+        ByteBuffer frame = ByteBuffer.allocate(2000);
+        for (int i = 0; i < frames; i++) {
+            boolean keyframe = i % GOP_FRAMES == 0;
+            frame.clear();
+            frame.putInt(1).put((byte) (keyframe ? 0x65 : 0x41));
+            while (frame.hasRemaining()) frame.put((byte) 0x5A);
+            frame.flip();
+            segmenter.writeSampleData(EncodedSampleSink.TRACK_VIDEO, frame, i * 1000000L / 30, keyframe ? Mp4Writer.FLAG_SYNC : 0);
+        }
+        assertEquals(null, segmenter.getError());
+    }
+
+    private String playlist() throws IOException {
+        ByteBuffer cached = mCache.get("hls/" + HlsSegmenter.PLAYLIST_NAME);
+        byte[] bytes = new byte[cached.remaining()];
+        cached.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static List<String> segments(String playlist) {
+        List<String> segments = new ArrayList<String>();
+        for (String line : playlist.split("\n")) {
+            if (line.length() > 0 && !line.startsWith("#")) segments.add(line);
+        }
+        return segments;
+    }
+
+    private static String readText(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            return new String(bytes, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package net.openwatch.hwencoderexperiments;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs LoadGovernor against fake /proc and /sys trees in a temporary directory, rewriting
+ * /proc/stat and the thermal zones between samples.
+ */
+public class LoadGovernorTest {
+    private File mRoot;
+    private File mProc;
+    private File mSys;
+    private LoadGovernor mGovernor;
+
+    // Cumulative /proc/stat counters
+    private long mBusy = 1000;
+    private long mIdle = 9000;
+
+    @Before
+    public void setUp() throws IOException {
+        mRoot = File.createTempFile("load-governor", "");
+        mRoot.delete();
+        mProc = new File(mRoot, "proc");
+        mSys = new File(mRoot, "sys");
+        mProc.mkdirs();
+        new File(mSys, "class/thermal/cooling_device0").mkdirs();
+        zone(0, "40000");
+        zone(1, "42000");
+        cpu(0);
+        mGovernor = new LoadGovernor(mProc, mSys, LoadGovernor.defaultLadder());
+        mGovernor.setHysteresis(2, 3);
+        // The first sample has no previous /proc/stat to compare against
+        assertFalse(mGovernor.sample());
+        assertEquals(-1, mGovernor.getLastSample().cpuBusy, 0);
+    }
+
+    @After
+    public void tearDown() {
+        delete(mRoot);
+    }
+
+    @Test
+    public void stepsDownAfterConsecutiveBusySamples() throws IOException {
+        assertFalse(sampleCpu(0.95));
+        assertEquals(0.95, mGovernor.getLastSample().cpuBusy, 0.001);
+        assertTrue(sampleCpu(0.95));
+        assertEquals(1, mGovernor.getRungIndex());
+        // The streak starts over after a step
+        assertFalse(sampleCpu(0.95));
+        assertTrue(sampleCpu(0.95));
+        assertEquals(2, mGovernor.getRungIndex());
+        assertEquals(2, mGovernor.getSteps());
+    }
+
+    @Test
+    public void staysAtTheBottomRung() throws IOException {
+        for (int i = 0; i < 20; i++) sampleCpu(0.99);
+        assertEquals(LoadGovernor.defaultLadder().length - 1, mGovernor.getRungIndex());
+        assertEquals(LoadGovernor.defaultLadder().length - 1, mGovernor.getSteps());
+    }
+
+    @Test
+    public void stepsUpOnlyAfterEnoughCalmSamples() throws IOException {
+        sampleCpu(0.95);
+        sampleCpu(0.95);
+        assertEquals(1, mGovernor.getRungIndex());
+        assertFalse(sampleCpu(0.10));
+        assertFalse(sampleCpu(0.10));
+        assertTrue(sampleCpu(0.10));
+        assertEquals(0, mGovernor.getRungIndex());
+        assertEquals(640, mGovernor.getRung().width);
+        assertEquals(30, mGovernor.getRung().frameRate);
+        // Already at the top
+        for (int i = 0; i < 6; i++) assertFalse(sampleCpu(0.10));
+    }
+
+    @Test
+    public void loadBetweenTheThresholdsHoldsTheRung() throws IOException {
+        // Hot, in between, hot: the in-between sample breaks the streak
+        assertFalse(sampleCpu(0.95));
+        assertFalse(sampleCpu(0.70));
+        assertFalse(sampleCpu(0.95));
+        assertEquals(0, mGovernor.getRungIndex());
+        assertTrue(sampleCpu(0.95));
+
+        // Same on the way up
+        assertFalse(sampleCpu(0.10));
+        assertFalse(sampleCpu(0.10));
+        assertFalse(sampleCpu(0.70));
+        assertFalse(sampleCpu(0.10));
+        assertFalse(sampleCpu(0.10));
+        assertEquals(1, mGovernor.getRungIndex());
+        assertTrue(sampleCpu(0.10));
+
+        // Hovering in the band never moves it
+        for (int i = 0; i < 20; i++) assertFalse(sampleCpu(0.70));
+        assertEquals(2, mGovernor.getSteps());
+    }
+
+    @Test
+    public void hottestThermalZoneStepsDown() throws IOException {
+        zone(1, "75000");
+        zone(2, "not a number");
+        assertFalse(sampleCpu(0.10));
+        assertEquals(75.0, mGovernor.getLastSample().temperatureC, 0.001);
+        assertTrue(sampleCpu(0.10));
+        assertEquals(1, mGovernor.getRungIndex());
+
+        // Older kernels report whole degrees; 65 C is between the thresholds, so no step up
+        zone(1, "65");
+        for (int i = 0; i < 5; i++) assertFalse(sampleCpu(0.10));
+        assertEquals(65.0, mGovernor.getLastSample().temperatureC, 0.001);
+        zone(1, "50000");
+        sampleCpu(0.10);
+        sampleCpu(0.10);
+        assertTrue(sampleCpu(0.10));
+    }
+
+    @Test
+    public void slowPipelineStepsDown() throws IOException {
+        // 32 ms of work per frame at 30 fps is 96% of the frame interval
+        for (int sample = 0; sample < 2; sample++) {
+            for (int frame = 0; frame < 30; frame++) mGovernor.reportStageLatency(32000000L);
+            sampleCpu(0.10);
+        }
+        assertEquals(0.96, mGovernor.getLastSample().stageLoad, 0.001);
+        assertEquals(1, mGovernor.getRungIndex());
+    }
+
+    @Test
+    public void unreadableSignalsAreLeftOut() throws IOException {
+        new File(mProc, "stat").delete();
+        delete(new File(mSys, "class"));
+        for (int frame = 0; frame < 30; frame++) mGovernor.reportStageLatency(32000000L);
+        assertFalse(mGovernor.sample());
+        LoadGovernor.Sample sample = mGovernor.getLastSample();
+        assertEquals(-1, sample.cpuBusy, 0);
+        assertEquals(-1, sample.temperatureC, 0);
+        assertTrue(sample.stageLoad > 0.9);
+        // What's left still counts
+        for (int frame = 0; frame < 30; frame++) mGovernor.reportStageLatency(32000000L);
+        assertTrue(mGovernor.sample());
+    }
+
+    /**
+     * Advances /proc/stat by one sample period at the given busy fraction, then samples.
+     */
+    private boolean sampleCpu(double busy) throws IOException {
+        cpu(busy);
+        return mGovernor.sample();
+    }
+
+    private void cpu(double busy) throws IOException {
+        long busyTicks = Math.round(busy * 1000);
+        mBusy += busyTicks;
+        mIdle += 1000 - busyTicks;
+        // user nice system idle iowait irq softirq steal guest guest_nice
+        write(new File(mProc, "stat"), "cpu  " + mBusy + " 0 0 " + mIdle + " 0 0 0 0 0 0\ncpu0 0 0 0 0 0 0 0 0 0 0\n");
+    }
+
+    private void zone(int n, String temp) throws IOException {
+        File zone = new File(mSys, "class/thermal/thermal_zone" + n);
+        zone.mkdirs();
+        write(new File(zone, "temp"), temp + "\n");
+    }
+
+    private static void write(File file, String text) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(text.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) delete(child);
+        }
+        file.delete();
+    }
+}
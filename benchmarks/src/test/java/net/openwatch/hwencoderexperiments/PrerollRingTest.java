@@ -0,0 +1,135 @@
+package net.openwatch.hwencoderexperiments;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Dumps a PrerollRing to MP4 and reads it back with Mp4Reader, across a video format change
+ * inside the retained window, and checks its fill level after the arena wraps.
+ */
+public class PrerollRingTest {
+    private static final byte[] SPS_A = {0x67, 0x42, (byte) 0x80, 0x1e, (byte) 0x95, (byte) 0xa0, 0x50, 0x7c};
+    private static final byte[] SPS_B = {0x67, 0x42, (byte) 0x80, 0x0d, (byte) 0x95, (byte) 0xa0, 0x28, 0x3e};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x38, (byte) 0x80};
+    private static final TrackFormat FORMAT_A = TrackFormat.createVideoFormat(640, 480, SPS_A, PPS);
+    private static final TrackFormat FORMAT_B = TrackFormat.createVideoFormat(320, 240, SPS_B, PPS);
+    private static final long FRAME_DURATION_US = 1000000 / 30;
+    private static final int GOP_FRAMES = 30;
+    private static final byte FILL_A = 0x0A;
+    private static final byte FILL_B = 0x0B;
+
+    private File mFile;
+    private long mPtsUs = 0;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("preroll", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void dumpStartsAfterAFormatChange() throws IOException {
+        PrerollRing ring = new PrerollRing(4 * 1024 * 1024, 30 * 1000000L);
+        ring.setTrackFormat(EncodedSampleSink.TRACK_VIDEO, FORMAT_A);
+        ring.setTrackFormat(EncodedSampleSink.TRACK_AUDIO, TrackFormat.createAudioFormat(44100, 1, new byte[]{0x12, 0x08}));
+        append(ring, 60, FILL_A);
+
+        // The same format from the next encoder keeps the history
+        ring.setTrackFormat(EncodedSampleSink.TRACK_VIDEO, TrackFormat.createVideoFormat(640, 480, SPS_A, PPS));
+        assertEquals(60, dump(ring, FORMAT_A, FILL_A));
+
+        // A new format with no keyframe under it yet has nothing to dump
+        ring.setTrackFormat(EncodedSampleSink.TRACK_VIDEO, FORMAT_B);
+        assertEquals(0, write(ring));
+
+        append(ring, 45, FILL_B);
+        assertEquals(45, dump(ring, FORMAT_B, FILL_B));
+    }
+
+    @Test
+    public void usedBytesLeavesOutTheWrapGap() {
+        PrerollRing ring = new PrerollRing(10000, Long.MAX_VALUE, 16);
+        ring.setTrackFormat(EncodedSampleSink.TRACK_AUDIO, TrackFormat.createAudioFormat(44100, 1, new byte[]{0x12, 0x08}));
+        ByteBuffer sample = ByteBuffer.allocate(3000);
+        for (int i = 0; i < 3; i++) ring.append(EncodedSampleSink.TRACK_AUDIO, sample, i * 1000, 0);
+        assertEquals(9000, ring.usedBytes());
+        // Doesn't fit in the last 1000 bytes: wraps to 0, evicting the oldest sample
+        ring.append(EncodedSampleSink.TRACK_AUDIO, sample, 3000, 0);
+        assertEquals(3, ring.sampleCount());
+        assertEquals(9000, ring.usedBytes());
+        ring.append(EncodedSampleSink.TRACK_AUDIO, sample, 4000, 0);
+        assertEquals(3, ring.sampleCount());
+        assertEquals(9000, ring.usedBytes());
+        // Past the gap, the live bytes are contiguous again
+        ring.append(EncodedSampleSink.TRACK_AUDIO, ByteBuffer.allocate(500), 5000, 0);
+        assertEquals(6500, ring.usedBytes());
+    }
+
+    /**
+     * Appends frames of video, keyframe first, with the audio that goes with them.
+     */
+    private void append(PrerollRing ring, int frames, byte fill) {
+        ByteBuffer frame = ByteBuffer.allocate(2000);
+        ByteBuffer audio = ByteBuffer.allocate(200);
+        for (int i = 0; i < frames; i++) {
+            boolean keyframe = i % GOP_FRAMES == 0;
+            frame.clear();
+            frame.putInt(1).put((byte) (keyframe ? 0x65 : 0x41));
+            while (frame.hasRemaining()) frame.put(fill);
+            frame.flip();
+            ring.append(EncodedSampleSink.TRACK_VIDEO, frame, mPtsUs, keyframe ? Mp4Writer.FLAG_SYNC : 0);
+            audio.clear();
+            ring.append(EncodedSampleSink.TRACK_AUDIO, audio, mPtsUs, 0);
+            mPtsUs += FRAME_DURATION_US;
+        }
+    }
+
+    /**
+     * Dumps the ring and checks that every video sample in the file belongs to format.
+     *
+     * @return the number of video samples in the file
+     */
+    private int dump(PrerollRing ring, TrackFormat format, byte fill) throws IOException {
+        write(ring);
+        Mp4Reader reader = new Mp4Reader(mFile);
+        try {
+            assertEquals(format, reader.getTrackFormat(EncodedSampleSink.TRACK_VIDEO));
+            int video = reader.getSampleCount(EncodedSampleSink.TRACK_VIDEO);
+            int audio = reader.getSampleCount(EncodedSampleSink.TRACK_AUDIO);
+            assertEquals(video, audio);
+            boolean first = true;
+            do {
+                if (reader.getSampleTrack() != EncodedSampleSink.TRACK_VIDEO) continue;
+                ByteBuffer data = reader.getSampleData();
+                if (first) assertEquals(Mp4Writer.FLAG_SYNC, reader.getSampleFlags() & Mp4Writer.FLAG_SYNC);
+                first = false;
+                assertEquals(fill, data.get(data.limit() - 1));
+            } while (reader.advance());
+            return video;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private int write(PrerollRing ring) throws IOException {
+        mFile.delete();
+        RandomAccessFile out = new RandomAccessFile(mFile, "rw");
+        try {
+            return ring.writeMp4(out.getChannel());
+        } finally {
+            out.close();
+        }
+    }
+}
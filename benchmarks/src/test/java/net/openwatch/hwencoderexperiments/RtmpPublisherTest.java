@@ -0,0 +1,640 @@
+package net.openwatch.hwencoderexperiments;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Publishes a synthetic stream with RtmpPublisher to a stand-in RTMP server on loopback.  The
+ * server does the plain handshake, answers connect / createStream / publish, and parses the
+ * chunk stream back into messages, while it pings the publisher and asks for frequent acks
+ * so the publisher's reader thread writes in between the media.
+ * <p/>
+ * Each video access unit is one slice NAL unit carrying its frame number, with the top bit set
+ * so no start code can appear in it: IDR every GOP_FRAMES, otherwise alternating reference and
+ * disposable (nal_ref_idc 0) frames.
+ */
+public class RtmpPublisherTest {
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0x80, 0x1e, (byte) 0x95, (byte) 0xa0, 0x50, 0x7c};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x38, (byte) 0x80};
+    private static final byte[] ASC = {0x12, 0x08};
+    private static final long FRAME_DURATION_US = 1000000 / 30;
+    private static final int GOP_FRAMES = 30;
+    private static final int STREAM_ID = 5;
+    private static final int TIMEOUT_MS = 10000;
+
+    private static final int MSG_SET_CHUNK_SIZE = 1;
+    private static final int MSG_ACK = 3;
+    private static final int MSG_USER_CONTROL = 4;
+    private static final int MSG_WINDOW_ACK_SIZE = 5;
+    private static final int MSG_AUDIO = 8;
+    private static final int MSG_VIDEO = 9;
+    private static final int MSG_DATA_AMF0 = 18;
+    private static final int MSG_COMMAND_AMF0 = 20;
+
+    private FakeServer mServer;
+    private RtmpPublisher mPublisher;
+    private int mNextFrame = 0;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new FakeServer();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mPublisher != null) mPublisher.stop();
+        mServer.close();
+    }
+
+    @Test
+    public void publishesChunkedTagsWithTimestamps() throws Exception {
+        start(1024 * 1024);
+        Connection connection = mServer.awaitConnection(0);
+        for (int i = 0; i < 90; i++) {
+            produce(1, 4000);
+            if (i % 10 == 0) connection.ping(1000 + i);
+            Thread.sleep(2);
+        }
+        connection.awaitVideo(90);
+
+        assertTrue("C2 didn't echo S1", connection.handshakeEchoed);
+        assertEquals("live", connection.connect.get("app"));
+        assertEquals("rtmp://127.0.0.1:" + mServer.getPort() + "/live", connection.connect.get("tcUrl"));
+        assertEquals("test", connection.publishName);
+
+        List<Message> media = connection.media();
+        checkSequenceHeaders(media);
+        int frame = 0;
+        for (Message message : media.subList(3, media.size())) {
+            assertEquals(STREAM_ID, message.streamId);
+            if (message.type == MSG_VIDEO) {
+                assertEquals(6, message.csid);
+                checkVideo(message, frame++, 4000);
+            } else {
+                assertEquals(MSG_AUDIO, message.type);
+                assertEquals(4, message.csid);
+                assertEquals(0xAF, message.body[0] & 0xFF);
+                assertEquals(1, message.body[1]);
+                assertEquals(2 + 200, message.body.length);
+            }
+        }
+        assertEquals(90, frame);
+
+        // The reader thread answered every ping and acked, without tearing a media chunk
+        connection.awaitPongs(9);
+        assertEquals(connection.pings(), connection.pongs());
+        assertTrue(connection.acks() > 0);
+        assertEquals(0, mPublisher.getReconnectCount());
+        assertEquals(0, mPublisher.getDroppedFrames());
+    }
+
+    @Test
+    public void stalledServerShedsFramesAndStaysDecodable() throws Exception {
+        start(128 * 1024);
+        Connection connection = mServer.awaitConnection(0);
+        for (int i = 0; i < GOP_FRAMES; i++) {
+            produce(1, 16 * 1024);
+            Thread.sleep(5);
+        }
+        connection.awaitVideo(GOP_FRAMES);
+
+        // Stop reading: the kernel buffers fill, the sender blocks and the queue overflows
+        connection.paused = true;
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (mPublisher.getDroppedFrames() < 2 * GOP_FRAMES && System.currentTimeMillis() < deadline) {
+            produce(1, 16 * 1024);
+            Thread.sleep(1);
+        }
+        assertTrue("nothing was dropped", mPublisher.getDroppedFrames() >= 2 * GOP_FRAMES);
+        assertTrue(mPublisher.getQueueHighWaterBytes() <= 128 * 1024);
+
+        connection.paused = false;
+        for (int i = 0; i < 2 * GOP_FRAMES; i++) {
+            produce(1, 16 * 1024);
+            Thread.sleep(5);
+        }
+        connection.awaitFrame(mNextFrame - 1);
+
+        List<Integer> frames = new ArrayList<Integer>();
+        for (Message message : connection.media()) {
+            if (message.type == MSG_VIDEO && message.body[1] == 1) frames.add(frameNumber(message));
+        }
+        assertTrue(frames.size() < mNextFrame);
+        checkDecodable(frames);
+        assertEquals(0, mPublisher.getReconnectCount());
+    }
+
+    @Test
+    public void reconnectsAndResumesOnAKeyframe() throws Exception {
+        start(1024 * 1024);
+        Connection first = mServer.awaitConnection(0);
+        produce(45, 4000);
+        first.awaitVideo(45);
+        first.socket.close();
+
+        // Keep the encoder running through the outage
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        Connection second = null;
+        while (System.currentTimeMillis() < deadline) {
+            produce(1, 4000);
+            Thread.sleep(5);
+            second = mServer.connection(1);
+            if (second != null) second.checkFailure();
+            if (second != null && second.videoCount() >= 2 * GOP_FRAMES) break;
+        }
+        assertTrue("no second connection", second != null && second.videoCount() >= 2 * GOP_FRAMES);
+        assertTrue(mPublisher.getReconnectCount() >= 1);
+
+        second.checkFailure();
+        List<Message> media = second.media();
+        checkSequenceHeaders(media);
+        Message resumed = null;
+        for (Message message : media.subList(3, media.size())) {
+            if (message.type == MSG_VIDEO) {
+                resumed = message;
+                break;
+            }
+        }
+        assertEquals(0x17, resumed.body[0] & 0xFF);
+        assertEquals(0, frameNumber(resumed) % GOP_FRAMES);
+        assertTrue(frameNumber(resumed) > 45);
+        int frame = frameNumber(resumed);
+        for (Message message : media) {
+            if (message.type == MSG_VIDEO && message.body[1] == 1) checkVideo(message, frame++, 4000);
+        }
+    }
+
+    private void start(int maxQueueBytes) {
+        mPublisher = new RtmpPublisher("rtmp://127.0.0.1:" + mServer.getPort() + "/live/test", maxQueueBytes);
+        mPublisher.setTrackFormat(EncodedSampleSink.TRACK_VIDEO, TrackFormat.createVideoFormat(640, 480, SPS, PPS));
+        mPublisher.setTrackFormat(EncodedSampleSink.TRACK_AUDIO, TrackFormat.createAudioFormat(44100, 1, ASC));
+        mPublisher.start();
+    }
+
+    /**
+     * Writes frames video access units of frameBytes each, with an audio frame after each.
+     */
+    private void produce(int frames, int frameBytes) {
+        ByteBuffer frame = ByteBuffer.allocateDirect(frameBytes);
+        ByteBuffer audio = ByteBuffer.allocate(200);
+        for (int i = 0; i < frames; i++) {
+            int n = mNextFrame++;
+            frame.clear();
+            frame.putInt(1).put(nalHeader(n)).putShort((short) (0x8000 | n));
+            while (frame.hasRemaining()) frame.put((byte) 0x5A);
+            frame.flip();
+            long ptsUs = n * FRAME_DURATION_US;
+            mPublisher.writeSampleData(EncodedSampleSink.TRACK_VIDEO, frame, ptsUs, isKeyframe(n) ? Mp4Writer.FLAG_SYNC : 0);
+            audio.clear();
+            mPublisher.writeSampleData(EncodedSampleSink.TRACK_AUDIO, audio, ptsUs, 0);
+        }
+    }
+
+    private static boolean isKeyframe(int frame) {
+        return frame % GOP_FRAMES == 0;
+    }
+
+    private static boolean isReference(int frame) {
+        return frame % 2 == 0;
+    }
+
+    private static byte nalHeader(int frame) {
+        if (isKeyframe(frame)) return 0x65;
+        return isReference(frame) ? (byte) 0x41 : (byte) 0x01;
+    }
+
+    private static void checkSequenceHeaders(List<Message> media) {
+        Message metadata = media.get(0);
+        assertEquals(MSG_DATA_AMF0, metadata.type);
+        List<Object> values = Amf0.readAll(ByteBuffer.wrap(metadata.body));
+        assertEquals("@setDataFrame", values.get(0));
+        assertEquals("onMetaData", values.get(1));
+        assertEquals(640.0, ((Map) values.get(2)).get("width"));
+
+        Message video = media.get(1);
+        assertEquals(MSG_VIDEO, video.type);
+        assertEquals(0x17, video.body[0] & 0xFF);
+        assertEquals(0, video.body[1]);                     // AVC sequence header
+        assertEquals(1, video.body[5]);                     // configurationVersion
+        assertEquals(SPS.length, ((video.body[11] & 0xFF) << 8) | (video.body[12] & 0xFF));
+        assertArrayEquals(SPS, Arrays.copyOfRange(video.body, 13, 13 + SPS.length));
+
+        Message audio = media.get(2);
+        assertEquals(MSG_AUDIO, audio.type);
+        assertArrayEquals(new byte[]{(byte) 0xAF, 0, ASC[0], ASC[1]}, audio.body);
+    }
+
+    /**
+     * Checks an FLV video tag body: frame type, AVC NALU packet, one length-prefixed NAL unit.
+     */
+    private static void checkVideo(Message message, int frame, int frameBytes) {
+        assertEquals(frame, frameNumber(message));
+        assertEquals(isKeyframe(frame) ? 0x17 : 0x27, message.body[0] & 0xFF);
+        assertEquals(1, message.body[1]);
+        assertEquals(0, message.body[2] | message.body[3] | message.body[4]);
+        assertEquals(frameBytes - 4, ByteBuffer.wrap(message.body, 5, 4).getInt());
+        assertEquals(5 + frameBytes, message.body.length);
+        assertEquals(nalHeader(frame), message.body[9]);
+        assertEquals(frame * FRAME_DURATION_US / 1000, message.timestamp);
+    }
+
+    private static int frameNumber(Message message) {
+        return ByteBuffer.wrap(message.body, 10, 2).getShort() & 0x7FFF;
+    }
+
+    /**
+     * Every frame that arrived has its keyframe and every reference frame since then.
+     */
+    private static void checkDecodable(List<Integer> frames) {
+        Set<Integer> received = new HashSet<Integer>(frames);
+        int previous = -1;
+        for (int frame : frames) {
+            assertTrue("frame " + frame + " after " + previous, frame > previous);
+            previous = frame;
+            for (int needed = frame - frame % GOP_FRAMES; needed < frame; needed++) {
+                if (isReference(needed) || isKeyframe(needed)) {
+                    assertTrue("frame " + frame + " arrived without " + needed, received.contains(needed));
+                }
+            }
+        }
+    }
+
+    private static class Message {
+        int csid;
+        int type;
+        int streamId;
+        int timestamp;
+        byte[] body;
+    }
+
+    private static class ChunkStream {
+        int timestamp;
+        int length;
+        int type;
+        int streamId;
+        int received;
+        byte[] body;
+    }
+
+    /**
+     * Accepts one publisher connection at a time.
+     */
+    private static class FakeServer implements Runnable {
+        private final ServerSocket mSocket;
+        private final Thread mThread;
+        private final List<Connection> mConnections = new ArrayList<Connection>();
+
+        FakeServer() throws IOException {
+            mSocket = new ServerSocket();
+            mSocket.bind(new InetSocketAddress("127.0.0.1", 0));
+            mThread = new Thread(this, "fake rtmp server");
+            mThread.start();
+        }
+
+        int getPort() {
+            return mSocket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            while (!mSocket.isClosed()) {
+                Connection connection;
+                try {
+                    Socket socket = mSocket.accept();
+                    connection = new Connection(socket);
+                } catch (IOException e) {
+                    return;
+                }
+                synchronized (mConnections) {
+                    mConnections.add(connection);
+                    mConnections.notifyAll();
+                }
+                connection.serve();
+            }
+        }
+
+        Connection connection(int n) {
+            synchronized (mConnections) {
+                return (n < mConnections.size()) ? mConnections.get(n) : null;
+            }
+        }
+
+        /**
+         * Waits for the nth connection to start publishing.
+         */
+        Connection awaitConnection(int n) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            Connection connection;
+            synchronized (mConnections) {
+                while (mConnections.size() <= n && System.currentTimeMillis() < deadline) mConnections.wait(100);
+                assertTrue("no connection " + n, mConnections.size() > n);
+                connection = mConnections.get(n);
+            }
+            connection.awaitPublished();
+            return connection;
+        }
+
+        void close() throws IOException {
+            mSocket.close();
+            synchronized (mConnections) {
+                for (Connection connection : mConnections) connection.socket.close();
+            }
+        }
+    }
+
+    private static class Connection {
+        final Socket socket;
+        private final DataInputStream mIn;
+        private final OutputStream mOut;
+        private final Map<Integer, ChunkStream> mStreams = new HashMap<Integer, ChunkStream>();
+        private int mChunkSize = 128;
+
+        volatile boolean paused = false;
+        volatile Throwable failure;
+        boolean handshakeEchoed;
+        Map connect;
+        String publishName;
+
+        // Guarded by this
+        private final List<Message> mMedia = new ArrayList<Message>();
+        private final List<Integer> mPings = new ArrayList<Integer>();
+        private final List<Integer> mPongs = new ArrayList<Integer>();
+        private int mAcks = 0;
+        private boolean mPublished = false;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            mIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            mOut = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        void serve() {
+            try {
+                handshake();
+                while (true) handle(readMessage());
+            } catch (IOException e) {
+                // Closed by the publisher or the test
+            } catch (Throwable t) {
+                failure = t;
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+
+        private void handshake() throws IOException {
+            assertEquals(3, mIn.readUnsignedByte());
+            byte[] c1 = new byte[1536];
+            mIn.readFully(c1);
+            byte[] s1 = new byte[1536];
+            new Random().nextBytes(s1);
+            synchronized (mOut) {
+                mOut.write(3);
+                mOut.write(s1);
+                mOut.write(c1);     // S2 echoes C1
+                mOut.flush();
+            }
+            byte[] c2 = new byte[1536];
+            mIn.readFully(c2);
+            handshakeEchoed = Arrays.equals(s1, c2);
+        }
+
+        private void handle(Message message) throws IOException {
+            ByteBuffer body = ByteBuffer.wrap(message.body);
+            switch (message.type) {
+                case MSG_SET_CHUNK_SIZE:
+                    mChunkSize = body.getInt();
+                    break;
+                case MSG_ACK:
+                    synchronized (this) {
+                        mAcks++;
+                    }
+                    break;
+                case MSG_USER_CONTROL:
+                    if (body.getShort() == 7) {
+                        synchronized (this) {
+                            mPongs.add(body.getInt());
+                            notifyAll();
+                        }
+                    }
+                    break;
+                case MSG_COMMAND_AMF0:
+                    command(Amf0.readAll(body));
+                    break;
+                default:
+                    synchronized (this) {
+                        mMedia.add(message);
+                        notifyAll();
+                    }
+            }
+        }
+
+        private void command(List<Object> command) throws IOException {
+            String name = (String) command.get(0);
+            double transactionId = (Double) command.get(1);
+            ByteBuffer reply = ByteBuffer.allocate(512);
+            if (name.equals("connect")) {
+                connect = (Map) command.get(2);
+                Amf0.writeString(reply, "_result");
+                Amf0.writeNumber(reply, transactionId);
+                Amf0.writeNull(reply);
+                Amf0.writeObjectStart(reply);
+                Amf0.writeKey(reply, "code");
+                Amf0.writeString(reply, "NetConnection.Connect.Success");
+                Amf0.writeObjectEnd(reply);
+            } else if (name.equals("createStream")) {
+                Amf0.writeString(reply, "_result");
+                Amf0.writeNumber(reply, transactionId);
+                Amf0.writeNull(reply);
+                Amf0.writeNumber(reply, STREAM_ID);
+            } else if (name.equals("publish")) {
+                publishName = (String) command.get(3);
+                Amf0.writeString(reply, "onStatus");
+                Amf0.writeNumber(reply, 0);
+                Amf0.writeNull(reply);
+                Amf0.writeObjectStart(reply);
+                Amf0.writeKey(reply, "level");
+                Amf0.writeString(reply, "status");
+                Amf0.writeKey(reply, "code");
+                Amf0.writeString(reply, "NetStream.Publish.Start");
+                Amf0.writeObjectEnd(reply);
+                reply.flip();
+                write(3, MSG_COMMAND_AMF0, STREAM_ID, reply);
+                // Ask for an ack every 50 bytes the publisher reads
+                ByteBuffer window = ByteBuffer.allocate(4);
+                window.putInt(0, 100);
+                write(2, MSG_WINDOW_ACK_SIZE, 0, window);
+                synchronized (this) {
+                    mPublished = true;
+                    notifyAll();
+                }
+                return;
+            } else {
+                return;
+            }
+            reply.flip();
+            write(3, MSG_COMMAND_AMF0, 0, reply);
+        }
+
+        void ping(int value) throws IOException {
+            ByteBuffer ping = ByteBuffer.allocate(6);
+            ping.putShort((short) 6).putInt(value).flip();
+            synchronized (this) {
+                mPings.add(value);
+            }
+            write(2, MSG_USER_CONTROL, 0, ping);
+        }
+
+        /**
+         * Writes a message in chunks of the default 128 bytes.
+         */
+        private void write(int csid, int type, int streamId, ByteBuffer body) throws IOException {
+            synchronized (mOut) {
+                int length = body.remaining();
+                mOut.write(csid);
+                mOut.write(new byte[]{0, 0, 0, (byte) (length >> 16), (byte) (length >> 8), (byte) length, (byte) type,
+                        (byte) streamId, (byte) (streamId >> 8), (byte) (streamId >> 16), (byte) (streamId >> 24)});
+                for (int written = 0; written < length; written += 128) {
+                    if (written > 0) mOut.write(0xC0 | csid);
+                    mOut.write(body.array(), body.arrayOffset() + body.position() + written, Math.min(128, length - written));
+                }
+                mOut.flush();
+            }
+        }
+
+        private Message readMessage() throws IOException {
+            while (true) {
+                while (paused) {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                int basic = mIn.readUnsignedByte();
+                int fmt = basic >> 6;
+                int csid = basic & 0x3F;
+                assertTrue("csid " + csid, csid >= 2);
+                ChunkStream stream = mStreams.get(csid);
+                if (stream == null) {
+                    assertEquals("first chunk of a stream must be type 0", 0, fmt);
+                    stream = new ChunkStream();
+                    mStreams.put(csid, stream);
+                }
+                if (fmt != 3) assertEquals("a new message started mid-message", 0, stream.received);
+                if (fmt <= 2) {
+                    int timestamp = read24();
+                    if (fmt <= 1) {
+                        stream.length = read24();
+                        stream.type = mIn.readUnsignedByte();
+                        if (fmt == 0) stream.streamId = Integer.reverseBytes(mIn.readInt());
+                    }
+                    stream.timestamp = (fmt == 0) ? timestamp : stream.timestamp + timestamp;
+                }
+                if (stream.received == 0) stream.body = new byte[stream.length];
+                int chunk = Math.min(mChunkSize, stream.length - stream.received);
+                mIn.readFully(stream.body, stream.received, chunk);
+                stream.received += chunk;
+                if (stream.received < stream.length) continue;
+
+                stream.received = 0;
+                Message message = new Message();
+                message.csid = csid;
+                message.type = stream.type;
+                message.streamId = stream.streamId;
+                message.timestamp = stream.timestamp;
+                message.body = stream.body;
+                return message;
+            }
+        }
+
+        private int read24() throws IOException {
+            return (mIn.readUnsignedByte() << 16) | (mIn.readUnsignedByte() << 8) | mIn.readUnsignedByte();
+        }
+
+        synchronized List<Message> media() {
+            return new ArrayList<Message>(mMedia);
+        }
+
+        synchronized int videoCount() {
+            int count = 0;
+            for (Message message : mMedia) if (message.type == MSG_VIDEO && message.body[1] == 1) count++;
+            return count;
+        }
+
+        synchronized List<Integer> pings() {
+            return new ArrayList<Integer>(mPings);
+        }
+
+        synchronized List<Integer> pongs() {
+            return new ArrayList<Integer>(mPongs);
+        }
+
+        synchronized int acks() {
+            return mAcks;
+        }
+
+        synchronized void awaitPublished() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (!mPublished && failure == null && System.currentTimeMillis() < deadline) wait(100);
+            checkFailure();
+            assertTrue("never published", mPublished);
+        }
+
+        synchronized void awaitVideo(int frames) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (videoCount() < frames && failure == null && System.currentTimeMillis() < deadline) wait(100);
+            checkFailure();
+            assertEquals(frames, videoCount());
+        }
+
+        synchronized void awaitFrame(int frame) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (failure == null && System.currentTimeMillis() < deadline) {
+                Message last = mMedia.isEmpty() ? null : mMedia.get(mMedia.size() - 1);
+                if (last != null && last.type == MSG_AUDIO && mMedia.size() > 1) last = mMedia.get(mMedia.size() - 2);
+                if (last != null && last.type == MSG_VIDEO && frameNumber(last) == frame) return;
+                wait(100);
+            }
+            checkFailure();
+            throw new AssertionError("frame " + frame + " never arrived");
+        }
+
+        synchronized void awaitPongs(int pongs) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (mPongs.size() < pongs && failure == null && System.currentTimeMillis() < deadline) wait(100);
+            checkFailure();
+            assertEquals(pongs, mPongs.size());
+        }
+
+        /**
+         * Rethrows what went wrong parsing the publisher's stream.
+         */
+        void checkFailure() {
+            if (failure != null) throw new AssertionError("fake server: " + failure);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package net.openwatch.hwencoderexperiments;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Plays a synthetic H.264 stream from an RtspServer over loopback with interleaved
+ * transport and checks every RTP packet that arrives.  Each access unit is one NAL unit
+ * filled with a byte derived from its frame number, so a packet whose slot was overwritten
+ * while it was being sent shows up as a fill that doesn't match its RTP timestamp, or as a
+ * sequence number going backwards.
+ */
+public class RtspServerTest {
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0x80, 0x1e, (byte) 0x95, (byte) 0xa0, 0x50, 0x7c};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x38, (byte) 0x80};
+    private static final int FRAME_BYTES = 4000;                 // three FU-A fragments
+    private static final long FRAME_DURATION_US = 1000000 / 30;  // 3000 ticks at 90 kHz
+    private static final int GOP_FRAMES = 30;
+
+    private RtspServer mServer;
+    private Socket mSocket;
+    private DataInputStream mIn;
+    private int mCSeq = 0;
+
+    // What the client has seen
+    private int mPackets;
+    private int mLastSequence = -1;
+    private int mFirstTimestamp;
+    private int mFirstFill = -1;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new RtspServer(0, 256);
+        mServer.start();
+        mServer.setTrackFormat(EncodedSampleSink.TRACK_VIDEO, TrackFormat.createVideoFormat(640, 480, SPS, PPS));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mSocket != null) mSocket.close();
+        mServer.stop();
+    }
+
+    @Test
+    public void liveClientGetsEveryPacketIntact() throws Exception {
+        play(0);
+        Thread producer = produce(300, 1, 2);
+        drain(2000);
+        producer.join();
+        drain(300);
+
+        List<RtspServer.ClientStats> stats = mServer.getClientStats();
+        assertEquals(1, stats.size());
+        assertEquals(0, stats.get(0).resyncs);
+        assertEquals(stats.get(0).packetsSent, mPackets);
+    }
+
+    @Test
+    public void slowClientResyncsInsteadOfGettingTornPackets() throws Exception {
+        play(4096);
+        // Keep producing while the client isn't reading, in bursts of more than the session's
+        // 64 KB stream buffer, so its sender thread blocks in the middle of writing packets
+        // out and gets lapped
+        produce(1000, 20, 5).join();
+        drain(500);
+        Thread producer = produce(300, 1, 2);
+        drain(2000);
+        producer.join();
+        drain(300);
+
+        RtspServer.ClientStats stats = mServer.getClientStats().get(0);
+        assertTrue("expected a resync, got " + stats, stats.resyncs > 0);
+        assertEquals(stats.packetsSent, mPackets);
+    }
+
+    /**
+     * Writes frames access units on a thread of their own, sleeping sleepMs after every
+     * burstFrames of them.
+     */
+    private Thread produce(final int frames, final int burstFrames, final long sleepMs) {
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer frame = ByteBuffer.allocate(4 + 1 + FRAME_BYTES);
+                for (int i = 0; i < frames; i++) {
+                    boolean keyframe = i % GOP_FRAMES == 0;
+                    frame.clear();
+                    frame.putInt(1).put((byte) (keyframe ? 0x65 : 0x41));
+                    byte fill = fill(i);
+                    while (frame.hasRemaining()) frame.put(fill);
+                    frame.flip();
+                    mServer.writeSampleData(EncodedSampleSink.TRACK_VIDEO, frame, mNextPtsUs,
+                            keyframe ? Mp4Writer.FLAG_SYNC : 0);
+                    mNextPtsUs += FRAME_DURATION_US;
+                    if ((i + 1) % burstFrames == 0) {
+                        try {
+                            Thread.sleep(sleepMs);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }
+        }, "producer");
+        producer.start();
+        return producer;
+    }
+
+    private volatile long mNextPtsUs = 0;
+
+    private static byte fill(long frame) {
+        return (byte) (1 + frame % 200);
+    }
+
+    private void play(int receiveBufferBytes) throws IOException {
+        mSocket = new Socket();
+        if (receiveBufferBytes > 0) mSocket.setReceiveBufferSize(receiveBufferBytes);
+        mSocket.connect(new InetSocketAddress("127.0.0.1", mServer.getPort()));
+        mIn = new DataInputStream(new BufferedInputStream(mSocket.getInputStream()));
+        String url = "rtsp://127.0.0.1:" + mServer.getPort() + "/live";
+        assertEquals("RTSP/1.0 200 OK", request("DESCRIBE " + url, ""));
+        assertEquals("RTSP/1.0 200 OK", request("SETUP " + url + "/trackID=0",
+                "Transport: RTP/AVP/TCP;unicast;interleaved=0-1\r\n"));
+        assertEquals("RTSP/1.0 200 OK", request("PLAY " + url, ""));
+    }
+
+    private String request(String line, String headers) throws IOException {
+        OutputStream out = mSocket.getOutputStream();
+        out.write((line + " RTSP/1.0\r\nCSeq: " + (++mCSeq) + "\r\n" + headers + "\r\n").getBytes("US-ASCII"));
+        out.flush();
+        String status = readLine();
+        int contentLength = 0;
+        String header;
+        while ((header = readLine()).length() > 0) {
+            if (header.toLowerCase().startsWith("content-length:")) {
+                contentLength = Integer.parseInt(header.substring(15).trim());
+            }
+        }
+        mIn.skipBytes(contentLength);
+        return status;
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = mIn.read()) != '\n') {
+            if (b < 0) throw new IOException("connection closed");
+            if (b != '\r') line.append((char) b);
+        }
+        return line.toString();
+    }
+
+    /**
+     * Reads and checks interleaved packets until no RTP packet arrives for idleMs.  RTCP
+     * sender reports keep coming once a second, so they don't count.
+     */
+    private void drain(int idleMs) throws IOException {
+        mSocket.setSoTimeout(idleMs);
+        byte[] packet = new byte[65536];
+        long lastRtpMs = System.currentTimeMillis();
+        while (System.currentTimeMillis() - lastRtpMs < idleMs) {
+            int channel;
+            try {
+                if (mIn.readUnsignedByte() != '$') throw new AssertionError("expected an interleaved frame");
+                channel = mIn.readUnsignedByte();
+            } catch (SocketTimeoutException e) {
+                return;
+            }
+            int length = mIn.readUnsignedShort();
+            mIn.readFully(packet, 0, length);
+            if (channel == 0) {
+                check(packet, length);
+                lastRtpMs = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private void check(byte[] packet, int length) {
+        mPackets++;
+        assertEquals(0x80, packet[0] & 0xC0);
+        assertEquals(96, packet[1] & 0x7F);
+        int sequence = ((packet[2] & 0xFF) << 8) | (packet[3] & 0xFF);
+        if (mLastSequence >= 0) {
+            // Resyncs skip ahead; nothing may go back
+            int delta = (sequence - mLastSequence) & 0xFFFF;
+            assertTrue("sequence " + mLastSequence + " then " + sequence, delta > 0 && delta < 0x8000);
+        }
+        mLastSequence = sequence;
+        int timestamp = ((packet[4] & 0xFF) << 24) | ((packet[5] & 0xFF) << 16) | ((packet[6] & 0xFF) << 8) | (packet[7] & 0xFF);
+        int nalType = packet[12] & 0x1F;
+        if (nalType == 7 || nalType == 8) return;
+        assertEquals("FU-A", 28, nalType);
+        int fill = packet[14] & 0xFF;
+        for (int i = 15; i < length; i++) {
+            assertEquals("torn packet", fill, packet[i] & 0xFF);
+        }
+        if (mFirstFill < 0) {
+            mFirstFill = fill;
+            mFirstTimestamp = timestamp;
+        }
+        long frames = Math.round((timestamp - mFirstTimestamp) / 3000.0);
+        assertEquals("fill doesn't match the timestamp", fill(mFirstFill - 1 + frames) & 0xFF, fill);
+    }
+}
@@ -0,0 +1,117 @@
+package net.openwatch.hwencoderexperiments;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Appends to a SegmentJournal from several threads while another keeps calling sync() and the
+ * background thread keeps flushing and compacting, then replays the file and checks that every
+ * record made it.
+ */
+public class SegmentJournalTest {
+    private static final int THREADS = 4;
+    private static final int CHUNKS_PER_THREAD = 1000;
+    private static final int KEEP_EVERY = 20;      // every 20th chunk is left un-uploaded
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("segment-journal", "");
+        mDir.delete();
+        mDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void concurrentSyncsLoseNothing() throws Exception {
+        final SegmentJournal journal = SegmentJournal.open(mDir);
+        assertEquals(1, journal.getReplay().nextSequence);
+
+        final Throwable[] failure = new Throwable[1];
+        final boolean[] done = new boolean[1];
+        Thread syncer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!isDone(done)) journal.sync();
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        }, "syncer");
+        syncer.start();
+
+        List<Thread> appenders = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            final int first = 1 + t * CHUNKS_PER_THREAD;
+            Thread appender = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int sequence = first; sequence < first + CHUNKS_PER_THREAD; sequence++) {
+                        journal.opened(sequence, "chunk-" + sequence + ".mp4");
+                        journal.closed(sequence, sequence * 1000L, sequence * 2000000L, (sequence + 1) * 2000000L,
+                                1, true);
+                        journal.indexed(sequence);
+                        if (sequence % KEEP_EVERY != 0) journal.uploaded(sequence);
+                        if (sequence % 50 == 0) journal.sync();
+                    }
+                }
+            }, "appender " + t);
+            appender.start();
+            appenders.add(appender);
+        }
+        for (Thread appender : appenders) appender.join();
+        synchronized (done) {
+            done[0] = true;
+        }
+        syncer.join();
+        journal.close();
+        assertEquals(null, failure[0]);
+
+        SegmentJournal reopened = SegmentJournal.open(mDir);
+        try {
+            SegmentJournal.Replay replay = reopened.getReplay();
+            assertFalse(replay.toString(), replay.truncatedTail);
+            assertEquals(THREADS * CHUNKS_PER_THREAD + 1, replay.nextSequence);
+            assertEquals(replay.toString(), 0, replay.partial.size());
+            assertEquals(THREADS * CHUNKS_PER_THREAD / KEEP_EVERY, replay.pendingUploads.size());
+            int expected = KEEP_EVERY;
+            for (SegmentJournal.Entry entry : replay.pendingUploads) {
+                assertEquals(expected, entry.sequence);
+                assertEquals("chunk-" + expected + ".mp4", entry.name);
+                assertEquals(expected * 1000L, entry.bytes);
+                assertTrue(entry.indexed);
+                expected += KEEP_EVERY;
+            }
+            // Compaction dropped the uploaded chunks along the way: uncompacted, it's over 400 KB
+            assertTrue(reopened.getFile().length() < 128 * 1024);
+        } finally {
+            reopened.close();
+        }
+    }
+
+    private static boolean isDone(boolean[] done) {
+        synchronized (done) {
+            return done[0];
+        }
+    }
+}
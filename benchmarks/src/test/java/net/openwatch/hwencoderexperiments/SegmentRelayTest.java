@@ -0,0 +1,157 @@
+package net.openwatch.hwencoderexperiments;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Three nodes on loopback, each a SegmentServer with a SegmentRelay peered with the other two.
+ * Node "a" publishes a segment; "b" and "c" serve it from their caches, and a viewer of a
+ * loaded "b" is sent to "c", the least loaded node that holds it.
+ */
+public class SegmentRelayTest {
+    private static final String[] IDS = {"a", "b", "c"};
+    private static final String SEGMENT = "hls/segment-0.ts";
+    private static final long TIMEOUT_MS = 10000;
+
+    private final List<File> mRoots = new ArrayList<File>();
+    private final List<SegmentServer> mServers = new ArrayList<SegmentServer>();
+    private final List<SegmentRelay> mRelays = new ArrayList<SegmentRelay>();
+    private final List<Socket> mIdle = new ArrayList<Socket>();
+
+    @Before
+    public void setUp() throws IOException {
+        int[] relayPorts = new int[IDS.length];
+        for (int i = 0; i < IDS.length; i++) relayPorts[i] = freePort();
+        for (int i = 0; i < IDS.length; i++) {
+            File root = File.createTempFile("relay-" + IDS[i], "");
+            root.delete();
+            root.mkdirs();
+            mRoots.add(root);
+            SegmentServer server = new SegmentServer(0, root, new SegmentCache(16 * 1024 * 1024));
+            server.start();
+            mServers.add(server);
+            SegmentRelay relay = new SegmentRelay(IDS[i], relayPorts[i], server);
+            for (int j = 0; j < IDS.length; j++) {
+                if (j != i) relay.addPeer("127.0.0.1:" + relayPorts[j]);
+            }
+            mRelays.add(relay);
+        }
+        for (SegmentRelay relay : mRelays) relay.start();
+    }
+
+    @After
+    public void tearDown() {
+        for (Socket socket : mIdle) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+        for (SegmentRelay relay : mRelays) relay.stop();
+        for (SegmentServer server : mServers) server.stop();
+        for (File root : mRoots) root.delete();
+    }
+
+    @Test
+    public void relaysSegmentsAndRedirectsToTheLeastLoadedHolder() throws Exception {
+        byte[] segment = new byte[188 * 100];
+        for (int i = 0; i < segment.length; i += 188) {
+            segment[i] = 0x47;
+            segment[i + 1] = (byte) (i / 188);
+        }
+        SegmentCache origin = mServers.get(0).getCache();
+        origin.put(SEGMENT, segment);
+        origin.put("hls/" + HlsSegmenter.PLAYLIST_NAME, "#EXTM3U\nsegment-0.ts\n".getBytes("UTF-8"));
+        mRelays.get(0).publish(new File(mRoots.get(0), SEGMENT));
+
+        for (int i = 1; i < IDS.length; i++) {
+            awaitCached(mServers.get(i).getCache(), "a/" + SEGMENT);
+            HttpURLConnection connection = open(i, "/a/" + SEGMENT);
+            assertEquals(200, connection.getResponseCode());
+            assertArrayEquals(segment, read(connection));
+            connection = open(i, "/a/hls/" + HlsSegmenter.PLAYLIST_NAME);
+            assertEquals(200, connection.getResponseCode());
+            assertEquals("#EXTM3U\nsegment-0.ts\n", new String(read(connection), "UTF-8"));
+        }
+
+        // Load up "a" and "b" with idle viewers; "c" is left as the least loaded holder
+        for (int i = 0; i < 6; i++) {
+            mIdle.add(new Socket("127.0.0.1", mServers.get(0).getPort()));
+            mIdle.add(new Socket("127.0.0.1", mServers.get(1).getPort()));
+        }
+        String expected = "http://127.0.0.1:" + mServers.get(2).getPort() + "/a/" + SEGMENT + "?relayed";
+        String location = null;
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!expected.equals(location)) {
+            if (System.currentTimeMillis() > deadline) fail("b redirected to " + location + ", not " + expected);
+            Thread.sleep(100);
+            HttpURLConnection connection = open(1, "/a/" + SEGMENT);
+            int status = connection.getResponseCode();
+            location = connection.getHeaderField("Location");
+            read(connection);
+            assertTrue("status " + status, status == 200 || status == 302);
+        }
+        assertTrue(mServers.get(1).getStats().redirects > 0);
+
+        HttpURLConnection redirected = (HttpURLConnection) new URL(location).openConnection();
+        redirected.setRequestProperty("Connection", "close");
+        assertEquals(200, redirected.getResponseCode());
+        assertArrayEquals(segment, read(redirected));
+    }
+
+    private static void awaitCached(SegmentCache cache, String name) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (cache.get(name) == null) {
+            if (System.currentTimeMillis() > deadline) fail(name + " never arrived");
+            Thread.sleep(20);
+        }
+    }
+
+    private HttpURLConnection open(int node, String path) throws IOException {
+        URL url = new URL("http://127.0.0.1:" + mServers.get(node).getPort() + path);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setInstanceFollowRedirects(false);
+        // Pooled keep-alive connections would count towards the node's load
+        connection.setRequestProperty("Connection", "close");
+        return connection;
+    }
+
+    private static byte[] read(HttpURLConnection connection) throws IOException {
+        InputStream in = (connection.getResponseCode() < 400) ? connection.getInputStream() : connection.getErrorStream();
+        if (in == null) return new byte[0];
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+}
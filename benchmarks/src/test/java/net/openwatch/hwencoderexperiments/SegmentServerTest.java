@@ -0,0 +1,154 @@
+package net.openwatch.hwencoderexperiments;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Packages a synthetic stream with HlsSegmenter and fetches it back through SegmentServer's
+ * index-backed features: the I-frame playlist and "?t=" seeks into TS segments.
+ */
+public class SegmentServerTest {
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0x80, 0x1e, (byte) 0x95, (byte) 0xa0, 0x50, 0x7c};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x38, (byte) 0x80};
+    private static final long FRAME_DURATION_US = 1000000 / 30;
+    private static final int GOP_FRAMES = 30;
+    private static final int FRAMES = 180;     // 6 s in three 2 s segments, two keyframes each
+
+    private File mRoot;
+    private SegmentServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mRoot = File.createTempFile("segment-server", "");
+        mRoot.delete();
+        HlsSegmenter segmenter = new HlsSegmenter(new File(mRoot, "hls"), 2);
+        segmenter.setTrackFormat(EncodedSampleSink.TRACK_VIDEO, TrackFormat.createVideoFormat(640, 480, SPS, PPS));
+        segmenter.setTrackFormat(EncodedSampleSink.TRACK_AUDIO, TrackFormat.createAudioFormat(44100, 1, new byte[]{0x12, 0x08}));
+        ByteBuffer frame = ByteBuffer.allocate(5000);
+        ByteBuffer audio = ByteBuffer.allocate(200);
+        long audioPtsUs = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            long ptsUs = i * 1000000L / 30;
+            boolean keyframe = i % GOP_FRAMES == 0;
+            frame.clear();
+            frame.putInt(1).put((byte) (keyframe ? 0x65 : 0x41));
+            while (frame.hasRemaining()) frame.put((byte) 0x5A);
+            frame.flip();
+            segmenter.writeSampleData(EncodedSampleSink.TRACK_VIDEO, frame, ptsUs, keyframe ? Mp4Writer.FLAG_SYNC : 0);
+            for (; audioPtsUs < ptsUs + FRAME_DURATION_US; audioPtsUs += 23220) {
+                audio.clear();
+                segmenter.writeSampleData(EncodedSampleSink.TRACK_AUDIO, audio, audioPtsUs, 0);
+            }
+        }
+        segmenter.finish();
+        assertEquals(null, segmenter.getError());
+        mServer = new SegmentServer(0, mRoot, null);
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+        File hls = new File(mRoot, "hls");
+        File[] files = hls.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        hls.delete();
+        mRoot.delete();
+    }
+
+    @Test
+    public void iframePlaylistListsEachSegmentsKeyframe() throws IOException {
+        String playlist = new String(get("/hls/iframes.m3u8", null, 200), "UTF-8");
+        assertTrue(playlist, playlist.contains("#EXT-X-I-FRAMES-ONLY\n"));
+        assertTrue(playlist, playlist.endsWith("#EXT-X-ENDLIST\n"));
+        Matcher entry = Pattern.compile("#EXT-X-BYTERANGE:(\\d+)@(\\d+)\n(segment-\\d+\\.ts)\n").matcher(playlist);
+        int entries = 0;
+        while (entry.find()) {
+            long size = Long.parseLong(entry.group(1));
+            long offset = Long.parseLong(entry.group(2));
+            byte[] slice = get("/hls/" + entry.group(3), "bytes=" + offset + "-" + (offset + size - 1), 206);
+            assertEquals(size, slice.length);
+            assertEquals(0, size % 188);
+            assertStartsWithPat(slice);
+            assertTrue("keyframe missing from " + entry.group(3), indexOf(slice, new byte[]{0, 0, 0, 1, 0x65}) >= 0);
+            assertEquals("a delta frame is in the range", -1, indexOf(slice, new byte[]{0, 0, 0, 1, 0x41}));
+            entries++;
+        }
+        assertEquals(FRAMES / (2 * GOP_FRAMES), entries);
+    }
+
+    @Test
+    public void seekStartsAtTheKeyframeBeforeTheTime() throws IOException {
+        File segment = new File(mRoot, "hls/segment-1.ts");
+        ChunkIndex index = ChunkIndex.open(segment);
+        long secondKeyframe = index.getOffset(index.getSyncSample(1));
+        assertTrue(secondKeyframe > 0);
+
+        HttpURLConnection connection = open("/hls/segment-1.ts?t=1.5", null);
+        assertEquals(206, connection.getResponseCode());
+        assertEquals("bytes " + secondKeyframe + "-" + (segment.length() - 1) + "/" + segment.length(),
+                connection.getHeaderField("Content-Range"));
+        assertStartsWithPat(read(connection));
+
+        long firstKeyframe = index.getOffset(index.getSyncSample(0));
+        assertEquals(segment.length() - firstKeyframe, get("/hls/segment-1.ts?t=0.5", null, 206).length);
+        assertEquals(segment.length(), get("/hls/segment-1.ts", null, 200).length);
+    }
+
+    private static void assertStartsWithPat(byte[] ts) {
+        assertEquals(0x47, ts[0] & 0xFF);
+        assertEquals(0, ((ts[1] & 0x1F) << 8) | (ts[2] & 0xFF));
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern) {
+        outer:
+        for (int i = 0; i + pattern.length <= data.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private byte[] get(String path, String range, int status) throws IOException {
+        HttpURLConnection connection = open(path, range);
+        assertEquals(path, status, connection.getResponseCode());
+        return read(connection);
+    }
+
+    private HttpURLConnection open(String path, String range) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + mServer.getPort() + path).openConnection();
+        if (range != null) connection.setRequestProperty("Range", range);
+        return connection;
+    }
+
+    private static byte[] read(HttpURLConnection connection) throws IOException {
+        InputStream in = connection.getInputStream();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
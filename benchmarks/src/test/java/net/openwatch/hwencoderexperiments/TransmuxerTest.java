@@ -0,0 +1,54 @@
+package net.openwatch.hwencoderexperiments;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks which files in a recording directory Transmuxer (and ClipExtractor, which shares the
+ * listing) treats as the session's chunks.
+ */
+public class TransmuxerTest {
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("transmuxer", "");
+        mDir.delete();
+        mDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void chunkFilesAreOnlyTheRecordersChunks() throws IOException {
+        String[] names = {
+                "640x480_10.mp4", "640x480_2.mp4", "320x240_3.mp4",     // chunks, across a rung change
+                "hq.mp4", "clip.mp4", "clip-7.mp4", "preroll_5.mp4", "x480_4.mp4", "640x_4.mp4",
+                "640x480_.mp4", "640x480_6.ts", "640x480_6.mp4.idx", "a640x480_8.mp4"
+        };
+        for (String name : names) new File(mDir, name).createNewFile();
+        new File(mDir, "640x480_9.mp4").mkdir();
+
+        List<String> chunks = new ArrayList<String>();
+        for (File file : Transmuxer.chunkFiles(mDir)) chunks.add(file.getName());
+        assertEquals(Arrays.asList("640x480_2.mp4", "320x240_3.mp4", "640x480_10.mp4"), chunks);
+        assertEquals(-1, Transmuxer.chunkNumber("hq.mp4"));
+        assertEquals(12, Transmuxer.chunkNumber("1280x720_12.mp4"));
+    }
+}